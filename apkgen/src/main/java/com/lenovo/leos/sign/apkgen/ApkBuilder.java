@@ -0,0 +1,564 @@
+package com.lenovo.leos.sign.apkgen;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * Writes APKs signed with APK Signature Scheme v2 and/or v3, for benchmarks and test corpora.
+ *
+ * <p>Entries are stored uncompressed. Their data is generated while writing, so APKs far larger
+ * than the heap can be built; the content digests are computed on the fly. Zero-filled entries
+ * are left as holes in the file, so multi-GB APKs take little disk space.
+ *
+ * <p>ZIP64 records are written when sizes, offsets or the entry count require them, or if
+ * requested. The verifiers reject ZIP64 APKs before digesting their contents, so such APKs are
+ * only guaranteed to be well-formed, with the ZIP64 records digested as part of the Central
+ * Directory section.
+ */
+public class ApkBuilder {
+    private static final int V2_BLOCK_ID = 0x7109871a;
+    private static final int V3_BLOCK_ID = 0xf05368c0;
+    private static final int VERITY_PADDING_BLOCK_ID = 0x42726577;
+    private static final int PROOF_OF_ROTATION_ATTR_ID = 0x3ba06f8c;
+    private static final byte[] APK_SIG_BLOCK_MAGIC =
+            "APK Sig Block 42".getBytes(StandardCharsets.US_ASCII);
+    private static final int ANDROID_COMMON_PAGE_SIZE = 4096;
+    // 2020-01-01 00:00 in MS-DOS format.
+    private static final int DOS_DATE = ((2020 - 1980) << 9) | (1 << 5) | 1;
+    private static final int V3_MIN_SDK_VERSION = 28;
+    private static final long ZIP32_MAX = 0xfffffffeL;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+
+    private final List<Entry> mEntries = new ArrayList<>();
+    private final List<SigningKey> mV2Signers = new ArrayList<>();
+    private final List<V3Signer> mV3Signers = new ArrayList<>();
+    private byte[] mComment = new byte[0];
+    private boolean mVerity;
+    private boolean mZip64;
+
+    /**
+     * Adds a stored entry with the provided data.
+     */
+    public ApkBuilder addEntry(String name, byte[] data) {
+        mEntries.add(new Entry(name, data.length) {
+            @Override
+            void generate(Sink sink) throws IOException {
+                sink.write(data, 0, data.length);
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Adds a stored entry of {@code size} pseudo-random bytes determined by {@code seed}.
+     */
+    public ApkBuilder addRandomEntry(String name, long size, long seed) {
+        mEntries.add(new Entry(name, size) {
+            @Override
+            void generate(Sink sink) throws IOException {
+                byte[] buffer = new byte[64 * 1024];
+                ByteBuffer longs = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN);
+                long state = seed ^ 0x9e3779b97f4a7c15L;
+                for (long remaining = size; remaining > 0; ) {
+                    longs.clear();
+                    while (longs.hasRemaining()) {
+                        // xorshift64*
+                        state ^= state >>> 12;
+                        state ^= state << 25;
+                        state ^= state >>> 27;
+                        longs.putLong(state * 0x2545f4914f6cdd1dL);
+                    }
+                    int n = (int) Math.min(buffer.length, remaining);
+                    sink.write(buffer, 0, n);
+                    remaining -= n;
+                }
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Adds a stored entry of {@code size} zeros, written as a hole in the file.
+     */
+    public ApkBuilder addSparseEntry(String name, long size) {
+        mEntries.add(new Entry(name, size) {
+            @Override
+            void generate(Sink sink) throws IOException {
+                sink.zeros(size);
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Sets the ZIP archive comment, at most 65535 bytes.
+     */
+    public ApkBuilder setComment(byte[] comment) {
+        if (comment.length > 0xffff) {
+            throw new IllegalArgumentException("Comment too long: " + comment.length);
+        }
+        mComment = comment.clone();
+        return this;
+    }
+
+    /**
+     * Sets whether signers also sign the verity digest, with the verity counterpart of their
+     * signature algorithm where it has one. The APK Signing Block is then padded to a multiple
+     * of 4 KiB, as fs-verity requires.
+     */
+    public ApkBuilder setVerity(boolean verity) {
+        mVerity = verity;
+        return this;
+    }
+
+    /**
+     * Sets whether to write ZIP64 records even if the archive does not need them.
+     */
+    public ApkBuilder setZip64(boolean zip64) {
+        mZip64 = zip64;
+        return this;
+    }
+
+    /**
+     * Adds an APK Signature Scheme v2 signer.
+     */
+    public ApkBuilder addV2Signer(SigningKey key) {
+        mV2Signers.add(key);
+        return this;
+    }
+
+    /**
+     * Sets the APK Signature Scheme v3 signer, without key rotation, replacing any other v3
+     * signer.
+     */
+    public ApkBuilder setV3Signer(SigningKey key) {
+        return setV3Signer(new Lineage(List.of(key)));
+    }
+
+    /**
+     * Sets the APK Signature Scheme v3 signer to the current key of {@code lineage}, with a
+     * proof-of-rotation if the lineage has more than one key, replacing any other v3 signer. The
+     * signer targets API level 28 and above.
+     */
+    public ApkBuilder setV3Signer(Lineage lineage) {
+        mV3Signers.clear();
+        return addV3Signer(lineage, V3_MIN_SDK_VERSION, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Adds an APK Signature Scheme v3 signer targeting the API levels
+     * [{@code minSdkVersion}, {@code maxSdkVersion}], e.g. the original key for older platforms
+     * next to a rotated one. Ranges are written as given, overlapping or not.
+     */
+    public ApkBuilder addV3Signer(Lineage lineage, int minSdkVersion, int maxSdkVersion) {
+        mV3Signers.add(new V3Signer(lineage, minSdkVersion, maxSdkVersion));
+        return this;
+    }
+
+    /**
+     * Writes the APK to {@code apk}, replacing any existing file.
+     */
+    public void write(Path apk) throws IOException, GeneralSecurityException {
+        if (mV2Signers.isEmpty() && mV3Signers.isEmpty()) {
+            throw new IllegalStateException("No signer");
+        }
+        boolean zip64 = mZip64 || mEntries.size() > 0xfffe;
+        long totalSize = 0;
+        for (Entry entry : mEntries) {
+            totalSize += 30 + 20 + entry.name.length() * 4L + entry.size;
+        }
+        // Sizes and offsets only grow: decide on ZIP64 up front from an upper bound.
+        zip64 |= totalSize > ZIP32_MAX;
+
+        ContentDigester digester = new ContentDigester(getContentDigestAlgorithms());
+        long[] localHeaderOffsets = new long[mEntries.size()];
+        long[] crcs = new long[mEntries.size()];
+        try (FileChannel channel = FileChannel.open(apk, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            FileSink out = new FileSink(channel, digester);
+            for (int i = 0; i < mEntries.size(); i++) {
+                Entry entry = mEntries.get(i);
+                CrcSink crc = new CrcSink();
+                entry.generate(crc);
+                crcs[i] = crc.crc.getValue();
+                localHeaderOffsets[i] = out.position;
+                byte[] header = localFileHeader(entry, crcs[i], zip64);
+                out.write(header, 0, header.length);
+                entry.generate(out);
+            }
+            out.flush();
+            long signingBlockOffset = out.position;
+            digester.endSection();
+
+            byte[] cd = centralDirectory(crcs, localHeaderOffsets, zip64);
+            // The Central Directory, plus the ZIP64 records that precede the EoCD.
+            byte[] digestedCd = zip64 ? concat(cd, zip64EndOfCentralDirectory(
+                    cd.length, signingBlockOffset, signingBlockOffset + cd.length)) : cd;
+            digester.update(digestedCd, 0, digestedCd.length);
+            digester.endSection();
+            // The digested EoCD points the Central Directory at the APK Signing Block.
+            byte[] digestedEocd = eocd(cd.length, signingBlockOffset, zip64);
+            digester.update(digestedEocd, 0, digestedEocd.length);
+
+            byte[] signingBlock = signingBlock(digester.getAlgorithms(), digester.digest());
+            long cdOffset = signingBlockOffset + signingBlock.length;
+            out.writeDirect(signingBlock);
+            out.writeDirect(cd);
+            if (zip64) {
+                out.writeDirect(zip64EndOfCentralDirectory(cd.length, cdOffset,
+                        cdOffset + cd.length));
+            }
+            out.writeDirect(eocd(cd.length, cdOffset, zip64));
+        }
+    }
+
+    private int[] getContentDigestAlgorithms() {
+        TreeSet<Integer> algorithms = new TreeSet<>();
+        List<SigningKey> keys = new ArrayList<>(mV2Signers);
+        for (V3Signer signer : mV3Signers) {
+            keys.add(signer.lineage.getCurrentKey());
+        }
+        for (SigningKey key : keys) {
+            for (int signatureAlgorithm : getSignatureAlgorithms(key)) {
+                algorithms.add(SigningKey.getContentDigestAlgorithm(signatureAlgorithm));
+            }
+        }
+        return algorithms.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private int[] getSignatureAlgorithms(SigningKey key) {
+        int verity = SigningKey.getVerityCounterpart(key.getSignatureAlgorithm());
+        return mVerity && verity != -1
+                ? new int[]{key.getSignatureAlgorithm(), verity}
+                : new int[]{key.getSignatureAlgorithm()};
+    }
+
+    private static byte[] localFileHeader(Entry entry, long crc, boolean zip64) {
+        byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+        int extraLength = zip64 ? 4 + 16 : 0;
+        ByteBuffer header = allocate(30 + name.length + extraLength)
+                .putInt(0x04034b50)
+                .putShort((short) (zip64 ? 45 : 10))
+                .putShort((short) 0)
+                .putShort((short) 0)
+                .putShort((short) 0)
+                .putShort((short) DOS_DATE)
+                .putInt((int) crc)
+                .putInt(zip64 ? -1 : (int) entry.size)
+                .putInt(zip64 ? -1 : (int) entry.size)
+                .putShort((short) name.length)
+                .putShort((short) extraLength)
+                .put(name);
+        if (zip64) {
+            header.putShort((short) ZIP64_EXTRA_ID).putShort((short) 16)
+                    .putLong(entry.size).putLong(entry.size);
+        }
+        return header.array();
+    }
+
+    private byte[] centralDirectory(long[] crcs, long[] localHeaderOffsets, boolean zip64) {
+        ByteArrayOutputStream cd = new ByteArrayOutputStream();
+        for (int i = 0; i < mEntries.size(); i++) {
+            Entry entry = mEntries.get(i);
+            byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+            int extraLength = zip64 ? 4 + 24 : 0;
+            ByteBuffer header = allocate(46 + name.length + extraLength)
+                    .putInt(0x02014b50)
+                    .putShort((short) (zip64 ? 45 : 20))
+                    .putShort((short) (zip64 ? 45 : 10))
+                    .putShort((short) 0)
+                    .putShort((short) 0)
+                    .putShort((short) 0)
+                    .putShort((short) DOS_DATE)
+                    .putInt((int) crcs[i])
+                    .putInt(zip64 ? -1 : (int) entry.size)
+                    .putInt(zip64 ? -1 : (int) entry.size)
+                    .putShort((short) name.length)
+                    .putShort((short) extraLength)
+                    .putShort((short) 0)
+                    .putShort((short) 0)
+                    .putShort((short) 0)
+                    .putInt(0)
+                    .putInt(zip64 ? -1 : (int) localHeaderOffsets[i])
+                    .put(name);
+            if (zip64) {
+                header.putShort((short) ZIP64_EXTRA_ID).putShort((short) 24)
+                        .putLong(entry.size).putLong(entry.size).putLong(localHeaderOffsets[i]);
+            }
+            cd.writeBytes(header.array());
+        }
+        return cd.toByteArray();
+    }
+
+    /**
+     * Returns the ZIP64 End of Central Directory record followed by its locator.
+     */
+    private byte[] zip64EndOfCentralDirectory(int centralDirectorySize,
+                                              long centralDirectoryOffset, long recordOffset) {
+        return allocate(56 + 20)
+                .putInt(0x06064b50)
+                .putLong(44)
+                .putShort((short) 45)
+                .putShort((short) 45)
+                .putInt(0)
+                .putInt(0)
+                .putLong(mEntries.size())
+                .putLong(mEntries.size())
+                .putLong(centralDirectorySize)
+                .putLong(centralDirectoryOffset)
+                .putInt(0x07064b50)
+                .putInt(0)
+                .putLong(recordOffset)
+                .putInt(1)
+                .array();
+    }
+
+    private byte[] eocd(int centralDirectorySize, long centralDirectoryOffset, boolean zip64) {
+        return allocate(22 + mComment.length)
+                .putInt(0x06054b50)
+                .putShort((short) 0)
+                .putShort((short) 0)
+                .putShort((short) (zip64 ? -1 : mEntries.size()))
+                .putShort((short) (zip64 ? -1 : mEntries.size()))
+                .putInt(centralDirectorySize)
+                .putInt(zip64 ? -1 : (int) centralDirectoryOffset)
+                .putShort((short) mComment.length)
+                .put(mComment)
+                .array();
+    }
+
+    private byte[] signingBlock(int[] algorithms, byte[][] digests)
+            throws GeneralSecurityException {
+        ByteArrayOutputStream pairs = new ByteArrayOutputStream();
+        if (!mV2Signers.isEmpty()) {
+            List<byte[]> signers = new ArrayList<>();
+            for (SigningKey key : mV2Signers) {
+                byte[] signedData = concat(
+                        signedDigests(key, algorithms, digests),
+                        lengthPrefixed(lengthPrefixed(key.getEncodedCertificate())),
+                        lengthPrefixed());
+                signers.add(lengthPrefixed(
+                        lengthPrefixed(signedData),
+                        signatures(key, signedData),
+                        lengthPrefixed(key.getEncodedPublicKey())));
+            }
+            pairs.writeBytes(idValuePair(V2_BLOCK_ID,
+                    lengthPrefixed(signers.toArray(new byte[0][]))));
+        }
+        if (!mV3Signers.isEmpty()) {
+            List<byte[]> signers = new ArrayList<>();
+            for (V3Signer v3Signer : mV3Signers) {
+                Lineage lineage = v3Signer.lineage;
+                SigningKey key = lineage.getCurrentKey();
+                byte[] attributes = lineage.getKeys().size() > 1
+                        ? lengthPrefixed(concat(uint32(PROOF_OF_ROTATION_ATTR_ID),
+                        lineage.encodeProofOfRotation()))
+                        : new byte[0];
+                byte[] sdkVersions = concat(uint32(v3Signer.minSdkVersion),
+                        uint32(v3Signer.maxSdkVersion));
+                byte[] signedData = concat(
+                        signedDigests(key, algorithms, digests),
+                        lengthPrefixed(lengthPrefixed(key.getEncodedCertificate())),
+                        sdkVersions,
+                        lengthPrefixed(attributes));
+                signers.add(lengthPrefixed(
+                        lengthPrefixed(signedData),
+                        sdkVersions,
+                        signatures(key, signedData),
+                        lengthPrefixed(key.getEncodedPublicKey())));
+            }
+            pairs.writeBytes(idValuePair(V3_BLOCK_ID,
+                    lengthPrefixed(signers.toArray(new byte[0][]))));
+        }
+        if (mVerity) {
+            // Pad the whole block, including its 8-byte size prefix, to a page multiple.
+            int unpadded = 8 + pairs.size() + 8 + APK_SIG_BLOCK_MAGIC.length;
+            int padding = (ANDROID_COMMON_PAGE_SIZE
+                    - (unpadded + 12) % ANDROID_COMMON_PAGE_SIZE) % ANDROID_COMMON_PAGE_SIZE;
+            pairs.writeBytes(idValuePair(VERITY_PADDING_BLOCK_ID, new byte[padding]));
+        }
+        // Size of the block, excluding this field: the pairs, the size again and the magic.
+        long size = pairs.size() + 8 + APK_SIG_BLOCK_MAGIC.length;
+        return allocate((int) size + 8)
+                .putLong(size)
+                .put(pairs.toByteArray())
+                .putLong(size)
+                .put(APK_SIG_BLOCK_MAGIC)
+                .array();
+    }
+
+    private byte[] signedDigests(SigningKey key, int[] algorithms, byte[][] digests) {
+        List<byte[]> records = new ArrayList<>();
+        for (int signatureAlgorithm : getSignatureAlgorithms(key)) {
+            int digestAlgorithm = SigningKey.getContentDigestAlgorithm(signatureAlgorithm);
+            for (int i = 0; i < algorithms.length; i++) {
+                if (algorithms[i] == digestAlgorithm) {
+                    records.add(lengthPrefixed(
+                            uint32(signatureAlgorithm), lengthPrefixed(digests[i])));
+                }
+            }
+        }
+        return lengthPrefixed(records.toArray(new byte[0][]));
+    }
+
+    private byte[] signatures(SigningKey key, byte[] signedData)
+            throws GeneralSecurityException {
+        List<byte[]> records = new ArrayList<>();
+        for (int signatureAlgorithm : getSignatureAlgorithms(key)) {
+            records.add(lengthPrefixed(uint32(signatureAlgorithm),
+                    lengthPrefixed(key.sign(signedData, signatureAlgorithm))));
+        }
+        return lengthPrefixed(records.toArray(new byte[0][]));
+    }
+
+    private static byte[] idValuePair(int id, byte[] value) {
+        return allocate(8 + 4 + value.length)
+                .putLong(4 + value.length)
+                .putInt(id)
+                .put(value)
+                .array();
+    }
+
+    /**
+     * Returns the concatenation of {@code parts}, prefixed with its length as a little-endian
+     * uint32.
+     */
+    private static byte[] lengthPrefixed(byte[]... parts) {
+        byte[] value = concat(parts);
+        return concat(uint32(value.length), value);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.writeBytes(part);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] uint32(int value) {
+        return allocate(4).putInt(value).array();
+    }
+
+    private static ByteBuffer allocate(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private interface Sink {
+        void write(byte[] buffer, int offset, int length) throws IOException;
+
+        default void zeros(long length) throws IOException {
+            byte[] zeros = new byte[(int) Math.min(length, 64 * 1024)];
+            while (length > 0) {
+                int n = (int) Math.min(zeros.length, length);
+                write(zeros, 0, n);
+                length -= n;
+            }
+        }
+    }
+
+    private static class CrcSink implements Sink {
+        final CRC32 crc = new CRC32();
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) {
+            crc.update(buffer, offset, length);
+        }
+    }
+
+    /**
+     * Writes the data preceding the APK Signing Block to the file and the content digester,
+     * skipping over runs of zeros.
+     */
+    private static class FileSink implements Sink {
+        final FileChannel channel;
+        final ContentDigester digester;
+        final ByteBuffer buffer = ByteBuffer.allocate(256 * 1024);
+        long position;
+
+        FileSink(FileChannel channel, ContentDigester digester) {
+            this.channel = channel;
+            this.digester = digester;
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            digester.update(data, offset, length);
+            position += length;
+            while (length > 0) {
+                int n = Math.min(length, buffer.remaining());
+                buffer.put(data, offset, n);
+                offset += n;
+                length -= n;
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+            }
+        }
+
+        @Override
+        public void zeros(long length) throws IOException {
+            flush();
+            digester.updateZeros(length);
+            position += length;
+            channel.position(position);
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        /**
+         * Writes data following the digested contents.
+         */
+        void writeDirect(byte[] data) throws IOException {
+            ByteBuffer wrapped = ByteBuffer.wrap(data);
+            while (wrapped.hasRemaining()) {
+                channel.write(wrapped);
+            }
+            position += data.length;
+        }
+    }
+
+    private static class V3Signer {
+        final Lineage lineage;
+        final int minSdkVersion;
+        final int maxSdkVersion;
+
+        V3Signer(Lineage lineage, int minSdkVersion, int maxSdkVersion) {
+            this.lineage = lineage;
+            this.minSdkVersion = minSdkVersion;
+            this.maxSdkVersion = maxSdkVersion;
+        }
+    }
+
+    private abstract static class Entry {
+        final String name;
+        final long size;
+
+        Entry(String name, long size) {
+            this.name = name;
+            this.size = size;
+        }
+
+        /**
+         * Feeds the data of the entry to {@code sink}, the same on each call.
+         */
+        abstract void generate(Sink sink) throws IOException;
+    }
+}
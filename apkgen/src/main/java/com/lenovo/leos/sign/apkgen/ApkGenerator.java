@@ -0,0 +1,294 @@
+package com.lenovo.leos.sign.apkgen;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.StringJoiner;
+
+/**
+ * Writes a reproducible corpus of signed APKs for performance testing, with a manifest
+ * {@code corpus.tsv} listing the parameters of each one.
+ *
+ * <pre>
+ * ApkGenerator --out DIR [--count 10] [--seed 1] [--sizes 64K,16M] [--entries 1,16]
+ *              [--comment 0,1024] [--signers 1] [--algorithms ECDSA_WITH_SHA256,...]
+ *              [--schemes v2,v3,v2+v3] [--lineage 1] [--verity false] [--sparse false]
+ *              [--zip64 false]
+ * </pre>
+ *
+ * <p>Each option is a comma-separated list of choices, one drawn per APK from a random generator
+ * seeded with {@code --seed}: the same command line writes the same files. Sizes are the total of
+ * the entry data, with an optional K, M or G suffix. Algorithms are {@link SigningKey} constant
+ * names. {@code --signers} is the number of v2 signers and {@code --lineage} the number of keys
+ * the v3 signer rotated through; with both schemes, the first v2 signer is the oldest key of the
+ * lineage. With {@code --sparse true} the entry data is zeros left as holes in the file, so
+ * multi-GB APKs are written in seconds. {@code --zip64 true} forces ZIP64 records, which are
+ * also written when the archive needs them.
+ *
+ * <p>Keys are generated from seeded {@code SHA1PRNG}s, so the same keys sign the APKs of each run
+ * on the same JDK. They are test keys and must not be used for anything else.
+ */
+public class ApkGenerator {
+    private static final int MANIFEST_SIZE = 1024;
+
+    private final long mSeed;
+    private final Map<String, SigningKey> mKeys = new HashMap<>();
+
+    private ApkGenerator(long seed) {
+        mSeed = seed;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        Path out = Paths.get(required(options, "out"));
+        int count = Integer.parseInt(options.getOrDefault("count", "10"));
+        long seed = Long.parseLong(options.getOrDefault("seed", "1"));
+        String[] sizes = choices(options, "sizes", "64K,16M");
+        String[] entries = choices(options, "entries", "1,16");
+        String[] comments = choices(options, "comment", "0");
+        String[] signers = choices(options, "signers", "1");
+        String[] algorithms = choices(options, "algorithms",
+                "RSA_PKCS1_V1_5_WITH_SHA256,ECDSA_WITH_SHA256,DSA_WITH_SHA256");
+        String[] schemes = choices(options, "schemes", "v2+v3");
+        String[] lineages = choices(options, "lineage", "1");
+        String[] verities = choices(options, "verity", "false");
+        String[] sparses = choices(options, "sparse", "false");
+        String[] zip64s = choices(options, "zip64", "false");
+
+        Files.createDirectories(out);
+        ApkGenerator generator = new ApkGenerator(seed);
+        SplittableRandom random = new SplittableRandom(seed);
+        try (PrintWriter manifest = new PrintWriter(Files.newBufferedWriter(
+                out.resolve("corpus.tsv"), StandardCharsets.UTF_8))) {
+            manifest.println("file\tlength\tdataSize\tentries\tcomment\tschemes\talgorithms"
+                    + "\tlineage\tverity\tsparse\tzip64");
+            for (int i = 0; i < count; i++) {
+                String size = pick(random, sizes);
+                Params params = new Params(
+                        parseSize(size),
+                        Integer.parseInt(pick(random, entries)),
+                        Integer.parseInt(pick(random, comments)),
+                        pick(random, schemes),
+                        Integer.parseInt(pick(random, signers)),
+                        Integer.parseInt(pick(random, lineages)),
+                        Boolean.parseBoolean(pick(random, verities)),
+                        Boolean.parseBoolean(pick(random, sparses)),
+                        Boolean.parseBoolean(pick(random, zip64s)),
+                        random.nextLong());
+                List<String> signerAlgorithms = new ArrayList<>();
+                int signerCount = (params.v2() ? params.signers : 0)
+                        + (params.v3() ? params.lineage : 0);
+                for (int s = 0; s < signerCount; s++) {
+                    signerAlgorithms.add(pick(random, algorithms));
+                }
+
+                String name = fileName(i, params, size, signerAlgorithms);
+                Path apk = out.resolve(name);
+                long startNanos = System.nanoTime();
+                generator.write(apk, params, signerAlgorithms, random);
+                System.out.printf("%s: %d bytes in %d ms%n", name, Files.size(apk),
+                        (System.nanoTime() - startNanos) / 1000000);
+                manifest.printf("%s\t%d\t%d\t%d\t%d\t%s\t%s\t%d\t%b\t%b\t%b%n", name,
+                        Files.size(apk), params.dataSize, params.entries, params.comment,
+                        params.schemes, String.join(",", signerAlgorithms),
+                        params.v3() ? params.lineage : 0, params.verity, params.sparse,
+                        params.zip64);
+            }
+        }
+    }
+
+    private static class Params {
+        final long dataSize;
+        final int entries;
+        final int comment;
+        final String schemes;
+        final int signers;
+        final int lineage;
+        final boolean verity;
+        final boolean sparse;
+        final boolean zip64;
+        final long contentSeed;
+
+        Params(long dataSize, int entries, int comment, String schemes, int signers,
+               int lineage, boolean verity, boolean sparse, boolean zip64, long contentSeed) {
+            if (entries < 1 || signers < 1 || lineage < 1) {
+                throw new IllegalArgumentException("Entry, signer and lineage counts must be "
+                        + "at least 1");
+            }
+            if (!schemes.matches("v2|v3|v2\\+v3")) {
+                throw new IllegalArgumentException("Unknown schemes: " + schemes);
+            }
+            this.dataSize = dataSize;
+            this.entries = entries;
+            this.comment = comment;
+            this.schemes = schemes;
+            this.signers = signers;
+            this.lineage = lineage;
+            this.verity = verity;
+            this.sparse = sparse;
+            this.zip64 = zip64;
+            this.contentSeed = contentSeed;
+        }
+
+        boolean v2() {
+            return schemes.contains("v2");
+        }
+
+        boolean v3() {
+            return schemes.contains("v3");
+        }
+    }
+
+    private void write(Path apk, Params params, List<String> signerAlgorithms,
+                       SplittableRandom random) throws IOException, GeneralSecurityException {
+        ApkBuilder builder = new ApkBuilder()
+                .setVerity(params.verity)
+                .setZip64(params.zip64);
+
+        // The manifest, then the rest of the data split evenly between the other entries.
+        long manifestSize = params.entries == 1
+                ? params.dataSize : Math.min(MANIFEST_SIZE, params.dataSize);
+        builder.addRandomEntry("AndroidManifest.xml", manifestSize, params.contentSeed);
+        long remaining = params.dataSize - manifestSize;
+        for (int e = 1; e < params.entries; e++) {
+            long size = remaining / (params.entries - e);
+            String name = String.format("assets/%05d.bin", e);
+            if (params.sparse) {
+                builder.addSparseEntry(name, size);
+            } else {
+                builder.addRandomEntry(name, size, params.contentSeed + e);
+            }
+            remaining -= size;
+        }
+        byte[] comment = new byte[params.comment];
+        for (int c = 0; c < comment.length; c++) {
+            comment[c] = (byte) ('a' + random.nextInt(26));
+        }
+        builder.setComment(comment);
+
+        int next = 0;
+        List<SigningKey> used = new ArrayList<>();
+        Lineage lineage = null;
+        if (params.v3()) {
+            List<SigningKey> keys = new ArrayList<>();
+            for (int l = 0; l < params.lineage; l++) {
+                keys.add(key(signerAlgorithms.get(next++), random, used));
+            }
+            lineage = new Lineage(keys);
+            builder.setV3Signer(lineage);
+        }
+        if (params.v2()) {
+            for (int s = 0; s < params.signers; s++) {
+                builder.addV2Signer(s == 0 && lineage != null
+                        ? lineage.getKeys().get(0)
+                        : key(signerAlgorithms.get(next++), random, used));
+            }
+        }
+        builder.write(apk);
+    }
+
+    /**
+     * Returns a pooled key of {@code algorithm} not in {@code used}, generating it on first use,
+     * and adds it to {@code used}.
+     */
+    private SigningKey key(String algorithm, SplittableRandom random, List<SigningKey> used)
+            throws GeneralSecurityException {
+        int signatureAlgorithm;
+        try {
+            signatureAlgorithm = SigningKey.class.getField(algorithm).getInt(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Unknown signature algorithm: " + algorithm, e);
+        }
+        SigningKey key;
+        do {
+            // 16 keys per algorithm, more if an APK needs them.
+            String name = algorithm + "-" + random.nextInt(16 + used.size());
+            key = mKeys.get(name);
+            if (key == null) {
+                SecureRandom keyRandom = SecureRandom.getInstance("SHA1PRNG");
+                keyRandom.setSeed((mSeed + ":" + name).getBytes(StandardCharsets.UTF_8));
+                key = SigningKey.generate(signatureAlgorithm, "corpus " + name, keyRandom);
+                mKeys.put(name, key);
+            }
+        } while (used.contains(key));
+        used.add(key);
+        return key;
+    }
+
+    private static String fileName(int index, Params params, String size,
+                                   List<String> signerAlgorithms) {
+        StringJoiner name = new StringJoiner("-", "", ".apk");
+        name.add(String.format("%04d", index));
+        name.add(params.schemes);
+        name.add(size);
+        name.add("e" + params.entries);
+        StringJoiner algorithms = new StringJoiner("_");
+        for (String algorithm : signerAlgorithms) {
+            // e.g. RSA_PKCS1_V1_5_WITH_SHA256 as rsa256.
+            algorithms.add(algorithm.replace("RSA_PKCS1_V1_5", "RSA").replace("_WITH_SHA", "")
+                    .toLowerCase());
+        }
+        name.add(algorithms.toString());
+        if (params.v3() && params.lineage > 1) {
+            name.add("l" + params.lineage);
+        }
+        if (params.comment > 0) {
+            name.add("c" + params.comment);
+        }
+        if (params.verity) {
+            name.add("verity");
+        }
+        if (params.sparse) {
+            name.add("sparse");
+        }
+        if (params.zip64) {
+            name.add("zip64");
+        }
+        return name.toString();
+    }
+
+    private static String pick(SplittableRandom random, String[] choices) {
+        return choices[random.nextInt(choices.length)];
+    }
+
+    private static long parseSize(String value) {
+        char unit = Character.toUpperCase(value.charAt(value.length() - 1));
+        int shift = unit == 'K' ? 10 : unit == 'M' ? 20 : unit == 'G' ? 30 : 0;
+        String digits = shift == 0 ? value : value.substring(0, value.length() - 1);
+        return Long.parseLong(digits) << shift;
+    }
+
+    private static String[] choices(Map<String, String> options, String name,
+                                    String defaultValue) {
+        return options.getOrDefault(name, defaultValue).split(",");
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i += 2) {
+            if (!args[i].startsWith("--") || i + 1 == args.length) {
+                throw new IllegalArgumentException("Expected --option value: " + args[i]);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        return options;
+    }
+
+    private static String required(Map<String, String> options, String name) {
+        String value = options.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("--" + name + " is required");
+        }
+        return value;
+    }
+}
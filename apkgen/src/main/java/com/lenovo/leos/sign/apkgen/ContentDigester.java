@@ -0,0 +1,244 @@
+package com.lenovo.leos.sign.apkgen;
+
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Computes the content digests signed by APK Signature Scheme v2 and v3 over data fed in
+ * sections.
+ *
+ * <p>Chunked digests (algorithms 1 and 2): each section is split into 1 MiB chunks, each chunk
+ * digested after the byte 0xa5 and its little-endian uint32 length, and the output digested over
+ * the byte 0x5a, the little-endian uint32 chunk count and all chunk digests in order.
+ *
+ * <p>Verity digest (algorithm 3): the root hash of the Merkle tree of the concatenated sections,
+ * with 4 KiB pages each digested with SHA-256 after an 8-byte zero salt, followed by the
+ * little-endian int64 length of the data.
+ *
+ * <p>Runs of zeros fed with {@link #updateZeros} reuse the digest of a whole zero chunk or page
+ * where they cover one, so sparse multi-GB entries are digested in seconds.
+ */
+class ContentDigester {
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int PAGE_SIZE = 4096;
+    private static final int VERITY_DIGEST_SIZE = 32;
+    private static final byte[] VERITY_SALT = new byte[8];
+    private static final byte[] ZEROS = new byte[CHUNK_SIZE];
+
+    private final int[] mAlgorithms;
+    // Per algorithm; null for verity.
+    private final MessageDigest[] mDigests;
+    private final ByteArrayOutputStream[] mChunkDigests;
+    private final byte[][] mZeroChunkDigests;
+    private final byte[] mChunk = new byte[CHUNK_SIZE];
+    private int mChunkLength;
+    private int mChunkCount;
+
+    private final boolean mVerity;
+    private final MessageDigest mVerityDigest;
+    private final byte[] mPage = new byte[PAGE_SIZE];
+    private int mPageLength;
+    private byte[] mZeroPageDigest;
+    private final ByteArrayOutputStream mLeafDigests = new ByteArrayOutputStream();
+    private long mLength;
+
+    /**
+     * @param algorithms content digest algorithms: 1 for chunked SHA-256, 2 for chunked SHA-512,
+     *                   3 for verity.
+     */
+    ContentDigester(int[] algorithms) {
+        mAlgorithms = algorithms;
+        mDigests = new MessageDigest[algorithms.length];
+        mChunkDigests = new ByteArrayOutputStream[algorithms.length];
+        mZeroChunkDigests = new byte[algorithms.length][];
+        boolean verity = false;
+        for (int i = 0; i < algorithms.length; i++) {
+            if (algorithms[i] == 3) {
+                verity = true;
+            } else {
+                mDigests[i] = newMessageDigest(algorithms[i]);
+                mChunkDigests[i] = new ByteArrayOutputStream();
+            }
+        }
+        mVerity = verity;
+        mVerityDigest = verity ? newMessageDigest(1) : null;
+    }
+
+    int[] getAlgorithms() {
+        return mAlgorithms;
+    }
+
+    void update(byte[] buffer, int offset, int length) {
+        mLength += length;
+        if (mVerity) {
+            updatePages(buffer, offset, length);
+        }
+        while (length > 0) {
+            int n = Math.min(length, CHUNK_SIZE - mChunkLength);
+            System.arraycopy(buffer, offset, mChunk, mChunkLength, n);
+            mChunkLength += n;
+            offset += n;
+            length -= n;
+            if (mChunkLength == CHUNK_SIZE) {
+                digestChunk();
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #update} with {@code length} zeros.
+     */
+    void updateZeros(long length) {
+        while (length > 0) {
+            if (mChunkLength == 0 && mPageLength == 0 && length >= CHUNK_SIZE) {
+                digestZeroChunk();
+                mLength += CHUNK_SIZE;
+                length -= CHUNK_SIZE;
+            } else {
+                int n = (int) Math.min(length, CHUNK_SIZE - mChunkLength);
+                update(ZEROS, 0, n);
+                length -= n;
+            }
+        }
+    }
+
+    /**
+     * Ends the current section: its last chunk is digested even if shorter than 1 MiB. Verity
+     * pages span sections.
+     */
+    void endSection() {
+        if (mChunkLength > 0) {
+            digestChunk();
+        }
+    }
+
+    /**
+     * Returns the digest per algorithm, in the order of the constructor argument.
+     */
+    byte[][] digest() {
+        endSection();
+        byte[][] result = new byte[mAlgorithms.length][];
+        for (int i = 0; i < mAlgorithms.length; i++) {
+            if (mAlgorithms[i] == 3) {
+                result[i] = verityDigest();
+                continue;
+            }
+            mDigests[i].update((byte) 0x5a);
+            mDigests[i].update(uint32(mChunkCount));
+            mDigests[i].update(mChunkDigests[i].toByteArray());
+            result[i] = mDigests[i].digest();
+        }
+        return result;
+    }
+
+    private void digestChunk() {
+        byte[] length = uint32(mChunkLength);
+        for (int i = 0; i < mAlgorithms.length; i++) {
+            if (mDigests[i] == null) {
+                continue;
+            }
+            mDigests[i].update((byte) 0xa5);
+            mDigests[i].update(length);
+            mDigests[i].update(mChunk, 0, mChunkLength);
+            mChunkDigests[i].writeBytes(mDigests[i].digest());
+        }
+        mChunkCount++;
+        mChunkLength = 0;
+    }
+
+    private void digestZeroChunk() {
+        for (int i = 0; i < mAlgorithms.length; i++) {
+            if (mDigests[i] == null) {
+                continue;
+            }
+            if (mZeroChunkDigests[i] == null) {
+                mDigests[i].update((byte) 0xa5);
+                mDigests[i].update(uint32(CHUNK_SIZE));
+                mDigests[i].update(ZEROS);
+                mZeroChunkDigests[i] = mDigests[i].digest();
+            }
+            mChunkDigests[i].writeBytes(mZeroChunkDigests[i]);
+        }
+        mChunkCount++;
+        if (mVerity) {
+            if (mZeroPageDigest == null) {
+                mZeroPageDigest = digestPage(ZEROS, 0);
+            }
+            for (int i = 0; i < CHUNK_SIZE / PAGE_SIZE; i++) {
+                mLeafDigests.writeBytes(mZeroPageDigest);
+            }
+        }
+    }
+
+    private void updatePages(byte[] buffer, int offset, int length) {
+        while (length > 0) {
+            if (mPageLength == 0 && length >= PAGE_SIZE) {
+                mLeafDigests.writeBytes(digestPage(buffer, offset));
+                offset += PAGE_SIZE;
+                length -= PAGE_SIZE;
+                continue;
+            }
+            int n = Math.min(length, PAGE_SIZE - mPageLength);
+            System.arraycopy(buffer, offset, mPage, mPageLength, n);
+            mPageLength += n;
+            offset += n;
+            length -= n;
+            if (mPageLength == PAGE_SIZE) {
+                mLeafDigests.writeBytes(digestPage(mPage, 0));
+                mPageLength = 0;
+            }
+        }
+    }
+
+    private byte[] digestPage(byte[] buffer, int offset) {
+        mVerityDigest.update(VERITY_SALT);
+        mVerityDigest.update(buffer, offset, PAGE_SIZE);
+        return mVerityDigest.digest();
+    }
+
+    private byte[] verityDigest() {
+        if (mPageLength > 0) {
+            Arrays.fill(mPage, mPageLength, PAGE_SIZE, (byte) 0);
+            mLeafDigests.writeBytes(digestPage(mPage, 0));
+            mPageLength = 0;
+        }
+        // Each level is the digests of the pages of the level below, until one fits in a page.
+        byte[] level = mLeafDigests.toByteArray();
+        while (level.length > PAGE_SIZE) {
+            byte[] padded = padToPage(level);
+            byte[] upper = new byte[padded.length / PAGE_SIZE * VERITY_DIGEST_SIZE];
+            for (int i = 0; i < padded.length / PAGE_SIZE; i++) {
+                System.arraycopy(digestPage(padded, i * PAGE_SIZE), 0, upper,
+                        i * VERITY_DIGEST_SIZE, VERITY_DIGEST_SIZE);
+            }
+            level = upper;
+        }
+        byte[] rootHash = digestPage(padToPage(level), 0);
+        byte[] result = Arrays.copyOf(rootHash, VERITY_DIGEST_SIZE + 8);
+        for (int i = 0; i < 8; i++) {
+            result[VERITY_DIGEST_SIZE + i] = (byte) (mLength >>> (8 * i));
+        }
+        return result;
+    }
+
+    private static byte[] padToPage(byte[] data) {
+        int pages = Math.max(1, (data.length + PAGE_SIZE - 1) / PAGE_SIZE);
+        return Arrays.copyOf(data, pages * PAGE_SIZE);
+    }
+
+    private static byte[] uint32(int value) {
+        return new byte[]{(byte) value, (byte) (value >>> 8), (byte) (value >>> 16),
+                (byte) (value >>> 24)};
+    }
+
+    static MessageDigest newMessageDigest(int algorithm) {
+        String name = algorithm == 2 ? "SHA-512" : "SHA-256";
+        try {
+            return MessageDigest.getInstance(name);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(name + " digest not supported", e);
+        }
+    }
+}
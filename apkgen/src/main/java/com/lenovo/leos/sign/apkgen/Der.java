@@ -0,0 +1,98 @@
+package com.lenovo.leos.sign.apkgen;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The few DER encodings needed to build X.509 certificates.
+ */
+final class Der {
+    private Der() {
+    }
+
+    static byte[] sequence(byte[]... elements) {
+        return constructed(0x30, elements);
+    }
+
+    static byte[] set(byte[]... elements) {
+        return constructed(0x31, elements);
+    }
+
+    /**
+     * Returns {@code element} wrapped in the context-specific explicit tag {@code [tagNumber]}.
+     */
+    static byte[] explicit(int tagNumber, byte[] element) {
+        return constructed(0xa0 | tagNumber, element);
+    }
+
+    static byte[] integer(BigInteger value) {
+        return tlv(0x02, value.toByteArray());
+    }
+
+    static byte[] nul() {
+        return new byte[]{0x05, 0x00};
+    }
+
+    static byte[] utf8String(String value) {
+        return tlv(0x0c, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns a UTCTime, {@code value} being of the form {@code YYMMDDhhmmssZ}.
+     */
+    static byte[] utcTime(String value) {
+        return tlv(0x17, value.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    static byte[] bitString(byte[] bytes) {
+        byte[] value = new byte[bytes.length + 1];
+        // No unused bits in the last byte.
+        System.arraycopy(bytes, 0, value, 1, bytes.length);
+        return tlv(0x03, value);
+    }
+
+    static byte[] oid(String dotted) {
+        String[] arcs = dotted.split("\\.");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(Integer.parseInt(arcs[0]) * 40 + Integer.parseInt(arcs[1]));
+        for (int i = 2; i < arcs.length; i++) {
+            long arc = Long.parseLong(arcs[i]);
+            // Base 128, most significant group first, all groups but the last with the high bit.
+            int groups = 1;
+            while ((arc >>> (7 * groups)) != 0) {
+                groups++;
+            }
+            for (int g = groups - 1; g >= 0; g--) {
+                int group = (int) ((arc >>> (7 * g)) & 0x7f);
+                out.write(g > 0 ? group | 0x80 : group);
+            }
+        }
+        return tlv(0x06, out.toByteArray());
+    }
+
+    private static byte[] constructed(int tag, byte[]... elements) {
+        ByteArrayOutputStream value = new ByteArrayOutputStream();
+        for (byte[] element : elements) {
+            value.writeBytes(element);
+        }
+        return tlv(tag, value.toByteArray());
+    }
+
+    private static byte[] tlv(int tag, byte[] value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(value.length + 6);
+        out.write(tag);
+        int length = value.length;
+        if (length < 0x80) {
+            out.write(length);
+        } else {
+            int lengthBytes = (32 - Integer.numberOfLeadingZeros(length) + 7) / 8;
+            out.write(0x80 | lengthBytes);
+            for (int i = lengthBytes - 1; i >= 0; i--) {
+                out.write(length >>> (8 * i));
+            }
+        }
+        out.writeBytes(value);
+        return out.toByteArray();
+    }
+}
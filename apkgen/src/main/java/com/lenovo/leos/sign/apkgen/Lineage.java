@@ -0,0 +1,93 @@
+package com.lenovo.leos.sign.apkgen;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Key rotation history of an APK Signature Scheme v3 signer: its signing keys, oldest first,
+ * each one signing the certificate of the next.
+ */
+public class Lineage {
+    /**
+     * Capabilities granted to past keys by default: installed data, shared user ID, permission
+     * and auth. Rollback is not granted.
+     */
+    public static final int DEFAULT_FLAGS = 0x17;
+
+    private final List<SigningKey> mKeys;
+    private final List<Integer> mFlags;
+
+    /**
+     * @param keys signing keys, oldest first; the last one must sign the APK.
+     */
+    public Lineage(List<SigningKey> keys) {
+        if (keys.isEmpty()) {
+            throw new IllegalArgumentException("Empty lineage");
+        }
+        mKeys = new ArrayList<>(keys);
+        mFlags = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            mFlags.add(DEFAULT_FLAGS);
+        }
+    }
+
+    /**
+     * Sets the capability flags of the key at {@code index}.
+     */
+    public Lineage setFlags(int index, int flags) {
+        mFlags.set(index, flags);
+        return this;
+    }
+
+    public List<SigningKey> getKeys() {
+        return mKeys;
+    }
+
+    /**
+     * Returns the signing key of the APK, i.e. the newest one.
+     */
+    public SigningKey getCurrentKey() {
+        return mKeys.get(mKeys.size() - 1);
+    }
+
+    /**
+     * Returns the proof-of-rotation struct, the value of the v3 additional attribute without its
+     * ID: a version followed by one length-prefixed level per key. Each level holds the signed
+     * data (the certificate and the algorithm the previous key signed it with), the flags, the
+     * algorithm of this key and the previous key's signature over the signed data.
+     */
+    public byte[] encodeProofOfRotation() throws GeneralSecurityException {
+        List<byte[]> levels = new ArrayList<>();
+        int levelsSize = 0;
+        for (int i = 0; i < mKeys.size(); i++) {
+            SigningKey key = mKeys.get(i);
+            SigningKey previous = i > 0 ? mKeys.get(i - 1) : null;
+            byte[] certificate = key.getEncodedCertificate();
+            byte[] signedData = allocate(4 + certificate.length + 4)
+                    .putInt(certificate.length).put(certificate)
+                    .putInt(previous != null ? previous.getSignatureAlgorithm() : 0)
+                    .array();
+            byte[] signature = previous != null ? previous.sign(signedData) : new byte[0];
+            byte[] level = allocate(4 + signedData.length + 4 + 4 + 4 + signature.length)
+                    .putInt(signedData.length).put(signedData)
+                    .putInt(mFlags.get(i))
+                    .putInt(key.getSignatureAlgorithm())
+                    .putInt(signature.length).put(signature)
+                    .array();
+            levels.add(level);
+            levelsSize += 4 + level.length;
+        }
+        ByteBuffer struct = allocate(4 + levelsSize).putInt(1);
+        for (byte[] level : levels) {
+            struct.putInt(level.length).put(level);
+        }
+        return struct.array();
+    }
+
+    private static ByteBuffer allocate(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -0,0 +1,227 @@
+package com.lenovo.leos.sign.apkgen;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.PSSParameterSpec;
+
+/**
+ * A key pair with a self-signed X.509 certificate, signing with one APK signature algorithm.
+ *
+ * <p>The certificate is encoded by hand, as the JDK has no public API to create one: version 3,
+ * subject and issuer {@code CN=<commonName>}, valid from 2020 to 2049, no extensions, signed with
+ * SHA-256 and the key itself.
+ */
+public class SigningKey {
+    public static final int RSA_PSS_WITH_SHA256 = 0x0101;
+    public static final int RSA_PSS_WITH_SHA512 = 0x0102;
+    public static final int RSA_PKCS1_V1_5_WITH_SHA256 = 0x0103;
+    public static final int RSA_PKCS1_V1_5_WITH_SHA512 = 0x0104;
+    public static final int ECDSA_WITH_SHA256 = 0x0201;
+    public static final int ECDSA_WITH_SHA512 = 0x0202;
+    public static final int DSA_WITH_SHA256 = 0x0301;
+    public static final int VERITY_RSA_PKCS1_V1_5_WITH_SHA256 = 0x0421;
+    public static final int VERITY_ECDSA_WITH_SHA256 = 0x0423;
+    public static final int VERITY_DSA_WITH_SHA256 = 0x0425;
+
+    private final int mSignatureAlgorithm;
+    private final KeyPair mKeyPair;
+    private final byte[] mEncodedCertificate;
+    private final X509Certificate mCertificate;
+
+    private SigningKey(int signatureAlgorithm, KeyPair keyPair, byte[] encodedCertificate)
+            throws GeneralSecurityException {
+        mSignatureAlgorithm = signatureAlgorithm;
+        mKeyPair = keyPair;
+        mEncodedCertificate = encodedCertificate;
+        mCertificate = (X509Certificate) CertificateFactory.getInstance("X.509")
+                .generateCertificate(new ByteArrayInputStream(encodedCertificate));
+    }
+
+    /**
+     * Generates a key for {@code signatureAlgorithm}: RSA 2048, EC P-256 or DSA 2048.
+     *
+     * @param random source of the key and certificate serial number; a seeded
+     *               {@code SHA1PRNG} generates the same key on the same JDK.
+     */
+    public static SigningKey generate(int signatureAlgorithm, String commonName,
+                                      SecureRandom random) throws GeneralSecurityException {
+        String keyAlgorithm = getKeyAlgorithm(signatureAlgorithm);
+        KeyPairGenerator generator = KeyPairGenerator.getInstance(keyAlgorithm);
+        if (keyAlgorithm.equals("EC")) {
+            generator.initialize(new ECGenParameterSpec("secp256r1"), random);
+        } else {
+            generator.initialize(2048, random);
+        }
+        KeyPair keyPair = generator.generateKeyPair();
+
+        byte[] certSignatureAlgorithm;
+        String jcaCertSignatureAlgorithm;
+        switch (keyAlgorithm) {
+            case "RSA":
+                certSignatureAlgorithm = Der.sequence(Der.oid("1.2.840.113549.1.1.11"), Der.nul());
+                jcaCertSignatureAlgorithm = "SHA256withRSA";
+                break;
+            case "EC":
+                certSignatureAlgorithm = Der.sequence(Der.oid("1.2.840.10045.4.3.2"));
+                jcaCertSignatureAlgorithm = "SHA256withECDSA";
+                break;
+            default:
+                certSignatureAlgorithm = Der.sequence(Der.oid("2.16.840.1.101.3.4.3.2"));
+                jcaCertSignatureAlgorithm = "SHA256withDSA";
+                break;
+        }
+        byte[] name = Der.sequence(Der.set(Der.sequence(
+                Der.oid("2.5.4.3"), Der.utf8String(commonName))));
+        byte[] tbsCertificate = Der.sequence(
+                Der.explicit(0, Der.integer(BigInteger.valueOf(2))),
+                Der.integer(new BigInteger(63, random)),
+                certSignatureAlgorithm,
+                name,
+                Der.sequence(Der.utcTime("200101000000Z"), Der.utcTime("491231235959Z")),
+                name,
+                keyPair.getPublic().getEncoded());
+        Signature signature = Signature.getInstance(jcaCertSignatureAlgorithm);
+        signature.initSign(keyPair.getPrivate());
+        signature.update(tbsCertificate);
+        byte[] certificate = Der.sequence(
+                tbsCertificate, certSignatureAlgorithm, Der.bitString(signature.sign()));
+        return new SigningKey(signatureAlgorithm, keyPair, certificate);
+    }
+
+    public int getSignatureAlgorithm() {
+        return mSignatureAlgorithm;
+    }
+
+    public X509Certificate getCertificate() {
+        return mCertificate;
+    }
+
+    public byte[] getEncodedCertificate() {
+        return mEncodedCertificate.clone();
+    }
+
+    /**
+     * Returns the DER-encoded SubjectPublicKeyInfo of the key.
+     */
+    public byte[] getEncodedPublicKey() {
+        return mKeyPair.getPublic().getEncoded();
+    }
+
+    /**
+     * Signs {@code data} with the signature algorithm of this key.
+     */
+    public byte[] sign(byte[] data) throws GeneralSecurityException {
+        return sign(data, mSignatureAlgorithm);
+    }
+
+    /**
+     * Signs {@code data} with {@code signatureAlgorithm}, which must use the same kind of key as
+     * the algorithm of this key, e.g. its verity counterpart.
+     */
+    public byte[] sign(byte[] data, int signatureAlgorithm) throws GeneralSecurityException {
+        if (!getKeyAlgorithm(signatureAlgorithm).equals(getKeyAlgorithm(mSignatureAlgorithm))) {
+            throw new IllegalArgumentException("Not a " + getKeyAlgorithm(mSignatureAlgorithm)
+                    + " algorithm: 0x" + Integer.toHexString(signatureAlgorithm));
+        }
+        Signature signature;
+        switch (signatureAlgorithm) {
+            case RSA_PSS_WITH_SHA256:
+                signature = Signature.getInstance("RSASSA-PSS");
+                signature.setParameter(new PSSParameterSpec(
+                        "SHA-256", "MGF1", MGF1ParameterSpec.SHA256, 256 / 8, 1));
+                break;
+            case RSA_PSS_WITH_SHA512:
+                signature = Signature.getInstance("RSASSA-PSS");
+                signature.setParameter(new PSSParameterSpec(
+                        "SHA-512", "MGF1", MGF1ParameterSpec.SHA512, 512 / 8, 1));
+                break;
+            case RSA_PKCS1_V1_5_WITH_SHA256:
+            case VERITY_RSA_PKCS1_V1_5_WITH_SHA256:
+                signature = Signature.getInstance("SHA256withRSA");
+                break;
+            case RSA_PKCS1_V1_5_WITH_SHA512:
+                signature = Signature.getInstance("SHA512withRSA");
+                break;
+            case ECDSA_WITH_SHA256:
+            case VERITY_ECDSA_WITH_SHA256:
+                signature = Signature.getInstance("SHA256withECDSA");
+                break;
+            case ECDSA_WITH_SHA512:
+                signature = Signature.getInstance("SHA512withECDSA");
+                break;
+            default:
+                signature = Signature.getInstance("SHA256withDSA");
+                break;
+        }
+        signature.initSign(mKeyPair.getPrivate());
+        signature.update(data);
+        return signature.sign();
+    }
+
+    /**
+     * Returns the verity signature algorithm using the same key and hash as
+     * {@code signatureAlgorithm}, or -1 if there is none: only SHA-256 algorithms other than
+     * RSA-PSS have one.
+     */
+    public static int getVerityCounterpart(int signatureAlgorithm) {
+        switch (signatureAlgorithm) {
+            case RSA_PKCS1_V1_5_WITH_SHA256:
+                return VERITY_RSA_PKCS1_V1_5_WITH_SHA256;
+            case ECDSA_WITH_SHA256:
+                return VERITY_ECDSA_WITH_SHA256;
+            case DSA_WITH_SHA256:
+                return VERITY_DSA_WITH_SHA256;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Returns the content digest algorithm signed by {@code signatureAlgorithm}, as numbered by
+     * the APK Signature Scheme: 1 for chunked SHA-256, 2 for chunked SHA-512, 3 for verity.
+     */
+    static int getContentDigestAlgorithm(int signatureAlgorithm) {
+        switch (signatureAlgorithm) {
+            case RSA_PSS_WITH_SHA512:
+            case RSA_PKCS1_V1_5_WITH_SHA512:
+            case ECDSA_WITH_SHA512:
+                return 2;
+            case VERITY_RSA_PKCS1_V1_5_WITH_SHA256:
+            case VERITY_ECDSA_WITH_SHA256:
+            case VERITY_DSA_WITH_SHA256:
+                return 3;
+            default:
+                return 1;
+        }
+    }
+
+    private static String getKeyAlgorithm(int signatureAlgorithm) {
+        switch (signatureAlgorithm) {
+            case RSA_PSS_WITH_SHA256:
+            case RSA_PSS_WITH_SHA512:
+            case RSA_PKCS1_V1_5_WITH_SHA256:
+            case RSA_PKCS1_V1_5_WITH_SHA512:
+            case VERITY_RSA_PKCS1_V1_5_WITH_SHA256:
+                return "RSA";
+            case ECDSA_WITH_SHA256:
+            case ECDSA_WITH_SHA512:
+            case VERITY_ECDSA_WITH_SHA256:
+                return "EC";
+            case DSA_WITH_SHA256:
+            case VERITY_DSA_WITH_SHA256:
+                return "DSA";
+            default:
+                throw new IllegalArgumentException(
+                        "Unknown signature algorithm: 0x" + Integer.toHexString(signatureAlgorithm));
+        }
+    }
+}
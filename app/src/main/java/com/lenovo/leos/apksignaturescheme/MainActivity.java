@@ -50,8 +50,9 @@ public class MainActivity extends AppCompatActivity {
 
                 if (hasV2) {
                     mBinding.tvV2Sign.setText(V2SchemeUtil.getPublicKeyString(apkPath));
-                    SignatureInfo signature = V2SchemeUtil.findSignature(apkPath);
-                    System.out.println("签名MD5: " + Base64.encodeToString(signature.eocd.array(), Base64.DEFAULT));
+                    try (SignatureInfo signature = V2SchemeUtil.findSignature(apkPath)) {
+                        System.out.println("签名MD5: " + Base64.encodeToString(signature.eocd.array(), Base64.DEFAULT));
+                    }
                 }
             } catch (IOException | SignatureNotFoundException e) {
                 e.printStackTrace();
@@ -0,0 +1,311 @@
+package com.lenovo.leos.sign.loadtest;
+
+import com.lenovo.leos.sign.ApkVerifier;
+import com.lenovo.leos.sign.LatencyHistogram;
+import com.lenovo.leos.sign.SignatureNotFoundException;
+import com.lenovo.leos.sign.VerificationLevel;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a weighted mix of APKs and verification levels against the library or a running
+ * {@code VerificationServer} at a fixed request rate, and reports latency percentiles and
+ * throughput per verification level.
+ *
+ * <pre>
+ * LoadTest --corpus DIR [--target library|http://127.0.0.1:8080] [--rate 50] [--duration 30]
+ *          [--warmup 5] [--threads N] [--mix v2/small=6,v3/*=1] [--levels CONTENT=3,SIGNATURES=1]
+ *          [--seed 1] [--slo p99=200,p99.9=500]
+ * </pre>
+ *
+ * <p>Requests are issued on a fixed schedule, whether or not earlier ones have completed, and
+ * each one's response time is measured from the time it was <em>scheduled</em>. A stall therefore
+ * counts against every request that should have been issued meanwhile, instead of only the one
+ * stuck in it (coordinated omission). The service time, measured from when a worker actually
+ * started the request, is reported alongside: the two diverge once the target falls behind.
+ *
+ * <p>Requests still queued when the run has drained for as long as it lasted are dropped. They
+ * count as errors, with the time they waited as their response time, and the number dropped is
+ * reported per level.
+ *
+ * <p>With {@code --slo}, exits with status 1 if the response time percentile of any level exceeds
+ * the given milliseconds, or if any request was dropped.
+ */
+public class LoadTest {
+    private static final double[] PERCENTILES = {50, 99, 99.9};
+
+    private enum Outcome { VERIFIED, NOT_VERIFIED, REJECTED, ERROR, DROPPED }
+
+    private interface Target {
+        Outcome verify(Path apk, VerificationLevel level) throws Exception;
+    }
+
+    private static class LevelStats {
+        final LatencyHistogram responseTime = new LatencyHistogram();
+        final LatencyHistogram serviceTime = new LatencyHistogram();
+        final LongAdder[] outcomes = new LongAdder[Outcome.values().length];
+
+        LevelStats() {
+            for (int i = 0; i < outcomes.length; i++) {
+                outcomes[i] = new LongAdder();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        Path corpus = Paths.get(required(options, "corpus"));
+        String targetSpec = options.getOrDefault("target", "library");
+        double rate = Double.parseDouble(options.getOrDefault("rate", "50"));
+        long durationNanos = seconds(options.getOrDefault("duration", "30"));
+        long warmupNanos = seconds(options.getOrDefault("warmup", "5"));
+        int threads = Integer.parseInt(options.getOrDefault("threads",
+                Integer.toString(2 * Runtime.getRuntime().availableProcessors())));
+        long seed = Long.parseLong(options.getOrDefault("seed", "1"));
+        Map<String, Double> slo = options.containsKey("slo")
+                ? Workload.parseWeights(options.get("slo")) : Map.of();
+
+        Workload workload = new Workload(corpus, options.get("mix"),
+                options.getOrDefault("levels", "CONTENT"), seed);
+        Target target = targetSpec.equals("library")
+                ? libraryTarget() : httpTarget(URI.create(targetSpec));
+        System.out.printf("corpus %s: %s%n", corpus, workload.getClassCounts());
+        System.out.printf("target %s, %.1f req/s for %ds after %ds of warmup, %d threads%n",
+                targetSpec, rate, TimeUnit.NANOSECONDS.toSeconds(durationNanos),
+                TimeUnit.NANOSECONDS.toSeconds(warmupNanos), threads);
+
+        Map<VerificationLevel, LevelStats> stats = new EnumMap<>(VerificationLevel.class);
+        for (VerificationLevel level : workload.getLevels()) {
+            stats.put(level, new LevelStats());
+        }
+        long maxLagNanos = run(workload, target, stats, rate, warmupNanos, durationNanos,
+                threads);
+        if (maxLagNanos > TimeUnit.MILLISECONDS.toNanos(10)) {
+            System.out.printf("warning: requests were issued up to %.1f ms late; latencies "
+                    + "still count from the schedule%n", maxLagNanos / 1e6);
+        }
+        boolean met = report(stats, durationNanos, slo);
+        System.exit(met ? 0 : 1);
+    }
+
+    /**
+     * Issues requests on schedule until the end of the run and waits for them. Returns how late
+     * at most the generator itself issued a request.
+     */
+    private static long run(Workload workload, Target target,
+                            Map<VerificationLevel, LevelStats> stats, double rate,
+                            long warmupNanos, long durationNanos, int threads)
+            throws InterruptedException {
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        long start = System.nanoTime();
+        long measureFrom = start + warmupNanos;
+        long end = measureFrom + durationNanos;
+        long maxLagNanos = 0;
+        for (long i = 0; ; i++) {
+            long scheduled = start + i * intervalNanos;
+            if (scheduled >= end) {
+                break;
+            }
+            long now;
+            while ((now = System.nanoTime()) < scheduled) {
+                LockSupport.parkNanos(scheduled - now);
+            }
+            if (scheduled >= measureFrom) {
+                maxLagNanos = Math.max(maxLagNanos, now - scheduled);
+            }
+            Path apk = workload.nextApk();
+            VerificationLevel level = workload.nextLevel();
+            LevelStats levelStats = scheduled >= measureFrom ? stats.get(level) : null;
+            workers.execute(new Request(target, apk, level, scheduled, levelStats));
+        }
+        workers.shutdown();
+        if (!workers.awaitTermination(durationNanos, TimeUnit.NANOSECONDS)) {
+            List<Runnable> dropped = workers.shutdownNow();
+            long now = System.nanoTime();
+            for (Runnable request : dropped) {
+                ((Request) request).drop(now);
+            }
+            System.out.printf("warning: %d requests never started and count as dropped%n",
+                    dropped.size());
+            // Requests already running were interrupted: let them record their outcome.
+            if (!workers.awaitTermination(durationNanos, TimeUnit.NANOSECONDS)) {
+                System.out.println("warning: requests still running are not counted");
+            }
+        }
+        return maxLagNanos;
+    }
+
+    /**
+     * One scheduled request, recorded in the stats of its level if it falls in the measured
+     * part of the run.
+     */
+    private static class Request implements Runnable {
+        final Target target;
+        final Path apk;
+        final VerificationLevel level;
+        final long scheduled;
+        final LevelStats levelStats;
+
+        Request(Target target, Path apk, VerificationLevel level, long scheduled,
+                LevelStats levelStats) {
+            this.target = target;
+            this.apk = apk;
+            this.level = level;
+            this.scheduled = scheduled;
+            this.levelStats = levelStats;
+        }
+
+        @Override
+        public void run() {
+            long started = System.nanoTime();
+            Outcome outcome;
+            try {
+                outcome = target.verify(apk, level);
+            } catch (Exception e) {
+                outcome = Outcome.ERROR;
+            }
+            long finished = System.nanoTime();
+            if (levelStats != null) {
+                levelStats.responseTime.record(finished - scheduled);
+                levelStats.serviceTime.record(finished - started);
+                levelStats.outcomes[outcome.ordinal()].increment();
+            }
+        }
+
+        /**
+         * Records the request as never started by {@code now}, which is a lower bound of its
+         * response time. It has no service time.
+         */
+        void drop(long now) {
+            if (levelStats != null) {
+                levelStats.responseTime.record(now - scheduled);
+                levelStats.outcomes[Outcome.DROPPED.ordinal()].increment();
+            }
+        }
+    }
+
+    /**
+     * Prints the statistics of each level and returns whether the SLO was met.
+     */
+    private static boolean report(Map<VerificationLevel, LevelStats> stats, long durationNanos,
+                                  Map<String, Double> slo) {
+        System.out.printf("%-10s %-8s %7s %7s %7s %7s %7s %9s %9s %9s %9s %9s%n",
+                "level", "latency", "count", "failed", "429", "errors", "dropped", "req/s",
+                "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+        boolean met = true;
+        for (Map.Entry<VerificationLevel, LevelStats> entry : stats.entrySet()) {
+            LevelStats levelStats = entry.getValue();
+            long count = levelStats.responseTime.getCount();
+            long dropped = levelStats.outcomes[Outcome.DROPPED.ordinal()].sum();
+            // Dropped requests are errors too.
+            String counts = String.format("%7d %7d %7d %7d %7d %9.1f", count,
+                    levelStats.outcomes[Outcome.NOT_VERIFIED.ordinal()].sum(),
+                    levelStats.outcomes[Outcome.REJECTED.ordinal()].sum(),
+                    levelStats.outcomes[Outcome.ERROR.ordinal()].sum() + dropped,
+                    dropped, (count - dropped) / (durationNanos / 1e9));
+            System.out.printf("%-10s %-8s %s%s%n", entry.getKey(), "response", counts,
+                    percentiles(levelStats.responseTime));
+            System.out.printf("%-10s %-8s %49s%s%n", "", "service", "",
+                    percentiles(levelStats.serviceTime));
+            if (!slo.isEmpty() && dropped > 0) {
+                System.out.printf("SLO violated: %s %d requests dropped%n", entry.getKey(),
+                        dropped);
+                met = false;
+            }
+            for (Map.Entry<String, Double> objective : slo.entrySet()) {
+                double percentile = Double.parseDouble(objective.getKey().substring(1));
+                double actualMillis =
+                        levelStats.responseTime.getValueAtPercentile(percentile) / 1e6;
+                if (actualMillis > objective.getValue()) {
+                    System.out.printf("SLO violated: %s %s %.2f ms > %.2f ms%n", entry.getKey(),
+                            objective.getKey(), actualMillis, objective.getValue());
+                    met = false;
+                }
+            }
+        }
+        return met;
+    }
+
+    private static String percentiles(LatencyHistogram histogram) {
+        StringBuilder line = new StringBuilder();
+        for (double percentile : PERCENTILES) {
+            line.append(String.format(" %9.2f", histogram.getValueAtPercentile(percentile) / 1e6));
+        }
+        return line.append(String.format(" %9.2f", histogram.getMax() / 1e6)).toString();
+    }
+
+    private static Target libraryTarget() {
+        Map<VerificationLevel, ApkVerifier> verifiers = new EnumMap<>(VerificationLevel.class);
+        for (VerificationLevel level : VerificationLevel.values()) {
+            verifiers.put(level, new ApkVerifier.Builder().setVerificationLevel(level).build());
+        }
+        return (apk, level) -> {
+            try {
+                verifiers.get(level).verify(apk.toString());
+                return Outcome.VERIFIED;
+            } catch (SignatureNotFoundException | SecurityException e) {
+                return Outcome.NOT_VERIFIED;
+            }
+        };
+    }
+
+    private static Target httpTarget(URI base) {
+        HttpClient client = HttpClient.newHttpClient();
+        return (apk, level) -> {
+            URI uri = base.resolve("/verify?level=" + level + "&path="
+                    + URLEncoder.encode(apk.toAbsolutePath().toString(), StandardCharsets.UTF_8));
+            HttpResponse<Void> response = client.send(HttpRequest.newBuilder(uri).build(),
+                    HttpResponse.BodyHandlers.discarding());
+            switch (response.statusCode()) {
+                case 200:
+                    return Outcome.VERIFIED;
+                case 422:
+                    return Outcome.NOT_VERIFIED;
+                case 429:
+                    return Outcome.REJECTED;
+                default:
+                    return Outcome.ERROR;
+            }
+        };
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i += 2) {
+            if (!args[i].startsWith("--") || i + 1 == args.length) {
+                throw new IllegalArgumentException("Expected --option value: " + args[i]);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        return options;
+    }
+
+    private static String required(Map<String, String> options, String name) {
+        String value = options.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("--" + name + " is required");
+        }
+        return value;
+    }
+
+    private static long seconds(String value) {
+        return (long) (Double.parseDouble(value) * TimeUnit.SECONDS.toNanos(1));
+    }
+}
@@ -0,0 +1,196 @@
+package com.lenovo.leos.sign.loadtest;
+
+import com.lenovo.leos.sign.ApkVerificationResult;
+import com.lenovo.leos.sign.ApkVerifier;
+import com.lenovo.leos.sign.SignatureNotFoundException;
+import com.lenovo.leos.sign.VerificationLevel;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Weighted mix of APKs and verification levels to replay.
+ *
+ * <p>Each APK of the corpus is classified as {@code v<scheme>/<size>}: the version of the scheme
+ * taking precedence (0 if unsigned) and {@code small} (below 1 MiB), {@code medium} (below 32 MiB)
+ * or {@code large}. A mix such as {@code v2/small=6,v3/*=1} assigns weights to classes, {@code *}
+ * matching any scheme or size; the first matching entry applies and unmatched APKs are not
+ * replayed. The weight of a class is shared evenly by its APKs, so the mix does not depend on how
+ * many APKs of each class the corpus holds.
+ */
+class Workload {
+    private static final long SMALL_LIMIT = 1024 * 1024;
+    private static final long MEDIUM_LIMIT = 32 * 1024 * 1024;
+
+    private final List<Path> mApks = new ArrayList<>();
+    private final List<String> mClasses = new ArrayList<>();
+    private double[] mApkWeights;
+    private final VerificationLevel[] mLevels;
+    private final double[] mLevelWeights;
+    private final SplittableRandom mRandom;
+
+    /**
+     * @param mix    weights of APK classes, or {@code null} to replay all APKs evenly.
+     * @param levels weights of verification levels, e.g. {@code CONTENT=3,SIGNATURES=1}.
+     */
+    Workload(Path corpus, String mix, String levels, long seed) throws IOException {
+        ApkVerifier probe = new ApkVerifier.Builder()
+                .setVerificationLevel(VerificationLevel.PROBE)
+                .build();
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(corpus)) {
+            files = walk.filter(p -> p.toString().endsWith(".apk") && Files.isRegularFile(p))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        for (Path file : files) {
+            mApks.add(file);
+            mClasses.add(classify(probe, file));
+        }
+        assignApkWeights(mix != null ? parseWeights(mix) : Map.of("*", 1.0));
+
+        Map<String, Double> levelWeights = parseWeights(levels);
+        mLevels = new VerificationLevel[levelWeights.size()];
+        mLevelWeights = new double[levelWeights.size()];
+        int i = 0;
+        for (Map.Entry<String, Double> entry : levelWeights.entrySet()) {
+            mLevels[i] = VerificationLevel.valueOf(entry.getKey());
+            mLevelWeights[i] = entry.getValue();
+            i++;
+        }
+        cumulate(mLevelWeights);
+        mRandom = new SplittableRandom(seed);
+    }
+
+    /**
+     * Returns the number of APKs per class, only counting APKs that are replayed.
+     */
+    Map<String, Integer> getClassCounts() {
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        for (int i = 0; i < mApks.size(); i++) {
+            double previous = i > 0 ? mApkWeights[i - 1] : 0;
+            if (mApkWeights[i] > previous) {
+                counts.merge(mClasses.get(i), 1, Integer::sum);
+            }
+        }
+        return counts;
+    }
+
+    VerificationLevel[] getLevels() {
+        return mLevels;
+    }
+
+    /**
+     * Draws the APK of the next request. Not thread-safe.
+     */
+    Path nextApk() {
+        return mApks.get(draw(mApkWeights));
+    }
+
+    /**
+     * Draws the level of the next request. Not thread-safe.
+     */
+    VerificationLevel nextLevel() {
+        return mLevels[draw(mLevelWeights)];
+    }
+
+    private int draw(double[] cumulativeWeights) {
+        double r = mRandom.nextDouble() * cumulativeWeights[cumulativeWeights.length - 1];
+        // First index whose cumulative weight is above r, which skips zero weights.
+        int low = 0;
+        int high = cumulativeWeights.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (cumulativeWeights[mid] > r) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    private void assignApkWeights(Map<String, Double> mix) {
+        int[] matches = new int[mApks.size()];
+        String[] keys = mix.keySet().toArray(new String[0]);
+        int[] classSizes = new int[keys.length];
+        for (int i = 0; i < mApks.size(); i++) {
+            matches[i] = -1;
+            for (int k = 0; k < keys.length; k++) {
+                if (matches(keys[k], mClasses.get(i))) {
+                    matches[i] = k;
+                    classSizes[k]++;
+                    break;
+                }
+            }
+        }
+        mApkWeights = new double[mApks.size()];
+        for (int i = 0; i < mApks.size(); i++) {
+            if (matches[i] >= 0) {
+                mApkWeights[i] = mix.get(keys[matches[i]]) / classSizes[matches[i]];
+            }
+        }
+        cumulate(mApkWeights);
+        if (mApks.isEmpty() || mApkWeights[mApkWeights.length - 1] <= 0) {
+            throw new IllegalArgumentException("No APK of the corpus matches the mix");
+        }
+    }
+
+    private static String classify(ApkVerifier probe, Path apk) throws IOException {
+        int scheme;
+        try {
+            ApkVerificationResult result = probe.verify(apk.toString());
+            scheme = result.schemes.get(0).schemeVersion;
+        } catch (SignatureNotFoundException | SecurityException e) {
+            scheme = 0;
+        }
+        long size = Files.size(apk);
+        String sizeClass = size < SMALL_LIMIT ? "small" : size < MEDIUM_LIMIT ? "medium" : "large";
+        return "v" + scheme + "/" + sizeClass;
+    }
+
+    private static boolean matches(String pattern, String apkClass) {
+        if (pattern.equals("*")) {
+            return true;
+        }
+        String[] patternParts = pattern.split("/", -1);
+        String[] classParts = apkClass.split("/", -1);
+        if (patternParts.length != classParts.length) {
+            return false;
+        }
+        for (int i = 0; i < patternParts.length; i++) {
+            if (!patternParts[i].equals("*") && !patternParts[i].equals(classParts[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static Map<String, Double> parseWeights(String spec) {
+        Map<String, Double> weights = new LinkedHashMap<>();
+        for (String entry : spec.split(",")) {
+            int eq = entry.indexOf('=');
+            String key = (eq < 0 ? entry : entry.substring(0, eq)).trim();
+            double weight = eq < 0 ? 1 : Double.parseDouble(entry.substring(eq + 1));
+            if (key.isEmpty() || !(weight >= 0)) {
+                throw new IllegalArgumentException("Malformed weight: " + entry);
+            }
+            weights.put(key, weight);
+        }
+        return weights;
+    }
+
+    private static void cumulate(double[] weights) {
+        for (int i = 1; i < weights.length; i++) {
+            weights[i] += weights[i - 1];
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.lenovo.leos.sign.server;
+
+/**
+ * Minimal streaming JSON writer. Callers are responsible for well-formedness; commas between
+ * members and elements are inserted automatically.
+ */
+class JsonWriter {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final StringBuilder mOut = new StringBuilder();
+    // Whether the current object or array already has a member or element.
+    private boolean mHasElement;
+
+    JsonWriter beginObject() {
+        separate();
+        mOut.append('{');
+        mHasElement = false;
+        return this;
+    }
+
+    JsonWriter endObject() {
+        mOut.append('}');
+        mHasElement = true;
+        return this;
+    }
+
+    JsonWriter beginArray() {
+        separate();
+        mOut.append('[');
+        mHasElement = false;
+        return this;
+    }
+
+    JsonWriter endArray() {
+        mOut.append(']');
+        mHasElement = true;
+        return this;
+    }
+
+    JsonWriter name(String name) {
+        separate();
+        string(name);
+        mOut.append(':');
+        // The value follows without a comma.
+        mHasElement = false;
+        return this;
+    }
+
+    JsonWriter value(String value) {
+        separate();
+        if (value == null) {
+            mOut.append("null");
+        } else {
+            string(value);
+        }
+        mHasElement = true;
+        return this;
+    }
+
+    JsonWriter value(long value) {
+        separate();
+        mOut.append(value);
+        mHasElement = true;
+        return this;
+    }
+
+    JsonWriter value(boolean value) {
+        separate();
+        mOut.append(value);
+        mHasElement = true;
+        return this;
+    }
+
+    JsonWriter hexValue(byte[] value) {
+        if (value == null) {
+            return value((String) null);
+        }
+        StringBuilder hex = new StringBuilder(value.length * 2);
+        for (byte b : value) {
+            hex.append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+        }
+        return value(hex.toString());
+    }
+
+    @Override
+    public String toString() {
+        return mOut.toString();
+    }
+
+    private void separate() {
+        if (mHasElement) {
+            mOut.append(',');
+            mHasElement = false;
+        }
+    }
+
+    private void string(String s) {
+        mOut.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    mOut.append("\\\"");
+                    break;
+                case '\\':
+                    mOut.append("\\\\");
+                    break;
+                case '\n':
+                    mOut.append("\\n");
+                    break;
+                case '\r':
+                    mOut.append("\\r");
+                    break;
+                case '\t':
+                    mOut.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        mOut.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xf]);
+                    } else {
+                        mOut.append(c);
+                    }
+            }
+        }
+        mOut.append('"');
+    }
+}
@@ -0,0 +1,653 @@
+package com.lenovo.leos.sign.server;
+
+import com.lenovo.leos.sign.ApkSigningBlockUtils;
+import com.lenovo.leos.sign.ApkVerificationResult;
+import com.lenovo.leos.sign.ApkVerifier;
+import com.lenovo.leos.sign.CancellationSignal;
+import com.lenovo.leos.sign.DeadlineExceededException;
+import com.lenovo.leos.sign.MemoryBudget;
+import com.lenovo.leos.sign.MemoryBudgetExceededException;
+import com.lenovo.leos.sign.SignatureNotFoundException;
+import com.lenovo.leos.sign.VerificationLevel;
+import com.lenovo.leos.sign.VerificationListener;
+import com.lenovo.leos.sign.VerificationMetrics;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.ZipException;
+
+/**
+ * Local HTTP service verifying APKs for other processes, e.g. as a sidecar.
+ *
+ * <ul>
+ *   <li>{@code GET /verify?path=<file>} verifies an APK on the local file system.</li>
+ *   <li>{@code POST /verify} verifies the APK sent as the request body.</li>
+ *   <li>{@code GET /stats} returns the counters of the service.</li>
+ *   <li>{@code GET /metrics} returns the {@link VerificationMetrics} installed as default
+ *   listener in the Prometheus text format, 404 if there is none.</li>
+ * </ul>
+ * Both verify requests accept {@code level=PROBE|SIGNATURES|CONTENT|VERITY} (default
+ * {@code CONTENT}) and {@code all=true} to verify every present scheme rather than the one taking
+ * precedence. The response is a JSON object with the verified schemes, their signers, lineage and
+ * signed digests: status 200 if the APK verified, 422 if it did not or is not an APK, and 413 if
+ * it is larger than the bytes-in-flight budget.
+ *
+ * <p>Concurrent requests for the same file (same path, size and modification time) or the same
+ * body, at the same level, share one verification. A request is admitted only if a verification
+ * slot is free and its bytes fit the bytes-in-flight budget; otherwise it fails at once with 429,
+ * so that an overloaded service sheds load instead of queueing it. With a verification timeout,
+ * a verification still running at its deadline stops at the next chunk, signer or lineage level
+ * and the request fails with 504, so abandoned work does not hold a slot; closing the service
+ * stops all verifications in progress the same way.
+ *
+ * <p>Verification goes through {@link ApkVerifier} and thus the scheme verifiers of the library.
+ */
+public class VerificationServer implements Closeable {
+    private final HttpServer mServer;
+    private final ExecutorService mExecutor;
+    // The allowed root as given and with symbolic links resolved.
+    private final Path mAllowedRoot;
+    private final Path mRealAllowedRoot;
+    private final Semaphore mVerificationSlots;
+    private final MemoryBudget mBytesInFlight;
+    private final long mVerificationTimeoutNanos;
+    private final Set<CancellationSignal> mRunning = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<String, ApkVerifier> mVerifiers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CompletableFuture<Response>> mInFlight =
+            new ConcurrentHashMap<>();
+
+    private final LongAdder mRequests = new LongAdder();
+    private final LongAdder mCoalesced = new LongAdder();
+    private final LongAdder mRejected = new LongAdder();
+    private final LongAdder mTimedOut = new LongAdder();
+
+    private VerificationServer(Builder builder) throws IOException {
+        mAllowedRoot = builder.mAllowedRoot != null
+                ? builder.mAllowedRoot.toAbsolutePath().normalize() : null;
+        mRealAllowedRoot = builder.mAllowedRoot != null
+                ? builder.mAllowedRoot.toRealPath() : null;
+        mVerificationSlots = new Semaphore(builder.mMaxConcurrentVerifications);
+        mBytesInFlight = new MemoryBudget(builder.mMaxBytesInFlight, 0);
+        mVerificationTimeoutNanos = builder.mVerificationTimeoutNanos;
+        mServer = HttpServer.create(new InetSocketAddress(builder.mAddress, builder.mPort), 0);
+        // Requests beyond the admission limits are answered at once, so handler threads stay
+        // roughly bounded by admitted and coalesced requests.
+        mExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "VerificationServer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        mServer.setExecutor(mExecutor);
+        mServer.createContext("/verify", this::handleVerify);
+        mServer.createContext("/stats", this::handleStats);
+        mServer.createContext("/metrics", this::handleMetrics);
+    }
+
+    /**
+     * Starts serving.
+     */
+    public void start() {
+        mServer.start();
+    }
+
+    /**
+     * Returns the port the service listens on, e.g. if it was created with port 0.
+     */
+    public int getPort() {
+        return mServer.getAddress().getPort();
+    }
+
+    /**
+     * Stops serving: verifications in progress are canceled, and requests get up to one second
+     * to respond.
+     */
+    @Override
+    public void close() {
+        for (CancellationSignal signal : mRunning) {
+            signal.cancel();
+        }
+        mServer.stop(1);
+        mExecutor.shutdownNow();
+    }
+
+    private void handleVerify(HttpExchange exchange) throws IOException {
+        mRequests.increment();
+        try {
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            VerificationLevel level;
+            try {
+                level = VerificationLevel.valueOf(query.getOrDefault("level", "CONTENT"));
+            } catch (IllegalArgumentException e) {
+                send(exchange, Response.error(400, "Unknown level: " + query.get("level")));
+                return;
+            }
+            boolean all = Boolean.parseBoolean(query.get("all"));
+            String method = exchange.getRequestMethod();
+            if ("GET".equals(method) && query.containsKey("path")) {
+                send(exchange, verifyPath(query.get("path"), level, all));
+            } else if ("POST".equals(method)) {
+                send(exchange, verifyBody(exchange, level, all));
+            } else {
+                send(exchange, Response.error(400, "Expected GET with path or POST with body"));
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private Response verifyPath(String file, VerificationLevel level, boolean all)
+            throws IOException {
+        Path requested;
+        try {
+            requested = Paths.get(file).toAbsolutePath().normalize();
+        } catch (InvalidPathException e) {
+            return Response.error(400, "Invalid path: " + file);
+        }
+        // Checked before touching the file system, so that the responses do not tell whether a
+        // file outside of the root exists, and again once symbolic links are resolved.
+        if (mAllowedRoot != null && !requested.startsWith(mAllowedRoot)
+                && !requested.startsWith(mRealAllowedRoot)) {
+            return Response.error(403, "Outside of the allowed root: " + file);
+        }
+        Path path;
+        BasicFileAttributes attrs;
+        try {
+            path = requested.toRealPath();
+            if (mRealAllowedRoot != null && !path.startsWith(mRealAllowedRoot)) {
+                return Response.error(403, "Outside of the allowed root: " + file);
+            }
+            attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return Response.error(404, "No such file: " + file);
+        } catch (AccessDeniedException e) {
+            return Response.error(403, "Access denied: " + file);
+        }
+        if (attrs.size() > mBytesInFlight.getCapacity()) {
+            return tooLarge();
+        }
+        String key = "path:" + path + ':' + attrs.size() + ':' + attrs.lastModifiedTime()
+                + ':' + level + ':' + all;
+        return coalesce(key,
+                () -> verify(path, path.toString(), attrs.size(), true, level, all));
+    }
+
+    private Response verifyBody(HttpExchange exchange, VerificationLevel level, boolean all)
+            throws IOException {
+        String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+        long size;
+        try {
+            size = Long.parseLong(contentLength);
+        } catch (NumberFormatException e) {
+            return Response.error(411, "Content-Length required");
+        }
+        if (size <= 0) {
+            return Response.error(400, "Empty body");
+        }
+        if (size > mBytesInFlight.getCapacity()) {
+            return tooLarge();
+        }
+        // The body is spooled to a file: charge it to the budget before reading it.
+        MemoryBudget.Reservation reservation = mBytesInFlight.tryReserve(size);
+        if (reservation == null) {
+            mRejected.increment();
+            return Response.busy();
+        }
+        try {
+            Path spooled = Files.createTempFile("verify", ".apk");
+            try {
+                MessageDigest md = sha256();
+                try (InputStream in = exchange.getRequestBody();
+                     OutputStream out = Files.newOutputStream(spooled)) {
+                    byte[] buffer = new byte[64 * 1024];
+                    long remaining = size;
+                    int read;
+                    while (remaining > 0 && (read = in.read(buffer, 0,
+                            (int) Math.min(buffer.length, remaining))) > 0) {
+                        md.update(buffer, 0, read);
+                        out.write(buffer, 0, read);
+                        remaining -= read;
+                    }
+                    if (remaining > 0) {
+                        return Response.error(400, "Body shorter than Content-Length");
+                    }
+                }
+                String key = "body:" + toHex(md.digest()) + ':' + level + ':' + all;
+                return coalesce(key, () -> verify(spooled, "(body)", size, false, level, all));
+            } finally {
+                Files.deleteIfExists(spooled);
+            }
+        } finally {
+            reservation.close();
+        }
+    }
+
+    /**
+     * Runs {@code verification} unless an identical one is in flight, in which case its
+     * response is shared, including a failure. A verification that was not admitted is not
+     * shared: each waiter then seeks admission itself.
+     */
+    private Response coalesce(String key, IoSupplier<Response> verification)
+            throws IOException {
+        while (true) {
+            CompletableFuture<Response> created = new CompletableFuture<>();
+            CompletableFuture<Response> existing = mInFlight.putIfAbsent(key, created);
+            if (existing != null) {
+                Response shared;
+                try {
+                    shared = existing.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return Response.error(503, "Interrupted");
+                } catch (ExecutionException e) {
+                    mCoalesced.increment();
+                    return Response.error(500, String.valueOf(e.getCause()));
+                }
+                if (shared == null) {
+                    continue;
+                }
+                mCoalesced.increment();
+                return shared;
+            }
+            Response response;
+            try {
+                response = verification.get();
+            } catch (IOException | RuntimeException e) {
+                response = Response.error(500, "Verification failed: " + e);
+            } catch (Error e) {
+                mInFlight.remove(key, created);
+                created.completeExceptionally(e);
+                throw e;
+            }
+            // Removed before completing, so that waiters seeking admission do not find it.
+            mInFlight.remove(key, created);
+            created.complete(response);
+            return response != null ? response : Response.busy();
+        }
+    }
+
+    /**
+     * Verifies {@code path}, reporting it as {@code name}. {@code size} bytes are charged to the
+     * bytes-in-flight budget if {@code reserve}, i.e. unless the caller already did. Returns
+     * {@code null} if the verification is not admitted, for lack of a slot or budget.
+     */
+    private Response verify(Path path, String name, long size, boolean reserve,
+                            VerificationLevel level, boolean all) throws IOException {
+        if (!mVerificationSlots.tryAcquire()) {
+            mRejected.increment();
+            return null;
+        }
+        try {
+            MemoryBudget.Reservation reservation = reserve ? mBytesInFlight.tryReserve(size) : null;
+            if (reserve && reservation == null) {
+                mRejected.increment();
+                return null;
+            }
+            CancellationSignal signal = new CancellationSignal();
+            if (mVerificationTimeoutNanos > 0) {
+                signal.setDeadline(System.nanoTime() + mVerificationTimeoutNanos);
+            }
+            mRunning.add(signal);
+            try {
+                long start = System.nanoTime();
+                ApkVerificationResult result =
+                        verifierFor(level, all).verify(path.toString(), signal);
+                return new Response(200, toJson(name, result, System.nanoTime() - start));
+            } catch (DeadlineExceededException e) {
+                mTimedOut.increment();
+                return Response.error(504, "Verification timed out: " + name);
+            } catch (CancellationException e) {
+                return Response.error(503, "Verification canceled: " + name);
+            } catch (SignatureNotFoundException | SecurityException | ZipException e) {
+                // A ZipException means the file is not an APK at all.
+                JsonWriter json = new JsonWriter().beginObject()
+                        .name("path").value(name)
+                        .name("verified").value(false)
+                        .name("error").value(e.getMessage())
+                        .endObject();
+                return new Response(422, json.toString());
+            } catch (MemoryBudgetExceededException e) {
+                return Response.error(503, "Verification memory exhausted: " + name);
+            } finally {
+                mRunning.remove(signal);
+                if (reservation != null) {
+                    reservation.close();
+                }
+            }
+        } finally {
+            mVerificationSlots.release();
+        }
+    }
+
+    private Response tooLarge() {
+        return Response.error(413, "APK larger than the bytes-in-flight budget of "
+                + mBytesInFlight.getCapacity() + " bytes");
+    }
+
+    private ApkVerifier verifierFor(VerificationLevel level, boolean all) {
+        return mVerifiers.computeIfAbsent(level + ":" + all, key -> new ApkVerifier.Builder()
+                .setVerificationLevel(level)
+                .setVerifyAllSchemes(all)
+                .build());
+    }
+
+    private void handleStats(HttpExchange exchange) throws IOException {
+        try {
+            JsonWriter json = new JsonWriter().beginObject()
+                    .name("requests").value(mRequests.sum())
+                    .name("coalesced").value(mCoalesced.sum())
+                    .name("rejected").value(mRejected.sum())
+                    .name("timedOut").value(mTimedOut.sum())
+                    .name("verificationSlotsFree").value(mVerificationSlots.availablePermits())
+                    .name("bytesInFlight").value(mBytesInFlight.getReservedBytes())
+                    .endObject();
+            send(exchange, new Response(200, json.toString()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        try {
+            VerificationListener listener = VerificationListener.getDefault();
+            if (!(listener instanceof VerificationMetrics)) {
+                send(exchange, Response.error(404, "Metrics not enabled"));
+                return;
+            }
+            byte[] body = ((VerificationMetrics) listener).snapshot(false).toString()
+                    .getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static String toJson(String name, ApkVerificationResult result, long elapsedNanos) {
+        JsonWriter json = new JsonWriter().beginObject()
+                .name("path").value(name)
+                .name("verified").value(true)
+                .name("level").value(result.getVerificationLevel().name())
+                .name("elapsedMicros").value(TimeUnit.NANOSECONDS.toMicros(elapsedNanos))
+                .name("schemes").beginArray();
+        for (ApkVerificationResult.VerifiedScheme scheme : result.schemes) {
+            json.beginObject()
+                    .name("version").value(scheme.schemeVersion)
+                    .name("level").value(scheme.verificationLevel.name())
+                    .name("signers").beginArray();
+            for (X509Certificate[] chain : scheme.certs) {
+                json.beginObject();
+                writeCertificate(json, chain[0]);
+                json.name("chainLength").value(chain.length).endObject();
+            }
+            json.endArray();
+            if (scheme.por != null) {
+                json.name("lineage").beginArray();
+                for (int i = 0; i < scheme.por.certs.size(); i++) {
+                    json.beginObject();
+                    writeCertificate(json, scheme.por.certs.get(i));
+                    json.name("flags").value(scheme.por.flagsList.get(i)).endObject();
+                }
+                json.endArray();
+            }
+            json.name("contentDigests").beginObject();
+            if (scheme.contentDigests != null) {
+                for (Map.Entry<Integer, byte[]> digest : scheme.contentDigests.entrySet()) {
+                    json.name(digestName(digest.getKey())).hexValue(digest.getValue());
+                }
+            }
+            json.endObject();
+            json.name("verityRootHash").hexValue(scheme.verityRootHash);
+            json.endObject();
+        }
+        json.endArray();
+        if (result.sourceStamp != null) {
+            json.name("sourceStampSha256").hexValue(result.sourceStamp.certificateDigest);
+        }
+        return json.endObject().toString();
+    }
+
+    private static void writeCertificate(JsonWriter json, X509Certificate cert) {
+        try {
+            json.name("subject").value(cert.getSubjectX500Principal().getName())
+                    .name("certSha256").hexValue(sha256().digest(cert.getEncoded()))
+                    .name("publicKeySha256").hexValue(
+                            sha256().digest(cert.getPublicKey().getEncoded()));
+        } catch (CertificateEncodingException e) {
+            throw new SecurityException("Failed to encode certificate", e);
+        }
+    }
+
+    private static String digestName(int algorithm) {
+        switch (algorithm) {
+            case ApkSigningBlockUtils.CONTENT_DIGEST_CHUNKED_SHA256:
+                return "CHUNKED_SHA256";
+            case ApkSigningBlockUtils.CONTENT_DIGEST_CHUNKED_SHA512:
+                return "CHUNKED_SHA512";
+            case ApkSigningBlockUtils.CONTENT_DIGEST_VERITY_CHUNKED_SHA256:
+                return "VERITY_CHUNKED_SHA256";
+            case ApkSigningBlockUtils.CONTENT_DIGEST_SHA256:
+                return "SHA256";
+            default:
+                return Integer.toString(algorithm);
+        }
+    }
+
+    private static void send(HttpExchange exchange, Response response) throws IOException {
+        byte[] body = response.json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        if (response.status == 429) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+        }
+        exchange.sendResponseHeaders(response.status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            query.put(URLDecoder.decode(name, StandardCharsets.UTF_8),
+                    URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return query;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 digest not supported", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private interface IoSupplier<T> {
+        T get() throws IOException;
+    }
+
+    private static class Response {
+        final int status;
+        final String json;
+
+        Response(int status, String json) {
+            this.status = status;
+            this.json = json;
+        }
+
+        static Response error(int status, String message) {
+            return new Response(status, new JsonWriter().beginObject()
+                    .name("error").value(message)
+                    .endObject().toString());
+        }
+
+        static Response busy() {
+            return error(429, "Verification capacity exhausted");
+        }
+    }
+
+    /**
+     * Starts a service from the command line:
+     * {@code [--port N] [--max-concurrent N] [--max-bytes-in-flight N] [--timeout-ms N]
+     * [--root DIR]}.
+     */
+    public static void main(String[] args) throws IOException {
+        Builder builder = new Builder();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--port":
+                    builder.setPort(Integer.parseInt(args[i + 1]));
+                    break;
+                case "--max-concurrent":
+                    builder.setMaxConcurrentVerifications(Integer.parseInt(args[i + 1]));
+                    break;
+                case "--max-bytes-in-flight":
+                    builder.setMaxBytesInFlight(Long.parseLong(args[i + 1]));
+                    break;
+                case "--timeout-ms":
+                    builder.setVerificationTimeout(Long.parseLong(args[i + 1]),
+                            TimeUnit.MILLISECONDS);
+                    break;
+                case "--root":
+                    builder.setAllowedRoot(Paths.get(args[i + 1]));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        VerificationListener.setDefault(new VerificationMetrics());
+        VerificationServer server = builder.build();
+        server.start();
+        System.out.println("Listening on port " + server.getPort());
+    }
+
+    /**
+     * Builder of {@link VerificationServer} instances.
+     */
+    public static class Builder {
+        private InetAddress mAddress = InetAddress.getLoopbackAddress();
+        private int mPort = 8080;
+        private int mMaxConcurrentVerifications = Runtime.getRuntime().availableProcessors();
+        private long mMaxBytesInFlight = 1024L * 1024 * 1024;
+        private long mVerificationTimeoutNanos;
+        private Path mAllowedRoot;
+
+        /**
+         * Sets the address to listen on. Defaults to the loopback address, as the service reads
+         * any file it is given a path to.
+         */
+        public Builder setAddress(InetAddress address) {
+            mAddress = address;
+            return this;
+        }
+
+        /**
+         * Sets the port to listen on, 0 for an ephemeral one. Defaults to 8080.
+         */
+        public Builder setPort(int port) {
+            mPort = port;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of verifications running at a time. Defaults to the number of
+         * available processors.
+         */
+        public Builder setMaxConcurrentVerifications(int maxConcurrentVerifications) {
+            if (maxConcurrentVerifications < 1) {
+                throw new IllegalArgumentException(
+                        "maxConcurrentVerifications: " + maxConcurrentVerifications);
+            }
+            mMaxConcurrentVerifications = maxConcurrentVerifications;
+            return this;
+        }
+
+        /**
+         * Sets the maximum total size of the APKs being received or verified. Defaults to
+         * 1 GiB. An APK larger than this is always rejected, with 413.
+         */
+        public Builder setMaxBytesInFlight(long maxBytesInFlight) {
+            if (maxBytesInFlight < 1) {
+                throw new IllegalArgumentException("maxBytesInFlight: " + maxBytesInFlight);
+            }
+            mMaxBytesInFlight = maxBytesInFlight;
+            return this;
+        }
+
+        /**
+         * Sets how long one verification may run before it is stopped and its requests fail
+         * with 504. Defaults to 0: no limit.
+         */
+        public Builder setVerificationTimeout(long timeout, TimeUnit unit) {
+            if (timeout < 0) {
+                throw new IllegalArgumentException("timeout: " + timeout);
+            }
+            mVerificationTimeoutNanos = unit.toNanos(timeout);
+            return this;
+        }
+
+        /**
+         * Restricts verification by path to files under {@code root}, after resolving symbolic
+         * links. Defaults to no restriction.
+         */
+        public Builder setAllowedRoot(Path root) {
+            mAllowedRoot = root;
+            return this;
+        }
+
+        /**
+         * @throws IOException if the address cannot be bound.
+         */
+        public VerificationServer build() throws IOException {
+            return new VerificationServer(this);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.lenovo.leos.sign;
+
+import com.lenovo.leos.sign.v2.ApkSignatureSchemeV2Verifier;
+import com.lenovo.leos.sign.v3.ApkSignatureSchemeV3Verifier;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Measures the bytes allocated per verification and retained per verified signer, and fails if
+ * one exceeds its baseline by more than the tolerance, so allocations once removed stay removed.
+ * Run by {@code ./gradlew :sign:allocationCheck}, part of {@code check}; with {@code --update} it
+ * rewrites the baseline with the measurements instead.
+ *
+ * <p>Measurements depend on the JDK, so the baseline records the feature version it was measured
+ * on, and a check on any other version fails rather than comparing.
+ *
+ * <pre>
+ * AllocationCheck BASELINE_FILE [--update]
+ * </pre>
+ *
+ * <p>Allocated bytes are counted by the JVM for the verifying thread, after enough verifications
+ * for the JIT to settle. Retained bytes are what full collections free once many held results
+ * are dropped, so objects the results share with each other or with caches do not count.
+ */
+public class AllocationCheck {
+    private static final String[] ALGORITHMS =
+            {"RSA_PKCS1_V1_5_WITH_SHA256", "ECDSA_WITH_SHA256"};
+    private static final int[] LINEAGE_DEPTHS = {1, 3};
+    private static final VerificationLevel[] LEVELS =
+            {VerificationLevel.SIGNATURES, VerificationLevel.CONTENT};
+    private static final int WARMUP_VERIFICATIONS = 1000;
+    private static final int MEASURED_VERIFICATIONS = 500;
+    private static final int RETAINED_RESULTS = 1000;
+    private static final double DEFAULT_TOLERANCE = 0.10;
+    private static final String JDK = Integer.toString(Runtime.version().feature());
+
+    private interface Verification {
+        Object run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: AllocationCheck BASELINE_FILE [--update]");
+            System.exit(2);
+        }
+        Path baselineFile = Paths.get(args[0]);
+        boolean update = args.length > 1 && args[1].equals("--update");
+
+        Properties baseline = new Properties();
+        if (Files.exists(baselineFile)) {
+            try (InputStream in = Files.newInputStream(baselineFile)) {
+                baseline.load(in);
+            }
+        } else if (!update) {
+            throw new IOException("No baseline: " + baselineFile);
+        }
+        if (!update && !JDK.equals(baseline.getProperty("jdk"))) {
+            System.err.println(baselineFile + " was measured on JDK " + baseline.getProperty("jdk")
+                    + ", not on JDK " + JDK + ": run on that JDK, or update the baseline");
+            System.exit(1);
+        }
+
+        Map<String, Long> measured = new TreeMap<>();
+        for (String name : ALGORITHMS) {
+            int algorithm = BenchmarkApks.signatureAlgorithm(name);
+            for (int depth : LINEAGE_DEPTHS) {
+                String apk = ApkVerifierBenchmark.apk(algorithm, depth).toString();
+                for (VerificationLevel level : LEVELS) {
+                    ApkVerifier verifier = new ApkVerifier.Builder()
+                            .setVerifyAllSchemes(true)
+                            .setVerificationLevel(level)
+                            .build();
+                    measured.put("allocated." + name + ".lineage" + depth + "." + level,
+                            allocatedBytes(() -> verifier.verify(apk)));
+                }
+                if (depth == 1) {
+                    measured.put("retained.v2." + name, retainedBytes(
+                            () -> ApkSignatureSchemeV2Verifier.verify(apk,
+                                    VerificationLevel.SIGNATURES)));
+                }
+                measured.put("retained.v3." + name + ".lineage" + depth, retainedBytes(
+                        () -> ApkSignatureSchemeV3Verifier.verify(apk,
+                                VerificationLevel.SIGNATURES)));
+            }
+        }
+
+        double tolerance = Double.parseDouble(
+                baseline.getProperty("tolerance", Double.toString(DEFAULT_TOLERANCE)));
+        if (update) {
+            writeBaseline(baselineFile, tolerance, measured);
+            System.out.println("Wrote " + baselineFile);
+            return;
+        }
+        int regressions = 0;
+        for (Map.Entry<String, Long> entry : measured.entrySet()) {
+            String key = entry.getKey();
+            long bytes = entry.getValue();
+            String expected = baseline.getProperty(key);
+            if (expected == null) {
+                System.out.printf("%-60s %10d B  (no baseline)%n", key, bytes);
+                continue;
+            }
+            long limit = Long.parseLong(expected);
+            String verdict = "";
+            if (bytes > limit * (1 + tolerance)) {
+                verdict = "  REGRESSED";
+                regressions++;
+            } else if (bytes < limit * (1 - tolerance)) {
+                verdict = "  improved: update the baseline";
+            }
+            System.out.printf("%-60s %10d B  baseline %10d B%s%n", key, bytes, limit, verdict);
+        }
+        if (regressions > 0) {
+            System.err.println(regressions + " allocation regression(s) beyond "
+                    + Math.round(tolerance * 100) + "% of " + baselineFile);
+            System.exit(1);
+        }
+    }
+
+    private static long allocatedBytes(Verification verification) throws Exception {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        for (int i = 0; i < WARMUP_VERIFICATIONS; i++) {
+            verification.run();
+        }
+        long start = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < MEASURED_VERIFICATIONS; i++) {
+            verification.run();
+        }
+        return (threads.getThreadAllocatedBytes(threadId) - start) / MEASURED_VERIFICATIONS;
+    }
+
+    private static long retainedBytes(Verification verification) throws Exception {
+        Object[] results = new Object[RETAINED_RESULTS];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = verification.run();
+        }
+        long held = usedHeap();
+        // Only drops the results: whatever the verifications cached stays in both measurements.
+        Arrays.fill(results, null);
+        return (held - usedHeap()) / results.length;
+    }
+
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long used = Long.MAX_VALUE;
+        // Until a collection frees nothing more.
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            long now = memory.getHeapMemoryUsage().getUsed();
+            if (now >= used) {
+                return now;
+            }
+            used = now;
+        }
+        return used;
+    }
+
+    private static void writeBaseline(Path file, double tolerance, Map<String, Long> measured)
+            throws IOException {
+        try (PrintWriter out = new PrintWriter(
+                Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+            out.println("# Bytes allocated per verification and retained per verified signer.");
+            out.println("# Written by ./gradlew :sign:allocationCheck -PallocationCheck.update;"
+                    + " checked by");
+            out.println("# ./gradlew :sign:check, which fails if a measurement exceeds its"
+                    + " baseline by more");
+            out.println("# than the tolerance, or if it runs on another JDK than the baseline was"
+                    + " measured on.");
+            out.println("jdk=" + JDK);
+            out.println("tolerance=" + tolerance);
+            for (Map.Entry<String, Long> entry : measured.entrySet()) {
+                out.println(entry.getKey() + "=" + entry.getValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.lenovo.leos.sign;
+
+import com.lenovo.leos.sign.apkgen.SigningKey;
+import com.lenovo.leos.sign.v2.ApkSignatureSchemeV2Verifier;
+import com.lenovo.leos.sign.v3.ApkSignatureSchemeV3Verifier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Locating a signature scheme block: {@code findSignature} reads the EoCD and the APK Signing
+ * Block from the file, {@code findApkSignatureSchemeBlock} only walks the ID-value pairs of a
+ * block already in memory. The v2 block comes first in the generated APKs, the v3 block second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ApkSigningBlockBenchmark {
+    @Param({"2", "3"})
+    public int scheme;
+
+    @Param({"0", "65535"})
+    public int commentLength;
+
+    private RandomAccessFile mApk;
+    private int mBlockId;
+    private ApkSigningBlock mApkSigningBlock;
+
+    @Setup
+    public void setUp() throws Exception {
+        mApk = new RandomAccessFile(BenchmarkApks.signed(
+                SigningKey.ECDSA_WITH_SHA256, 64 * 1024, commentLength).toFile(), "r");
+        mBlockId = scheme == 2
+                ? ApkSignatureSchemeV2Verifier.APK_SIGNATURE_SCHEME_V2_BLOCK_ID
+                : ApkSignatureSchemeV3Verifier.APK_SIGNATURE_SCHEME_V3_BLOCK_ID;
+        mApkSigningBlock = ApkSigningBlockUtils.findApkSigningBlock(mApk);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mApkSigningBlock.close();
+        mApk.close();
+    }
+
+    @Benchmark
+    public SignatureInfo findSignature() throws Exception {
+        try (SignatureInfo signatureInfo = ApkSigningBlockUtils.findSignature(mApk, mBlockId)) {
+            return signatureInfo;
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer findApkSignatureSchemeBlock() throws Exception {
+        return ApkSigningBlockUtils.findApkSignatureSchemeBlock(mApkSigningBlock.block, mBlockId);
+    }
+}
@@ -0,0 +1,59 @@
+package com.lenovo.leos.sign;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole verification of a small APK signed with v2 and v3, the unit the garbage of the verifier
+ * is best compared in: see {@code gc.alloc.rate.norm}, the bytes allocated per verification.
+ * {@code :sign:allocationCheck} gates the same verifications on those bytes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ApkVerifierBenchmark {
+    @Param({"RSA_PKCS1_V1_5_WITH_SHA256", "ECDSA_WITH_SHA256"})
+    public String signatureAlgorithm;
+
+    /**
+     * Keys the v3 signer rotated through; the v2 signer is the oldest.
+     */
+    @Param({"1", "3"})
+    public int lineageDepth;
+
+    @Param({"SIGNATURES", "CONTENT"})
+    public String level;
+
+    private String mApk;
+    private ApkVerifier mVerifier;
+
+    @Setup
+    public void setUp() throws Exception {
+        mApk = apk(BenchmarkApks.signatureAlgorithm(signatureAlgorithm), lineageDepth)
+                .toString();
+        mVerifier = new ApkVerifier.Builder()
+                .setVerifyAllSchemes(true)
+                .setVerificationLevel(VerificationLevel.valueOf(level))
+                .build();
+    }
+
+    @Benchmark
+    public ApkVerificationResult verify() throws Exception {
+        return mVerifier.verify(mApk);
+    }
+
+    static Path apk(int signatureAlgorithm, int lineageDepth) throws Exception {
+        return lineageDepth == 1
+                ? BenchmarkApks.signed(signatureAlgorithm, 64 * 1024, 0)
+                : BenchmarkApks.rotated(signatureAlgorithm, lineageDepth, 64 * 1024);
+    }
+}
@@ -0,0 +1,127 @@
+package com.lenovo.leos.sign;
+
+import com.lenovo.leos.sign.apkgen.ApkBuilder;
+import com.lenovo.leos.sign.apkgen.Lineage;
+import com.lenovo.leos.sign.apkgen.SigningKey;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * APKs and keys generated for the benchmarks, once per JVM, in a temporary directory deleted on
+ * exit. Keys are derived from fixed seeds, so a fork measures the same inputs as the last.
+ */
+public final class BenchmarkApks {
+    private static final Map<String, Path> sApks = new HashMap<>();
+    private static final Map<String, SigningKey> sKeys = new HashMap<>();
+    private static Path sDirectory;
+
+    private BenchmarkApks() {
+    }
+
+    /**
+     * Returns the value of the {@link SigningKey} constant named {@code name}, e.g.
+     * {@code ECDSA_WITH_SHA256}, for use in {@code @Param}s.
+     */
+    public static int signatureAlgorithm(String name) {
+        try {
+            return SigningKey.class.getField(name).getInt(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Unknown signature algorithm: " + name, e);
+        }
+    }
+
+    /**
+     * Returns the key number {@code index} for {@code signatureAlgorithm}.
+     */
+    public static synchronized SigningKey key(int signatureAlgorithm, int index)
+            throws GeneralSecurityException {
+        String name = Integer.toHexString(signatureAlgorithm) + "-" + index;
+        SigningKey key = sKeys.get(name);
+        if (key == null) {
+            SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
+            random.setSeed(((long) signatureAlgorithm << 32) | index);
+            key = SigningKey.generate(signatureAlgorithm, "benchmark " + name, random);
+            sKeys.put(name, key);
+        }
+        return key;
+    }
+
+    /**
+     * Returns an APK with {@code contentSize} bytes of entry data and an archive comment of
+     * {@code commentLength} bytes, signed with v2 and v3 by one key of
+     * {@code signatureAlgorithm}.
+     */
+    public static synchronized Path signed(int signatureAlgorithm, long contentSize,
+                                           int commentLength)
+            throws IOException, GeneralSecurityException {
+        String name = "signed-" + Integer.toHexString(signatureAlgorithm) + "-" + contentSize
+                + "-" + commentLength + ".apk";
+        Path apk = sApks.get(name);
+        if (apk == null) {
+            SigningKey key = key(signatureAlgorithm, 0);
+            apk = newFile(name);
+            new ApkBuilder()
+                    .addEntry("AndroidManifest.xml", new byte[1024])
+                    .addRandomEntry("classes.dex", contentSize, contentSize)
+                    .setComment(new byte[commentLength])
+                    .addV2Signer(key)
+                    .setV3Signer(key)
+                    .write(apk);
+            sApks.put(name, apk);
+        }
+        return apk;
+    }
+
+    /**
+     * Returns an APK with {@code contentSize} bytes of entry data, signed with v3 by the newest of
+     * a lineage of {@code depth} keys of {@code signatureAlgorithm}, and with v2 by the oldest.
+     */
+    public static synchronized Path rotated(int signatureAlgorithm, int depth, long contentSize)
+            throws IOException, GeneralSecurityException {
+        String name = "rotated-" + Integer.toHexString(signatureAlgorithm) + "-" + depth + "-"
+                + contentSize + ".apk";
+        Path apk = sApks.get(name);
+        if (apk == null) {
+            apk = newFile(name);
+            new ApkBuilder()
+                    .addEntry("AndroidManifest.xml", new byte[1024])
+                    .addRandomEntry("classes.dex", contentSize, contentSize)
+                    .addV2Signer(key(signatureAlgorithm, 0))
+                    .setV3Signer(lineage(signatureAlgorithm, depth))
+                    .write(apk);
+            sApks.put(name, apk);
+        }
+        return apk;
+    }
+
+    /**
+     * Returns a lineage of {@code depth} keys of {@code signatureAlgorithm}.
+     */
+    public static Lineage lineage(int signatureAlgorithm, int depth)
+            throws GeneralSecurityException {
+        List<SigningKey> keys = new ArrayList<>();
+        for (int i = 0; i < depth; i++) {
+            keys.add(key(signatureAlgorithm, i));
+        }
+        return new Lineage(keys);
+    }
+
+    private static Path newFile(String name) throws IOException {
+        if (sDirectory == null) {
+            sDirectory = Files.createTempDirectory("benchmark-apks");
+            // Registered first, deleted last.
+            sDirectory.toFile().deleteOnExit();
+        }
+        Path file = sDirectory.resolve(name);
+        file.toFile().deleteOnExit();
+        return file;
+    }
+}
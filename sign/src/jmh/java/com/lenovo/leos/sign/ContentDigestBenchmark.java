@@ -0,0 +1,91 @@
+package com.lenovo.leos.sign;
+
+import com.lenovo.leos.sign.v2.ApkSignatureSchemeV2Verifier;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chunked content digest throughput over an APK in the page cache, at several parallelisms. The
+ * {@code bytes} counter reports the throughput in bytes per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ContentDigestBenchmark {
+    @Param({"16777216", "134217728"})
+    public long size;
+
+    @Param({"1", "2", "4", "8"})
+    public int parallelism;
+
+    @Param({"ECDSA_WITH_SHA256", "ECDSA_WITH_SHA512"})
+    public String signatureAlgorithm;
+
+    private RandomAccessFile mApk;
+    private SignatureInfo mSignatureInfo;
+    private int[] mDigestAlgorithms;
+    private ExecutorService mExecutor;
+
+    /**
+     * Bytes digested, reported per second.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        int algorithm = BenchmarkApks.signatureAlgorithm(signatureAlgorithm);
+        mApk = new RandomAccessFile(BenchmarkApks.signed(algorithm, size, 0).toFile(), "r");
+        mSignatureInfo = ApkSigningBlockUtils.findSignature(
+                mApk, ApkSignatureSchemeV2Verifier.APK_SIGNATURE_SCHEME_V2_BLOCK_ID);
+        mDigestAlgorithms = new int[]{
+                ApkSigningBlockUtils.getSignatureAlgorithmContentDigestAlgorithm(algorithm)};
+        mExecutor = parallelism > 1 ? Executors.newFixedThreadPool(parallelism - 1) : null;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+        }
+        mSignatureInfo.close();
+        mApk.close();
+    }
+
+    @Benchmark
+    public Map<Integer, byte[]> computeContentDigests(Bytes counter) throws IOException {
+        Map<Integer, byte[]> digests = ApkSigningBlockUtils.computeContentDigests(
+                mDigestAlgorithms, mApk, mSignatureInfo, mExecutor, parallelism, null);
+        counter.bytes += mApk.length();
+        return digests;
+    }
+}
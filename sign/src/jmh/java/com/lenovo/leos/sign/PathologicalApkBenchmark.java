@@ -0,0 +1,67 @@
+package com.lenovo.leos.sign;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verifying malicious APKs under the default {@link VerificationLimits}: each is rejected after
+ * at most the limit's worth of work, so time and {@code gc.alloc.rate.norm} stay bounded however
+ * much the APK declares.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PathologicalApkBenchmark {
+    @Param({"HUGE_SIGNING_BLOCK", "SIGNERS", "SIGNATURES", "CERTIFICATES", "LINEAGE",
+            "ATTRIBUTES"})
+    public String shape;
+
+    private Path mDirectory;
+    private String mApk;
+    private ApkVerifier mVerifier;
+
+    @Setup
+    public void setUp() throws Exception {
+        mDirectory = Files.createTempDirectory("pathological-apks");
+        mApk = PathologicalApks.write(PathologicalApks.Shape.valueOf(shape), mDirectory)
+                .toString();
+        mVerifier = new ApkVerifier.Builder()
+                .setVerifyAllSchemes(true)
+                .setVerificationLevel(VerificationLevel.SIGNATURES)
+                .build();
+        // Fails the setup, not the measurement, if the APK is not rejected by a limit.
+        verify();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        Files.delete(Path.of(mApk));
+        Files.delete(mDirectory);
+    }
+
+    @Benchmark
+    public VerificationLimitExceededException verify() throws Exception {
+        try {
+            mVerifier.verify(mApk);
+        } catch (VerificationLimitExceededException e) {
+            return e;
+        } catch (SecurityException e) {
+            if (e.getCause() instanceof VerificationLimitExceededException) {
+                return (VerificationLimitExceededException) e.getCause();
+            }
+            throw e;
+        }
+        throw new IllegalStateException(shape + " APK verified");
+    }
+}
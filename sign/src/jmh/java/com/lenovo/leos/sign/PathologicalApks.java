@@ -0,0 +1,188 @@
+package com.lenovo.leos.sign;
+
+import com.lenovo.leos.sign.apkgen.ApkBuilder;
+import com.lenovo.leos.sign.apkgen.SigningKey;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Malicious APKs for the benchmarks, each declaring far more of one element than
+ * {@link VerificationLimits} allow. Apart from the huge signing block, every element is
+ * well-formed and signed, so without limits each one costs real parsing, allocation and
+ * signature verification. The APKs have no entries: only verification up to
+ * {@link VerificationLevel#SIGNATURES} is meaningful.
+ */
+public final class PathologicalApks {
+    private static final int V2_BLOCK_ID = 0x7109871a;
+    private static final byte[] APK_SIG_BLOCK_MAGIC =
+            "APK Sig Block 42".getBytes(StandardCharsets.US_ASCII);
+    private static final int UNKNOWN_ID = 0x7fff0001;
+
+    /**
+     * Kinds of malicious APKs.
+     */
+    public enum Shape {
+        /** An APK Signing Block of almost 2 GiB, in a sparse file. */
+        HUGE_SIGNING_BLOCK,
+        /** 10,000 copies of a valid v2 signer. */
+        SIGNERS,
+        /** A v2 signer with 100,000 signature records of an unknown algorithm. */
+        SIGNATURES,
+        /** A v2 signer listing its certificate 10,000 times. */
+        CERTIFICATES,
+        /** A v3 signer whose proof-of-rotation has 64 levels. */
+        LINEAGE,
+        /** A v2 signer with 100,000 additional attributes. */
+        ATTRIBUTES,
+    }
+
+    private PathologicalApks() {
+    }
+
+    /**
+     * Writes an APK of {@code shape} to a new file in {@code directory} and returns it.
+     */
+    public static Path write(Shape shape, Path directory)
+            throws IOException, GeneralSecurityException {
+        Path apk = directory.resolve(shape.name().toLowerCase(Locale.ROOT) + ".apk");
+        SigningKey key = BenchmarkApks.key(SigningKey.ECDSA_WITH_SHA256, 0);
+        switch (shape) {
+            case HUGE_SIGNING_BLOCK:
+                writeHugeSigningBlock(apk);
+                break;
+            case SIGNERS: {
+                byte[] signer = v2Signer(key, 0, 1, 0);
+                byte[][] signers = new byte[10_000][];
+                Arrays.fill(signers, signer);
+                writeV2(apk, signers);
+                break;
+            }
+            case SIGNATURES:
+                writeV2(apk, v2Signer(key, 100_000, 1, 0));
+                break;
+            case CERTIFICATES:
+                writeV2(apk, v2Signer(key, 0, 10_000, 0));
+                break;
+            case LINEAGE:
+                new ApkBuilder()
+                        .addEntry("AndroidManifest.xml", new byte[1024])
+                        .setV3Signer(BenchmarkApks.lineage(SigningKey.ECDSA_WITH_SHA256, 64))
+                        .write(apk);
+                break;
+            case ATTRIBUTES:
+                writeV2(apk, v2Signer(key, 0, 1, 100_000));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown shape: " + shape);
+        }
+        return apk;
+    }
+
+    private static void writeHugeSigningBlock(Path apk) throws IOException {
+        int totalSize = Integer.MAX_VALUE;
+        try (RandomAccessFile file = new RandomAccessFile(apk.toFile(), "rw")) {
+            file.setLength(0);
+            // Everything but the size fields, the magic and the EoCD is a hole.
+            file.write(allocate(8).putLong(totalSize - 8).array());
+            file.seek(totalSize - 24);
+            file.write(allocate(8).putLong(totalSize - 8).array());
+            file.write(APK_SIG_BLOCK_MAGIC);
+            file.write(eocd(totalSize));
+        }
+    }
+
+    private static void writeV2(Path apk, byte[]... signers) throws IOException {
+        byte[] pairs = idValuePair(V2_BLOCK_ID, lengthPrefixed(signers));
+        long size = pairs.length + 8 + APK_SIG_BLOCK_MAGIC.length;
+        byte[] block = allocate((int) size + 8)
+                .putLong(size)
+                .put(pairs)
+                .putLong(size)
+                .put(APK_SIG_BLOCK_MAGIC)
+                .array();
+        Files.write(apk, concat(block, eocd(block.length)));
+    }
+
+    /**
+     * Returns a v2 signer block of {@code key}, validly signed, with {@code extraSignatures}
+     * signature records of an unknown algorithm before the real one, its certificate
+     * {@code certificateCopies} times and {@code attributes} unknown additional attributes. The
+     * content digest is zeros.
+     */
+    private static byte[] v2Signer(SigningKey key, int extraSignatures, int certificateCopies,
+                                   int attributes) throws GeneralSecurityException {
+        int algorithm = key.getSignatureAlgorithm();
+        byte[] digests = lengthPrefixed(
+                lengthPrefixed(uint32(algorithm), lengthPrefixed(new byte[32])));
+        byte[][] certs = new byte[certificateCopies][];
+        Arrays.fill(certs, lengthPrefixed(key.getEncodedCertificate()));
+        byte[][] attrs = new byte[attributes][];
+        Arrays.fill(attrs, lengthPrefixed(uint32(UNKNOWN_ID)));
+        byte[] signedData = concat(digests, lengthPrefixed(certs), lengthPrefixed(attrs));
+
+        byte[][] signatures = new byte[extraSignatures + 1][];
+        Arrays.fill(signatures, lengthPrefixed(uint32(UNKNOWN_ID), lengthPrefixed()));
+        signatures[extraSignatures] =
+                lengthPrefixed(uint32(algorithm), lengthPrefixed(key.sign(signedData)));
+        return lengthPrefixed(
+                lengthPrefixed(signedData),
+                lengthPrefixed(signatures),
+                lengthPrefixed(key.getEncodedPublicKey()));
+    }
+
+    /**
+     * Returns an End of Central Directory record of an empty archive whose Central Directory
+     * starts at {@code centralDirOffset}.
+     */
+    private static byte[] eocd(int centralDirOffset) {
+        return allocate(22)
+                .putInt(0x06054b50)
+                .putShort((short) 0)
+                .putShort((short) 0)
+                .putShort((short) 0)
+                .putShort((short) 0)
+                .putInt(0)
+                .putInt(centralDirOffset)
+                .putShort((short) 0)
+                .array();
+    }
+
+    private static byte[] idValuePair(int id, byte[] value) {
+        return allocate(8 + 4 + value.length)
+                .putLong(4 + value.length)
+                .putInt(id)
+                .put(value)
+                .array();
+    }
+
+    private static byte[] lengthPrefixed(byte[]... parts) {
+        byte[] value = concat(parts);
+        return concat(uint32(value.length), value);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.writeBytes(part);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] uint32(int value) {
+        return allocate(4).putInt(value).array();
+    }
+
+    private static ByteBuffer allocate(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -0,0 +1,48 @@
+package com.lenovo.leos.sign;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.cert.CertificateFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verifying a v3 proof-of-rotation: one signature verification and one certificate decoding per
+ * level after the first.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ProofOfRotationBenchmark {
+    @Param({"2", "4", "8", "16"})
+    public int depth;
+
+    @Param({"RSA_PKCS1_V1_5_WITH_SHA256", "ECDSA_WITH_SHA256"})
+    public String signatureAlgorithm;
+
+    private ByteBuffer mProofOfRotation;
+    private CertificateFactory mCertFactory;
+
+    @Setup
+    public void setUp() throws Exception {
+        mProofOfRotation = ByteBuffer.wrap(BenchmarkApks.lineage(
+                BenchmarkApks.signatureAlgorithm(signatureAlgorithm), depth)
+                .encodeProofOfRotation());
+        mCertFactory = CertificateFactory.getInstance("X.509");
+    }
+
+    @Benchmark
+    public ApkSigningBlockUtils.VerifiedProofOfRotation verifyProofOfRotationStruct()
+            throws Exception {
+        return ApkSigningBlockUtils.verifyProofOfRotationStruct(
+                mProofOfRotation.duplicate().order(ByteOrder.LITTLE_ENDIAN), mCertFactory);
+    }
+}
@@ -0,0 +1,48 @@
+package com.lenovo.leos.sign;
+
+import com.lenovo.leos.sign.apkgen.SigningKey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Locating the ZIP End of Central Directory record. Without a comment it is found by the first
+ * read; with one, the record is searched for backwards through up to 64 KiB.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ZipUtilsBenchmark {
+    @Param({"0", "1024", "65535"})
+    public int commentLength;
+
+    private RandomAccessFile mApk;
+
+    @Setup
+    public void setUp() throws Exception {
+        mApk = new RandomAccessFile(BenchmarkApks.signed(
+                SigningKey.ECDSA_WITH_SHA256, 64 * 1024, commentLength).toFile(), "r");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mApk.close();
+    }
+
+    @Benchmark
+    public Pair<ByteBuffer, Long> findZipEndOfCentralDirectoryRecord() throws IOException {
+        return ZipUtils.findZipEndOfCentralDirectoryRecord(mApk);
+    }
+}
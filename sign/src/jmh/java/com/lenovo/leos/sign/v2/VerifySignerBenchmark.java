@@ -0,0 +1,59 @@
+package com.lenovo.leos.sign.v2;
+
+import com.lenovo.leos.sign.ApkSigningBlockUtils;
+import com.lenovo.leos.sign.BenchmarkApks;
+import com.lenovo.leos.sign.SignatureInfo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verifying one v2 signer block: the public key signature over the signed data, then decoding
+ * the certificate. RSA-PSS is left out: the verifier uses the Android names of its JCA
+ * algorithms, which the JDK does not provide.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class VerifySignerBenchmark {
+    @Param({"RSA_PKCS1_V1_5_WITH_SHA256", "RSA_PKCS1_V1_5_WITH_SHA512", "ECDSA_WITH_SHA256",
+            "ECDSA_WITH_SHA512", "DSA_WITH_SHA256"})
+    public String signatureAlgorithm;
+
+    private ByteBuffer mSigner;
+    private CertificateFactory mCertFactory;
+
+    @Setup
+    public void setUp() throws Exception {
+        int algorithm = BenchmarkApks.signatureAlgorithm(signatureAlgorithm);
+        try (RandomAccessFile apk = new RandomAccessFile(
+                BenchmarkApks.signed(algorithm, 64 * 1024, 0).toFile(), "r");
+             SignatureInfo signatureInfo = ApkSignatureSchemeV2Verifier.findSignature(apk)) {
+            ByteBuffer signers =
+                    ApkSigningBlockUtils.getLengthPrefixedSlice(signatureInfo.signatureBlock);
+            mSigner = ApkSigningBlockUtils.getLengthPrefixedSlice(signers);
+        }
+        mCertFactory = CertificateFactory.getInstance("X.509");
+    }
+
+    @Benchmark
+    public X509Certificate[] verifySigner() throws Exception {
+        return ApkSignatureSchemeV2Verifier.verifySigner(
+                mSigner.duplicate().order(ByteOrder.LITTLE_ENDIAN), new HashMap<>(),
+                mCertFactory, false);
+    }
+}
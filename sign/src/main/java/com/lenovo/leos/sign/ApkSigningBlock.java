@@ -0,0 +1,109 @@
+package com.lenovo.leos.sign;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * APK Signing Block of a file, parsed once into an index of its ID-value pairs, together with
+ * the ZIP sections surrounding it. Every signature scheme stored in the block can be looked up
+ * from the same index without reading or scanning the block again.
+ *
+ * <p>The block stays reserved in the {@link MemoryBudget} until it is closed. Its contents, and
+ * the values and signature infos looked up from it, remain readable after that.
+ */
+public class ApkSigningBlock implements Closeable {
+
+    /**
+     * Contents of the whole APK Signing Block, including its size fields and magic.
+     */
+    public final ByteBuffer block;
+
+    /**
+     * Position of the APK Signing Block in the file.
+     */
+    public final long apkSigningBlockOffset;
+
+    /**
+     * Position of the ZIP Central Directory in the file.
+     */
+    public final long centralDirOffset;
+
+    /**
+     * Position of the ZIP End of Central Directory (EoCD) in the file.
+     */
+    public final long eocdOffset;
+
+    /**
+     * Contents of ZIP End of Central Directory (EoCD) of the file.
+     */
+    public final ByteBuffer eocd;
+
+    /**
+     * ID -> value of every pair of the block, in file order.
+     */
+    private final Map<Integer, ByteBuffer> mPairs;
+    private final MemoryBudget.Reservation mReservation;
+
+    ApkSigningBlock(ByteBuffer block, long apkSigningBlockOffset, long centralDirOffset,
+                    long eocdOffset, ByteBuffer eocd, Map<Integer, ByteBuffer> pairs,
+                    MemoryBudget.Reservation reservation) {
+        this.block = block;
+        this.apkSigningBlockOffset = apkSigningBlockOffset;
+        this.centralDirOffset = centralDirOffset;
+        this.eocdOffset = eocdOffset;
+        this.eocd = eocd;
+        this.mPairs = Collections.unmodifiableMap(pairs);
+        this.mReservation = reservation;
+    }
+
+    /**
+     * Releases the memory reserved for the block. Does nothing if already closed.
+     */
+    @Override
+    public void close() {
+        mReservation.close();
+    }
+
+    /**
+     * Returns {@code true} if the block contains a pair with the provided ID.
+     */
+    public boolean contains(int blockId) {
+        return mPairs.containsKey(blockId);
+    }
+
+    /**
+     * Returns the IDs of all pairs of the block, in file order.
+     */
+    public Iterable<Integer> getBlockIds() {
+        return mPairs.keySet();
+    }
+
+    /**
+     * Returns the value of the pair with the provided ID or {@code null} if there is none. The
+     * returned buffer is independent of the ones returned by earlier calls.
+     */
+    public ByteBuffer getValue(int blockId) {
+        ByteBuffer value = mPairs.get(blockId);
+        if (value == null) {
+            return null;
+        }
+        return value.duplicate().order(value.order());
+    }
+
+    /**
+     * Returns the APK Signature Scheme block with the provided ID and the additional information
+     * relevant for verifying the block against the file.
+     *
+     * @throws SignatureNotFoundException if the APK Signing Block has no pair with this ID.
+     */
+    public SignatureInfo findSignature(int blockId) throws SignatureNotFoundException {
+        ByteBuffer value = getValue(blockId);
+        if (value == null) {
+            throw new SignatureNotFoundException(
+                    "No block with ID " + blockId + " in APK Signing Block.");
+        }
+        return new SignatureInfo(value, apkSigningBlockOffset, centralDirOffset, eocdOffset, eocd);
+    }
+}
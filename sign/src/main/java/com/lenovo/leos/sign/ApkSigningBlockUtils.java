@@ -6,8 +6,11 @@ import java.io.RandomAccessFile;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.DigestException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.Signature;
@@ -20,8 +23,12 @@ import java.security.spec.MGF1ParameterSpec;
 import java.security.spec.PSSParameterSpec;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
 
 /**
  * @author: hsicen
@@ -47,10 +54,12 @@ public class ApkSigningBlockUtils {
     private static final long APK_SIG_BLOCK_MAGIC_HI = 0x3234206b636f6c42L;
     private static final long APK_SIG_BLOCK_MAGIC_LO = 0x20676953204b5041L;
     private static final int APK_SIG_BLOCK_MIN_SIZE = 32;
+    static final int CHUNK_SIZE_BYTES = 1024 * 1024;
 
     /**
      * Returns the APK Signature Scheme block contained in the provided APK file and the
-     * additional information relevant for verifying the block against the file.
+     * additional information relevant for verifying the block against the file. The APK Signing
+     * Block stays reserved from the default {@link MemoryBudget} until the result is closed.
      *
      * @param blockId the ID value in the APK Signing Block's sequence of ID-value pairs
      *                identifying the appropriate block to find, e.g. the APK Signature Scheme v2
@@ -70,19 +79,68 @@ public class ApkSigningBlockUtils {
 
         // Find the APK Signing Block. The block immediately precedes the Central Directory.
         long centralDirOffset = getCentralDirOffset(eocd, eocdOffset);
-        Pair<ByteBuffer, Long> apkSigningBlockAndOffsetInFile = findApkSigningBlock(apk, centralDirOffset);
-        ByteBuffer apkSigningBlock = apkSigningBlockAndOffsetInFile.first;
-        long apkSigningBlockOffset = apkSigningBlockAndOffsetInFile.second;
+        int totalSize = getApkSigningBlockSize(apk, centralDirOffset);
+        MemoryBudget.Reservation reservation = MemoryBudget.reserveDefault(totalSize);
+        try {
+            ByteBuffer apkSigningBlock = readApkSigningBlock(apk, centralDirOffset, totalSize);
+
+            // Find the APK Signature Scheme Block inside the APK Signing Block.
+            ByteBuffer apkSignatureSchemeBlock =
+                    findApkSignatureSchemeBlock(apkSigningBlock, blockId);
+
+            return new SignatureInfo(
+                    apkSignatureSchemeBlock,
+                    centralDirOffset - totalSize,
+                    centralDirOffset,
+                    eocdOffset,
+                    eocd,
+                    reservation);
+        } catch (IOException | SignatureNotFoundException | RuntimeException e) {
+            reservation.close();
+            throw e;
+        }
+    }
 
-        // Find the APK Signature Scheme Block inside the APK Signing Block.
-        ByteBuffer apkSignatureSchemeBlock = findApkSignatureSchemeBlock(apkSigningBlock, blockId);
+    /**
+     * Returns the APK Signing Block of the provided APK file, parsed into an index of its ID-value
+     * pairs. Unlike {@link #findSignature(RandomAccessFile, int)}, the file is read only once no
+     * matter how many signature schemes are looked up afterwards.
+     *
+     * <p>The block is reserved from the default {@link MemoryBudget} until it is closed.
+     *
+     * @throws SignatureNotFoundException         if the APK has no valid APK Signing Block.
+     * @throws VerificationLimitExceededException if the block is larger than the
+     *                                            {@link VerificationLimits} allow.
+     * @throws MemoryBudgetExceededException      if the block does not fit in the memory budget.
+     * @throws IOException                        if an I/O error occurs while reading the APK
+     *                                            file.
+     */
+    public static ApkSigningBlock findApkSigningBlock(RandomAccessFile apk)
+            throws IOException, SignatureNotFoundException {
+        Pair<ByteBuffer, Long> eocdAndOffsetInFile = getEocd(apk);
+        ByteBuffer eocd = eocdAndOffsetInFile.first;
+        long eocdOffset = eocdAndOffsetInFile.second;
+        if (ZipUtils.isZip64EndOfCentralDirectoryLocatorPresent(apk, eocdOffset)) {
+            throw new SignatureNotFoundException("ZIP64 APK not supported");
+        }
 
-        return new SignatureInfo(
-                apkSignatureSchemeBlock,
-                apkSigningBlockOffset,
-                centralDirOffset,
-                eocdOffset,
-                eocd);
+        long centralDirOffset = getCentralDirOffset(eocd, eocdOffset);
+        int totalSize = getApkSigningBlockSize(apk, centralDirOffset);
+        MemoryBudget.Reservation reservation = MemoryBudget.reserveDefault(totalSize);
+        try {
+            ByteBuffer apkSigningBlock = readApkSigningBlock(apk, centralDirOffset, totalSize);
+            return new ApkSigningBlock(
+                    apkSigningBlock,
+                    centralDirOffset - totalSize,
+                    centralDirOffset,
+                    eocdOffset,
+                    eocd,
+                    parseApkSigningBlockPairs(apkSigningBlock),
+                    reservation);
+        } catch (IOException | SignatureNotFoundException | RuntimeException e) {
+            reservation.close();
+            throw e;
+        }
     }
 
     /**
@@ -93,12 +151,17 @@ public class ApkSigningBlockUtils {
      */
     public static Pair<ByteBuffer, Long> getEocd(RandomAccessFile apk)
             throws IOException, SignatureNotFoundException {
+        long startNanos = VerificationListener.phaseStart();
         Pair<ByteBuffer, Long> eocdAndOffsetInFile =
                 ZipUtils.findZipEndOfCentralDirectoryRecord(apk);
         if (eocdAndOffsetInFile == null) {
             throw new SignatureNotFoundException(
                     "Not an APK file: ZIP End of Central Directory record not found");
         }
+        if (startNanos != 0) {
+            VerificationListener.phaseEnd(VerificationListener.Phase.EOCD_SEARCH, 0, 0,
+                    startNanos, apk.length() - eocdAndOffsetInFile.second);
+        }
         return eocdAndOffsetInFile;
     }
 
@@ -120,9 +183,33 @@ public class ApkSigningBlockUtils {
         return centralDirOffset;
     }
 
+    /**
+     * Returns the APK Signing Block preceding the ZIP Central Directory and its offset in the
+     * file. The block is only accounted in the default {@link MemoryBudget} while it is read.
+     *
+     * @deprecated use {@link #findApkSigningBlock(RandomAccessFile)}, which keeps the block
+     * reserved until it is closed.
+     */
+    @Deprecated
     public static Pair<ByteBuffer, Long> findApkSigningBlock(
             RandomAccessFile apk, long centralDirOffset)
             throws IOException, SignatureNotFoundException {
+        int totalSize = getApkSigningBlockSize(apk, centralDirOffset);
+        MemoryBudget.Reservation reservation = MemoryBudget.reserveDefault(totalSize);
+        try {
+            ByteBuffer apkSigBlock = readApkSigningBlock(apk, centralDirOffset, totalSize);
+            return Pair.create(apkSigBlock, centralDirOffset - totalSize);
+        } finally {
+            reservation.close();
+        }
+    }
+
+    /**
+     * Returns the total size of the APK Signing Block preceding the ZIP Central Directory, as
+     * found in the footer of the block, so that it can be reserved before it is read.
+     */
+    private static int getApkSigningBlockSize(RandomAccessFile apk, long centralDirOffset)
+            throws IOException, SignatureNotFoundException {
         // FORMAT:
         // OFFSET       DATA TYPE  DESCRIPTION
         // * @+0  bytes uint64:    size in bytes (excluding this field)
@@ -160,17 +247,35 @@ public class ApkSigningBlockUtils {
             throw new SignatureNotFoundException(
                     "APK Signing Block offset out of range: " + apkSigBlockOffset);
         }
+        int maxSize = VerificationLimits.getDefault().getMaxSigningBlockSize();
+        if (totalSize > maxSize) {
+            throw new VerificationLimitExceededException("APK Signing Block of " + totalSize
+                    + " bytes larger than " + maxSize + " bytes");
+        }
+        return totalSize;
+    }
+
+    private static ByteBuffer readApkSigningBlock(RandomAccessFile apk, long centralDirOffset,
+                                                  int totalSize)
+            throws IOException, SignatureNotFoundException {
+        long startNanos = VerificationListener.phaseStart();
+        long apkSigBlockOffset = centralDirOffset - totalSize;
         ByteBuffer apkSigBlock = ByteBuffer.allocate(totalSize);
         apkSigBlock.order(ByteOrder.LITTLE_ENDIAN);
         apk.seek(apkSigBlockOffset);
         apk.readFully(apkSigBlock.array(), apkSigBlock.arrayOffset(), apkSigBlock.capacity());
         long apkSigBlockSizeInHeader = apkSigBlock.getLong(0);
+        long apkSigBlockSizeInFooter = totalSize - 8;
         if (apkSigBlockSizeInHeader != apkSigBlockSizeInFooter) {
             throw new SignatureNotFoundException(
                     "APK Signing Block sizes in header and footer do not match: "
                             + apkSigBlockSizeInHeader + " vs " + apkSigBlockSizeInFooter);
         }
-        return Pair.create(apkSigBlock, apkSigBlockOffset);
+        if (startNanos != 0) {
+            VerificationListener.phaseEnd(VerificationListener.Phase.SIGNING_BLOCK_READ, 0, 0,
+                    startNanos, totalSize);
+        }
+        return apkSigBlock;
     }
 
     public static ByteBuffer findApkSignatureSchemeBlock(ByteBuffer apkSigningBlock, int blockId)
@@ -215,6 +320,316 @@ public class ApkSigningBlockUtils {
                 "No block with ID " + blockId + " in APK Signing Block.");
     }
 
+    /**
+     * Returns all ID-value pairs of the provided APK Signing Block, in file order. When an ID
+     * occurs more than once, the first occurrence wins, matching
+     * {@link #findApkSignatureSchemeBlock(ByteBuffer, int)}.
+     */
+    public static Map<Integer, ByteBuffer> parseApkSigningBlockPairs(ByteBuffer apkSigningBlock)
+            throws SignatureNotFoundException {
+        checkByteOrderLittleEndian(apkSigningBlock);
+        ByteBuffer pairs = sliceFromTo(apkSigningBlock, 8, apkSigningBlock.capacity() - 24);
+
+        Map<Integer, ByteBuffer> result = new LinkedHashMap<>();
+        int entryCount = 0;
+        while (pairs.hasRemaining()) {
+            entryCount++;
+            if (pairs.remaining() < 8) {
+                throw new SignatureNotFoundException(
+                        "Insufficient data to read size of APK Signing Block entry #" + entryCount);
+            }
+            long lenLong = pairs.getLong();
+            if ((lenLong < 4) || (lenLong > Integer.MAX_VALUE)) {
+                throw new SignatureNotFoundException(
+                        "APK Signing Block entry #" + entryCount
+                                + " size out of range: " + lenLong);
+            }
+            int len = (int) lenLong;
+            if (len > pairs.remaining()) {
+                throw new SignatureNotFoundException(
+                        "APK Signing Block entry #" + entryCount + " size out of range: " + len
+                                + ", available: " + pairs.remaining());
+            }
+            int id = pairs.getInt();
+            ByteBuffer value = getByteBuffer(pairs, len - 4);
+            if (!result.containsKey(id)) {
+                result.put(id, value);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Verifies the contents of the APK against the content digests of a signature scheme block.
+     *
+     * <p>Digests already present in {@code computedDigests} are reused instead of being
+     * recomputed, and newly computed digests are added to it. All signature schemes of one APK
+     * digest the same content, so a single map may be shared between them.
+     *
+     * <p>A {@link #CONTENT_DIGEST_VERITY_CHUNKED_SHA256} digest is verified against the Merkle tree
+     * root hash of the contents if it is the only digest, and otherwise only if the root hash is
+     * already in {@code computedDigests}: building the tree is a second pass over the contents.
+     *
+     * @param expectedDigests digest algorithm -> digest, as signed by the signer(s).
+     * @param computedDigests cache of digests computed over this APK, or {@code null}.
+     * @throws SecurityException if a digest of the APK contents does not verify.
+     * @throws IOException       if an I/O error occurs while reading the APK file.
+     */
+    public static void verifyIntegrity(
+            Map<Integer, byte[]> expectedDigests,
+            RandomAccessFile apk,
+            SignatureInfo signatureInfo,
+            Map<Integer, byte[]> computedDigests) throws SecurityException, IOException {
+        verifyIntegrity(expectedDigests, apk, signatureInfo, computedDigests, null);
+    }
+
+    /**
+     * Same as above, but checks {@code signal}, unless {@code null}, between chunks.
+     */
+    public static void verifyIntegrity(
+            Map<Integer, byte[]> expectedDigests,
+            RandomAccessFile apk,
+            SignatureInfo signatureInfo,
+            Map<Integer, byte[]> computedDigests,
+            CancellationSignal signal) throws SecurityException, IOException {
+        if (expectedDigests.isEmpty()) {
+            throw new SecurityException("No digests provided");
+        }
+
+        List<Integer> missingAlgorithms = new ArrayList<>();
+        boolean chunked = false;
+        for (int digestAlgorithm : expectedDigests.keySet()) {
+            if (digestAlgorithm == CONTENT_DIGEST_VERITY_CHUNKED_SHA256) {
+                // Verity digest is a Merkle tree root rather than a chunked digest.
+                continue;
+            }
+            chunked = true;
+            if (computedDigests == null || !computedDigests.containsKey(digestAlgorithm)) {
+                missingAlgorithms.add(digestAlgorithm);
+            }
+        }
+
+        Map<Integer, byte[]> actualDigests = new HashMap<>();
+        if (computedDigests != null) {
+            actualDigests.putAll(computedDigests);
+        }
+        if (!missingAlgorithms.isEmpty()) {
+            int[] digestAlgorithms = new int[missingAlgorithms.size()];
+            for (int i = 0; i < digestAlgorithms.length; i++) {
+                digestAlgorithms[i] = missingAlgorithms.get(i);
+            }
+            Map<Integer, byte[]> newDigests = computeContentDigests(
+                    digestAlgorithms, apk, signatureInfo, null, 1, signal);
+            actualDigests.putAll(newDigests);
+            if (computedDigests != null) {
+                computedDigests.putAll(newDigests);
+            }
+        }
+
+        for (Map.Entry<Integer, byte[]> entry : expectedDigests.entrySet()) {
+            int digestAlgorithm = entry.getKey();
+            if (digestAlgorithm == CONTENT_DIGEST_VERITY_CHUNKED_SHA256) {
+                continue;
+            }
+            if (!MessageDigest.isEqual(entry.getValue(), actualDigests.get(digestAlgorithm))) {
+                throw new SecurityException(
+                        getContentDigestAlgorithmJcaDigestAlgorithm(digestAlgorithm)
+                                + " digest of contents did not verify");
+            }
+        }
+
+        byte[] verityDigest = expectedDigests.get(CONTENT_DIGEST_VERITY_CHUNKED_SHA256);
+        byte[] actualRootHash = actualDigests.get(CONTENT_DIGEST_VERITY_CHUNKED_SHA256);
+        if (verityDigest == null || (chunked && actualRootHash == null)) {
+            return;
+        }
+        byte[] expectedRootHash =
+                parseVerityDigestAndVerifySourceLength(verityDigest, apk.length(), signatureInfo);
+        if (actualRootHash == null) {
+            actualRootHash = computeVerityRootHash(apk, signatureInfo, signal);
+            if (computedDigests != null) {
+                computedDigests.put(CONTENT_DIGEST_VERITY_CHUNKED_SHA256, actualRootHash);
+            }
+        }
+        if (!MessageDigest.isEqual(expectedRootHash, actualRootHash)) {
+            throw new SecurityException("Verity root hash of contents did not verify");
+        }
+    }
+
+    /**
+     * Computes the chunked content digests of the APK, i.e. of the data preceding the APK Signing
+     * Block, the ZIP Central Directory and the ZIP End of Central Directory with its Central
+     * Directory offset pointing at the APK Signing Block.
+     *
+     * @param digestAlgorithms chunked content digest algorithms to compute.
+     * @return digest algorithm -> digest of the APK contents.
+     * @throws IOException if an I/O error occurs while reading the APK file.
+     */
+    public static Map<Integer, byte[]> computeContentDigests(
+            int[] digestAlgorithms,
+            RandomAccessFile apk,
+            SignatureInfo signatureInfo) throws IOException {
+        return computeContentDigests(digestAlgorithms, apk, signatureInfo, null, 1, null);
+    }
+
+    /**
+     * Same as above, but spreads the chunks over up to {@code parallelism} workers, the calling
+     * thread being one of them. Helper workers are submitted to {@code executor}; if they do not
+     * get to run, the calling thread digests the remaining chunks itself, so a saturated executor
+     * delays but never deadlocks the computation.
+     *
+     * @param executor    executor for helper workers or {@code null} to digest in this thread.
+     * @param parallelism maximum number of workers, including the calling thread.
+     * @param signal      checked between chunks, or {@code null}.
+     */
+    public static Map<Integer, byte[]> computeContentDigests(
+            int[] digestAlgorithms,
+            RandomAccessFile apk,
+            SignatureInfo signatureInfo,
+            Executor executor,
+            int parallelism,
+            CancellationSignal signal) throws IOException {
+        try {
+            return computeContentDigests(digestAlgorithms, getSignedContents(apk, signatureInfo),
+                    executor, parallelism, signal);
+        } catch (DigestException e) {
+            throw new SecurityException("Failed to compute digest(s) of contents", e);
+        }
+    }
+
+    /**
+     * Verifies the contents of the APK against the Merkle tree root hash of a
+     * {@link #CONTENT_DIGEST_VERITY_CHUNKED_SHA256} digest.
+     *
+     * @param expectedRootHash root hash as returned by
+     *                         {@link #parseVerityDigestAndVerifySourceLength}.
+     * @param signal           checked between reads, or {@code null}.
+     * @throws SecurityException if the root hash of the APK contents does not verify.
+     * @throws IOException       if an I/O error occurs while reading the APK file.
+     */
+    public static void verifyVerityRootHash(
+            byte[] expectedRootHash,
+            RandomAccessFile apk,
+            SignatureInfo signatureInfo,
+            CancellationSignal signal) throws SecurityException, IOException {
+        byte[] actualRootHash = computeVerityRootHash(apk, signatureInfo, signal);
+        if (!MessageDigest.isEqual(expectedRootHash, actualRootHash)) {
+            throw new SecurityException("Verity root hash of contents did not verify");
+        }
+    }
+
+    /**
+     * Computes the root hash of the 4 KiB SHA-256 Merkle tree of the APK contents, the same data
+     * the chunked content digests cover.
+     *
+     * @param signal checked between reads, or {@code null}.
+     * @throws IOException if an I/O error occurs while reading the APK file.
+     */
+    public static byte[] computeVerityRootHash(
+            RandomAccessFile apk,
+            SignatureInfo signatureInfo,
+            CancellationSignal signal) throws IOException {
+        long startNanos = VerificationListener.phaseStart();
+        try {
+            DataSource[] contents = getSignedContents(apk, signatureInfo);
+            byte[] rootHash = VerityTreeBuilder.generateRootHash(contents, signal);
+            if (startNanos != 0) {
+                VerificationListener.phaseEnd(VerificationListener.Phase.VERITY_TREE, 0,
+                        CONTENT_DIGEST_VERITY_CHUNKED_SHA256, startNanos, size(contents));
+            }
+            return rootHash;
+        } catch (DigestException e) {
+            throw new SecurityException("Failed to compute verity root hash of contents", e);
+        }
+    }
+
+    /**
+     * Returns the data covered by content digests: the data preceding the APK Signing Block, the
+     * ZIP Central Directory and the ZIP End of Central Directory.
+     */
+    static DataSource[] getSignedContents(RandomAccessFile apk,
+                                                  SignatureInfo signatureInfo) {
+        FileChannel channel = apk.getChannel();
+        DataSource beforeApkSigningBlock =
+                new FileChannelDataSource(channel, 0, signatureInfo.apkSigningBlockOffset);
+        DataSource centralDir = new FileChannelDataSource(channel,
+                signatureInfo.centralDirOffset,
+                signatureInfo.eocdOffset - signatureInfo.centralDirOffset);
+
+        // For the purposes of integrity verification, ZIP End of Central Directory's field Start
+        // of Central Directory must be considered to point to the offset of the APK Signing Block.
+        ByteBuffer eocdBuf = signatureInfo.eocd.duplicate();
+        eocdBuf.order(ByteOrder.LITTLE_ENDIAN);
+        ZipUtils.setZipEocdCentralDirectoryOffset(eocdBuf, signatureInfo.apkSigningBlockOffset);
+        DataSource eocd = new ByteBufferDataSource(eocdBuf);
+        return new DataSource[]{beforeApkSigningBlock, centralDir, eocd};
+    }
+
+    /**
+     * Computes the chunked content digests of the concatenation of the provided sources. Each
+     * chunk is read once and fed into the digesters of all requested algorithms.
+     */
+    public static Map<Integer, byte[]> computeContentDigests(
+            int[] digestAlgorithms,
+            DataSource[] contents) throws IOException, DigestException {
+        return computeContentDigests(digestAlgorithms, contents, null, 1, null);
+    }
+
+    /**
+     * Same as above, but spreads the chunks over up to {@code parallelism} workers as described
+     * in {@link #computeContentDigests(int[], RandomAccessFile, SignatureInfo, Executor, int,
+     * CancellationSignal)}.
+     */
+    public static Map<Integer, byte[]> computeContentDigests(
+            int[] digestAlgorithms,
+            DataSource[] contents,
+            Executor executor,
+            int parallelism,
+            CancellationSignal signal) throws IOException, DigestException {
+        // For each digest algorithm the result is computed as follows:
+        // 1. Each segment of contents is split into consecutive chunks of 1 MB in size.
+        //    The final chunk will be shorter iff the length of segment is not a multiple of 1 MB.
+        //    No chunks are produced for empty (zero length) segments.
+        // 2. The digest of each chunk is computed over the concatenation of byte 0xa5, the chunk's
+        //    length in bytes (uint32 little-endian) and the chunk's contents.
+        // 3. The output digest is computed over the concatenation of the byte 0x5a, the number of
+        //    chunks (uint32 little-endian) and the concatenation of digests of chunks of all
+        //    segments in-order.
+        long startNanos = VerificationListener.phaseStart();
+        ChunkedDigestJob job = new ChunkedDigestJob(digestAlgorithms, contents, CHUNK_SIZE_BYTES,
+                signal);
+        Map<Integer, byte[]> result =
+                finishContentDigests(digestAlgorithms, job.digestChunks(executor, parallelism));
+        if (startNanos != 0) {
+            for (int digestAlgorithm : digestAlgorithms) {
+                VerificationListener.phaseEnd(VerificationListener.Phase.CONTENT_DIGEST, 0,
+                        digestAlgorithm, startNanos, size(contents));
+            }
+        }
+        return result;
+    }
+
+    private static long size(DataSource[] contents) {
+        long size = 0;
+        for (DataSource content : contents) {
+            size += content.size();
+        }
+        return size;
+    }
+
+    /**
+     * Computes the output digests from the concatenated chunk digests of each algorithm.
+     */
+    static Map<Integer, byte[]> finishContentDigests(int[] digestAlgorithms,
+                                                     byte[][] digestsOfChunks) {
+        Map<Integer, byte[]> result = new HashMap<>();
+        for (int i = 0; i < digestAlgorithms.length; i++) {
+            MessageDigest md = ChunkedDigestJob.newMessageDigest(digestAlgorithms[i]);
+            result.put(digestAlgorithms[i], md.digest(digestsOfChunks[i]));
+        }
+        return result;
+    }
+
     /**
      * Returns new byte buffer whose content is a shared subsequence of this buffer's content
      * between the specified start (inclusive) and end (exclusive) positions. As opposed to
@@ -458,6 +873,23 @@ public class ApkSigningBlockUtils {
             ByteBuffer porBuf,
             CertificateFactory certFactory)
             throws SecurityException, IOException {
+        return verifyProofOfRotationStruct(porBuf, certFactory, ApkVerificationResult.SCHEME_V3,
+                null);
+    }
+
+    /**
+     * Same as above, but reports the phase as part of scheme {@code schemeVersion}, e.g.
+     * {@link ApkVerificationResult#SCHEME_V31}, and checks {@code signal}, unless {@code null},
+     * before each level.
+     */
+    public static VerifiedProofOfRotation verifyProofOfRotationStruct(
+            ByteBuffer porBuf,
+            CertificateFactory certFactory,
+            int schemeVersion,
+            CancellationSignal signal)
+            throws SecurityException, IOException {
+        long startNanos = VerificationListener.phaseStart();
+        int porSize = porBuf.remaining();
         int levelCount = 0;
         int lastSigAlgorithm = -1;
         X509Certificate lastCert = null;
@@ -478,13 +910,19 @@ public class ApkSigningBlockUtils {
         //         is verified using the certificate from the previous level.
         // The linking is provided by the certificate of each level signing the one of the next.
 
+        int maxLevels = VerificationLimits.getDefault().getMaxLineageDepth();
         try {
 
             // get the version code, but don't do anything with it: creator knew about all our flags
             porBuf.getInt();
             HashSet<X509Certificate> certHistorySet = new HashSet<>();
             while (porBuf.hasRemaining()) {
+                if (signal != null) {
+                    signal.throwIfCanceled();
+                }
                 levelCount++;
+                VerificationLimits.check(levelCount, maxLevels,
+                        "levels in a Proof-of-rotation record");
                 ByteBuffer level = getLengthPrefixedSlice(porBuf);
                 ByteBuffer signedData = getLengthPrefixedSlice(level);
                 int flags = level.getInt();
@@ -541,6 +979,10 @@ public class ApkSigningBlockUtils {
             throw new SecurityException("Failed to decode certificate #" + levelCount
                     + " when verifying Proof-of-rotation record", e);
         }
+        if (startNanos != 0) {
+            VerificationListener.phaseEnd(VerificationListener.Phase.PROOF_OF_ROTATION,
+                    schemeVersion, 0, startNanos, porSize);
+        }
         return new VerifiedProofOfRotation(certs, flagsList);
     }
 
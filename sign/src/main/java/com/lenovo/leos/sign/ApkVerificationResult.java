@@ -0,0 +1,135 @@
+package com.lenovo.leos.sign;
+
+import com.lenovo.leos.sign.stamp.SourceStampVerifier;
+
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Combined outcome of {@link ApkVerifier}: the signature schemes that verified, highest
+ * precedence first. The first one is the scheme the platform would use for this APK.
+ */
+public class ApkVerificationResult {
+    /**
+     * JAR signing.
+     */
+    public static final int SCHEME_V1 = 1;
+    /**
+     * APK Signature Scheme v2.
+     */
+    public static final int SCHEME_V2 = 2;
+    /**
+     * APK Signature Scheme v3.
+     */
+    public static final int SCHEME_V3 = 3;
+    /**
+     * APK Signature Scheme v3.1.
+     */
+    public static final int SCHEME_V31 = 31;
+
+    /**
+     * Verified schemes, highest precedence first. Never empty.
+     */
+    public final List<VerifiedScheme> schemes;
+
+    /**
+     * Verified source stamp or {@code null} if the APK has none or it did not verify.
+     */
+    public final SourceStampVerifier.VerifiedSourceStamp sourceStamp;
+
+    /**
+     * Why the source stamp of the APK did not verify or {@code null}. As on the platform, an
+     * invalid stamp does not fail the verification of the APK itself.
+     */
+    public final Exception sourceStampError;
+
+    public ApkVerificationResult(List<VerifiedScheme> schemes) {
+        this(schemes, null, null);
+    }
+
+    public ApkVerificationResult(List<VerifiedScheme> schemes,
+                                 SourceStampVerifier.VerifiedSourceStamp sourceStamp,
+                                 Exception sourceStampError) {
+        if (schemes.isEmpty()) {
+            throw new IllegalArgumentException("No verified schemes");
+        }
+        this.schemes = schemes;
+        this.sourceStamp = sourceStamp;
+        this.sourceStampError = sourceStampError;
+    }
+
+    /**
+     * Returns the scheme taking precedence for this APK.
+     */
+    public VerifiedScheme getEffectiveScheme() {
+        return schemes.get(0);
+    }
+
+    /**
+     * Returns the verified scheme with the provided version or {@code null} if that scheme was
+     * not verified.
+     */
+    public VerifiedScheme getScheme(int schemeVersion) {
+        for (VerifiedScheme scheme : schemes) {
+            if (scheme.schemeVersion == schemeVersion) {
+                return scheme;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the level to which all verified schemes were verified, i.e. the lowest level
+     * reached by any of them.
+     */
+    public VerificationLevel getVerificationLevel() {
+        VerificationLevel level = null;
+        for (VerifiedScheme scheme : schemes) {
+            if (level == null || !scheme.verificationLevel.includes(level)) {
+                level = scheme.verificationLevel;
+            }
+        }
+        return level;
+    }
+
+    /**
+     * Signers of a single verified signature scheme.
+     */
+    public static class VerifiedScheme {
+        public final int schemeVersion;
+        // Certificate chain of each signer, main certificate first. For v3 and v3.1, one per SDK
+        // range, in order of minSdkVersion.
+        public final X509Certificate[][] certs;
+        // Proof-of-rotation of the signer, v3 and v3.1 only, of the signer targeting the newest
+        // platforms. May be null.
+        public final ApkSigningBlockUtils.VerifiedProofOfRotation por;
+
+        public final byte[] verityRootHash;
+        // Algorithm -> digest map of signed digests in the signature.
+        // All these are verified if requested.
+        public final Map<Integer, byte[]> contentDigests;
+        // Level the scheme was verified to. At PROBE, only the presence of the scheme is known
+        // and certs is empty.
+        public final VerificationLevel verificationLevel;
+
+        public VerifiedScheme(int schemeVersion, X509Certificate[][] certs,
+                              ApkSigningBlockUtils.VerifiedProofOfRotation por,
+                              byte[] verityRootHash, Map<Integer, byte[]> contentDigests) {
+            this(schemeVersion, certs, por, verityRootHash, contentDigests,
+                    VerificationLevel.SIGNATURES);
+        }
+
+        public VerifiedScheme(int schemeVersion, X509Certificate[][] certs,
+                              ApkSigningBlockUtils.VerifiedProofOfRotation por,
+                              byte[] verityRootHash, Map<Integer, byte[]> contentDigests,
+                              VerificationLevel verificationLevel) {
+            this.schemeVersion = schemeVersion;
+            this.certs = certs;
+            this.por = por;
+            this.verityRootHash = verityRootHash;
+            this.contentDigests = contentDigests;
+            this.verificationLevel = verificationLevel;
+        }
+    }
+}
@@ -0,0 +1,365 @@
+package com.lenovo.leos.sign;
+
+import com.lenovo.leos.sign.stamp.SourceStampVerifier;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Single entry point verifying an APK against every signature scheme registered in a
+ * {@link SchemeRegistry}.
+ *
+ * <p>The APK Signing Block is read and indexed once, and handlers run in the platform's order of
+ * precedence (v3.1 -> v3 -> v2 -> v1). By default verification stops at the first scheme present
+ * in the APK, as the platform does. When all schemes are verified, content digests computed for
+ * one scheme are reused by the others if their algorithms coincide. A source stamp, if present, is
+ * verified against the signed digests of the verified schemes.
+ *
+ * <p>With an {@link Executor}, one APK is verified by several threads: content hashing is split
+ * into chunk subtasks. Only when all schemes are verified is each scheme also a subtask of its
+ * own; by default just the scheme taking precedence is verified, since its outcome is final, so
+ * schemes run one after the other. All subtasks read the file through one shared channel. When
+ * a scheme fails, the subtasks of the other schemes are canceled, and the verification returns
+ * once they have stopped.
+ */
+public class ApkVerifier {
+    private final SchemeRegistry mRegistry;
+    private final boolean mVerifyAllSchemes;
+    private final VerificationLevel mLevel;
+    private final boolean mVerifySourceStamp;
+    private final Executor mExecutor;
+    private final int mParallelism;
+
+    private ApkVerifier(Builder builder) {
+        this.mRegistry = builder.mRegistry;
+        this.mVerifyAllSchemes = builder.mVerifyAllSchemes;
+        this.mLevel = builder.mLevel;
+        this.mVerifySourceStamp = builder.mVerifySourceStamp;
+        this.mExecutor = builder.mExecutor;
+        this.mParallelism = builder.mParallelism;
+    }
+
+    /**
+     * Verifies the provided APK and returns the combined result of all verified schemes.
+     *
+     * @throws SignatureNotFoundException if the APK is not signed using any registered scheme.
+     * @throws SecurityException          if a signature of a present scheme does not verify.
+     * @throws IOException                if an I/O error occurs while reading the APK file.
+     */
+    public ApkVerificationResult verify(String apkFile)
+            throws SignatureNotFoundException, SecurityException, IOException {
+        return verify(apkFile, new CancellationSignal());
+    }
+
+    /**
+     * Same as above, but stops with {@link java.util.concurrent.CancellationException} once
+     * {@code signal} is canceled, or with {@link DeadlineExceededException} once its deadline
+     * passes. The signal is checked between content chunks, signers and proof-of-rotation levels,
+     * and receives the progress of the content digests. Once the outcome is decided, e.g. because
+     * a scheme failed, the remaining subtasks are stopped through a signal scoped to this
+     * verification; {@code signal} itself is never canceled by the verifier.
+     */
+    public ApkVerificationResult verify(String apkFile, CancellationSignal signal)
+            throws SignatureNotFoundException, SecurityException, IOException {
+        Object event = VerificationEvents.beginVerification(apkFile);
+        if (event == null) {
+            return verifyFile(apkFile, signal);
+        }
+        ApkVerificationResult result = null;
+        Throwable failure = null;
+        try {
+            result = verifyFile(apkFile, signal);
+            return result;
+        } catch (SignatureNotFoundException | IOException | RuntimeException | Error e) {
+            failure = e;
+            throw e;
+        } finally {
+            VerificationEvents.endVerification(event, mLevel, result, failure);
+        }
+    }
+
+    private ApkVerificationResult verifyFile(String apkFile, CancellationSignal signal)
+            throws SignatureNotFoundException, SecurityException, IOException {
+        long startNanos = VerificationListener.phaseStart();
+        try (RandomAccessFile apk = new RandomAccessFile(apkFile, "r")) {
+            ApkSigningBlock signingBlock;
+            try {
+                signingBlock = ApkSigningBlockUtils.findApkSigningBlock(apk);
+            } catch (SignatureNotFoundException e) {
+                // Not an error: the APK may still be JAR signed.
+                signingBlock = null;
+            }
+            try {
+                VerificationContext context = new VerificationContext(apkFile, apk,
+                        signingBlock, mLevel, mExecutor, mParallelism, signal);
+                ApkVerificationResult result = verify(context);
+                if (startNanos != 0) {
+                    VerificationListener.phaseEnd(VerificationListener.Phase.VERIFICATION,
+                            result.schemes.get(0).schemeVersion, 0, startNanos, apk.length());
+                }
+                return result;
+            } finally {
+                if (signingBlock != null) {
+                    signingBlock.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns how far this verifier verifies APKs.
+     */
+    public VerificationLevel getVerificationLevel() {
+        return mLevel;
+    }
+
+    /**
+     * Verifies the APK of an already opened context, whose level must be the level of this
+     * verifier.
+     */
+    ApkVerificationResult verify(VerificationContext context)
+            throws SignatureNotFoundException, SecurityException, IOException {
+        ApkSigningBlock signingBlock = context.getSigningBlock();
+        List<ApkVerificationResult.VerifiedScheme> verified;
+        if (mLevel == VerificationLevel.PROBE) {
+            verified = probe(context);
+        } else if (mExecutor != null && mVerifyAllSchemes) {
+            verified = verifyConcurrently(context);
+        } else {
+            verified = verifySequentially(context);
+        }
+        if (verified.isEmpty()) {
+            throw new SignatureNotFoundException(
+                    "APK is not signed using any registered signature scheme");
+        }
+        ApkVerificationResult result = new ApkVerificationResult(verified);
+        if (mVerifySourceStamp && mLevel != VerificationLevel.PROBE
+                && SourceStampVerifier.hasSourceStamp(signingBlock)) {
+            try {
+                result = new ApkVerificationResult(verified,
+                        SourceStampVerifier.verify(signingBlock, result), null);
+            } catch (SignatureNotFoundException | SecurityException | IOException e) {
+                result = new ApkVerificationResult(verified, null, e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reports present schemes without verifying them.
+     */
+    private List<ApkVerificationResult.VerifiedScheme> probe(VerificationContext context)
+            throws IOException {
+        List<ApkVerificationResult.VerifiedScheme> present = new ArrayList<>();
+        for (SchemeHandler handler : mRegistry.getHandlers()) {
+            if (!handler.isPresent(context)) {
+                continue;
+            }
+            present.add(new ApkVerificationResult.VerifiedScheme(handler.getSchemeVersion(),
+                    new X509Certificate[0][], null, null, Collections.emptyMap(),
+                    VerificationLevel.PROBE));
+            if (!mVerifyAllSchemes) {
+                break;
+            }
+        }
+        return present;
+    }
+
+    private List<ApkVerificationResult.VerifiedScheme> verifySequentially(
+            VerificationContext context)
+            throws SignatureNotFoundException, SecurityException, IOException {
+        List<ApkVerificationResult.VerifiedScheme> verified = new ArrayList<>();
+        for (SchemeHandler handler : mRegistry.getHandlers()) {
+            context.getCancellationSignal().throwIfCanceled();
+            if (!handler.isPresent(context)) {
+                continue;
+            }
+            ApkVerificationResult.VerifiedScheme result = handler.verify(context);
+            context.onSchemeVerified(result.schemeVersion);
+            verified.add(result);
+            if (!mVerifyAllSchemes) {
+                break;
+            }
+        }
+        return verified;
+    }
+
+    /**
+     * Forks one subtask per present scheme and joins them in order of precedence. The first
+     * failure cancels the subtasks still running, through the signal of {@code context}. Returns
+     * or throws only once every subtask has finished, as they read through the file and the
+     * signing block of {@code context}.
+     */
+    private List<ApkVerificationResult.VerifiedScheme> verifyConcurrently(
+            VerificationContext context)
+            throws SignatureNotFoundException, SecurityException, IOException {
+        List<SchemeHandler> present = new ArrayList<>();
+        for (SchemeHandler handler : mRegistry.getHandlers()) {
+            if (handler.isPresent(context)) {
+                present.add(handler);
+                context.onSchemeScheduled(handler.getSchemeVersion());
+            }
+        }
+
+        CancellationSignal signal = context.getCancellationSignal();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<FutureTask<ApkVerificationResult.VerifiedScheme>> tasks = new ArrayList<>();
+        for (SchemeHandler handler : present) {
+            FutureTask<ApkVerificationResult.VerifiedScheme> task = new FutureTask<>(() -> {
+                try {
+                    signal.throwIfCanceled();
+                    return handler.verify(context);
+                } catch (Exception | Error e) {
+                    // Outcome decided: stop the other subtasks at their next unit of work.
+                    // Threads are not interrupted (see CancellationSignal).
+                    if (failure.compareAndSet(null, e)) {
+                        signal.cancel();
+                    }
+                    throw e;
+                }
+            });
+            tasks.add(task);
+            try {
+                mExecutor.execute(task);
+            } catch (RejectedExecutionException e) {
+                // The calling thread runs it when joining.
+            }
+        }
+
+        List<ApkVerificationResult.VerifiedScheme> verified = new ArrayList<>();
+        boolean interrupted = false;
+        for (FutureTask<ApkVerificationResult.VerifiedScheme> task : tasks) {
+            // Run the task here if the executor has not started it yet. After a failure, it
+            // stops at once.
+            task.run();
+            while (true) {
+                try {
+                    verified.add(task.get());
+                    break;
+                } catch (ExecutionException e) {
+                    // Recorded in failure.
+                    break;
+                } catch (InterruptedException e) {
+                    // Still wait for the task, which stops at its next unit of work.
+                    interrupted = true;
+                    signal.cancel();
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while verifying " + context.apkFile);
+        }
+        Throwable cause = failure.get();
+        if (cause == null) {
+            return verified;
+        } else if (cause instanceof SignatureNotFoundException) {
+            throw (SignatureNotFoundException) cause;
+        } else if (cause instanceof IOException) {
+            throw (IOException) cause;
+        } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        throw new SecurityException("Failed to verify " + context.apkFile, cause);
+    }
+
+    /**
+     * Builder of {@link ApkVerifier} instances.
+     */
+    public static class Builder {
+        private SchemeRegistry mRegistry;
+        private boolean mVerifyAllSchemes = false;
+        private VerificationLevel mLevel = VerificationLevel.CONTENT;
+        private boolean mVerifySourceStamp = true;
+        private Executor mExecutor;
+        private int mParallelism = Runtime.getRuntime().availableProcessors();
+
+        public Builder() {
+            mRegistry = SchemeRegistry.createDefault();
+        }
+
+        /**
+         * Sets the registry of scheme handlers to consult. Defaults to
+         * {@link SchemeRegistry#createDefault()}.
+         */
+        public Builder setSchemeRegistry(SchemeRegistry registry) {
+            if (registry == null) {
+                throw new NullPointerException("registry == null");
+            }
+            mRegistry = registry;
+            return this;
+        }
+
+        /**
+         * Sets whether every present scheme is verified ({@code true}) or only the one taking
+         * precedence ({@code false}, the default).
+         */
+        public Builder setVerifyAllSchemes(boolean verifyAllSchemes) {
+            mVerifyAllSchemes = verifyAllSchemes;
+            return this;
+        }
+
+        /**
+         * Sets how far each present scheme is verified. Defaults to
+         * {@link VerificationLevel#CONTENT}. Source stamps are not verified at
+         * {@link VerificationLevel#PROBE}.
+         */
+        public Builder setVerificationLevel(VerificationLevel level) {
+            if (level == null) {
+                throw new NullPointerException("level == null");
+            }
+            mLevel = level;
+            return this;
+        }
+
+        /**
+         * Sets whether the source stamp of the APK, if any, is verified. Defaults to
+         * {@code true}.
+         */
+        public Builder setVerifySourceStamp(boolean verifySourceStamp) {
+            mVerifySourceStamp = verifySourceStamp;
+            return this;
+        }
+
+        /**
+         * Sets the executor running the subtasks of a single verification. Defaults to
+         * {@code null}: everything runs in the calling thread.
+         *
+         * <p>The calling thread always takes part in the work, so a busy or bounded executor
+         * slows a verification down but cannot deadlock it.
+         */
+        public Builder setExecutor(Executor executor) {
+            mExecutor = executor;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of threads, including the calling thread, hashing the contents
+         * of one APK. Defaults to the number of available processors. Only used with an
+         * executor.
+         */
+        public Builder setParallelism(int parallelism) {
+            if (parallelism < 1) {
+                throw new IllegalArgumentException("parallelism: " + parallelism);
+            }
+            mParallelism = parallelism;
+            return this;
+        }
+
+        public ApkVerifier build() {
+            return new ApkVerifier(this);
+        }
+    }
+}
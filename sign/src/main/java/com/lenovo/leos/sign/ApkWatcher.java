@@ -0,0 +1,446 @@
+package com.lenovo.leos.sign;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Verifies APKs as they arrive in a set of directories, e.g. an upload landing zone.
+ *
+ * <p>Directories are watched with a {@link WatchService}; their subdirectories are not. A new or
+ * modified file is only verified once it looks completely written: its size did not change for
+ * {@link Builder#setStableMillis stableMillis} and it ends with a ZIP End of Central Directory
+ * record consistent with its central directory. A file still incomplete after
+ * {@link Builder#setMaxPendingMillis maxPendingMillis} is verified anyway, which reports it as
+ * invalid.
+ *
+ * <p>At most {@link Builder#setParallelism parallelism} files are verified at a time; files that
+ * are ready meanwhile wait for a free slot. Each result goes to the {@link Sink}. A file
+ * modified again after it was verified is verified again.
+ */
+public class ApkWatcher implements Closeable {
+    /**
+     * Receives the outcome of each verified file.
+     */
+    public interface Sink {
+        /**
+         * Called from worker threads, possibly concurrently.
+         */
+        void onResult(BulkVerifier.BulkResult result);
+    }
+
+    private final List<Path> mDirectories;
+    private final PathMatcher mMatcher;
+    private final BulkVerifier mVerifier;
+    private final Sink mSink;
+    private final long mStableNanos;
+    private final long mMaxPendingNanos;
+    private final boolean mScanExisting;
+    private final Semaphore mPermits;
+    private final WatchService mWatchService;
+    private final Map<WatchKey, Path> mKeys = new HashMap<>();
+    // Files waiting to become stable, in order of arrival. Only used by the watch thread.
+    private final Map<Path, Pending> mPending = new LinkedHashMap<>();
+    private final AtomicLong mDetected = new AtomicLong();
+    private final AtomicLong mVerified = new AtomicLong();
+    private ExecutorService mExecutor;
+    private Thread mThread;
+    private volatile boolean mClosed;
+
+    private ApkWatcher(Builder builder) throws IOException {
+        mDirectories = new ArrayList<>(builder.mDirectories);
+        mMatcher = FileSystems.getDefault().getPathMatcher("glob:" + builder.mGlob);
+        mVerifier = new BulkVerifier.Builder()
+                .setVerifier(builder.mVerifier)
+                .setVerificationLevel(builder.mLevel)
+                .setLedger(builder.mLedger)
+                .setParallelism(builder.mParallelism)
+                .build();
+        mSink = builder.mSink;
+        mStableNanos = TimeUnit.MILLISECONDS.toNanos(builder.mStableMillis);
+        mMaxPendingNanos = TimeUnit.MILLISECONDS.toNanos(builder.mMaxPendingMillis);
+        mScanExisting = builder.mScanExisting;
+        mPermits = new Semaphore(builder.mParallelism);
+        mWatchService = FileSystems.getDefault().newWatchService();
+    }
+
+    /**
+     * Starts watching. Returns once the directories are registered, so that files arriving
+     * afterwards are not missed.
+     *
+     * @throws IOException if a directory cannot be watched.
+     */
+    public synchronized void start() throws IOException {
+        if (mThread != null) {
+            throw new IllegalStateException("Already started");
+        }
+        for (Path dir : mDirectories) {
+            WatchKey key = dir.register(mWatchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            mKeys.put(key, dir);
+        }
+        if (mScanExisting) {
+            long now = System.nanoTime();
+            for (Path dir : mDirectories) {
+                scan(dir, now);
+            }
+        }
+        mExecutor = mVerifier.newExecutor();
+        mThread = new Thread(this::run, "ApkWatcher");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Returns the number of files detected and verified so far.
+     */
+    public WatcherStats getStats() {
+        return new WatcherStats(mDetected.get(), mVerified.get());
+    }
+
+    /**
+     * Stops watching and waits for the verifications in flight. Files still waiting to become
+     * stable are dropped.
+     */
+    @Override
+    public void close() throws IOException {
+        mClosed = true;
+        mWatchService.close();
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+        }
+        if (thread == null) {
+            return;
+        }
+        try {
+            thread.join();
+            mExecutor.shutdown();
+            mExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while stopping");
+        }
+    }
+
+    private void run() {
+        // Wake up often enough to notice files becoming stable.
+        long pollNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(10), mStableNanos / 4);
+        try {
+            while (!mClosed) {
+                WatchKey key = mPending.isEmpty()
+                        ? mWatchService.take()
+                        : mWatchService.poll(pollNanos, TimeUnit.NANOSECONDS);
+                while (key != null) {
+                    onEvents(key);
+                    key = mWatchService.poll();
+                }
+                dispatchStable();
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // Closed.
+        }
+    }
+
+    private void onEvents(WatchKey key) {
+        Path dir = mKeys.get(key);
+        long now = System.nanoTime();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // Events were lost: look at every file instead.
+                scan(dir, now);
+                continue;
+            }
+            Path name = (Path) event.context();
+            if (!mMatcher.matches(name)) {
+                continue;
+            }
+            Path path = dir.resolve(name);
+            if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                mPending.remove(path);
+            } else {
+                track(path, now);
+            }
+        }
+        key.reset();
+    }
+
+    private void scan(Path dir, long now) {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path path : files) {
+                if (mMatcher.matches(path.getFileName()) && Files.isRegularFile(path)) {
+                    track(path, now);
+                }
+            }
+        } catch (IOException e) {
+            // The directory went away or cannot be listed: nothing to verify.
+        }
+    }
+
+    private void track(Path path, long now) {
+        Pending pending = mPending.get(path);
+        if (pending == null) {
+            mDetected.incrementAndGet();
+            mPending.put(path, new Pending(now));
+        } else {
+            pending.lastChangeNanos = now;
+        }
+    }
+
+    /**
+     * Verifies the files that are stable and complete, as long as slots are free.
+     */
+    private void dispatchStable() {
+        long now = System.nanoTime();
+        Iterator<Map.Entry<Path, Pending>> it = mPending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, Pending> entry = it.next();
+            Path path = entry.getKey();
+            Pending pending = entry.getValue();
+            if (now - pending.lastChangeNanos < mStableNanos) {
+                continue;
+            }
+            long size;
+            try {
+                size = Files.size(path);
+            } catch (NoSuchFileException e) {
+                it.remove();
+                continue;
+            } catch (IOException e) {
+                size = -1;
+            }
+            if (size != pending.size) {
+                pending.size = size;
+                pending.lastChangeNanos = now;
+                continue;
+            }
+            if (!isComplete(path) && now - pending.firstSeenNanos < mMaxPendingNanos) {
+                // Stable but not a whole ZIP yet, e.g. a paused upload: check again later.
+                pending.lastChangeNanos = now;
+                continue;
+            }
+            if (!mPermits.tryAcquire()) {
+                return;
+            }
+            it.remove();
+            try {
+                mExecutor.execute(() -> {
+                    try {
+                        BulkVerifier.BulkResult result = mVerifier.verify(path);
+                        mVerified.incrementAndGet();
+                        mSink.onResult(result);
+                    } finally {
+                        mPermits.release();
+                    }
+                });
+            } catch (RuntimeException e) {
+                mPermits.release();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Returns whether the file ends with an EoCD record whose central directory ends right
+     * before it, i.e. the ZIP was written up to its end.
+     */
+    private static boolean isComplete(Path path) {
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "r")) {
+            Pair<ByteBuffer, Long> eocd = ZipUtils.findZipEndOfCentralDirectoryRecord(file);
+            if (eocd == null) {
+                return false;
+            }
+            if (ZipUtils.isZip64EndOfCentralDirectoryLocatorPresent(file, eocd.second)) {
+                // The EoCD fields are placeholders; the ZIP64 record holds the real ones.
+                return true;
+            }
+            long centralDirEnd = ZipUtils.getZipEocdCentralDirectoryOffset(eocd.first)
+                    + ZipUtils.getZipEocdCentralDirectorySizeBytes(eocd.first);
+            return centralDirEnd == eocd.second;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static class Pending {
+        final long firstSeenNanos;
+        long lastChangeNanos;
+        long size = -1;
+
+        Pending(long now) {
+            firstSeenNanos = now;
+            lastChangeNanos = now;
+        }
+    }
+
+    /**
+     * Counters of an {@link ApkWatcher}.
+     */
+    public static class WatcherStats {
+        // Distinct arrivals or modifications noticed.
+        public final long detected;
+        public final long verified;
+
+        public WatcherStats(long detected, long verified) {
+            this.detected = detected;
+            this.verified = verified;
+        }
+
+        @Override
+        public String toString() {
+            return detected + " detected, " + verified + " verified";
+        }
+    }
+
+    /**
+     * Builder of {@link ApkWatcher} instances.
+     */
+    public static class Builder {
+        private final List<Path> mDirectories = new ArrayList<>();
+        private String mGlob = "*.apk";
+        private ApkVerifier mVerifier;
+        private VerificationLevel mLevel = VerificationLevel.CONTENT;
+        private VerificationLedger mLedger;
+        private int mParallelism = Runtime.getRuntime().availableProcessors();
+        private long mStableMillis = 1000;
+        private long mMaxPendingMillis = TimeUnit.MINUTES.toMillis(10);
+        private boolean mScanExisting;
+        private Sink mSink;
+
+        /**
+         * Adds a directory to watch.
+         */
+        public Builder addDirectory(Path dir) {
+            mDirectories.add(dir);
+            return this;
+        }
+
+        /**
+         * Sets the glob file names must match, as in
+         * {@link java.nio.file.FileSystem#getPathMatcher}. Defaults to {@code *.apk}.
+         */
+        public Builder setGlob(String glob) {
+            mGlob = glob;
+            return this;
+        }
+
+        /**
+         * Sets the verifier applied to each file. Defaults to an {@link ApkVerifier} at the
+         * configured level.
+         */
+        public Builder setVerifier(ApkVerifier verifier) {
+            mVerifier = verifier;
+            return this;
+        }
+
+        /**
+         * Sets how far each file is verified. Defaults to {@link VerificationLevel#CONTENT}.
+         * Ignored if a verifier is set.
+         */
+        public Builder setVerificationLevel(VerificationLevel level) {
+            if (level == null) {
+                throw new NullPointerException("level == null");
+            }
+            mLevel = level;
+            return this;
+        }
+
+        /**
+         * Sets the ledger recording outcomes, so that files unchanged since a previous run are
+         * not verified again. Defaults to none.
+         */
+        public Builder setLedger(VerificationLedger ledger) {
+            mLedger = ledger;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of files verified at a time. Defaults to the number of
+         * available processors.
+         */
+        public Builder setParallelism(int parallelism) {
+            if (parallelism < 1) {
+                throw new IllegalArgumentException("parallelism: " + parallelism);
+            }
+            mParallelism = parallelism;
+            return this;
+        }
+
+        /**
+         * Sets for how long a file's size must not change before it is verified. Defaults to
+         * one second.
+         */
+        public Builder setStableMillis(long stableMillis) {
+            if (stableMillis < 0) {
+                throw new IllegalArgumentException("stableMillis: " + stableMillis);
+            }
+            mStableMillis = stableMillis;
+            return this;
+        }
+
+        /**
+         * Sets for how long a file not yet ending with a valid EoCD record is waited for before
+         * it is verified anyway. Defaults to ten minutes.
+         */
+        public Builder setMaxPendingMillis(long maxPendingMillis) {
+            if (maxPendingMillis < 0) {
+                throw new IllegalArgumentException("maxPendingMillis: " + maxPendingMillis);
+            }
+            mMaxPendingMillis = maxPendingMillis;
+            return this;
+        }
+
+        /**
+         * Sets whether files already in the directories when watching starts are verified.
+         * Defaults to {@code false}.
+         */
+        public Builder setScanExisting(boolean scanExisting) {
+            mScanExisting = scanExisting;
+            return this;
+        }
+
+        /**
+         * Sets the sink receiving each result. Required.
+         */
+        public Builder setSink(Sink sink) {
+            mSink = sink;
+            return this;
+        }
+
+        /**
+         * @throws IOException if the watch service cannot be created.
+         */
+        public ApkWatcher build() throws IOException {
+            if (mSink == null) {
+                throw new IllegalStateException("No sink set");
+            }
+            if (mDirectories.isEmpty()) {
+                throw new IllegalStateException("No directory to watch");
+            }
+            return new ApkWatcher(this);
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package com.lenovo.leos.sign;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Method;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Verifies many APKs concurrently, e.g. a whole corpus, and reports each result as soon as it is
+ * available.
+ *
+ * <p>At most {@link Builder#setParallelism parallelism} files are verified at a time; the source
+ * of paths is only consumed as fast as files complete, so arbitrarily large trees and lists are
+ * scanned in constant memory. Files run on virtual threads when the JVM offers them, otherwise on
+ * a fixed pool of platform threads.
+ *
+ * <p>A file that does not verify is reported with its error; it does not stop the scan.
+ *
+ * <p>With a {@link VerificationLedger}, files that did not change since their outcome was
+ * recorded, e.g. by a previous run, are reported from the ledger without being verified again.
+ */
+public class BulkVerifier {
+    private final ApkVerifier mVerifier;
+    private final int mParallelism;
+    private final boolean mUseVirtualThreads;
+    private final VerificationLedger mLedger;
+
+    private BulkVerifier(Builder builder) {
+        this.mVerifier = builder.mVerifier != null
+                ? builder.mVerifier
+                : new ApkVerifier.Builder().setVerificationLevel(builder.mLevel).build();
+        this.mParallelism = builder.mParallelism;
+        this.mUseVirtualThreads = builder.mUseVirtualThreads;
+        this.mLedger = builder.mLedger;
+    }
+
+    /**
+     * Verifies every regular file ending with {@code .apk} in the directory tree rooted at
+     * {@code dir}.
+     *
+     * @param sink receives the result of each file. Called concurrently from worker threads.
+     * @throws IOException if the tree cannot be walked.
+     */
+    public BulkStats verifyTree(Path dir, Consumer<BulkResult> sink) throws IOException {
+        return verifyGlob(dir, "**.apk", sink);
+    }
+
+    /**
+     * Verifies every regular file in the directory tree rooted at {@code dir} whose path relative
+     * to {@code dir} matches {@code glob}, as in {@link java.nio.file.FileSystem#getPathMatcher}.
+     *
+     * @param sink receives the result of each file. Called concurrently from worker threads.
+     * @throws IOException if the tree cannot be walked.
+     */
+    public BulkStats verifyGlob(Path dir, String glob, Consumer<BulkResult> sink)
+            throws IOException {
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        try (Stream<Path> paths = Files.walk(dir)) {
+            return verify(paths.filter(path -> Files.isRegularFile(path)
+                    && matcher.matches(dir.relativize(path))), sink);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Verifies every file of {@code paths}, which is consumed lazily.
+     *
+     * @param sink receives the result of each file. Called concurrently from worker threads.
+     * @throws InterruptedIOException if the calling thread is interrupted while waiting for
+     *                                files to complete.
+     */
+    public BulkStats verify(Stream<Path> paths, Consumer<BulkResult> sink)
+            throws InterruptedIOException {
+        LongAdder files = new LongAdder();
+        LongAdder bytes = new LongAdder();
+        LongAdder failures = new LongAdder();
+        Semaphore permits = new Semaphore(mParallelism);
+        ExecutorService executor = newExecutor();
+        long start = System.nanoTime();
+        try {
+            Iterator<Path> it = paths.iterator();
+            while (it.hasNext()) {
+                Path path = it.next();
+                permits.acquire();
+                try {
+                    executor.execute(() -> {
+                        try {
+                            BulkResult result = verify(path);
+                            files.increment();
+                            bytes.add(result.size);
+                            if (result.error != null) {
+                                failures.increment();
+                            }
+                            sink.accept(result);
+                        } finally {
+                            permits.release();
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    permits.release();
+                    throw e;
+                }
+            }
+            // Wait for the files still in flight.
+            permits.acquire(mParallelism);
+            permits.release(mParallelism);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while verifying APKs");
+        } finally {
+            executor.shutdown();
+        }
+        return new BulkStats(files.sum(), bytes.sum(), failures.sum(), System.nanoTime() - start);
+    }
+
+    /**
+     * Verifies a single file, consulting the ledger if any. Failures are reported in the result.
+     */
+    BulkResult verify(Path path) {
+        long start = System.nanoTime();
+        long size = 0;
+        try {
+            size = Files.size(path);
+            if (mLedger != null) {
+                VerificationLedger.Entry entry = mLedger.verify(mVerifier, path.toString());
+                return new BulkResult(path, size, entry.result, entry.getError(),
+                        System.nanoTime() - start, entry.isFromLedger());
+            }
+            ApkVerificationResult result = mVerifier.verify(path.toString());
+            return new BulkResult(path, size, result, null, System.nanoTime() - start);
+        } catch (SignatureNotFoundException | IOException | RuntimeException e) {
+            return new BulkResult(path, size, null, e, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Returns an executor for up to {@code parallelism} concurrent files.
+     */
+    ExecutorService newExecutor() {
+        if (mUseVirtualThreads) {
+            try {
+                // Java 21+. Looked up reflectively as this library targets Java 11.
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+                // Not available, or a preview feature that is not enabled.
+            }
+        }
+        return Executors.newFixedThreadPool(mParallelism, runnable -> {
+            Thread thread = new Thread(runnable, "BulkVerifier");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Outcome of one file.
+     */
+    public static class BulkResult {
+        public final Path path;
+        // Size of the file in bytes, 0 if it could not be determined.
+        public final long size;
+        // Result of the verification or null if the file did not verify.
+        public final ApkVerificationResult result;
+        // Why the file did not verify or null.
+        public final Exception error;
+        public final long elapsedNanos;
+        // Whether the outcome was read from the ledger. If so, result is null.
+        public final boolean skipped;
+
+        public BulkResult(Path path, long size, ApkVerificationResult result, Exception error,
+                          long elapsedNanos) {
+            this(path, size, result, error, elapsedNanos, false);
+        }
+
+        public BulkResult(Path path, long size, ApkVerificationResult result, Exception error,
+                          long elapsedNanos, boolean skipped) {
+            this.path = path;
+            this.size = size;
+            this.result = result;
+            this.error = error;
+            this.elapsedNanos = elapsedNanos;
+            this.skipped = skipped;
+        }
+
+        public boolean isVerified() {
+            return error == null;
+        }
+    }
+
+    /**
+     * Aggregate throughput of a scan.
+     */
+    public static class BulkStats {
+        public final long files;
+        public final long bytes;
+        public final long failures;
+        public final long elapsedNanos;
+
+        public BulkStats(long files, long bytes, long failures, long elapsedNanos) {
+            this.files = files;
+            this.bytes = bytes;
+            this.failures = failures;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public double getFilesPerSecond() {
+            return elapsedNanos == 0 ? 0 : files * 1e9 / elapsedNanos;
+        }
+
+        public double getMegabytesPerSecond() {
+            return elapsedNanos == 0 ? 0 : bytes * 1e9 / elapsedNanos / (1024 * 1024);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d files (%d failed), %d bytes in %d ms: %.1f files/s, %.1f MB/s",
+                    files, failures, bytes, TimeUnit.NANOSECONDS.toMillis(elapsedNanos),
+                    getFilesPerSecond(), getMegabytesPerSecond());
+        }
+    }
+
+    /**
+     * Builder of {@link BulkVerifier} instances.
+     */
+    public static class Builder {
+        private ApkVerifier mVerifier;
+        private VerificationLevel mLevel = VerificationLevel.SIGNATURES;
+        private int mParallelism = Runtime.getRuntime().availableProcessors();
+        private boolean mUseVirtualThreads = true;
+        private VerificationLedger mLedger;
+
+        /**
+         * Sets how far each file is verified. Defaults to {@link VerificationLevel#SIGNATURES}.
+         * Ignored if a verifier is set.
+         */
+        public Builder setVerificationLevel(VerificationLevel level) {
+            if (level == null) {
+                throw new NullPointerException("level == null");
+            }
+            mLevel = level;
+            return this;
+        }
+
+        /**
+         * Sets the verifier applied to each file, e.g. to verify all schemes. Defaults to an
+         * {@link ApkVerifier} at the configured level.
+         */
+        public Builder setVerifier(ApkVerifier verifier) {
+            mVerifier = verifier;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of files verified at a time. Defaults to the number of
+         * available processors.
+         */
+        public Builder setParallelism(int parallelism) {
+            if (parallelism < 1) {
+                throw new IllegalArgumentException("parallelism: " + parallelism);
+            }
+            mParallelism = parallelism;
+            return this;
+        }
+
+        /**
+         * Sets whether files run on virtual threads when the JVM supports them. Defaults to
+         * {@code true}.
+         */
+        public Builder setUseVirtualThreads(boolean useVirtualThreads) {
+            mUseVirtualThreads = useVirtualThreads;
+            return this;
+        }
+
+        /**
+         * Sets the ledger consulted before verifying a file and updated after. Defaults to
+         * none: every file is verified.
+         */
+        public Builder setLedger(VerificationLedger ledger) {
+            mLedger = ledger;
+            return this;
+        }
+
+        public BulkVerifier build() {
+            return new BulkVerifier(this);
+        }
+    }
+}
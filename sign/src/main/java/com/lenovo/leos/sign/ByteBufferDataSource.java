@@ -0,0 +1,37 @@
+package com.lenovo.leos.sign;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link DataSource} which provides data from a {@link ByteBuffer}.
+ */
+class ByteBufferDataSource implements DataSource {
+    /**
+     * Underlying buffer. The data is stored between position 0 and the buffer's capacity.
+     * The buffer's position is 0 and limit is equal to capacity.
+     */
+    private final ByteBuffer mBuf;
+
+    ByteBufferDataSource(ByteBuffer buf) {
+        // Defensive copy, to avoid changes to mBuf being visible in buf, and to ensure position
+        // is 0 and limit == capacity.
+        mBuf = buf.slice();
+    }
+
+    @Override
+    public long size() {
+        return mBuf.capacity();
+    }
+
+    @Override
+    public void copyTo(long offset, int size, ByteBuffer dest) {
+        if ((offset < 0) || (size < 0) || (offset > mBuf.capacity() - size)) {
+            throw new IndexOutOfBoundsException(
+                    "offset: " + offset + ", size: " + size + ", source size: " + mBuf.capacity());
+        }
+        ByteBuffer region = mBuf.duplicate();
+        region.position((int) offset);
+        region.limit((int) offset + size);
+        dest.put(region);
+    }
+}
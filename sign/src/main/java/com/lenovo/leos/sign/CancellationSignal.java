@@ -0,0 +1,140 @@
+package com.lenovo.leos.sign;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Provides the ability to cancel an operation in progress, either explicitly or once a deadline
+ * passes, and to follow its progress.
+ *
+ * <p>Cancellation is cooperative: long-running loops call {@link #throwIfCanceled()} between units
+ * of work, e.g. between content chunks, signers and proof-of-rotation levels. Threads are never
+ * interrupted, because interrupting a thread blocked in {@link java.nio.channels.FileChannel} I/O
+ * closes the channel for every other reader of the same file.
+ */
+public class CancellationSignal {
+    private final CancellationSignal mParent;
+    private volatile boolean mIsCanceled;
+    private volatile boolean mHasDeadline;
+    private volatile long mDeadlineNanos;
+    private volatile OnProgressListener mProgressListener;
+    private final AtomicLong mBytesDigested = new AtomicLong();
+    private final AtomicLong mTotalBytes = new AtomicLong();
+
+    /**
+     * Receives the progress of the content digests of an operation.
+     */
+    public interface OnProgressListener {
+        /**
+         * Called after each chunk or read. {@code totalBytes} grows as digests are started, e.g.
+         * a verity tree after the chunked digests. Called by the threads doing the work, possibly
+         * concurrently, so it must be quick and thread-safe.
+         */
+        void onProgress(long bytesDigested, long totalBytes);
+    }
+
+    public CancellationSignal() {
+        this(null);
+    }
+
+    /**
+     * Creates a signal scoped to part of the operation of {@code parent}: it is canceled with
+     * {@code parent} and reports progress to it, but canceling it leaves {@code parent} alone.
+     */
+    CancellationSignal(CancellationSignal parent) {
+        mParent = parent;
+    }
+
+    /**
+     * Returns a signal which cancels the operation once {@code timeout} has elapsed.
+     */
+    public static CancellationSignal withTimeout(long timeout, TimeUnit unit) {
+        CancellationSignal signal = new CancellationSignal();
+        signal.setDeadline(System.nanoTime() + unit.toNanos(timeout));
+        return signal;
+    }
+
+    /**
+     * Cancels the operation once {@link System#nanoTime()} reaches {@code deadlineNanos}.
+     * Replaces any previous deadline.
+     */
+    public void setDeadline(long deadlineNanos) {
+        mDeadlineNanos = deadlineNanos;
+        mHasDeadline = true;
+    }
+
+    /**
+     * Returns the nanoseconds left until the deadline, negative once it has passed, or
+     * {@link Long#MAX_VALUE} if there is none.
+     */
+    public long getRemainingNanos() {
+        long remaining = mHasDeadline ? mDeadlineNanos - System.nanoTime() : Long.MAX_VALUE;
+        return mParent != null ? Math.min(remaining, mParent.getRemainingNanos()) : remaining;
+    }
+
+    /**
+     * Sets the listener receiving the progress of the operation, or {@code null} for none. Set
+     * it before the operation starts: only bytes digested while a listener is set are counted.
+     */
+    public void setOnProgressListener(OnProgressListener listener) {
+        mProgressListener = listener;
+    }
+
+    /**
+     * Returns {@code true} if the operation has been canceled or its deadline has passed.
+     */
+    public boolean isCanceled() {
+        return mIsCanceled || (mHasDeadline && System.nanoTime() - mDeadlineNanos >= 0)
+                || (mParent != null && mParent.isCanceled());
+    }
+
+    /**
+     * Throws {@link CancellationException} if the operation has been canceled, or
+     * {@link DeadlineExceededException} if its deadline has passed.
+     */
+    public void throwIfCanceled() {
+        if (mIsCanceled) {
+            throw new CancellationException("Operation canceled");
+        }
+        if (mHasDeadline && System.nanoTime() - mDeadlineNanos >= 0) {
+            throw new DeadlineExceededException("Operation deadline exceeded");
+        }
+        if (mParent != null) {
+            mParent.throwIfCanceled();
+        }
+    }
+
+    /**
+     * Cancels the operation. Has no effect if already canceled.
+     */
+    public void cancel() {
+        mIsCanceled = true;
+    }
+
+    /**
+     * Adds {@code bytes} about to be digested to the total.
+     */
+    void addTotalBytes(long bytes) {
+        if (mParent != null) {
+            mParent.addTotalBytes(bytes);
+        }
+        OnProgressListener listener = mProgressListener;
+        if (listener != null) {
+            listener.onProgress(mBytesDigested.get(), mTotalBytes.addAndGet(bytes));
+        }
+    }
+
+    /**
+     * Adds {@code bytes} just digested.
+     */
+    void addBytesDigested(long bytes) {
+        if (mParent != null) {
+            mParent.addBytesDigested(bytes);
+        }
+        OnProgressListener listener = mProgressListener;
+        if (listener != null) {
+            listener.onProgress(mBytesDigested.addAndGet(bytes), mTotalBytes.get());
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package com.lenovo.leos.sign;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Computes the digests of all chunks of a sequence of {@link DataSource}s, the first step of the
+ * chunked content digest. Chunks are independent of each other, so workers claim them one at a
+ * time from a shared counter and write each digest at the chunk's own offset of the output.
+ */
+class ChunkedDigestJob {
+    private final int[] mDigestAlgorithms;
+    private final DataSource[] mContents;
+    private final int mChunkSize;
+    private final CancellationSignal mSignal;
+    // Index of the first chunk of each source; the last element is the total chunk count.
+    private final int[] mFirstChunkIndex;
+    private final int mTotalChunkCount;
+    private final int mBufferSize;
+    private final int[] mDigestOutputSizes;
+    private final byte[][] mDigestsOfChunks;
+
+    private final AtomicInteger mNextChunk = new AtomicInteger();
+    private final AtomicReference<Throwable> mFailure = new AtomicReference<>();
+    private CountDownLatch mRemainingChunks;
+
+    ChunkedDigestJob(int[] digestAlgorithms, DataSource[] contents, int chunkSize,
+                     CancellationSignal signal) throws DigestException {
+        mDigestAlgorithms = digestAlgorithms;
+        mContents = contents;
+        mChunkSize = chunkSize;
+        mSignal = signal;
+
+        long totalChunkCountLong = 0;
+        long totalSize = 0;
+        long maxSize = 0;
+        for (DataSource input : contents) {
+            totalChunkCountLong += (input.size() + chunkSize - 1) / chunkSize;
+            totalSize += input.size();
+            maxSize = Math.max(maxSize, input.size());
+        }
+        if (totalChunkCountLong >= Integer.MAX_VALUE / 1024) {
+            throw new DigestException("Too many chunks: " + totalChunkCountLong);
+        }
+        mTotalChunkCount = (int) totalChunkCountLong;
+        mFirstChunkIndex = new int[contents.length + 1];
+        for (int i = 0; i < contents.length; i++) {
+            mFirstChunkIndex[i + 1] = mFirstChunkIndex[i]
+                    + (int) ((contents[i].size() + chunkSize - 1) / chunkSize);
+        }
+        mBufferSize = (int) Math.min(chunkSize, Math.max(maxSize, 1));
+
+        mDigestOutputSizes = new int[digestAlgorithms.length];
+        mDigestsOfChunks = new byte[digestAlgorithms.length][];
+        for (int i = 0; i < digestAlgorithms.length; i++) {
+            mDigestOutputSizes[i] = newMessageDigest(digestAlgorithms[i]).getDigestLength();
+            byte[] concatenationOfChunkCountAndChunkDigests =
+                    new byte[5 + mTotalChunkCount * mDigestOutputSizes[i]];
+            concatenationOfChunkCountAndChunkDigests[0] = 0x5a;
+            setUnsignedInt32LittleEndian(
+                    mTotalChunkCount, concatenationOfChunkCountAndChunkDigests, 1);
+            mDigestsOfChunks[i] = concatenationOfChunkCountAndChunkDigests;
+        }
+        if (signal != null) {
+            signal.addTotalBytes(totalSize);
+        }
+    }
+
+    int getChunkCount() {
+        return mTotalChunkCount;
+    }
+
+    /**
+     * Returns the size of a buffer large enough for any chunk.
+     */
+    int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * Returns new digesters for the algorithms of this job, in the order expected by
+     * {@link #digestChunk}.
+     */
+    MessageDigest[] newMessageDigests() {
+        MessageDigest[] mds = new MessageDigest[mDigestAlgorithms.length];
+        for (int i = 0; i < mds.length; i++) {
+            mds[i] = newMessageDigest(mDigestAlgorithms[i]);
+        }
+        return mds;
+    }
+
+    /**
+     * Returns, per algorithm, the concatenation of the byte 0x5a, the chunk count and the chunk
+     * digests. Complete once every chunk was digested.
+     */
+    byte[][] getDigestsOfChunks() {
+        return mDigestsOfChunks;
+    }
+
+    static MessageDigest newMessageDigest(int digestAlgorithm) {
+        String jcaAlgorithmName =
+                ApkSigningBlockUtils.getContentDigestAlgorithmJcaDigestAlgorithm(digestAlgorithm);
+        try {
+            return MessageDigest.getInstance(jcaAlgorithmName);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(jcaAlgorithmName + " digest not supported", e);
+        }
+    }
+
+    /**
+     * Digests all chunks and returns, per algorithm, the concatenation of the byte 0x5a, the
+     * chunk count and the chunk digests.
+     */
+    byte[][] digestChunks(Executor executor, int parallelism)
+            throws IOException, DigestException {
+        mRemainingChunks = new CountDownLatch(mTotalChunkCount);
+        if (executor != null) {
+            int helpers = Math.min(parallelism, mTotalChunkCount) - 1;
+            for (int i = 0; i < helpers; i++) {
+                try {
+                    executor.execute(this::runHelper);
+                } catch (RejectedExecutionException e) {
+                    // The calling thread digests the chunks this helper would have taken.
+                    break;
+                }
+            }
+        }
+        MemoryBudget.Reservation reservation = null;
+        try {
+            reservation = MemoryBudget.reserveDefault(mBufferSize);
+        } catch (IOException e) {
+            // The calling thread could not reserve its chunk buffer.
+            mFailure.compareAndSet(null, e);
+            drainChunks();
+        }
+        if (reservation != null) {
+            try {
+                runWorker();
+            } finally {
+                reservation.close();
+            }
+        }
+        try {
+            mRemainingChunks.await();
+        } catch (InterruptedException e) {
+            mFailure.compareAndSet(null, e);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while digesting contents");
+        }
+
+        Throwable failure = mFailure.get();
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof DigestException) {
+            throw (DigestException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new IOException("Failed to digest contents", failure);
+        }
+        return mDigestsOfChunks;
+    }
+
+    /**
+     * Runs a worker on behalf of an executor. Chunk buffers are reserved from the default
+     * {@link MemoryBudget}; unlike the calling thread, a helper does not wait for its buffer to
+     * fit but leaves its chunks to the other workers.
+     */
+    private void runHelper() {
+        MemoryBudget.Reservation reservation = MemoryBudget.getDefault().tryReserve(mBufferSize);
+        if (reservation == null) {
+            return;
+        }
+        try {
+            runWorker();
+        } finally {
+            reservation.close();
+        }
+    }
+
+    private void runWorker() {
+        MessageDigest[] mds = null;
+        ByteBuffer chunk = null;
+        byte[] chunkContentPrefix = null;
+        int chunkIndex;
+        while ((chunkIndex = mNextChunk.getAndIncrement()) < mTotalChunkCount) {
+            try {
+                if (mFailure.get() != null) {
+                    // Another worker failed: drain the remaining chunks without digesting them.
+                    continue;
+                }
+                if (mSignal != null) {
+                    mSignal.throwIfCanceled();
+                }
+                if (mds == null) {
+                    mds = newMessageDigests();
+                    chunk = ByteBuffer.allocate(mBufferSize);
+                    chunkContentPrefix = new byte[5];
+                }
+                readChunk(chunkIndex, chunk);
+                digestChunk(chunkIndex, chunk, mds, chunkContentPrefix);
+                if (mSignal != null) {
+                    mSignal.addBytesDigested(chunk.limit());
+                }
+            } catch (Throwable e) {
+                mFailure.compareAndSet(null, e);
+            } finally {
+                mRemainingChunks.countDown();
+            }
+        }
+    }
+
+    private void drainChunks() {
+        while (mNextChunk.getAndIncrement() < mTotalChunkCount) {
+            mRemainingChunks.countDown();
+        }
+    }
+
+    /**
+     * Reads the contents of a chunk into {@code chunk}, which is flipped for reading.
+     */
+    void readChunk(int chunkIndex, ByteBuffer chunk) throws IOException {
+        int source = 0;
+        while (chunkIndex >= mFirstChunkIndex[source + 1]) {
+            source++;
+        }
+        DataSource input = mContents[source];
+        long inputOffset = (long) (chunkIndex - mFirstChunkIndex[source]) * mChunkSize;
+        int chunkSize = (int) Math.min(input.size() - inputOffset, mChunkSize);
+
+        chunk.clear();
+        input.copyTo(inputOffset, chunkSize, chunk);
+        chunk.flip();
+    }
+
+    /**
+     * Digests the contents of a chunk, as read by {@link #readChunk}, with each algorithm.
+     *
+     * @param mds                digesters as returned by {@link #newMessageDigests()}.
+     * @param chunkContentPrefix scratch buffer of 5 bytes.
+     */
+    void digestChunk(int chunkIndex, ByteBuffer chunk, MessageDigest[] mds,
+                     byte[] chunkContentPrefix) throws DigestException {
+        chunkContentPrefix[0] = (byte) 0xa5;
+        setUnsignedInt32LittleEndian(chunk.remaining(), chunkContentPrefix, 1);
+        int position = chunk.position();
+        for (int i = 0; i < mds.length; i++) {
+            MessageDigest md = mds[i];
+            md.update(chunkContentPrefix);
+            chunk.position(position);
+            md.update(chunk);
+            int expectedDigestSizeBytes = mDigestOutputSizes[i];
+            int actualDigestSizeBytes = md.digest(mDigestsOfChunks[i],
+                    5 + chunkIndex * expectedDigestSizeBytes, expectedDigestSizeBytes);
+            if (actualDigestSizeBytes != expectedDigestSizeBytes) {
+                throw new RuntimeException(
+                        "Unexpected output size of " + md.getAlgorithm() + " digest: "
+                                + actualDigestSizeBytes);
+            }
+        }
+    }
+
+    private static void setUnsignedInt32LittleEndian(int value, byte[] result, int offset) {
+        result[offset] = (byte) (value & 0xff);
+        result[offset + 1] = (byte) ((value >>> 8) & 0xff);
+        result[offset + 2] = (byte) ((value >>> 16) & 0xff);
+        result[offset + 3] = (byte) ((value >>> 24) & 0xff);
+    }
+}
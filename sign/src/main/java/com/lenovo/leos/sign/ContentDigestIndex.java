@@ -0,0 +1,256 @@
+package com.lenovo.leos.sign;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Recognizes APKs whose contents were already verified under another name, using the content
+ * digests the signer signed. Those are known once the signatures are verified, i.e. after reading
+ * only the APK Signing Block, while verifying the contents themselves means hashing the whole
+ * file.
+ *
+ * <p>The first APK with a given signed digest is verified fully, at
+ * {@link VerificationLevel#CONTENT}, and the digests actually compared with its contents are
+ * indexed. Its signatures are verified once: only its contents are checked after the lookup,
+ * except for JAR signing, which verifies its signature files while reading the entries. An APK of the same size that carries any indexed (algorithm, digest) pair is then
+ * reported as a duplicate of it after its signatures are verified.
+ *
+ * <p>A duplicate's contents are <em>not</em> verified: a valid signing block copied onto altered
+ * contents matches too. Its result therefore stays at {@link VerificationLevel#SIGNATURES}. Only
+ * rely on duplicates where the contents are checked elsewhere or cannot be chosen by an
+ * adversary, e.g. when deduplicating the uploads of a mirror before a full scan.
+ */
+public class ContentDigestIndex {
+    private final ApkVerifier mSignaturesVerifier;
+    // For APKs whose effective scheme is JAR signing.
+    private final ApkVerifier mJarVerifier;
+    // Signed digests of fully verified APKs -> the first such APK.
+    private final ConcurrentHashMap<DigestKey, Original> mOriginals = new ConcurrentHashMap<>();
+    private final LongAdder mDuplicates = new LongAdder();
+    private final LongAdder mBytesSkipped = new LongAdder();
+
+    public ContentDigestIndex() {
+        this(SchemeRegistry.createDefault());
+    }
+
+    public ContentDigestIndex(SchemeRegistry registry) {
+        mSignaturesVerifier = new ApkVerifier.Builder()
+                .setSchemeRegistry(registry)
+                .setVerificationLevel(VerificationLevel.SIGNATURES)
+                .build();
+        mJarVerifier = new ApkVerifier.Builder()
+                .setSchemeRegistry(registry)
+                .setVerificationLevel(VerificationLevel.CONTENT)
+                .build();
+    }
+
+    /**
+     * Verifies the signatures of the provided APK and, unless its signed digests were already
+     * verified for an APK of the same size, its contents.
+     *
+     * @throws SignatureNotFoundException if the APK is not signed using any registered scheme.
+     * @throws SecurityException          if a signature of a present scheme does not verify.
+     * @throws IOException                if an I/O error occurs while reading the APK file.
+     */
+    public DedupResult verify(String apkFile)
+            throws SignatureNotFoundException, SecurityException, IOException {
+        long size = Files.size(Paths.get(apkFile));
+        try (RandomAccessFile apk = new RandomAccessFile(apkFile, "r")) {
+            ApkSigningBlock signingBlock;
+            try {
+                signingBlock = ApkSigningBlockUtils.findApkSigningBlock(apk);
+            } catch (SignatureNotFoundException e) {
+                // Not an error: the APK may still be JAR signed.
+                signingBlock = null;
+            }
+            try {
+                ApkVerificationResult signatures = mSignaturesVerifier.verify(
+                        newContext(apkFile, apk, signingBlock, VerificationLevel.SIGNATURES));
+                Original original = findOriginal(size, signatures);
+                if (original != null) {
+                    mDuplicates.increment();
+                    mBytesSkipped.add(size);
+                    return new DedupResult(signatures, original.path);
+                }
+                ApkVerificationResult content =
+                        verifyContent(apkFile, apk, signingBlock, signatures);
+                add(apkFile, size, content);
+                return new DedupResult(content, null);
+            } finally {
+                if (signingBlock != null) {
+                    signingBlock.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Verifies the contents of an APK whose signatures verified as {@code signatures}, and
+     * returns the result at {@link VerificationLevel#CONTENT} or above.
+     */
+    private ApkVerificationResult verifyContent(String apkFile, RandomAccessFile apk,
+                                                ApkSigningBlock signingBlock,
+                                                ApkVerificationResult signatures)
+            throws SignatureNotFoundException, SecurityException, IOException {
+        ApkVerificationResult.VerifiedScheme scheme = signatures.getEffectiveScheme();
+        if (scheme.schemeVersion == ApkVerificationResult.SCHEME_V1) {
+            return mJarVerifier.verify(
+                    newContext(apkFile, apk, signingBlock, VerificationLevel.CONTENT));
+        }
+        VerificationContext context =
+                newContext(apkFile, apk, signingBlock, VerificationLevel.CONTENT);
+        SignatureInfo signatureInfo = new SignatureInfo(null, signingBlock.apkSigningBlockOffset,
+                signingBlock.centralDirOffset, signingBlock.eocdOffset, signingBlock.eocd);
+        VerificationLevel level = context.verifyIntegrity(scheme.contentDigests, signatureInfo);
+        List<ApkVerificationResult.VerifiedScheme> schemes = new ArrayList<>(signatures.schemes);
+        schemes.set(0, new ApkVerificationResult.VerifiedScheme(scheme.schemeVersion,
+                scheme.certs, scheme.por, scheme.verityRootHash, scheme.contentDigests, level));
+        return new ApkVerificationResult(schemes, signatures.sourceStamp,
+                signatures.sourceStampError);
+    }
+
+    private static VerificationContext newContext(String apkFile, RandomAccessFile apk,
+                                                  ApkSigningBlock signingBlock,
+                                                  VerificationLevel level) {
+        return new VerificationContext(apkFile, apk, signingBlock, level, null, 1,
+                new CancellationSignal());
+    }
+
+    /**
+     * Indexes the signed digests of an APK whose contents were verified, e.g. by a scan that
+     * did not go through this index.
+     *
+     * @throws IllegalArgumentException if {@code result} is below {@link VerificationLevel#CONTENT}.
+     */
+    public void add(String apkFile, long size, ApkVerificationResult result) {
+        if (!result.getVerificationLevel().includes(VerificationLevel.CONTENT)) {
+            throw new IllegalArgumentException("Contents of " + apkFile + " not verified");
+        }
+        Original original = new Original(apkFile, size);
+        for (ApkVerificationResult.VerifiedScheme scheme : result.schemes) {
+            if (scheme.contentDigests == null
+                    || !scheme.verificationLevel.includes(VerificationLevel.CONTENT)) {
+                continue;
+            }
+            for (Map.Entry<Integer, byte[]> digest : scheme.contentDigests.entrySet()) {
+                if (isCompared(scheme, digest.getKey())) {
+                    mOriginals.putIfAbsent(new DigestKey(digest.getKey(), digest.getValue()),
+                            original);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns whether verifying {@code scheme} compared its digest of {@code digestAlgorithm}
+     * with the contents. Below {@link VerificationLevel#VERITY}, a verity digest is only compared
+     * if it is the only one (see {@link ApkSigningBlockUtils#verifyIntegrity}).
+     */
+    private static boolean isCompared(ApkVerificationResult.VerifiedScheme scheme,
+                                      int digestAlgorithm) {
+        return digestAlgorithm != ApkSigningBlockUtils.CONTENT_DIGEST_VERITY_CHUNKED_SHA256
+                || scheme.verificationLevel.includes(VerificationLevel.VERITY)
+                || scheme.contentDigests.size() == 1;
+    }
+
+    /**
+     * Returns the number of indexed digests.
+     */
+    public int size() {
+        return mOriginals.size();
+    }
+
+    /**
+     * Returns the number of APKs reported as duplicates so far.
+     */
+    public long getDuplicateCount() {
+        return mDuplicates.sum();
+    }
+
+    /**
+     * Returns the number of bytes not hashed thanks to duplicates.
+     */
+    public long getBytesSkipped() {
+        return mBytesSkipped.sum();
+    }
+
+    private Original findOriginal(long size, ApkVerificationResult result) {
+        for (ApkVerificationResult.VerifiedScheme scheme : result.schemes) {
+            if (scheme.contentDigests == null) {
+                continue;
+            }
+            for (Map.Entry<Integer, byte[]> digest : scheme.contentDigests.entrySet()) {
+                Original original = mOriginals.get(
+                        new DigestKey(digest.getKey(), digest.getValue()));
+                if (original != null && original.size == size) {
+                    return original;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static class DigestKey {
+        final int algorithm;
+        final byte[] digest;
+        final int hashCode;
+
+        DigestKey(int algorithm, byte[] digest) {
+            this.algorithm = algorithm;
+            this.digest = digest;
+            this.hashCode = 31 * algorithm + Arrays.hashCode(digest);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof DigestKey)) {
+                return false;
+            }
+            DigestKey other = (DigestKey) o;
+            return algorithm == other.algorithm && Arrays.equals(digest, other.digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    private static class Original {
+        final String path;
+        final long size;
+
+        Original(String path, long size) {
+            this.path = path;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Outcome of {@link #verify}.
+     */
+    public static class DedupResult {
+        // At CONTENT for an APK verified fully, at SIGNATURES for a duplicate.
+        public final ApkVerificationResult result;
+        // APK whose contents were verified with the same signed digest, or null if this APK was
+        // verified fully.
+        public final String duplicateOf;
+
+        public DedupResult(ApkVerificationResult result, String duplicateOf) {
+            this.result = result;
+            this.duplicateOf = duplicateOf;
+        }
+
+        public boolean isDuplicate() {
+            return duplicateOf != null;
+        }
+    }
+}
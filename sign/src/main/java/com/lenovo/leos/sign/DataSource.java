@@ -0,0 +1,26 @@
+package com.lenovo.leos.sign;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Abstract representation of a source of data.
+ *
+ * <p>Implementations must support concurrent calls to {@link #copyTo(long, int, ByteBuffer)},
+ * so that one instance can be shared by several verifiers working on the same APK.
+ */
+public interface DataSource {
+
+    /**
+     * Returns the size (in bytes) of the data offered by this source.
+     */
+    long size();
+
+    /**
+     * Copies {@code size} bytes starting at {@code offset} of this source into {@code dest},
+     * advancing the position of {@code dest} by {@code size}.
+     *
+     * @throws IOException if an I/O error occurs while reading the data.
+     */
+    void copyTo(long offset, int size, ByteBuffer dest) throws IOException;
+}
@@ -0,0 +1,15 @@
+package com.lenovo.leos.sign;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Indicates that an operation was canceled because the deadline of its
+ * {@link CancellationSignal} passed.
+ */
+public class DeadlineExceededException extends CancellationException {
+    private static final long serialVersionUID = 1L;
+
+    public DeadlineExceededException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,65 @@
+package com.lenovo.leos.sign;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link DataSource} which provides data from a region of a file. Reads are positional, so they
+ * neither depend on nor move the file pointer of the channel and may run concurrently.
+ */
+class FileChannelDataSource implements DataSource {
+    private final FileChannel mChannel;
+    private final long mOffset;
+    private final long mSize;
+
+    /**
+     * Constructs a new {@code FileChannelDataSource} for the specified region of the file.
+     *
+     * @param offset offset of the region in the file.
+     * @param size   size (in bytes) of the region.
+     */
+    FileChannelDataSource(FileChannel channel, long offset, long size) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset: " + offset);
+        }
+        if (size < 0) {
+            throw new IllegalArgumentException("size: " + size);
+        }
+        mChannel = channel;
+        mOffset = offset;
+        mSize = size;
+    }
+
+    @Override
+    public long size() {
+        return mSize;
+    }
+
+    @Override
+    public void copyTo(long offset, int size, ByteBuffer dest) throws IOException {
+        if ((offset < 0) || (size < 0) || (offset > mSize - size)) {
+            throw new IndexOutOfBoundsException(
+                    "offset: " + offset + ", size: " + size + ", source size: " + mSize);
+        }
+        if (dest.remaining() < size) {
+            throw new IllegalArgumentException(
+                    "Destination too small: " + dest.remaining() + " < " + size);
+        }
+        int originalLimit = dest.limit();
+        dest.limit(dest.position() + size);
+        try {
+            long position = mOffset + offset;
+            while (dest.hasRemaining()) {
+                int read = mChannel.read(dest, position);
+                if (read < 0) {
+                    throw new EOFException("Premature end of file at offset " + position);
+                }
+                position += read;
+            }
+        } finally {
+            dest.limit(originalLimit);
+        }
+    }
+}
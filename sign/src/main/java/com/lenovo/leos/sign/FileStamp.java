@@ -0,0 +1,53 @@
+package com.lenovo.leos.sign;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Identity of a file's contents as far as the file system tells without reading it.
+ */
+class FileStamp {
+    final long size;
+    final long lastModifiedNanos;
+    // File system specific identity, e.g. device and inode, or null.
+    final Object fileKey;
+
+    FileStamp(long size, long lastModifiedNanos, Object fileKey) {
+        this.size = size;
+        this.lastModifiedNanos = lastModifiedNanos;
+        this.fileKey = fileKey;
+    }
+
+    static FileStamp of(Path path) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        return new FileStamp(attrs.size(), attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+                attrs.fileKey());
+    }
+
+    /**
+     * Returns the file key in a form that survives a restart, or an empty string if the file
+     * system has none.
+     */
+    String getFileKeyString() {
+        return fileKey != null ? fileKey.toString() : "";
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof FileStamp)) {
+            return false;
+        }
+        FileStamp other = (FileStamp) o;
+        return size == other.size && lastModifiedNanos == other.lastModifiedNanos
+                && Objects.equals(fileKey, other.fileKey);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(size, lastModifiedNanos, fileKey);
+    }
+}
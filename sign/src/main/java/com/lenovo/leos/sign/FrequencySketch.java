@@ -0,0 +1,66 @@
+package com.lenovo.leos.sign;
+
+/**
+ * Approximate access frequency of keys, a count-min sketch with four rows of saturating 4-bit
+ * counters. All counters are halved once the number of recorded accesses reaches ten times the
+ * cache size, so the sketch follows changes in popularity. Not thread-safe.
+ */
+class FrequencySketch {
+    private static final int[] SEEDS = {0x97cb3127, 0xb1a73c65, 0x6eb9aef1, 0xc3a5c85c};
+    private static final int DEPTH = SEEDS.length;
+    private static final int MAX_COUNT = 15;
+
+    private final byte[] mCounters;
+    private final int mWidthMask;
+    private final int mSampleSize;
+    private int mAdditions;
+
+    FrequencySketch(int maximumSize) {
+        int width = Integer.highestOneBit(Math.max(16, maximumSize) - 1) << 1;
+        mCounters = new byte[DEPTH * width];
+        mWidthMask = width - 1;
+        mSampleSize = (int) Math.min(Integer.MAX_VALUE, 10L * Math.max(1, maximumSize));
+    }
+
+    /**
+     * Records one access of the key with the provided hash code.
+     */
+    void increment(int hashCode) {
+        boolean added = false;
+        for (int row = 0; row < DEPTH; row++) {
+            int index = indexOf(hashCode, row);
+            if (mCounters[index] < MAX_COUNT) {
+                mCounters[index]++;
+                added = true;
+            }
+        }
+        if (added && ++mAdditions >= mSampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Returns the estimated number of accesses of the key with the provided hash code, at most
+     * 15.
+     */
+    int frequency(int hashCode) {
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < DEPTH; row++) {
+            frequency = Math.min(frequency, mCounters[indexOf(hashCode, row)]);
+        }
+        return frequency;
+    }
+
+    private int indexOf(int hashCode, int row) {
+        int hash = (hashCode + SEEDS[row]) * SEEDS[row];
+        hash ^= hash >>> 16;
+        return row * (mWidthMask + 1) + (hash & mWidthMask);
+    }
+
+    private void reset() {
+        for (int i = 0; i < mCounters.length; i++) {
+            mCounters[i] >>= 1;
+        }
+        mAdditions /= 2;
+    }
+}
@@ -0,0 +1,193 @@
+package com.lenovo.leos.sign;
+
+import java.io.File;
+import java.util.concurrent.CancellationException;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The JDK Flight Recorder events of {@link VerificationEvents}. Only loaded if {@code jdk.jfr}
+ * is present.
+ *
+ * <p>Phase events are begun when the phase starts, so they span it on the recording's timeline,
+ * and kept on a small per-thread stack until the phase completes. Phases that fail are never
+ * committed: their events are dropped when an enclosing phase completes, or when the stack
+ * overflows.
+ */
+final class JfrEvents {
+    private static final int MAX_OPEN_PHASES = 16;
+    private static final EventType PHASE_TYPE = EventType.getEventType(PhaseEvent.class);
+    private static final EventType VERIFICATION_TYPE =
+            EventType.getEventType(VerificationEvent.class);
+    private static final ThreadLocal<OpenPhases> sOpenPhases =
+            ThreadLocal.withInitial(OpenPhases::new);
+
+    private JfrEvents() {
+    }
+
+    static boolean isSupported() {
+        return PHASE_TYPE != null && VERIFICATION_TYPE != null;
+    }
+
+    static boolean isPhaseEnabled() {
+        return PHASE_TYPE.isEnabled();
+    }
+
+    static void beginPhase(long token) {
+        if (!PHASE_TYPE.isEnabled()) {
+            return;
+        }
+        OpenPhases open = sOpenPhases.get();
+        if (open.size == MAX_OPEN_PHASES) {
+            // Phases that failed without an enclosing phase: drop the oldest.
+            System.arraycopy(open.events, 1, open.events, 0, MAX_OPEN_PHASES - 1);
+            System.arraycopy(open.tokens, 1, open.tokens, 0, MAX_OPEN_PHASES - 1);
+            open.size--;
+        }
+        PhaseEvent event = new PhaseEvent();
+        event.begin();
+        open.events[open.size] = event;
+        open.tokens[open.size] = token;
+        open.size++;
+    }
+
+    static void endPhase(long token, VerificationListener.Phase phase, int schemeVersion,
+                         int algorithm, long bytes) {
+        OpenPhases open = sOpenPhases.get();
+        for (int i = open.size - 1; i >= 0; i--) {
+            if (open.tokens[i] != token) {
+                continue;
+            }
+            PhaseEvent event = open.events[i];
+            event.end();
+            if (event.shouldCommit()) {
+                event.apkFile = open.apkFile;
+                event.phase = phase.name();
+                event.schemeVersion = schemeVersion;
+                event.algorithm = algorithm;
+                event.bytes = bytes;
+                event.commit();
+            }
+            // Phases begun after this one and still open have failed.
+            for (int j = i; j < open.size; j++) {
+                open.events[j] = null;
+            }
+            open.size = i;
+            return;
+        }
+    }
+
+    static Object beginVerification(String apkFile) {
+        if (!VERIFICATION_TYPE.isEnabled()) {
+            return null;
+        }
+        VerificationEvent event = new VerificationEvent();
+        event.begin();
+        event.apkFile = apkFile;
+        if (PHASE_TYPE.isEnabled()) {
+            sOpenPhases.get().apkFile = apkFile;
+        }
+        return event;
+    }
+
+    static void endVerification(Object verificationEvent, VerificationLevel level,
+                                ApkVerificationResult result, Throwable failure) {
+        VerificationEvent event = (VerificationEvent) verificationEvent;
+        event.end();
+        if (PHASE_TYPE.isEnabled()) {
+            sOpenPhases.get().apkFile = null;
+        }
+        if (!event.shouldCommit()) {
+            return;
+        }
+        event.size = new File(event.apkFile).length();
+        event.level = level.name();
+        if (result != null) {
+            event.schemeVersion = result.schemes.get(0).schemeVersion;
+            event.verifiedLevel = result.getVerificationLevel().name();
+            event.outcome = "VERIFIED";
+        } else if (failure instanceof SignatureNotFoundException) {
+            event.outcome = "NOT_SIGNED";
+        } else if (failure instanceof SecurityException) {
+            event.outcome = "REJECTED";
+        } else if (failure instanceof CancellationException) {
+            event.outcome = "CANCELED";
+        } else {
+            event.outcome = "ERROR";
+        }
+        if (failure != null) {
+            event.failure = failure.getMessage();
+        }
+        event.commit();
+    }
+
+    private static class OpenPhases {
+        final PhaseEvent[] events = new PhaseEvent[MAX_OPEN_PHASES];
+        final long[] tokens = new long[MAX_OPEN_PHASES];
+        int size;
+        // APK verified by ApkVerifier on this thread, if any.
+        String apkFile;
+    }
+
+    @Name("com.lenovo.leos.sign.VerificationPhase")
+    @Label("APK Verification Phase")
+    @Category("APK Signature Scheme")
+    @Description("One phase of the verification of an APK")
+    @StackTrace(false)
+    static class PhaseEvent extends Event {
+        @Label("APK File")
+        @Description("Set if verified by ApkVerifier on this thread")
+        String apkFile;
+
+        @Label("Phase")
+        String phase;
+
+        @Label("Scheme Version")
+        @Description("0 if shared by all schemes")
+        int schemeVersion;
+
+        @Label("Algorithm")
+        @Description("Signature or content digest algorithm ID, 0 if none")
+        int algorithm;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("com.lenovo.leos.sign.Verification")
+    @Label("APK Verification")
+    @Category("APK Signature Scheme")
+    @StackTrace(false)
+    static class VerificationEvent extends Event {
+        @Label("APK File")
+        String apkFile;
+
+        @Label("APK Size")
+        @DataAmount
+        long size;
+
+        @Label("Scheme Version")
+        @Description("Scheme taking precedence among the verified ones, 0 if none")
+        int schemeVersion;
+
+        @Label("Requested Level")
+        String level;
+
+        @Label("Verified Level")
+        String verifiedLevel;
+
+        @Label("Outcome")
+        String outcome;
+
+        @Label("Failure")
+        String failure;
+    }
+}
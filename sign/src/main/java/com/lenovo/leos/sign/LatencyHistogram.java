@@ -0,0 +1,107 @@
+package com.lenovo.leos.sign;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Log-linear histogram of latencies in nanoseconds, safe for concurrent recording.
+ *
+ * <p>Values below 128 ns are counted exactly; above, each power of two is split into 64 equal
+ * buckets, so a reported percentile is within 1/64 (1.6%) above the recorded value. The whole
+ * range of {@code long} fits in 3712 counters, so recording never allocates and never locks.
+ * The count and the maximum are striped, so threads recording at once only contend on the
+ * counter of a bucket they share.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+    private static final int BUCKETS = LINEAR_LIMIT + (62 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final LongAdder mTotalCount = new LongAdder();
+    // Values are never negative, so 0 is the identity.
+    private final LongAccumulator mMax = new LongAccumulator(Math::max, 0);
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        mCounts.incrementAndGet(indexOf(nanos));
+        mTotalCount.increment();
+        mMax.accumulate(nanos);
+    }
+
+    public long getCount() {
+        return mTotalCount.sum();
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * Returns the latency that {@code percentile} percent of the recorded values do not exceed,
+     * rounded up to the top of its bucket, or 0 if nothing was recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = mTotalCount.sum();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValueOf(i), mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    /**
+     * Returns a copy of this histogram, and if {@code reset}, removes the copied values from this
+     * one. Values recorded concurrently go to either the copy or this histogram, never both,
+     * though the maximum may be attributed to the wrong one.
+     */
+    public LatencyHistogram snapshot(boolean reset) {
+        LatencyHistogram copy = new LatencyHistogram();
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = reset ? mCounts.getAndSet(i, 0) : mCounts.get(i);
+            if (count != 0) {
+                copy.mCounts.set(i, count);
+                total += count;
+            }
+        }
+        copy.mTotalCount.add(total);
+        if (reset) {
+            mTotalCount.add(-total);
+            copy.mMax.accumulate(mMax.getThenReset());
+        } else {
+            copy.mMax.accumulate(mMax.get());
+        }
+        return copy;
+    }
+
+    static int indexOf(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        // Shift so that the value keeps SUB_BUCKET_BITS + 1 significant bits: [64, 127].
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return LINEAR_LIMIT + (shift - 1) * SUB_BUCKETS
+                + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    static long highestValueOf(int index) {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        int shift = (index - LINEAR_LIMIT) / SUB_BUCKETS + 1;
+        long subBucket = (index - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,346 @@
+package com.lenovo.leos.sign;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Key rotation history merged across APKs: which signing certificate was rotated to which, as
+ * proven by the proof-of-rotation of APK Signature Scheme v3.
+ *
+ * <p>Certificates are identified by the SHA-256 digest of their encoding and interned to dense
+ * int ids, so one certificate seen in many lineages is one node. Each rotation is an edge from
+ * the older certificate to the newer one, carrying the capability flags the lineage grants the
+ * older certificate ({@code flagsList}); if lineages disagree on them, the most recently merged
+ * one wins. Edges are stored as int adjacency arrays in both directions, and certificates joined
+ * by any rotation are tracked as one app lineage.
+ *
+ * <p>Queries by id only touch int arrays and take microseconds for lineages of realistic length.
+ * Certificates themselves are not retained. They throw {@link IllegalArgumentException} for an
+ * id that is not of this graph, such as the -1 of {@link #getCertId} for an unknown certificate.
+ */
+public class LineageGraph {
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+    private final HashMap<Fingerprint, Integer> mIds = new HashMap<>();
+    private final List<byte[]> mFingerprints = new ArrayList<>();
+
+    // Per certificate id: ids of the certificates it was rotated to, the flags of each such edge,
+    // and ids of the certificates rotated to it.
+    private int[][] mChildren = new int[16][];
+    private int[][] mChildFlags = new int[16][];
+    private int[] mChildCounts = new int[16];
+    private int[][] mParents = new int[16][];
+    private int[] mParentCounts = new int[16];
+    // Union-find forest of lineages.
+    private int[] mLineageParent = new int[16];
+
+    /**
+     * Adds the rotations of {@code por}, oldest certificate first as in the APK.
+     */
+    public void merge(ApkSigningBlockUtils.VerifiedProofOfRotation por) {
+        int[] ids = new int[por.certs.size()];
+        byte[][] fingerprints = new byte[ids.length][];
+        for (int i = 0; i < ids.length; i++) {
+            fingerprints[i] = fingerprint(por.certs.get(i));
+        }
+        mLock.writeLock().lock();
+        try {
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = intern(fingerprints[i]);
+            }
+            for (int i = 0; i + 1 < ids.length; i++) {
+                addEdge(ids[i], ids[i + 1], por.flagsList.get(i));
+            }
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds the rotations of every verified scheme of {@code result} that has a proof-of-rotation.
+     */
+    public void merge(ApkVerificationResult result) {
+        for (ApkVerificationResult.VerifiedScheme scheme : result.schemes) {
+            if (scheme.por != null) {
+                merge(scheme.por);
+            }
+        }
+    }
+
+    /**
+     * Returns the id of {@code cert} or -1 if it is in no merged lineage.
+     */
+    public int getCertId(X509Certificate cert) {
+        return getCertId(fingerprint(cert));
+    }
+
+    /**
+     * Returns the id of the certificate with the provided SHA-256 fingerprint or -1 if it is in
+     * no merged lineage.
+     */
+    public int getCertId(byte[] fingerprint) {
+        mLock.readLock().lock();
+        try {
+            Integer id = mIds.get(new Fingerprint(fingerprint));
+            return id != null ? id : -1;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the SHA-256 fingerprint of the certificate with the provided id.
+     */
+    public byte[] getFingerprint(int certId) {
+        mLock.readLock().lock();
+        try {
+            checkId(certId);
+            return mFingerprints.get(certId).clone();
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of distinct certificates.
+     */
+    public int size() {
+        mLock.readLock().lock();
+        try {
+            return mFingerprints.size();
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the ids of all certificates that were, directly or transitively, rotated to the
+     * provided one.
+     */
+    public int[] getAncestors(int certId) {
+        mLock.readLock().lock();
+        try {
+            checkId(certId);
+            return traverse(certId, mParents, mParentCounts);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the ids of all certificates the provided one was, directly or transitively,
+     * rotated to.
+     */
+    public int[] getDescendants(int certId) {
+        mLock.readLock().lock();
+        try {
+            checkId(certId);
+            return traverse(certId, mChildren, mChildCounts);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns whether {@code ancestorId} was, directly or transitively, rotated to
+     * {@code descendantId}.
+     */
+    public boolean isAncestor(int ancestorId, int descendantId) {
+        mLock.readLock().lock();
+        try {
+            checkId(ancestorId);
+            checkId(descendantId);
+            if (find(ancestorId) != find(descendantId)) {
+                return false;
+            }
+            for (int id : traverse(descendantId, mParents, mParentCounts)) {
+                if (id == ancestorId) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns whether the two certificates are joined by rotations in any direction, i.e.
+     * belong to the same app lineage.
+     */
+    public boolean isSameLineage(int certId1, int certId2) {
+        mLock.readLock().lock();
+        try {
+            checkId(certId1);
+            checkId(certId2);
+            return find(certId1) == find(certId2);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the capability flags of the rotation from {@code parentId} to {@code childId} or
+     * -1 if there is no such rotation.
+     */
+    public int getEdgeFlags(int parentId, int childId) {
+        mLock.readLock().lock();
+        try {
+            checkId(parentId);
+            checkId(childId);
+            int[] children = mChildren[parentId];
+            for (int i = 0; i < mChildCounts[parentId]; i++) {
+                if (children[i] == childId) {
+                    return mChildFlags[parentId][i];
+                }
+            }
+            return -1;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Throws if no certificate has the provided id. Called with a lock held.
+     */
+    private void checkId(int certId) {
+        if (certId < 0 || certId >= mFingerprints.size()) {
+            throw new IllegalArgumentException("Unknown certificate id: " + certId);
+        }
+    }
+
+    private int intern(byte[] fingerprint) {
+        Fingerprint key = new Fingerprint(fingerprint);
+        Integer existing = mIds.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        int id = mFingerprints.size();
+        mFingerprints.add(fingerprint);
+        mIds.put(key, id);
+        if (id == mChildren.length) {
+            int capacity = id * 2;
+            mChildren = Arrays.copyOf(mChildren, capacity);
+            mChildFlags = Arrays.copyOf(mChildFlags, capacity);
+            mChildCounts = Arrays.copyOf(mChildCounts, capacity);
+            mParents = Arrays.copyOf(mParents, capacity);
+            mParentCounts = Arrays.copyOf(mParentCounts, capacity);
+            mLineageParent = Arrays.copyOf(mLineageParent, capacity);
+        }
+        mChildren[id] = new int[1];
+        mChildFlags[id] = new int[1];
+        mParents[id] = new int[1];
+        mLineageParent[id] = id;
+        return id;
+    }
+
+    private void addEdge(int parentId, int childId, int flags) {
+        int[] children = mChildren[parentId];
+        int count = mChildCounts[parentId];
+        for (int i = 0; i < count; i++) {
+            if (children[i] == childId) {
+                mChildFlags[parentId][i] = flags;
+                return;
+            }
+        }
+        if (count == children.length) {
+            mChildren[parentId] = Arrays.copyOf(children, count * 2);
+            mChildFlags[parentId] = Arrays.copyOf(mChildFlags[parentId], count * 2);
+        }
+        mChildren[parentId][count] = childId;
+        mChildFlags[parentId][count] = flags;
+        mChildCounts[parentId] = count + 1;
+
+        int parentCount = mParentCounts[childId];
+        if (parentCount == mParents[childId].length) {
+            mParents[childId] = Arrays.copyOf(mParents[childId], parentCount * 2);
+        }
+        mParents[childId][parentCount] = parentId;
+        mParentCounts[childId] = parentCount + 1;
+
+        int root1 = find(parentId);
+        int root2 = find(childId);
+        if (root1 != root2) {
+            mLineageParent[Math.max(root1, root2)] = Math.min(root1, root2);
+        }
+    }
+
+    /**
+     * Returns the representative of the lineage of {@code id}. Only compresses paths while the
+     * write lock is held, so that concurrent readers never write.
+     */
+    private int find(int id) {
+        boolean compress = mLock.isWriteLockedByCurrentThread();
+        while (mLineageParent[id] != id) {
+            if (compress) {
+                mLineageParent[id] = mLineageParent[mLineageParent[id]];
+            }
+            id = mLineageParent[id];
+        }
+        return id;
+    }
+
+    private int[] traverse(int start, int[][] edges, int[] counts) {
+        int[] found = new int[8];
+        int foundCount = 0;
+        BitSet visited = new BitSet();
+        visited.set(start);
+        // Breadth-first, with the result array as the queue of ids still to expand.
+        int next = 0;
+        int current = start;
+        while (true) {
+            int[] targets = edges[current];
+            for (int i = 0; i < counts[current]; i++) {
+                int target = targets[i];
+                if (!visited.get(target)) {
+                    visited.set(target);
+                    if (foundCount == found.length) {
+                        found = Arrays.copyOf(found, foundCount * 2);
+                    }
+                    found[foundCount++] = target;
+                }
+            }
+            if (next == foundCount) {
+                return Arrays.copyOf(found, foundCount);
+            }
+            current = found[next++];
+        }
+    }
+
+    private static byte[] fingerprint(X509Certificate cert) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(cert.getEncoded());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 digest not supported", e);
+        } catch (CertificateEncodingException e) {
+            throw new SecurityException("Failed to encode certificate", e);
+        }
+    }
+
+    private static class Fingerprint {
+        final byte[] bytes;
+        final int hashCode;
+
+        Fingerprint(byte[] bytes) {
+            this.bytes = bytes;
+            this.hashCode = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Fingerprint && Arrays.equals(bytes, ((Fingerprint) o).bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.lenovo.leos.sign;
+
+import java.io.Closeable;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide limit on the bytes held by buffers of concurrent verifications: APK Signing
+ * Blocks, ZIP End of Central Directory search windows, content chunks and verity trees. Each of
+ * these is reserved before it is allocated and released once the verification no longer needs
+ * it, so a few APKs with huge signing blocks slow other verifications down instead of exhausting
+ * the heap.
+ *
+ * <p>A reservation that does not fit waits for other reservations to be released, for at most
+ * the configured time, then fails with {@link MemoryBudgetExceededException}. A wait of zero
+ * fails fast. A reservation larger than the whole budget fails immediately. With an indefinite
+ * wait, the budget must at least hold the APK Signing Block and one 1 MiB chunk of a single
+ * verification, which otherwise waits for itself.
+ *
+ * <p>The default budget is unlimited and only keeps statistics.
+ */
+public class MemoryBudget {
+    private static volatile MemoryBudget sDefault = new MemoryBudget(Long.MAX_VALUE, 0);
+
+    private final long mCapacity;
+    private final long mMaxWaitNanos;
+    private long mReserved;
+    private long mHighWaterMark;
+    private long mRejected;
+
+    /**
+     * @param capacityBytes maximum number of bytes reserved at any time.
+     * @param maxWaitMillis how long a reservation waits for bytes to be released before failing;
+     *                      0 to fail fast, {@link Long#MAX_VALUE} to wait indefinitely.
+     */
+    public MemoryBudget(long capacityBytes, long maxWaitMillis) {
+        if (capacityBytes < 1) {
+            throw new IllegalArgumentException("capacityBytes: " + capacityBytes);
+        }
+        if (maxWaitMillis < 0) {
+            throw new IllegalArgumentException("maxWaitMillis: " + maxWaitMillis);
+        }
+        mCapacity = capacityBytes;
+        mMaxWaitNanos = maxWaitMillis == Long.MAX_VALUE
+                ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+    }
+
+    /**
+     * Returns the budget all verifications draw from.
+     */
+    public static MemoryBudget getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * Replaces the budget all verifications draw from. Reservations made from the previous budget
+     * are released to it.
+     */
+    public static void setDefault(MemoryBudget budget) {
+        if (budget == null) {
+            throw new NullPointerException("budget == null");
+        }
+        sDefault = budget;
+    }
+
+    /**
+     * Reserves {@code bytes} bytes from the default budget.
+     *
+     * @see #reserve(long)
+     */
+    static Reservation reserveDefault(long bytes) throws MemoryBudgetExceededException,
+            InterruptedIOException {
+        return sDefault.reserve(bytes);
+    }
+
+    /**
+     * Reserves {@code bytes} bytes, waiting for other reservations to be released if needed.
+     * The caller must close the returned reservation once the bytes are no longer used.
+     *
+     * @throws MemoryBudgetExceededException if the bytes did not become available in time.
+     * @throws InterruptedIOException        if interrupted while waiting.
+     */
+    public synchronized Reservation reserve(long bytes)
+            throws MemoryBudgetExceededException, InterruptedIOException {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("bytes: " + bytes);
+        }
+        if (bytes > mCapacity) {
+            mRejected++;
+            throw new MemoryBudgetExceededException(
+                    "Cannot reserve " + bytes + " bytes: budget is " + mCapacity + " bytes");
+        }
+        long deadline = System.nanoTime() + mMaxWaitNanos;
+        while (bytes > mCapacity - mReserved) {
+            long remainingNanos = mMaxWaitNanos == Long.MAX_VALUE
+                    ? Long.MAX_VALUE : deadline - System.nanoTime();
+            if (remainingNanos <= 0) {
+                mRejected++;
+                throw new MemoryBudgetExceededException("Cannot reserve " + bytes + " bytes: "
+                        + mReserved + " of " + mCapacity + " bytes reserved");
+            }
+            try {
+                if (remainingNanos == Long.MAX_VALUE) {
+                    wait();
+                } else {
+                    TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(
+                        "Interrupted while waiting to reserve " + bytes + " bytes");
+            }
+        }
+        mReserved += bytes;
+        mHighWaterMark = Math.max(mHighWaterMark, mReserved);
+        return new Reservation(bytes);
+    }
+
+    /**
+     * Reserves {@code bytes} bytes if they are available right away.
+     *
+     * @return the reservation or {@code null} if the bytes are not available.
+     */
+    public synchronized Reservation tryReserve(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("bytes: " + bytes);
+        }
+        if (bytes > mCapacity - mReserved) {
+            return null;
+        }
+        mReserved += bytes;
+        mHighWaterMark = Math.max(mHighWaterMark, mReserved);
+        return new Reservation(bytes);
+    }
+
+    private synchronized void release(long bytes) {
+        mReserved -= bytes;
+        notifyAll();
+    }
+
+    public long getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Returns the number of bytes currently reserved.
+     */
+    public synchronized long getReservedBytes() {
+        return mReserved;
+    }
+
+    /**
+     * Returns the largest number of bytes reserved at once since creation or the last
+     * {@link #resetHighWaterMark()}.
+     */
+    public synchronized long getHighWaterMark() {
+        return mHighWaterMark;
+    }
+
+    public synchronized void resetHighWaterMark() {
+        mHighWaterMark = mReserved;
+    }
+
+    /**
+     * Returns the number of reservations that failed.
+     */
+    public synchronized long getRejectedCount() {
+        return mRejected;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MemoryBudget{reserved=" + mReserved + ", highWaterMark=" + mHighWaterMark
+                + ", capacity=" + mCapacity + ", rejected=" + mRejected + "}";
+    }
+
+    /**
+     * Bytes reserved from a {@link MemoryBudget}, released when closed.
+     */
+    public class Reservation implements Closeable {
+        private long mBytes;
+
+        private Reservation(long bytes) {
+            mBytes = bytes;
+        }
+
+        public synchronized long getBytes() {
+            return mBytes;
+        }
+
+        /**
+         * Releases the reserved bytes. Does nothing if already closed.
+         */
+        @Override
+        public void close() {
+            long bytes;
+            synchronized (this) {
+                bytes = mBytes;
+                mBytes = 0;
+            }
+            if (bytes != 0) {
+                release(bytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.lenovo.leos.sign;
+
+import java.io.IOException;
+
+/**
+ * Indicates that a buffer could not be allocated within the {@link MemoryBudget}.
+ */
+public class MemoryBudgetExceededException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public MemoryBudgetExceededException(String message) {
+        super(message);
+    }
+}
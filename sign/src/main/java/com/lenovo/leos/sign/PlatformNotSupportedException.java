@@ -2,7 +2,7 @@ package com.lenovo.leos.sign;
 
 public class PlatformNotSupportedException extends Exception {
 
-    PlatformNotSupportedException(String s) {
+    public PlatformNotSupportedException(String s) {
         super(s);
     }
 }
\ No newline at end of file
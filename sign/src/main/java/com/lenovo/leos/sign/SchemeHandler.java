@@ -0,0 +1,36 @@
+package com.lenovo.leos.sign;
+
+import java.io.IOException;
+
+/**
+ * Verifies the APK signatures of one signature scheme on behalf of {@link ApkVerifier}.
+ *
+ * <p>Handlers are looked up from a {@link SchemeRegistry} and are invoked in decreasing order of
+ * {@link #getSchemeVersion()}, which is also the platform's order of precedence.
+ */
+public interface SchemeHandler {
+
+    /**
+     * Returns the signature scheme version this handler verifies, e.g.
+     * {@link ApkVerificationResult#SCHEME_V3}.
+     */
+    int getSchemeVersion();
+
+    /**
+     * Returns {@code true} if the APK carries a signature of this scheme. This must be cheap: the
+     * APK Signing Block has already been read into {@code context}.
+     *
+     * @throws IOException if an I/O error occurs while reading the APK file.
+     */
+    boolean isPresent(VerificationContext context) throws IOException;
+
+    /**
+     * Verifies the signature of this scheme.
+     *
+     * @throws SignatureNotFoundException if the APK is not signed using this scheme.
+     * @throws SecurityException          if a signature of this scheme does not verify.
+     * @throws IOException                if an I/O error occurs while reading the APK file.
+     */
+    ApkVerificationResult.VerifiedScheme verify(VerificationContext context)
+            throws SignatureNotFoundException, SecurityException, IOException;
+}
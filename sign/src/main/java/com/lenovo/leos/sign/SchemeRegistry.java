@@ -0,0 +1,66 @@
+package com.lenovo.leos.sign;
+
+import com.lenovo.leos.sign.v1.V1SchemeHandler;
+import com.lenovo.leos.sign.v2.V2SchemeHandler;
+import com.lenovo.leos.sign.v3.V3SchemeHandler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Set of {@link SchemeHandler}s consulted by {@link ApkVerifier}, kept in the platform's order of
+ * precedence (v3.1 -> v3 -> v2 -> v1). At most one handler is registered per scheme version.
+ */
+public class SchemeRegistry {
+    private final List<SchemeHandler> mHandlers = new ArrayList<>();
+
+    /**
+     * Returns a registry holding the handlers of all schemes supported by this library.
+     */
+    public static SchemeRegistry createDefault() {
+        SchemeRegistry registry = new SchemeRegistry();
+        registry.register(V3SchemeHandler.createV31());
+        registry.register(V3SchemeHandler.createV3());
+        registry.register(new V2SchemeHandler());
+        registry.register(new V1SchemeHandler());
+        return registry;
+    }
+
+    /**
+     * Registers {@code handler}, replacing the handler previously registered for the same scheme
+     * version, if any.
+     */
+    public synchronized void register(SchemeHandler handler) {
+        int version = handler.getSchemeVersion();
+        unregister(version);
+        int index = 0;
+        while (index < mHandlers.size()
+                && mHandlers.get(index).getSchemeVersion() > version) {
+            index++;
+        }
+        mHandlers.add(index, handler);
+    }
+
+    /**
+     * Removes the handler registered for the provided scheme version.
+     *
+     * @return {@code true} if a handler was removed.
+     */
+    public synchronized boolean unregister(int schemeVersion) {
+        for (int i = 0; i < mHandlers.size(); i++) {
+            if (mHandlers.get(i).getSchemeVersion() == schemeVersion) {
+                mHandlers.remove(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns a snapshot of the registered handlers, highest precedence first.
+     */
+    public synchronized List<SchemeHandler> getHandlers() {
+        return Collections.unmodifiableList(new ArrayList<>(mHandlers));
+    }
+}
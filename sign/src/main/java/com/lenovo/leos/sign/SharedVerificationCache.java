@@ -0,0 +1,425 @@
+package com.lenovo.leos.sign;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * Cache of verification results shared by all processes on a host that open the same file, e.g.
+ * several JVMs verifying the same pool of APKs.
+ *
+ * <p>The file is memory-mapped and holds a fixed-size, open-addressing hash table of 512-byte
+ * slots. A slot holds the key of an APK, i.e. a digest of its path, size, modification time and
+ * file key, and the compact form of its verified schemes ({@link VerificationLedger.SchemeEntry}:
+ * signer fingerprints and content digests). A result published by one process is visible to the
+ * others as soon as the publishing call returns.
+ *
+ * <p>Slots are claimed with a compare-and-set on their state word, so neither readers nor writers
+ * lock. The state word also carries a version, incremented by every write, and the time of the
+ * claim: a reader copies a slot and only uses the copy if the version did not change meanwhile
+ * and the copy matches its checksum. When all slots a key may occupy are taken, one of them is
+ * overwritten. A slot left half-written by a process that died or stalled is reclaimed after
+ * {@link #STALE_CLAIM_MILLIS}; the late writer then finds its claim gone and does not publish.
+ *
+ * <p>Only APKs that verified are cached.
+ */
+public class SharedVerificationCache implements Closeable {
+    /**
+     * Time after which a slot whose writer did not finish may be claimed by another writer.
+     */
+    public static final long STALE_CLAIM_MILLIS = 10_000;
+
+    private static final long MAGIC = 0x4150_4b53_4843_4832L; // "APKSHCH2"
+    private static final int HEADER_SIZE_BYTES = 64;
+    private static final int SLOT_SIZE_BYTES = 512;
+    private static final int MAX_PROBES = 8;
+    private static final int KEY_SIZE_BYTES = 16;
+
+    // Slot layout.
+    private static final int STATE_OFFSET = 0;
+    // CRC-32 of the key, level, payload length and payload, as the writer encoded them.
+    private static final int CHECKSUM_OFFSET = 8;
+    private static final int KEY_OFFSET = 16;
+    private static final int LEVEL_OFFSET = KEY_OFFSET + KEY_SIZE_BYTES;
+    private static final int PAYLOAD_LENGTH_OFFSET = LEVEL_OFFSET + 2;
+    private static final int PAYLOAD_OFFSET = PAYLOAD_LENGTH_OFFSET + 2;
+    private static final int MAX_PAYLOAD_SIZE_BYTES = SLOT_SIZE_BYTES - PAYLOAD_OFFSET;
+
+    // Low two bits of the state word; the next 30 hold the version and the high 32 the time of
+    // the claim, in seconds, so that it is visible as soon as the claim is.
+    private static final long STATUS_MASK = 3;
+    private static final long VERSION_MASK = 0xffff_fffcL;
+    private static final int CLAIM_TIME_SHIFT = 32;
+    private static final long STATUS_EMPTY = 0;
+    private static final long STATUS_WRITING = 1;
+    private static final long STATUS_READY = 2;
+
+    private static final VarHandle LONG_VIEW =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final FileChannel mChannel;
+    private final MappedByteBuffer mTable;
+    private final int mSlotMask;
+    private final LongAdder mHits = new LongAdder();
+    private final LongAdder mMisses = new LongAdder();
+    private final LongAdder mOverwrites = new LongAdder();
+
+    private SharedVerificationCache(FileChannel channel, MappedByteBuffer table, int slotCount) {
+        mChannel = channel;
+        mTable = table;
+        mSlotMask = slotCount - 1;
+    }
+
+    /**
+     * Opens the cache stored in {@code file}, creating it with {@code slotCount} slots if it
+     * does not exist. If it exists, its own slot count applies.
+     *
+     * @param slotCount rounded up to a power of two.
+     * @throws IOException if the file cannot be mapped or is not a cache.
+     */
+    public static SharedVerificationCache open(Path file, int slotCount) throws IOException {
+        if (slotCount < 1 || slotCount > (Integer.MAX_VALUE - HEADER_SIZE_BYTES)
+                / SLOT_SIZE_BYTES / 2) {
+            throw new IllegalArgumentException("slotCount: " + slotCount);
+        }
+        slotCount = Math.max(MAX_PROBES, Integer.highestOneBit(slotCount - 1) << 1);
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            // Serialize initialization with other processes opening the same file.
+            FileLock lock = channel.lock();
+            try {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE_BYTES)
+                        .order(ByteOrder.nativeOrder());
+                if (channel.size() == 0) {
+                    header.putLong(MAGIC).putInt(SLOT_SIZE_BYTES).putInt(slotCount);
+                    header.rewind();
+                    channel.write(ByteBuffer.allocate(1),
+                            HEADER_SIZE_BYTES + (long) slotCount * SLOT_SIZE_BYTES - 1);
+                    channel.write(header, 0);
+                } else {
+                    channel.read(header, 0);
+                    header.flip();
+                    if (header.remaining() < 16 || header.getLong() != MAGIC
+                            || header.getInt() != SLOT_SIZE_BYTES) {
+                        throw new IOException("Not a shared verification cache: " + file);
+                    }
+                    slotCount = header.getInt();
+                    if (Integer.bitCount(slotCount) != 1 || channel.size()
+                            < HEADER_SIZE_BYTES + (long) slotCount * SLOT_SIZE_BYTES) {
+                        throw new IOException("Corrupt shared verification cache: " + file);
+                    }
+                }
+            } finally {
+                lock.release();
+            }
+            MappedByteBuffer table = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE_BYTES + (long) slotCount * SLOT_SIZE_BYTES);
+            table.order(ByteOrder.nativeOrder());
+            return new SharedVerificationCache(channel, table, slotCount);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the cached schemes of the provided APK if it verified at {@code level} or a
+     * stricter one and did not change since, otherwise {@code null}.
+     *
+     * @throws IOException if the APK's attributes cannot be read.
+     */
+    public List<VerificationLedger.SchemeEntry> lookup(String apkFile, VerificationLevel level)
+            throws IOException {
+        byte[] key = keyOf(apkFile);
+        long hash = ByteBuffer.wrap(key).getLong();
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            int slot = slotOffset(hash, probe);
+            long state = (long) LONG_VIEW.getVolatile(mTable, slot + STATE_OFFSET);
+            if ((state & STATUS_MASK) == STATUS_EMPTY) {
+                break;
+            }
+            if ((state & STATUS_MASK) != STATUS_READY || !keyEquals(slot, key)) {
+                continue;
+            }
+            int checksum = mTable.getInt(slot + CHECKSUM_OFFSET);
+            int length = mTable.getShort(slot + PAYLOAD_LENGTH_OFFSET);
+            byte[] record = new byte[PAYLOAD_OFFSET - KEY_OFFSET
+                    + Math.max(0, Math.min(length, MAX_PAYLOAD_SIZE_BYTES))];
+            ByteBuffer src = mTable.duplicate();
+            src.position(slot + KEY_OFFSET);
+            src.get(record);
+            // Only use the copy if no writer touched the slot while it was made.
+            VarHandle.loadLoadFence();
+            if ((long) LONG_VIEW.getVolatile(mTable, slot + STATE_OFFSET) != state
+                    || checksum(record) != checksum
+                    || !Arrays.equals(record, 0, KEY_SIZE_BYTES, key, 0, KEY_SIZE_BYTES)) {
+                break;
+            }
+            int cachedLevel = record[LEVEL_OFFSET - KEY_OFFSET];
+            // A level out of range is a slot written by another version: treat it as a miss.
+            VerificationLevel[] levels = VerificationLevel.values();
+            if (cachedLevel < 0 || cachedLevel >= levels.length
+                    || !levels[cachedLevel].includes(level)) {
+                break;
+            }
+            List<VerificationLedger.SchemeEntry> schemes = VerificationLedger.SchemeEntry.decode(
+                    ByteBuffer.wrap(record, PAYLOAD_OFFSET - KEY_OFFSET,
+                            record.length - (PAYLOAD_OFFSET - KEY_OFFSET)));
+            if (schemes == null) {
+                break;
+            }
+            mHits.increment();
+            return schemes;
+        }
+        mMisses.increment();
+        return null;
+    }
+
+    /**
+     * Returns the cached schemes of the provided APK if it verified at the level of
+     * {@code verifier} or a stricter one and did not change since. Otherwise, verifies it with
+     * {@code verifier} and publishes the result.
+     *
+     * @throws SignatureNotFoundException if the APK is not signed using any registered scheme.
+     * @throws SecurityException          if a signature of a present scheme does not verify.
+     * @throws IOException                if an I/O error occurs while reading the APK file.
+     */
+    public List<VerificationLedger.SchemeEntry> verify(ApkVerifier verifier, String apkFile)
+            throws SignatureNotFoundException, SecurityException, IOException {
+        VerificationLevel level = verifier.getVerificationLevel();
+        List<VerificationLedger.SchemeEntry> schemes = lookup(apkFile, level);
+        if (schemes != null) {
+            return schemes;
+        }
+        byte[] key = keyOf(apkFile);
+        schemes = VerificationLedger.SchemeEntry.of(verifier.verify(apkFile));
+        if (Arrays.equals(key, keyOf(apkFile))) {
+            // Only publish what was verified if the file did not change meanwhile.
+            publish(key, level, schemes);
+        }
+        return schemes;
+    }
+
+    /**
+     * Stores the verified schemes of an APK under {@code key}. Silently does nothing if they do
+     * not fit in a slot, all candidate slots are being written, or the claim went stale and was
+     * taken over before the slot was written.
+     */
+    private void publish(byte[] key, VerificationLevel level,
+                         List<VerificationLedger.SchemeEntry> schemes) {
+        // Encoded up front, so that the checksum covers what this writer meant to store even if
+        // a stale claim of it is taken over while it copies.
+        byte[] record = encode(key, level, schemes);
+        if (record == null) {
+            return;
+        }
+        Claim claim = claim(key, System.currentTimeMillis());
+        if (claim == null) {
+            return;
+        }
+        write(claim, record);
+        release(claim);
+    }
+
+    /**
+     * Returns the key, level, payload length and payload of a slot holding {@code schemes}, or
+     * {@code null} if they do not fit in a slot.
+     */
+    static byte[] encode(byte[] key, VerificationLevel level,
+                         List<VerificationLedger.SchemeEntry> schemes) {
+        int length = VerificationLedger.SchemeEntry.encodedLength(schemes);
+        if (length > MAX_PAYLOAD_SIZE_BYTES) {
+            return null;
+        }
+        ByteBuffer record = ByteBuffer.allocate(PAYLOAD_OFFSET - KEY_OFFSET + length)
+                .order(ByteOrder.nativeOrder());
+        record.put(key);
+        record.put(LEVEL_OFFSET - KEY_OFFSET, (byte) level.ordinal());
+        record.putShort(PAYLOAD_LENGTH_OFFSET - KEY_OFFSET, (short) length);
+        ByteBuffer payload = record.duplicate().order(ByteOrder.BIG_ENDIAN);
+        payload.position(PAYLOAD_OFFSET - KEY_OFFSET);
+        VerificationLedger.SchemeEntry.encode(schemes, payload);
+        return record.array();
+    }
+
+    /**
+     * A slot claimed by this process, with the state word its claim set.
+     */
+    static final class Claim {
+        final int slot;
+        final long state;
+
+        Claim(int slot, long state) {
+            this.slot = slot;
+            this.state = state;
+        }
+    }
+
+    /**
+     * Claims a slot for {@code key} as of {@code nowMillis}, or returns {@code null} if all
+     * candidate slots are being written.
+     */
+    Claim claim(byte[] key, long nowMillis) {
+        long hash = ByteBuffer.wrap(key).getLong();
+        int victim = -1;
+        long victimState = 0;
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            int slot = slotOffset(hash, probe);
+            long state = (long) LONG_VIEW.getVolatile(mTable, slot + STATE_OFFSET);
+            long status = state & STATUS_MASK;
+            if (status == STATUS_EMPTY) {
+                victim = slot;
+                victimState = state;
+                break;
+            }
+            boolean stale = status == STATUS_WRITING && isStale(state, nowMillis);
+            if ((status == STATUS_READY && keyEquals(slot, key)) || stale) {
+                // Same APK, e.g. verified at a laxer level, or abandoned by its writer.
+                victim = slot;
+                victimState = state;
+                break;
+            }
+            if (status == STATUS_READY && victim < 0
+                    && probe == (int) ((hash >>> 32) & (MAX_PROBES - 1))) {
+                // Overwritten if no slot is free: a pseudo-random one of the candidates.
+                victim = slot;
+                victimState = state;
+            }
+        }
+        if (victim < 0) {
+            return null;
+        }
+        long claimed = (nowMillis / 1000) << CLAIM_TIME_SHIFT
+                | ((victimState & VERSION_MASK) + (STATUS_MASK + 1)) & VERSION_MASK
+                | STATUS_WRITING;
+        if (!LONG_VIEW.compareAndSet(mTable, victim + STATE_OFFSET, victimState, claimed)) {
+            // Another writer got there first.
+            return null;
+        }
+        if ((victimState & STATUS_MASK) == STATUS_READY && !keyEquals(victim, key)) {
+            mOverwrites.increment();
+        }
+        return new Claim(victim, claimed);
+    }
+
+    /**
+     * Copies {@code record}, as returned by {@link #encode}, into the claimed slot together with
+     * its checksum.
+     */
+    void write(Claim claim, byte[] record) {
+        ByteBuffer slot = mTable.duplicate().order(ByteOrder.nativeOrder());
+        slot.putInt(claim.slot + CHECKSUM_OFFSET, checksum(record));
+        slot.position(claim.slot + KEY_OFFSET);
+        slot.put(record);
+    }
+
+    /**
+     * Publishes the slot written under {@code claim}. Returns {@code false}, leaving the slot
+     * alone, if the claim went stale and another writer took the slot over.
+     */
+    boolean release(Claim claim) {
+        return LONG_VIEW.compareAndSet(mTable, claim.slot + STATE_OFFSET, claim.state,
+                (claim.state & VERSION_MASK) | STATUS_READY);
+    }
+
+    private static boolean isStale(long state, long nowMillis) {
+        long claimSeconds = state >>> CLAIM_TIME_SHIFT;
+        long elapsedSeconds = (nowMillis / 1000 - claimSeconds) & 0xffff_ffffL;
+        return elapsedSeconds * 1000 > STALE_CLAIM_MILLIS;
+    }
+
+    private static int checksum(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Returns the counters of this process.
+     */
+    public CacheStats getStats() {
+        return new CacheStats(mHits.sum(), mMisses.sum(), mOverwrites.sum(), mSlotMask + 1);
+    }
+
+    @Override
+    public void close() throws IOException {
+        // The mapping itself is released when it is garbage collected.
+        mChannel.close();
+    }
+
+    private int slotOffset(long hash, int probe) {
+        return HEADER_SIZE_BYTES + (int) ((hash + probe) & mSlotMask) * SLOT_SIZE_BYTES;
+    }
+
+    private boolean keyEquals(int slot, byte[] key) {
+        for (int i = 0; i < KEY_SIZE_BYTES; i++) {
+            if (mTable.get(slot + KEY_OFFSET + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the key of the current contents of the provided APK: a truncated SHA-256 digest of
+     * its path and file stamp.
+     */
+    static byte[] keyOf(String apkFile) throws IOException {
+        Path path = Paths.get(apkFile).toAbsolutePath().normalize();
+        FileStamp stamp = FileStamp.of(path);
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 digest not supported", e);
+        }
+        md.update(path.toString().getBytes(StandardCharsets.UTF_8));
+        md.update(ByteBuffer.allocate(16).putLong(stamp.size)
+                .putLong(stamp.lastModifiedNanos).array());
+        md.update(stamp.getFileKeyString().getBytes(StandardCharsets.UTF_8));
+        byte[] key = new byte[KEY_SIZE_BYTES];
+        System.arraycopy(md.digest(), 0, key, 0, KEY_SIZE_BYTES);
+        return key;
+    }
+
+    /**
+     * Counters of a {@link SharedVerificationCache} in one process.
+     */
+    public static class CacheStats {
+        public final long hits;
+        public final long misses;
+        // Results of other APKs replaced by this process because the table was full.
+        public final long overwrites;
+        public final int slotCount;
+
+        public CacheStats(long hits, long misses, long overwrites, int slotCount) {
+            this.hits = hits;
+            this.misses = misses;
+            this.overwrites = overwrites;
+            this.slotCount = slotCount;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d hits, %d misses, %d overwrites, %d slots", hits, misses,
+                    overwrites, slotCount);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.lenovo.leos.sign;
 
+import java.io.Closeable;
 import java.nio.ByteBuffer;
 
 /**
@@ -9,8 +10,12 @@ import java.nio.ByteBuffer;
  * description:
  * APK Signature Scheme v2 block and additional information relevant to verifying the signatures
  * contained in the block against the file.
+ *
+ * <p>Returned by {@link ApkSigningBlockUtils#findSignature}, it holds the APK Signing Block it was
+ * read from reserved in the {@link MemoryBudget} until it is closed. Looked up from an
+ * {@link ApkSigningBlock}, it is covered by that block and closing it does nothing.
  */
-public class SignatureInfo {
+public class SignatureInfo implements Closeable {
 
     /**
      * Contents of APK Signature Scheme v2 block.
@@ -37,11 +42,34 @@ public class SignatureInfo {
      */
     public final ByteBuffer eocd;
 
+    /**
+     * Reservation of the APK Signing Block, or {@code null} if owned by an
+     * {@link ApkSigningBlock}.
+     */
+    private final MemoryBudget.Reservation mReservation;
+
     SignatureInfo(ByteBuffer signatureBlock, long apkSigningBlockOffset, long centralDirOffset, long eocdOffset, ByteBuffer eocd) {
+        this(signatureBlock, apkSigningBlockOffset, centralDirOffset, eocdOffset, eocd, null);
+    }
+
+    SignatureInfo(ByteBuffer signatureBlock, long apkSigningBlockOffset, long centralDirOffset,
+                  long eocdOffset, ByteBuffer eocd, MemoryBudget.Reservation reservation) {
         this.signatureBlock = signatureBlock;
         this.apkSigningBlockOffset = apkSigningBlockOffset;
         this.centralDirOffset = centralDirOffset;
         this.eocdOffset = eocdOffset;
         this.eocd = eocd;
+        this.mReservation = reservation;
+    }
+
+    /**
+     * Releases the memory reserved for the APK Signing Block, if this object holds it. Does
+     * nothing if already closed. The contents remain readable after that.
+     */
+    @Override
+    public void close() {
+        if (mReservation != null) {
+            mReservation.close();
+        }
     }
 }
@@ -0,0 +1,660 @@
+package com.lenovo.leos.sign;
+
+import com.lenovo.leos.sign.v2.ApkSignatureSchemeV2Verifier;
+import com.lenovo.leos.sign.v3.ApkSignatureSchemeV3Verifier;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Inverted index from signer fingerprints to the APKs they sign, answering "which APKs are
+ * signed by this key, or by any key of this lineage?".
+ *
+ * <p>Each APK is indexed under the SHA-256 fingerprints of its signers' certificates and public
+ * keys and of the certificates and public keys of their proof-of-rotation ancestors, each kind
+ * queryable separately. Paths and fingerprints are interned to ints; each fingerprint maps to a
+ * growable {@code int[]} of APK ids in insertion order.
+ *
+ * <p>On disk, the index is a snapshot of delta-encoded posting lists plus a journal of the
+ * changes made since, so that indexing a file only appends to the journal. {@link #checkpoint()}
+ * folds the journal into a new snapshot. It runs automatically after a change that makes the
+ * journal larger than the snapshot, or the ids of removed and re-indexed APKs a large share of
+ * all ids; see {@link #setCheckpointThresholds}. A journal record torn by a crash is discarded on
+ * open.
+ */
+public class SignerIndex implements Closeable {
+    /**
+     * Certificate of a signer of the APK.
+     */
+    public static final int KIND_SIGNER_CERTIFICATE = 1;
+    /**
+     * Public key of a signer of the APK.
+     */
+    public static final int KIND_SIGNER_PUBLIC_KEY = 2;
+    /**
+     * Certificate in the proof-of-rotation of a signer of the APK, v3 and v3.1 only.
+     */
+    public static final int KIND_LINEAGE_CERTIFICATE = 4;
+    /**
+     * Public key in the proof-of-rotation of a signer of the APK, v3 and v3.1 only.
+     */
+    public static final int KIND_LINEAGE_PUBLIC_KEY = 8;
+    public static final int KIND_ALL = 15;
+
+    private static final byte[] MAGIC = "APKSIDX1".getBytes(StandardCharsets.US_ASCII);
+    private static final int FINGERPRINT_SIZE_BYTES = 32;
+    private static final int MAX_JOURNAL_RECORD_SIZE_BYTES = 1024 * 1024;
+    private static final byte JOURNAL_ADD = 1;
+    private static final byte JOURNAL_REMOVE = 2;
+    private static final long DEFAULT_CHECKPOINT_JOURNAL_BYTES = 1024 * 1024;
+    private static final double DEFAULT_CHECKPOINT_TOMBSTONE_RATIO = 0.5;
+
+    private final Path mFile;
+    private final Path mJournalFile;
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+    private FileChannel mJournal;
+    private long mSnapshotSize;
+    private long mCheckpointJournalBytes = DEFAULT_CHECKPOINT_JOURNAL_BYTES;
+    private double mCheckpointTombstoneRatio = DEFAULT_CHECKPOINT_TOMBSTONE_RATIO;
+
+    // APK id -> path. Ids of removed or re-indexed APKs are set in mRemoved.
+    private final List<String> mPaths = new ArrayList<>();
+    private final HashMap<String, Integer> mApkIds = new HashMap<>();
+    private final BitSet mRemoved = new BitSet();
+
+    // Term id -> term and posting list. A term is a kind and a fingerprint.
+    private final HashMap<Term, Integer> mTermIds = new HashMap<>();
+    private final List<Term> mTerms = new ArrayList<>();
+    private int[][] mPostings = new int[16][];
+    private int[] mPostingCounts = new int[16];
+
+    private SignerIndex(Path file) {
+        mFile = file;
+        mJournalFile = file.resolveSibling(file.getFileName() + ".journal");
+    }
+
+    /**
+     * Opens the index stored in {@code file} and its journal, creating them if they do not
+     * exist.
+     *
+     * @throws IOException if the files cannot be read or are not an index.
+     */
+    public static SignerIndex open(Path file) throws IOException {
+        SignerIndex index = new SignerIndex(file);
+        if (Files.exists(file)) {
+            index.readSnapshot();
+        }
+        index.mJournal = FileChannel.open(index.mJournalFile, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            index.replayJournal();
+        } catch (IOException | RuntimeException e) {
+            index.mJournal.close();
+            throw e;
+        }
+        return index;
+    }
+
+    /**
+     * Indexes the signers of every verified scheme of an APK, replacing what was indexed for
+     * {@code apkFile} before.
+     */
+    public void add(String apkFile, ApkVerificationResult result) throws IOException {
+        Set<Term> terms = new LinkedHashSet<>();
+        for (ApkVerificationResult.VerifiedScheme scheme : result.schemes) {
+            for (X509Certificate[] chain : scheme.certs) {
+                addSigner(terms, chain[0]);
+            }
+            addLineage(terms, scheme.por);
+        }
+        add(apkFile, terms);
+    }
+
+    /**
+     * Indexes the signers of an APK verified with APK Signature Scheme v2.
+     */
+    public void add(String apkFile, ApkSignatureSchemeV2Verifier.VerifiedSigner signer)
+            throws IOException {
+        Set<Term> terms = new LinkedHashSet<>();
+        for (X509Certificate[] chain : signer.certs) {
+            addSigner(terms, chain[0]);
+        }
+        add(apkFile, terms);
+    }
+
+    /**
+     * Indexes the signer and lineage of an APK verified with APK Signature Scheme v3.
+     */
+    public void add(String apkFile, ApkSignatureSchemeV3Verifier.VerifiedSigner signer)
+            throws IOException {
+        Set<Term> terms = new LinkedHashSet<>();
+        addSigner(terms, signer.certs[0]);
+        addLineage(terms, signer.por);
+        add(apkFile, terms);
+    }
+
+    /**
+     * Forgets an APK.
+     */
+    public void remove(String apkFile) throws IOException {
+        mLock.writeLock().lock();
+        try {
+            if (mApkIds.containsKey(apkFile)) {
+                appendJournal(JOURNAL_REMOVE, apkFile, Collections.emptySet());
+                applyRemove(apkFile);
+                checkpointIfNeeded();
+            }
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the APKs indexed under {@code fingerprint}, the SHA-256 digest of an encoded
+     * certificate or public key, as any of {@code kinds}, in the order they were indexed.
+     *
+     * @param kinds bitwise OR of {@code KIND_*} constants.
+     */
+    public List<String> find(byte[] fingerprint, int kinds) {
+        mLock.readLock().lock();
+        try {
+            BitSet apks = new BitSet();
+            for (int kind = 1; kind <= KIND_ALL; kind <<= 1) {
+                if ((kinds & kind) != 0) {
+                    collect(new Term((byte) kind, fingerprint), apks);
+                }
+            }
+            return toPaths(apks);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the APKs signed by the certificate or key of {@code cert}, directly or through a
+     * proof-of-rotation.
+     */
+    public List<String> findByCertificate(X509Certificate cert) {
+        mLock.readLock().lock();
+        try {
+            BitSet apks = new BitSet();
+            collectCertificate(cert, apks);
+            return toPaths(apks);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the APKs signed by any certificate or key of {@code lineage}, directly or through
+     * a proof-of-rotation.
+     */
+    public List<String> findByLineage(ApkSigningBlockUtils.VerifiedProofOfRotation lineage) {
+        mLock.readLock().lock();
+        try {
+            BitSet apks = new BitSet();
+            for (X509Certificate cert : lineage.certs) {
+                collectCertificate(cert, apks);
+            }
+            return toPaths(apks);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of APKs indexed.
+     */
+    public int size() {
+        mLock.readLock().lock();
+        try {
+            return mApkIds.size();
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Sets when a change checkpoints the index: once the journal is larger than both
+     * {@code journalBytes} and the snapshot, or once more than {@code tombstoneRatio} of the APK
+     * ids are of removed or re-indexed APKs. Defaults to 1 MiB and 0.5.
+     *
+     * @throws IllegalArgumentException if {@code journalBytes} or {@code tombstoneRatio} is
+     *                                  negative.
+     */
+    public void setCheckpointThresholds(long journalBytes, double tombstoneRatio) {
+        if (journalBytes < 0 || !(tombstoneRatio >= 0)) {
+            throw new IllegalArgumentException("Negative checkpoint threshold: " + journalBytes
+                    + ", " + tombstoneRatio);
+        }
+        mLock.writeLock().lock();
+        try {
+            mCheckpointJournalBytes = journalBytes;
+            mCheckpointTombstoneRatio = tombstoneRatio;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes a new snapshot without the ids of removed APKs and empties the journal.
+     */
+    public void checkpoint() throws IOException {
+        mLock.writeLock().lock();
+        try {
+            compact();
+            Path temp = mFile.resolveSibling(mFile.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(temp)))) {
+                writeSnapshot(out);
+            }
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(temp, mFile, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            mSnapshotSize = Files.size(mFile);
+            mJournal.truncate(0);
+            mJournal.force(true);
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mLock.writeLock().lock();
+        try {
+            if (mJournal.isOpen()) {
+                mJournal.force(false);
+                mJournal.close();
+            }
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    private void add(String apkFile, Set<Term> terms) throws IOException {
+        mLock.writeLock().lock();
+        try {
+            appendJournal(JOURNAL_ADD, apkFile, terms);
+            applyAdd(apkFile, terms);
+            checkpointIfNeeded();
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    // Called with the write lock held. Each threshold is relative to the size of the index, so
+    // the cost of checkpoints stays proportional to the number of changes.
+    private void checkpointIfNeeded() throws IOException {
+        long journalSize = mJournal.size();
+        int tombstones = mRemoved.cardinality();
+        if (journalSize > Math.max(mCheckpointJournalBytes, mSnapshotSize)
+                || (tombstones > 0 && tombstones > mCheckpointTombstoneRatio * mPaths.size())) {
+            checkpoint();
+        }
+    }
+
+    private void applyAdd(String apkFile, Set<Term> terms) {
+        applyRemove(apkFile);
+        int apkId = mPaths.size();
+        mPaths.add(apkFile);
+        mApkIds.put(apkFile, apkId);
+        for (Term term : terms) {
+            int termId = intern(term);
+            int count = mPostingCounts[termId];
+            int[] postings = mPostings[termId];
+            if (count == postings.length) {
+                postings = Arrays.copyOf(postings, count * 2);
+                mPostings[termId] = postings;
+            }
+            postings[count] = apkId;
+            mPostingCounts[termId] = count + 1;
+        }
+    }
+
+    private void applyRemove(String apkFile) {
+        Integer apkId = mApkIds.remove(apkFile);
+        if (apkId != null) {
+            mRemoved.set(apkId);
+        }
+    }
+
+    private int intern(Term term) {
+        Integer termId = mTermIds.get(term);
+        if (termId != null) {
+            return termId;
+        }
+        int id = mTerms.size();
+        mTerms.add(term);
+        mTermIds.put(term, id);
+        if (id == mPostings.length) {
+            mPostings = Arrays.copyOf(mPostings, id * 2);
+            mPostingCounts = Arrays.copyOf(mPostingCounts, id * 2);
+        }
+        mPostings[id] = new int[2];
+        return id;
+    }
+
+    private void collect(Term term, BitSet apks) {
+        Integer termId = mTermIds.get(term);
+        if (termId == null) {
+            return;
+        }
+        int[] postings = mPostings[termId];
+        for (int i = 0, count = mPostingCounts[termId]; i < count; i++) {
+            apks.set(postings[i]);
+        }
+    }
+
+    private void collectCertificate(X509Certificate cert, BitSet apks) {
+        byte[] certFingerprint = fingerprint(encoded(cert));
+        byte[] keyFingerprint = fingerprint(cert.getPublicKey().getEncoded());
+        collect(new Term((byte) KIND_SIGNER_CERTIFICATE, certFingerprint), apks);
+        collect(new Term((byte) KIND_LINEAGE_CERTIFICATE, certFingerprint), apks);
+        collect(new Term((byte) KIND_SIGNER_PUBLIC_KEY, keyFingerprint), apks);
+        collect(new Term((byte) KIND_LINEAGE_PUBLIC_KEY, keyFingerprint), apks);
+    }
+
+    private List<String> toPaths(BitSet apks) {
+        apks.andNot(mRemoved);
+        List<String> paths = new ArrayList<>(apks.cardinality());
+        for (int id = apks.nextSetBit(0); id >= 0; id = apks.nextSetBit(id + 1)) {
+            paths.add(mPaths.get(id));
+        }
+        return paths;
+    }
+
+    /**
+     * Renumbers the live APKs densely and drops removed ones from the posting lists.
+     */
+    private void compact() {
+        if (mRemoved.isEmpty()) {
+            return;
+        }
+        int[] newIds = new int[mPaths.size()];
+        List<String> live = new ArrayList<>(mApkIds.size());
+        for (int id = 0; id < mPaths.size(); id++) {
+            if (mRemoved.get(id)) {
+                newIds[id] = -1;
+            } else {
+                newIds[id] = live.size();
+                live.add(mPaths.get(id));
+            }
+        }
+        for (int termId = 0; termId < mTerms.size(); termId++) {
+            int[] postings = mPostings[termId];
+            int count = 0;
+            for (int i = 0; i < mPostingCounts[termId]; i++) {
+                int newId = newIds[postings[i]];
+                if (newId >= 0) {
+                    postings[count++] = newId;
+                }
+            }
+            mPostingCounts[termId] = count;
+        }
+        mPaths.clear();
+        mPaths.addAll(live);
+        mApkIds.clear();
+        for (int id = 0; id < live.size(); id++) {
+            mApkIds.put(live.get(id), id);
+        }
+        mRemoved.clear();
+    }
+
+    private void writeSnapshot(DataOutputStream out) throws IOException {
+        out.write(MAGIC);
+        out.writeInt(mPaths.size());
+        for (String path : mPaths) {
+            out.writeUTF(path);
+        }
+        int termCount = 0;
+        for (int termId = 0; termId < mTerms.size(); termId++) {
+            if (mPostingCounts[termId] > 0) {
+                termCount++;
+            }
+        }
+        out.writeInt(termCount);
+        for (int termId = 0; termId < mTerms.size(); termId++) {
+            int count = mPostingCounts[termId];
+            if (count == 0) {
+                continue;
+            }
+            Term term = mTerms.get(termId);
+            out.writeByte(term.kind);
+            out.write(term.fingerprint);
+            writeVarint(out, count);
+            // Ids are ascending: store the gaps.
+            int previous = 0;
+            for (int i = 0; i < count; i++) {
+                int apkId = mPostings[termId][i];
+                writeVarint(out, apkId - previous);
+                previous = apkId;
+            }
+        }
+    }
+
+    private void readSnapshot() throws IOException {
+        mSnapshotSize = Files.size(mFile);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(mFile)))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a signer index: " + mFile);
+            }
+            int pathCount = in.readInt();
+            for (int id = 0; id < pathCount; id++) {
+                String path = in.readUTF();
+                mPaths.add(path);
+                mApkIds.put(path, id);
+            }
+            int termCount = in.readInt();
+            for (int i = 0; i < termCount; i++) {
+                byte kind = in.readByte();
+                byte[] fingerprint = new byte[FINGERPRINT_SIZE_BYTES];
+                in.readFully(fingerprint);
+                int termId = intern(new Term(kind, fingerprint));
+                int count = readVarint(in);
+                if (count < 0 || count > pathCount) {
+                    throw new IOException("Corrupt signer index: " + mFile);
+                }
+                int[] postings = new int[Math.max(2, count)];
+                int apkId = 0;
+                for (int j = 0; j < count; j++) {
+                    apkId += readVarint(in);
+                    if (apkId < 0 || apkId >= pathCount) {
+                        throw new IOException("Corrupt signer index: " + mFile);
+                    }
+                    postings[j] = apkId;
+                }
+                mPostings[termId] = postings;
+                mPostingCounts[termId] = count;
+            }
+        } catch (EOFException e) {
+            throw new IOException("Truncated signer index: " + mFile, e);
+        }
+    }
+
+    private void appendJournal(byte type, String apkFile, Set<Term> terms) throws IOException {
+        byte[] path = apkFile.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(1 + 4 + path.length + 4
+                + terms.size() * (1 + FINGERPRINT_SIZE_BYTES));
+        payload.put(type).putInt(path.length).put(path).putInt(terms.size());
+        for (Term term : terms) {
+            payload.put(term.kind).put(term.fingerprint);
+        }
+        payload.flip();
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        ByteBuffer record = ByteBuffer.allocate(8 + payload.remaining());
+        record.putInt(payload.remaining()).putInt((int) crc.getValue()).put(payload);
+        record.flip();
+        long offset = mJournal.size();
+        while (record.hasRemaining()) {
+            mJournal.write(record, offset + record.position());
+        }
+    }
+
+    private void replayJournal() throws IOException {
+        long size = mJournal.size();
+        long offset = 0;
+        ByteBuffer header = ByteBuffer.allocate(8);
+        while (offset + 8 <= size) {
+            header.clear();
+            readFully(header, offset);
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length < 9 || length > MAX_JOURNAL_RECORD_SIZE_BYTES
+                    || offset + 8 + length > size) {
+                break;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(payload, offset + 8);
+            payload.flip();
+            CRC32 crc = new CRC32();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            byte type = payload.get();
+            byte[] path = new byte[payload.getInt()];
+            payload.get(path);
+            String apkFile = new String(path, StandardCharsets.UTF_8);
+            if (type == JOURNAL_REMOVE) {
+                applyRemove(apkFile);
+            } else {
+                int termCount = payload.getInt();
+                Set<Term> terms = new LinkedHashSet<>();
+                for (int i = 0; i < termCount; i++) {
+                    byte kind = payload.get();
+                    byte[] fingerprint = new byte[FINGERPRINT_SIZE_BYTES];
+                    payload.get(fingerprint);
+                    terms.add(new Term(kind, fingerprint));
+                }
+                applyAdd(apkFile, terms);
+            }
+            offset += 8 + length;
+        }
+        if (offset < size) {
+            // Torn or corrupt tail, e.g. the process died while appending.
+            mJournal.truncate(offset);
+        }
+    }
+
+    private void readFully(ByteBuffer dst, long offset) throws IOException {
+        while (dst.hasRemaining()) {
+            if (mJournal.read(dst, offset + dst.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private static void addSigner(Set<Term> terms, X509Certificate cert) {
+        terms.add(new Term((byte) KIND_SIGNER_CERTIFICATE, fingerprint(encoded(cert))));
+        terms.add(new Term((byte) KIND_SIGNER_PUBLIC_KEY,
+                fingerprint(cert.getPublicKey().getEncoded())));
+    }
+
+    private static void addLineage(Set<Term> terms,
+                                   ApkSigningBlockUtils.VerifiedProofOfRotation por) {
+        if (por == null) {
+            return;
+        }
+        for (X509Certificate cert : por.certs) {
+            terms.add(new Term((byte) KIND_LINEAGE_CERTIFICATE, fingerprint(encoded(cert))));
+            terms.add(new Term((byte) KIND_LINEAGE_PUBLIC_KEY,
+                    fingerprint(cert.getPublicKey().getEncoded())));
+        }
+    }
+
+    private static byte[] encoded(X509Certificate cert) {
+        try {
+            return cert.getEncoded();
+        } catch (CertificateEncodingException e) {
+            throw new SecurityException("Failed to encode certificate", e);
+        }
+    }
+
+    private static byte[] fingerprint(byte[] encoded) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(encoded);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 digest not supported", e);
+        }
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static class Term {
+        final byte kind;
+        final byte[] fingerprint;
+        final int hashCode;
+
+        Term(byte kind, byte[] fingerprint) {
+            this.kind = kind;
+            this.fingerprint = fingerprint;
+            this.hashCode = 31 * kind + Arrays.hashCode(fingerprint);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Term)) {
+                return false;
+            }
+            Term other = (Term) o;
+            return kind == other.kind && Arrays.equals(fingerprint, other.fingerprint);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package com.lenovo.leos.sign;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Caches the results of an {@link ApkVerifier} per file, so that repeated lookups of an unchanged
+ * APK cost one {@code stat} instead of a verification.
+ *
+ * <p>An entry is valid while the size, modification time and file key (e.g. inode) of its file
+ * are unchanged; a changed file is verified again. Results and verification failures are cached;
+ * I/O errors are not, as they may be transient. Concurrent lookups of a file that is not cached
+ * wait for a single verification.
+ *
+ * <p>At most {@code maximumSize} files are cached. When full, a new file only replaces the least
+ * recently used one if it was looked up more often recently, so that a scan over many files seen
+ * once does not flush the frequently used ones.
+ */
+public class VerificationCache {
+    private final ApkVerifier mVerifier;
+    private final int mMaximumSize;
+    private final ConcurrentHashMap<String, Node> mNodes = new ConcurrentHashMap<>();
+
+    // Guards mOrder and mSketch. Hits only reorder if the lock is free.
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final LinkedHashMap<String, Node> mOrder = new LinkedHashMap<>(16, 0.75f, true);
+    private final FrequencySketch mSketch;
+
+    private final LongAdder mHits = new LongAdder();
+    private final LongAdder mMisses = new LongAdder();
+    private final LongAdder mCoalesced = new LongAdder();
+    private final LongAdder mEvictions = new LongAdder();
+
+    public VerificationCache(ApkVerifier verifier, int maximumSize) {
+        if (verifier == null) {
+            throw new NullPointerException("verifier == null");
+        }
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("maximumSize: " + maximumSize);
+        }
+        mVerifier = verifier;
+        mMaximumSize = maximumSize;
+        mSketch = new FrequencySketch(maximumSize);
+    }
+
+    /**
+     * Returns the cached result of the provided APK or verifies it.
+     *
+     * @throws SignatureNotFoundException if the APK is not signed using any registered scheme.
+     * @throws SecurityException          if a signature of a present scheme does not verify.
+     * @throws IOException                if an I/O error occurs while reading the APK file.
+     */
+    public ApkVerificationResult verify(String apkFile)
+            throws SignatureNotFoundException, SecurityException, IOException {
+        Path path = Paths.get(apkFile).toAbsolutePath().normalize();
+        String key = path.toString();
+        FileStamp stamp = FileStamp.of(path);
+        while (true) {
+            Node node = mNodes.get(key);
+            if (node != null && node.stamp.equals(stamp)) {
+                if (node.result.isDone()) {
+                    mHits.increment();
+                } else {
+                    mCoalesced.increment();
+                }
+                onHit(key);
+                return join(node);
+            }
+            Node created = new Node(key, stamp);
+            boolean claimed = node == null
+                    ? mNodes.putIfAbsent(key, created) == null
+                    : mNodes.replace(key, node, created);
+            if (claimed) {
+                mMisses.increment();
+                onMiss(created);
+                load(created);
+                return join(created);
+            }
+            // Another thread claimed the file first: use its entry.
+        }
+    }
+
+    /**
+     * Discards the cached result of the provided APK.
+     */
+    public void invalidate(String apkFile) {
+        String key = Paths.get(apkFile).toAbsolutePath().normalize().toString();
+        mLock.lock();
+        try {
+            Node node = mOrder.remove(key);
+            if (node != null) {
+                mNodes.remove(key, node);
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Discards all cached results.
+     */
+    public void invalidateAll() {
+        mLock.lock();
+        try {
+            for (Map.Entry<String, Node> entry : mOrder.entrySet()) {
+                mNodes.remove(entry.getKey(), entry.getValue());
+            }
+            mOrder.clear();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public CacheStats getStats() {
+        return new CacheStats(mHits.sum(), mMisses.sum(), mCoalesced.sum(), mEvictions.sum(),
+                mNodes.size());
+    }
+
+    private void load(Node node) {
+        try {
+            node.result.complete(mVerifier.verify(node.key));
+        } catch (SignatureNotFoundException | IOException | RuntimeException | Error e) {
+            node.result.completeExceptionally(e);
+            if (e instanceof IOException) {
+                // Possibly transient: let the next lookup try again.
+                remove(node);
+            }
+        }
+    }
+
+    private void onHit(String key) {
+        if (mLock.tryLock()) {
+            try {
+                mSketch.increment(key.hashCode());
+                mOrder.get(key);
+            } finally {
+                mLock.unlock();
+            }
+        }
+    }
+
+    private void onMiss(Node created) {
+        mLock.lock();
+        try {
+            mSketch.increment(created.key.hashCode());
+            mOrder.put(created.key, created);
+            Iterator<Map.Entry<String, Node>> it = mOrder.entrySet().iterator();
+            while (mOrder.size() > mMaximumSize && it.hasNext()) {
+                Node victim = it.next().getValue();
+                if (victim == created) {
+                    continue;
+                }
+                Node evicted = mSketch.frequency(created.key.hashCode())
+                        > mSketch.frequency(victim.key.hashCode()) ? victim : created;
+                if (evicted == victim) {
+                    it.remove();
+                } else {
+                    mOrder.remove(created.key);
+                }
+                mNodes.remove(evicted.key, evicted);
+                mEvictions.increment();
+                if (evicted == created) {
+                    break;
+                }
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void remove(Node node) {
+        mLock.lock();
+        try {
+            mOrder.remove(node.key, node);
+            mNodes.remove(node.key, node);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private static ApkVerificationResult join(Node node)
+            throws SignatureNotFoundException, IOException {
+        try {
+            return node.result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + node.key);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SignatureNotFoundException) {
+                throw (SignatureNotFoundException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("Failed to verify " + node.key, cause);
+        }
+    }
+
+    private static class Node {
+        final String key;
+        final FileStamp stamp;
+        final CompletableFuture<ApkVerificationResult> result = new CompletableFuture<>();
+
+        Node(String key, FileStamp stamp) {
+            this.key = key;
+            this.stamp = stamp;
+        }
+    }
+
+    /**
+     * Counters of a {@link VerificationCache}.
+     */
+    public static class CacheStats {
+        public final long hits;
+        public final long misses;
+        // Lookups that waited for a verification started by another lookup.
+        public final long coalesced;
+        public final long evictions;
+        public final int size;
+
+        public CacheStats(long hits, long misses, long coalesced, long evictions, int size) {
+            this.hits = hits;
+            this.misses = misses;
+            this.coalesced = coalesced;
+            this.evictions = evictions;
+            this.size = size;
+        }
+
+        /**
+         * Returns the fraction of lookups that did not start a verification.
+         */
+        public double getHitRate() {
+            long lookups = hits + misses + coalesced;
+            return lookups == 0 ? 0 : (double) (hits + coalesced) / lookups;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d hits, %d misses, %d coalesced, %d evictions, size %d,"
+                    + " hit rate %.1f%%", hits, misses, coalesced, evictions, size,
+                    getHitRate() * 100);
+        }
+    }
+}
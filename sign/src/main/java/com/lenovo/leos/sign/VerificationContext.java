@@ -0,0 +1,207 @@
+package com.lenovo.leos.sign;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+/**
+ * State of one {@link ApkVerifier} run over one APK, shared by all {@link SchemeHandler}s: the
+ * open file, its APK Signing Block (read once) and the content digests computed so far.
+ *
+ * <p>Handlers may run concurrently. Each content digest algorithm is computed at most once per
+ * run: a handler needing a digest that another handler is computing waits for it.
+ */
+public class VerificationContext {
+    public final String apkFile;
+    public final RandomAccessFile apk;
+    public final VerificationLevel level;
+
+    /**
+     * APK Signing Block of the file or {@code null} if the file has none.
+     */
+    private final ApkSigningBlock mSigningBlock;
+    private final Executor mExecutor;
+    private final int mParallelism;
+    private final CancellationSignal mSignal;
+    // Digest algorithm -> digest of the APK contents, shared between schemes.
+    private final Map<Integer, CompletableFuture<byte[]>> mComputedDigests =
+            new ConcurrentHashMap<>();
+    private final Set<Integer> mVerifiedSchemes = ConcurrentHashMap.newKeySet();
+
+    VerificationContext(String apkFile, RandomAccessFile apk, ApkSigningBlock signingBlock,
+                        VerificationLevel level, Executor executor, int parallelism,
+                        CancellationSignal signal) {
+        this.apkFile = apkFile;
+        this.apk = apk;
+        this.mSigningBlock = signingBlock;
+        this.level = level;
+        this.mExecutor = executor;
+        this.mParallelism = parallelism;
+        this.mSignal = new CancellationSignal(signal);
+    }
+
+    /**
+     * Returns the APK Signing Block of the file or {@code null} if the file has none.
+     */
+    public ApkSigningBlock getSigningBlock() {
+        return mSigningBlock;
+    }
+
+    /**
+     * Returns the signal canceling this run. Long-running handlers should check it between units
+     * of work. It is scoped to this run: canceled with the signal the run was started with, but
+     * canceling it, e.g. once the outcome is decided, does not cancel that signal.
+     */
+    public CancellationSignal getCancellationSignal() {
+        return mSignal;
+    }
+
+    /**
+     * Returns the APK Signature Scheme block with the provided ID.
+     *
+     * @throws SignatureNotFoundException if the APK has no APK Signing Block or the block has no
+     *                                    pair with this ID.
+     */
+    public SignatureInfo findSignature(int blockId) throws SignatureNotFoundException {
+        if (mSigningBlock == null) {
+            throw new SignatureNotFoundException("No APK Signing Block");
+        }
+        return mSigningBlock.findSignature(blockId);
+    }
+
+    /**
+     * Returns {@code true} if a scheme with the provided version already verified during this
+     * run, or is being verified concurrently and the run fails unless it verifies.
+     */
+    public boolean isSchemeVerified(int schemeVersion) {
+        return mVerifiedSchemes.contains(schemeVersion);
+    }
+
+    void onSchemeVerified(int schemeVersion) {
+        mVerifiedSchemes.add(schemeVersion);
+    }
+
+    void onSchemeScheduled(int schemeVersion) {
+        // A scheduled scheme either verifies or fails the whole run.
+        mVerifiedSchemes.add(schemeVersion);
+    }
+
+    /**
+     * Verifies the APK contents against {@code expectedDigests} as far as {@link #level} asks
+     * for. Digests computed for another scheme with the same algorithm, including the verity root
+     * hash, are reused. Below {@link VerificationLevel#VERITY}, a verity digest is only verified
+     * if it is the only one signed.
+     *
+     * @return the level reached: {@link VerificationLevel#SIGNATURES} if content was not to be
+     * verified, {@link VerificationLevel#VERITY} only if a verity digest was verified.
+     * @throws SecurityException if a digest of the APK contents does not verify.
+     * @throws IOException       if an I/O error occurs while reading the APK file.
+     */
+    public VerificationLevel verifyIntegrity(Map<Integer, byte[]> expectedDigests,
+                                             SignatureInfo signatureInfo)
+            throws SecurityException, IOException {
+        if (!level.includes(VerificationLevel.CONTENT)) {
+            return VerificationLevel.SIGNATURES;
+        }
+        boolean hasVerity = expectedDigests
+                .containsKey(ApkSigningBlockUtils.CONTENT_DIGEST_VERITY_CHUNKED_SHA256);
+        boolean verifyVerity = hasVerity
+                && (level.includes(VerificationLevel.VERITY) || expectedDigests.size() == 1);
+        Set<Integer> digestAlgorithms = new HashSet<>(expectedDigests.keySet());
+        if (!verifyVerity) {
+            digestAlgorithms.remove(ApkSigningBlockUtils.CONTENT_DIGEST_VERITY_CHUNKED_SHA256);
+        }
+        // Compares the verity root hash too if it was computed.
+        Map<Integer, byte[]> actualDigests = getContentDigests(digestAlgorithms, signatureInfo);
+        ApkSigningBlockUtils.verifyIntegrity(expectedDigests, apk, signatureInfo, actualDigests,
+                mSignal);
+        return verifyVerity && level.includes(VerificationLevel.VERITY)
+                ? VerificationLevel.VERITY : VerificationLevel.CONTENT;
+    }
+
+    /**
+     * Returns the requested digests of the APK contents. For
+     * {@link ApkSigningBlockUtils#CONTENT_DIGEST_VERITY_CHUNKED_SHA256}, the Merkle tree root hash
+     * is returned.
+     */
+    private Map<Integer, byte[]> getContentDigests(Set<Integer> digestAlgorithms,
+                                                   SignatureInfo signatureInfo)
+            throws IOException {
+        Map<Integer, CompletableFuture<byte[]>> digests = new HashMap<>();
+        List<Integer> owned = new ArrayList<>();
+        for (int digestAlgorithm : digestAlgorithms) {
+            CompletableFuture<byte[]> digest = new CompletableFuture<>();
+            CompletableFuture<byte[]> existing =
+                    mComputedDigests.putIfAbsent(digestAlgorithm, digest);
+            if (existing == null) {
+                owned.add(digestAlgorithm);
+                digests.put(digestAlgorithm, digest);
+            } else {
+                digests.put(digestAlgorithm, existing);
+            }
+        }
+
+        if (!owned.isEmpty()) {
+            try {
+                // Chunked digests share one pass over the contents; the verity tree needs its
+                // own pass with a different page size.
+                boolean verity = owned.remove(
+                        (Integer) ApkSigningBlockUtils.CONTENT_DIGEST_VERITY_CHUNKED_SHA256);
+                if (!owned.isEmpty()) {
+                    int[] ownedAlgorithms = new int[owned.size()];
+                    for (int i = 0; i < ownedAlgorithms.length; i++) {
+                        ownedAlgorithms[i] = owned.get(i);
+                    }
+                    Map<Integer, byte[]> computed = ApkSigningBlockUtils.computeContentDigests(
+                            ownedAlgorithms, apk, signatureInfo, mExecutor, mParallelism,
+                            mSignal);
+                    for (int digestAlgorithm : ownedAlgorithms) {
+                        digests.get(digestAlgorithm).complete(computed.get(digestAlgorithm));
+                    }
+                }
+                if (verity) {
+                    owned.add(ApkSigningBlockUtils.CONTENT_DIGEST_VERITY_CHUNKED_SHA256);
+                    digests.get(ApkSigningBlockUtils.CONTENT_DIGEST_VERITY_CHUNKED_SHA256).complete(
+                            ApkSigningBlockUtils.computeVerityRootHash(apk, signatureInfo, mSignal));
+                }
+            } catch (IOException | RuntimeException | Error e) {
+                for (int digestAlgorithm : owned) {
+                    // No-op for digests completed before the failure.
+                    digests.get(digestAlgorithm).completeExceptionally(e);
+                }
+                throw e;
+            }
+        }
+
+        Map<Integer, byte[]> result = new HashMap<>();
+        for (Map.Entry<Integer, CompletableFuture<byte[]>> entry : digests.entrySet()) {
+            try {
+                result.put(entry.getKey(), entry.getValue().get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for content digest");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException("Failed to compute content digest", cause);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,67 @@
+package com.lenovo.leos.sign;
+
+/**
+ * Emits JDK Flight Recorder events for verifications and their phases, if the runtime has the
+ * {@code jdk.jfr} module. This class does not reference it: {@link JfrEvents}, which does, is
+ * only loaded once {@code jdk.jfr.Event} is known to load, so the library runs without it.
+ *
+ * <p>While no recording enables the events, each check is a field read and nothing is
+ * allocated.
+ */
+final class VerificationEvents {
+    private static final boolean AVAILABLE = isAvailable();
+
+    private VerificationEvents() {
+    }
+
+    private static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return JfrEvents.isSupported();
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    static boolean isPhaseEnabled() {
+        return AVAILABLE && JfrEvents.isPhaseEnabled();
+    }
+
+    /**
+     * Begins a phase event identified by {@code token} on this thread, if enabled.
+     */
+    static void beginPhase(long token) {
+        if (AVAILABLE) {
+            JfrEvents.beginPhase(token);
+        }
+    }
+
+    /**
+     * Commits the phase event begun with {@code token} on this thread, if any.
+     */
+    static void endPhase(long token, VerificationListener.Phase phase, int schemeVersion,
+                         int algorithm, long bytes) {
+        if (AVAILABLE) {
+            JfrEvents.endPhase(token, phase, schemeVersion, algorithm, bytes);
+        }
+    }
+
+    /**
+     * Begins the event of the verification of {@code apkFile} on this thread and returns it, or
+     * returns {@code null} if not enabled.
+     */
+    static Object beginVerification(String apkFile) {
+        return AVAILABLE ? JfrEvents.beginVerification(apkFile) : null;
+    }
+
+    /**
+     * Commits a verification event returned by {@link #beginVerification}.
+     *
+     * @param result  result of the verification, or {@code null} if it failed.
+     * @param failure exception the verification failed with, or {@code null}.
+     */
+    static void endVerification(Object event, VerificationLevel level,
+                                ApkVerificationResult result, Throwable failure) {
+        JfrEvents.endVerification(event, level, result, failure);
+    }
+}
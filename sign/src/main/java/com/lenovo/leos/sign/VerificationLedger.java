@@ -0,0 +1,782 @@
+package com.lenovo.leos.sign;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent record of verified APKs, so that a scan restarted after the process exits skips the
+ * files that did not change since.
+ *
+ * <p>The ledger is an append-only file of checksummed records, one per verification, holding the
+ * identity of the file (path, size, modification time, file key and a SHA-256 digest of its last
+ * 8 KiB), the outcome, and for each verified scheme the level, the SHA-256 fingerprints of the
+ * signers' certificates and the signed content digests. On open, the file is memory-mapped and
+ * scanned once to rebuild an in-memory index of the latest record of each path. A record torn by
+ * a crash fails its checksum; it and anything after it are cut off.
+ *
+ * <p>A lookup costs a {@code stat}, a read of the record and a digest of the file's tail. Once
+ * superseded records outweigh the live ones, the file is rewritten on a background thread while
+ * lookups and appends continue.
+ *
+ * <p>Appends reach the file system immediately but are only forced to the storage device by
+ * {@link #sync()} and {@link #close()}.
+ */
+public class VerificationLedger implements Closeable {
+    private static final byte[] MAGIC = "APKLEDG1".getBytes(StandardCharsets.US_ASCII);
+    private static final int RECORD_HEADER_SIZE_BYTES = 8;
+    private static final int MAX_RECORD_SIZE_BYTES = 1024 * 1024;
+    private static final int TAIL_SIZE_BYTES = 8 * 1024;
+    // Superseded records are only compacted once they reach this size.
+    private static final long MIN_COMPACTION_BYTES = 1024 * 1024;
+
+    private static final byte RECORD_ENTRY = 1;
+    private static final byte RECORD_REMOVAL = 2;
+
+    private static final byte OUTCOME_VERIFIED = 0;
+    private static final byte OUTCOME_NOT_SIGNED = 1;
+    private static final byte OUTCOME_INVALID = 2;
+
+    private final Path mFile;
+    // Latest record of each path.
+    private final ConcurrentHashMap<String, IndexEntry> mIndex = new ConcurrentHashMap<>();
+    // Write lock: appends and swapping the file. Read lock: reads of records.
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+    private FileChannel mChannel;
+    private long mEnd;
+    private long mDeadBytes;
+    private boolean mCompacting;
+    private boolean mClosed;
+
+    private VerificationLedger(Path file) {
+        mFile = file;
+    }
+
+    /**
+     * Opens the ledger stored in {@code file}, creating it if it does not exist.
+     *
+     * @throws IOException if the file cannot be read or is not a ledger.
+     */
+    public static VerificationLedger open(Path file) throws IOException {
+        VerificationLedger ledger = new VerificationLedger(file);
+        ledger.load();
+        return ledger;
+    }
+
+    private void load() throws IOException {
+        mChannel = FileChannel.open(mFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            long size = mChannel.size();
+            if (size == 0) {
+                mChannel.write(ByteBuffer.wrap(MAGIC), 0);
+                mEnd = MAGIC.length;
+                return;
+            }
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Ledger too large: " + size + " bytes");
+            }
+            MappedByteBuffer log = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            byte[] magic = new byte[MAGIC.length];
+            if (size < MAGIC.length || !Arrays.equals(get(log, magic), MAGIC)) {
+                throw new IOException("Not a verification ledger: " + mFile);
+            }
+            while (true) {
+                int offset = log.position();
+                ByteBuffer record = nextRecord(log);
+                if (record == null) {
+                    break;
+                }
+                String path = readString(record);
+                if (record.get(RECORD_HEADER_SIZE_BYTES) == RECORD_REMOVAL) {
+                    IndexEntry previous = mIndex.remove(path);
+                    mDeadBytes += log.position() - offset
+                            + (previous != null ? previous.length : 0);
+                } else {
+                    long fileSize = record.getLong();
+                    long lastModifiedNanos = record.getLong();
+                    IndexEntry previous = mIndex.put(path, new IndexEntry(offset,
+                            log.position() - offset, fileSize, lastModifiedNanos));
+                    if (previous != null) {
+                        mDeadBytes += previous.length;
+                    }
+                }
+            }
+            mEnd = log.position();
+            if (mEnd < size) {
+                // Torn or corrupt tail, e.g. the process died while appending.
+                mChannel.truncate(mEnd);
+            }
+        } catch (IOException | RuntimeException e) {
+            mChannel.close();
+            throw e;
+        }
+    }
+
+    private static byte[] get(ByteBuffer buf, byte[] dst) {
+        buf.get(dst);
+        return dst;
+    }
+
+    /**
+     * Returns the next intact record of {@code log}, positioned after its type, and advances
+     * {@code log} past it. Returns {@code null} at the end of the log or at the first record
+     * that is truncated or fails its checksum.
+     */
+    private static ByteBuffer nextRecord(ByteBuffer log) {
+        if (log.remaining() < RECORD_HEADER_SIZE_BYTES) {
+            return null;
+        }
+        int start = log.position();
+        int length = log.getInt(start);
+        int crc = log.getInt(start + 4);
+        if (length < 1 || length > MAX_RECORD_SIZE_BYTES
+                || length > log.remaining() - RECORD_HEADER_SIZE_BYTES) {
+            return null;
+        }
+        ByteBuffer record = log.duplicate();
+        record.position(start).limit(start + RECORD_HEADER_SIZE_BYTES + length);
+        record = record.slice();
+        record.position(RECORD_HEADER_SIZE_BYTES);
+        CRC32 checksum = new CRC32();
+        checksum.update(record.duplicate());
+        if ((int) checksum.getValue() != crc) {
+            return null;
+        }
+        log.position(start + RECORD_HEADER_SIZE_BYTES + length);
+        record.get();
+        return record;
+    }
+
+    /**
+     * Returns the recorded outcome of the provided APK if the file did not change since, or
+     * {@code null}.
+     *
+     * @throws IOException if the APK or the ledger cannot be read.
+     */
+    public Entry lookup(String apkFile) throws IOException {
+        Path path = Paths.get(apkFile).toAbsolutePath().normalize();
+        String key = path.toString();
+        IndexEntry index = mIndex.get(key);
+        if (index == null) {
+            return null;
+        }
+        FileStamp stamp = FileStamp.of(path);
+        if (stamp.size != index.size || stamp.lastModifiedNanos != index.lastModifiedNanos) {
+            return null;
+        }
+        Entry entry = readEntry(key);
+        if (entry == null || !entry.fileKey.equals(stamp.getFileKeyString())
+                || !Arrays.equals(entry.tailDigest, digestTail(path, stamp.size))) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the recorded outcome of the provided APK if the file did not change since and the
+     * outcome holds at the level of {@code verifier}: the APK verified at that level or a stricter
+     * one, or failed at that level or a laxer one. Otherwise, verifies it with {@code verifier}
+     * and records the outcome. A file that is not
+     * signed or does not verify is recorded and returned as such; I/O errors are thrown.
+     *
+     * @throws IOException if an I/O error occurs while reading the APK or writing the ledger.
+     */
+    public Entry verify(ApkVerifier verifier, String apkFile) throws IOException {
+        VerificationLevel level = verifier.getVerificationLevel();
+        Entry entry = lookup(apkFile);
+        if (entry != null && (entry.isVerified()
+                ? entry.requestedLevel.includes(level) : level.includes(entry.requestedLevel))) {
+            return entry;
+        }
+        Path path = Paths.get(apkFile).toAbsolutePath().normalize();
+        FileStamp stamp = FileStamp.of(path);
+        byte[] tailDigest = digestTail(path, stamp.size);
+        try {
+            ApkVerificationResult result = verifier.verify(path.toString());
+            entry = Entry.of(path.toString(), stamp, tailDigest, level, result);
+        } catch (SignatureNotFoundException e) {
+            entry = Entry.ofFailure(path.toString(), stamp, tailDigest, level,
+                    OUTCOME_NOT_SIGNED, e.getMessage());
+        } catch (SecurityException e) {
+            entry = Entry.ofFailure(path.toString(), stamp, tailDigest, level, OUTCOME_INVALID,
+                    e.getMessage());
+        }
+        if (stamp.equals(FileStamp.of(path))) {
+            // Only record what was verified if the file did not change meanwhile.
+            append(entry.path, entry.encode());
+        }
+        return entry;
+    }
+
+    /**
+     * Forgets the provided APK.
+     */
+    public void remove(String apkFile) throws IOException {
+        String key = Paths.get(apkFile).toAbsolutePath().normalize().toString();
+        if (mIndex.containsKey(key)) {
+            append(key, encodeRemoval(key));
+        }
+    }
+
+    /**
+     * Returns the number of APKs recorded.
+     */
+    public int size() {
+        return mIndex.size();
+    }
+
+    /**
+     * Forces appended records to the storage device.
+     */
+    public void sync() throws IOException {
+        mLock.readLock().lock();
+        try {
+            ensureOpen();
+            mChannel.force(false);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mLock.writeLock().lock();
+        try {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            try {
+                mChannel.force(false);
+            } finally {
+                mChannel.close();
+            }
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    private Entry readEntry(String key) throws IOException {
+        mLock.readLock().lock();
+        try {
+            ensureOpen();
+            IndexEntry index = mIndex.get(key);
+            if (index == null) {
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(index.length);
+            while (buffer.hasRemaining()) {
+                if (mChannel.read(buffer, index.offset + buffer.position()) < 0) {
+                    throw new IOException("Ledger truncated: " + mFile);
+                }
+            }
+            buffer.flip();
+            ByteBuffer record = nextRecord(buffer);
+            if (record == null) {
+                throw new IOException("Corrupt ledger record at offset " + index.offset);
+            }
+            // A record this version cannot decode is a miss; verify() records a fresh one.
+            return Entry.decode(record);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    private void append(String key, ByteBuffer payload) throws IOException {
+        CRC32 checksum = new CRC32();
+        checksum.update(payload.duplicate());
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE_BYTES + payload.remaining());
+        record.putInt(payload.remaining());
+        record.putInt((int) checksum.getValue());
+        record.put(payload);
+        record.flip();
+        boolean compact;
+        mLock.writeLock().lock();
+        try {
+            ensureOpen();
+            long offset = mEnd;
+            while (record.hasRemaining()) {
+                mChannel.write(record, offset + record.position());
+            }
+            mEnd += record.limit();
+            IndexEntry previous;
+            if (payload.get(0) == RECORD_REMOVAL) {
+                previous = mIndex.remove(key);
+                mDeadBytes += record.limit();
+            } else {
+                payload.position(1);
+                readString(payload);
+                previous = mIndex.put(key, new IndexEntry(offset, record.limit(),
+                        payload.getLong(), payload.getLong()));
+            }
+            if (previous != null) {
+                mDeadBytes += previous.length;
+            }
+            compact = !mCompacting && mDeadBytes >= MIN_COMPACTION_BYTES
+                    && mDeadBytes > mEnd - mDeadBytes;
+            if (compact) {
+                mCompacting = true;
+            }
+        } finally {
+            mLock.writeLock().unlock();
+        }
+        if (compact) {
+            Thread thread = new Thread(this::compactQuietly, "VerificationLedger-compaction");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void compactQuietly() {
+        try {
+            compact();
+        } catch (IOException e) {
+            // The ledger stays valid, if larger than needed. The next append retries.
+        } finally {
+            mLock.writeLock().lock();
+            mCompacting = false;
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrites the ledger with only the latest record of each path. Records that are appended
+     * meanwhile are carried over.
+     */
+    void compact() throws IOException {
+        Map<String, IndexEntry> snapshot;
+        long snapshotEnd;
+        long snapshotDeadBytes;
+        mLock.readLock().lock();
+        try {
+            ensureOpen();
+            snapshot = new HashMap<>(mIndex);
+            snapshotEnd = mEnd;
+            snapshotDeadBytes = mDeadBytes;
+        } finally {
+            mLock.readLock().unlock();
+        }
+
+        Path temp = mFile.resolveSibling(mFile.getFileName() + ".compact");
+        // Opened for reading too: once moved into place, it replaces mChannel.
+        FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        boolean installed = false;
+        try {
+            out.write(ByteBuffer.wrap(MAGIC));
+            // Old offset -> new offset of the copied records.
+            Map<Long, Long> moved = new HashMap<>();
+            for (IndexEntry index : snapshot.values()) {
+                moved.put(index.offset, out.position());
+                copy(index.offset, index.length, out);
+            }
+
+            mLock.writeLock().lock();
+            try {
+                ensureOpen();
+                long tailStart = out.position();
+                copy(snapshotEnd, mEnd - snapshotEnd, out);
+                out.force(true);
+                Map<String, IndexEntry> compacted = new HashMap<>();
+                for (Map.Entry<String, IndexEntry> e : mIndex.entrySet()) {
+                    IndexEntry index = e.getValue();
+                    long offset = index.offset >= snapshotEnd
+                            ? index.offset - snapshotEnd + tailStart
+                            : moved.get(index.offset);
+                    compacted.put(e.getKey(), new IndexEntry(offset, index.length, index.size,
+                            index.lastModifiedNanos));
+                }
+                // Until the move succeeds, the index and channel keep describing the old file.
+                Files.move(temp, mFile, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                installed = true;
+                FileChannel old = mChannel;
+                mChannel = out;
+                mIndex.putAll(compacted);
+                mEnd = out.size();
+                mDeadBytes -= snapshotDeadBytes;
+                old.close();
+            } finally {
+                mLock.writeLock().unlock();
+            }
+        } finally {
+            if (!installed) {
+                out.close();
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    private void copy(long offset, long length, FileChannel out) throws IOException {
+        long end = offset + length;
+        while (offset < end) {
+            offset += mChannel.transferTo(offset, end - offset, out);
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (mClosed) {
+            throw new IOException("Ledger closed: " + mFile);
+        }
+    }
+
+    private static byte[] digestTail(Path path, long size) throws IOException {
+        int length = (int) Math.min(size, TAIL_SIZE_BYTES);
+        ByteBuffer tail = ByteBuffer.allocate(length);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (tail.hasRemaining()) {
+                if (channel.read(tail, size - length + tail.position()) < 0) {
+                    break;
+                }
+            }
+        }
+        tail.flip();
+        MessageDigest md = newSha256();
+        md.update(tail);
+        return md.digest();
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 digest not supported", e);
+        }
+    }
+
+    private static ByteBuffer encodeRemoval(String path) {
+        byte[] encodedPath = path.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(1 + 4 + encodedPath.length);
+        payload.put(RECORD_REMOVAL);
+        payload.putInt(encodedPath.length).put(encodedPath);
+        payload.flip();
+        return payload;
+    }
+
+    /**
+     * Returns the level of ordinal {@code ordinal}, or {@code null} if it is out of range.
+     */
+    private static VerificationLevel decodeLevel(byte ordinal) {
+        VerificationLevel[] levels = VerificationLevel.values();
+        return ordinal >= 0 && ordinal < levels.length ? levels[ordinal] : null;
+    }
+
+    private static String readString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void putString(ByteBuffer buf, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buf.putInt(bytes.length).put(bytes);
+    }
+
+    private static int encodedLength(String value) {
+        return 4 + value.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /**
+     * Location of the latest record of a path, with what is needed to tell whether the file
+     * changed without reading the record.
+     */
+    private static class IndexEntry {
+        final long offset;
+        final int length;
+        final long size;
+        final long lastModifiedNanos;
+
+        IndexEntry(long offset, int length, long size, long lastModifiedNanos) {
+            this.offset = offset;
+            this.length = length;
+            this.size = size;
+            this.lastModifiedNanos = lastModifiedNanos;
+        }
+    }
+
+    /**
+     * Recorded outcome of one APK.
+     */
+    public static class Entry {
+        public final String path;
+        public final long size;
+        public final long lastModifiedNanos;
+        // File system specific identity of the file, empty if there is none.
+        public final String fileKey;
+        // SHA-256 digest of the last 8 KiB of the file.
+        public final byte[] tailDigest;
+        // Level of the verifier that produced this outcome.
+        public final VerificationLevel requestedLevel;
+        // Verified schemes, highest precedence first. Empty if the APK did not verify.
+        public final List<SchemeEntry> schemes;
+        // Why the APK did not verify or null.
+        public final String error;
+        // Result of the verification if it ran in this process and succeeded, otherwise null.
+        public final ApkVerificationResult result;
+        private final byte mOutcome;
+        private final boolean mFromLedger;
+
+        private Entry(String path, long size, long lastModifiedNanos, String fileKey,
+                      byte[] tailDigest, VerificationLevel requestedLevel, byte outcome,
+                      List<SchemeEntry> schemes, String error, ApkVerificationResult result,
+                      boolean fromLedger) {
+            this.path = path;
+            this.size = size;
+            this.lastModifiedNanos = lastModifiedNanos;
+            this.fileKey = fileKey;
+            this.tailDigest = tailDigest;
+            this.requestedLevel = requestedLevel;
+            this.mOutcome = outcome;
+            this.schemes = schemes;
+            this.error = error;
+            this.result = result;
+            this.mFromLedger = fromLedger;
+        }
+
+        public boolean isVerified() {
+            return mOutcome == OUTCOME_VERIFIED;
+        }
+
+        /**
+         * Returns whether this outcome was read from the ledger rather than verified just now.
+         */
+        public boolean isFromLedger() {
+            return mFromLedger;
+        }
+
+        /**
+         * Returns the level to which all verified schemes were verified or {@code null} if the
+         * APK did not verify.
+         */
+        public VerificationLevel getVerificationLevel() {
+            VerificationLevel level = null;
+            for (SchemeEntry scheme : schemes) {
+                if (level == null || !scheme.verificationLevel.includes(level)) {
+                    level = scheme.verificationLevel;
+                }
+            }
+            return level;
+        }
+
+        /**
+         * Returns the exception the APK did not verify with or {@code null}, as thrown by
+         * {@link ApkVerifier#verify(String)}.
+         */
+        public Exception getError() {
+            switch (mOutcome) {
+                case OUTCOME_NOT_SIGNED:
+                    return new SignatureNotFoundException(error);
+                case OUTCOME_INVALID:
+                    return new SecurityException(error);
+                default:
+                    return null;
+            }
+        }
+
+        static Entry of(String path, FileStamp stamp, byte[] tailDigest,
+                        VerificationLevel requestedLevel, ApkVerificationResult result) {
+            return new Entry(path, stamp.size, stamp.lastModifiedNanos,
+                    stamp.getFileKeyString(), tailDigest, requestedLevel, OUTCOME_VERIFIED,
+                    SchemeEntry.of(result), null, result, false);
+        }
+
+        static Entry ofFailure(String path, FileStamp stamp, byte[] tailDigest,
+                               VerificationLevel requestedLevel, byte outcome, String error) {
+            return new Entry(path, stamp.size, stamp.lastModifiedNanos,
+                    stamp.getFileKeyString(), tailDigest, requestedLevel, outcome,
+                    Collections.emptyList(), error != null ? error : "", null, false);
+        }
+
+        ByteBuffer encode() {
+            int length = 1 + encodedLength(path) + 8 + 8 + encodedLength(fileKey)
+                    + tailDigest.length + 1 + 1;
+            if (isVerified()) {
+                length += SchemeEntry.encodedLength(schemes);
+            } else {
+                length += encodedLength(error);
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            payload.put(RECORD_ENTRY);
+            putString(payload, path);
+            payload.putLong(size).putLong(lastModifiedNanos);
+            putString(payload, fileKey);
+            payload.put(tailDigest);
+            payload.put((byte) requestedLevel.ordinal());
+            payload.put(mOutcome);
+            if (isVerified()) {
+                SchemeEntry.encode(schemes, payload);
+            } else {
+                putString(payload, error);
+            }
+            payload.flip();
+            return payload;
+        }
+
+        /**
+         * Reads what {@link #encode} wrote, or returns {@code null} if the record holds a level
+         * this version does not know.
+         */
+        static Entry decode(ByteBuffer record) {
+            String path = readString(record);
+            long size = record.getLong();
+            long lastModifiedNanos = record.getLong();
+            String fileKey = readString(record);
+            byte[] tailDigest = new byte[32];
+            record.get(tailDigest);
+            VerificationLevel requestedLevel = decodeLevel(record.get());
+            if (requestedLevel == null) {
+                return null;
+            }
+            byte outcome = record.get();
+            if (outcome != OUTCOME_VERIFIED) {
+                return new Entry(path, size, lastModifiedNanos, fileKey, tailDigest,
+                        requestedLevel, outcome, Collections.emptyList(), readString(record),
+                        null, true);
+            }
+            List<SchemeEntry> schemes = SchemeEntry.decode(record);
+            if (schemes == null) {
+                return null;
+            }
+            return new Entry(path, size, lastModifiedNanos, fileKey, tailDigest, requestedLevel,
+                    outcome, schemes, null, null, true);
+        }
+    }
+
+    /**
+     * Recorded outcome of one verified scheme, without the certificates themselves.
+     */
+    public static class SchemeEntry {
+        public final int schemeVersion;
+        public final VerificationLevel verificationLevel;
+        // SHA-256 digest of the main certificate of each signer.
+        public final byte[][] signerFingerprints;
+        // Algorithm -> signed digest of the contents.
+        public final Map<Integer, byte[]> contentDigests;
+
+        public SchemeEntry(int schemeVersion, VerificationLevel verificationLevel,
+                           byte[][] signerFingerprints, Map<Integer, byte[]> contentDigests) {
+            this.schemeVersion = schemeVersion;
+            this.verificationLevel = verificationLevel;
+            this.signerFingerprints = signerFingerprints;
+            this.contentDigests = contentDigests;
+        }
+
+        /**
+         * Returns the recorded form of each verified scheme of {@code result}.
+         */
+        public static List<SchemeEntry> of(ApkVerificationResult result) {
+            List<SchemeEntry> schemes = new ArrayList<>(result.schemes.size());
+            for (ApkVerificationResult.VerifiedScheme scheme : result.schemes) {
+                byte[][] fingerprints = new byte[scheme.certs.length][];
+                for (int i = 0; i < scheme.certs.length; i++) {
+                    fingerprints[i] = fingerprint(scheme.certs[i][0]);
+                }
+                schemes.add(new SchemeEntry(scheme.schemeVersion, scheme.verificationLevel,
+                        fingerprints, scheme.contentDigests != null
+                        ? scheme.contentDigests : Collections.emptyMap()));
+            }
+            return Collections.unmodifiableList(schemes);
+        }
+
+        private static byte[] fingerprint(X509Certificate cert) {
+            try {
+                return newSha256().digest(cert.getEncoded());
+            } catch (CertificateEncodingException e) {
+                throw new SecurityException("Failed to encode certificate", e);
+            }
+        }
+
+        /**
+         * Returns the number of bytes {@link #encode} writes for {@code schemes}.
+         */
+        static int encodedLength(List<SchemeEntry> schemes) {
+            int length = 1;
+            for (SchemeEntry scheme : schemes) {
+                length += 4 + 1 + 2 + 2;
+                for (byte[] fingerprint : scheme.signerFingerprints) {
+                    length += 1 + fingerprint.length;
+                }
+                for (byte[] digest : scheme.contentDigests.values()) {
+                    length += 4 + 2 + digest.length;
+                }
+            }
+            return length;
+        }
+
+        /**
+         * Writes the compact binary form of {@code schemes}, at most 255 of them.
+         */
+        static void encode(List<SchemeEntry> schemes, ByteBuffer buf) {
+            buf.put((byte) schemes.size());
+            for (SchemeEntry scheme : schemes) {
+                buf.putInt(scheme.schemeVersion);
+                buf.put((byte) scheme.verificationLevel.ordinal());
+                buf.putShort((short) scheme.signerFingerprints.length);
+                for (byte[] fingerprint : scheme.signerFingerprints) {
+                    buf.put((byte) fingerprint.length).put(fingerprint);
+                }
+                buf.putShort((short) scheme.contentDigests.size());
+                for (Map.Entry<Integer, byte[]> digest : scheme.contentDigests.entrySet()) {
+                    buf.putInt(digest.getKey());
+                    buf.putShort((short) digest.getValue().length);
+                    buf.put(digest.getValue());
+                }
+            }
+        }
+
+        /**
+         * Reads what {@link #encode} wrote, or returns {@code null} if a scheme holds a level
+         * this version does not know.
+         */
+        static List<SchemeEntry> decode(ByteBuffer buf) {
+            int schemeCount = buf.get() & 0xff;
+            List<SchemeEntry> schemes = new ArrayList<>(schemeCount);
+            for (int i = 0; i < schemeCount; i++) {
+                int schemeVersion = buf.getInt();
+                VerificationLevel level = decodeLevel(buf.get());
+                if (level == null) {
+                    return null;
+                }
+                byte[][] fingerprints = new byte[buf.getShort() & 0xffff][];
+                for (int j = 0; j < fingerprints.length; j++) {
+                    fingerprints[j] = new byte[buf.get() & 0xff];
+                    buf.get(fingerprints[j]);
+                }
+                int digestCount = buf.getShort() & 0xffff;
+                Map<Integer, byte[]> digests = new LinkedHashMap<>(digestCount);
+                for (int j = 0; j < digestCount; j++) {
+                    int algorithm = buf.getInt();
+                    byte[] digest = new byte[buf.getShort() & 0xffff];
+                    buf.get(digest);
+                    digests.put(algorithm, digest);
+                }
+                schemes.add(new SchemeEntry(schemeVersion, level, fingerprints, digests));
+            }
+            return Collections.unmodifiableList(schemes);
+        }
+    }
+}
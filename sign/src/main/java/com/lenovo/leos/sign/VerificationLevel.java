@@ -0,0 +1,51 @@
+package com.lenovo.leos.sign;
+
+/**
+ * How far an APK is verified. Each level includes all work of the levels before it, so callers
+ * pay exactly for the guarantees they ask for. Byte counts below are per APK and scheme.
+ */
+public enum VerificationLevel {
+    /**
+     * The signature scheme block is present.
+     *
+     * <p>Reads the ZIP End of Central Directory (22 bytes, up to 64 KiB + 22 bytes when the EoCD
+     * has a comment), the 24-byte APK Signing Block footer and the APK Signing Block itself
+     * (usually a few KiB). No cryptography.
+     */
+    PROBE,
+
+    /**
+     * The signed data of every signer is authentic and its certificates decode.
+     *
+     * <p>Reads nothing beyond {@link #PROBE}. Decodes the X.509 certificates of each signer and
+     * performs one public-key signature verification per signer, plus one per level of a v3
+     * proof-of-rotation. For JAR signing, reads the manifest, the signature files and one entry.
+     */
+    SIGNATURES,
+
+    /**
+     * The APK contents match the signed chunked content digests.
+     *
+     * <p>Reads the whole APK except the APK Signing Block once, in 1 MiB chunks, and computes one
+     * SHA-256 or SHA-512 digest per chunk and algorithm. Memory is one chunk buffer per worker
+     * plus 32 or 64 bytes per chunk. For JAR signing, reads and digests every entry.
+     */
+    CONTENT,
+
+    /**
+     * The APK contents also match the signed fs-verity Merkle tree root hash, if the signer
+     * provides one; otherwise the result is the same as {@link #CONTENT}.
+     *
+     * <p>Reads the whole APK except the APK Signing Block once more, in 4 KiB pages, and computes
+     * one salted SHA-256 digest per page of data and per page of the tree. Memory is about 1/128
+     * of the APK size for the tree.
+     */
+    VERITY;
+
+    /**
+     * Returns {@code true} if this level includes all work of {@code other}.
+     */
+    public boolean includes(VerificationLevel other) {
+        return compareTo(other) >= 0;
+    }
+}
@@ -0,0 +1,13 @@
+package com.lenovo.leos.sign;
+
+/**
+ * Indicates that an APK Signing Block declares more than {@link VerificationLimits} allow, e.g.
+ * too many signers. The APK is rejected, not treated as unsigned.
+ */
+public class VerificationLimitExceededException extends SecurityException {
+    private static final long serialVersionUID = 1L;
+
+    public VerificationLimitExceededException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,166 @@
+package com.lenovo.leos.sign;
+
+/**
+ * Hard limits on what the APK Signing Block of one APK may declare, so that a malicious APK cannot
+ * make the verifier allocate or verify without bound. Each limit is checked before the element
+ * over it is read or allocated, and exceeding it fails with
+ * {@link VerificationLimitExceededException}.
+ *
+ * <p>The defaults are far above what signing tools produce: a 64 MiB APK Signing Block, 10
+ * signers per scheme, 16 signatures and 16 certificates per signer, 32 proof-of-rotation levels
+ * and 64 additional attributes per signer.
+ */
+public class VerificationLimits {
+    /**
+     * The default limits.
+     */
+    public static final VerificationLimits DEFAULT = new Builder().build();
+
+    private static volatile VerificationLimits sDefault = DEFAULT;
+
+    private final int mMaxSigningBlockSize;
+    private final int mMaxSigners;
+    private final int mMaxSignatures;
+    private final int mMaxCertificates;
+    private final int mMaxLineageDepth;
+    private final int mMaxAttributes;
+
+    private VerificationLimits(Builder builder) {
+        mMaxSigningBlockSize = builder.mMaxSigningBlockSize;
+        mMaxSigners = builder.mMaxSigners;
+        mMaxSignatures = builder.mMaxSignatures;
+        mMaxCertificates = builder.mMaxCertificates;
+        mMaxLineageDepth = builder.mMaxLineageDepth;
+        mMaxAttributes = builder.mMaxAttributes;
+    }
+
+    /**
+     * Returns the limits all verifications apply.
+     */
+    public static VerificationLimits getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * Replaces the limits all verifications apply. Verifications already started may still
+     * apply the previous ones.
+     */
+    public static void setDefault(VerificationLimits limits) {
+        if (limits == null) {
+            throw new NullPointerException("limits == null");
+        }
+        sDefault = limits;
+    }
+
+    /**
+     * Returns the maximum size in bytes of the APK Signing Block, including its size fields.
+     */
+    public int getMaxSigningBlockSize() {
+        return mMaxSigningBlockSize;
+    }
+
+    /**
+     * Returns the maximum number of signers of one signature scheme block.
+     */
+    public int getMaxSigners() {
+        return mMaxSigners;
+    }
+
+    /**
+     * Returns the maximum number of signature records, and of digest records, of one signer.
+     */
+    public int getMaxSignatures() {
+        return mMaxSignatures;
+    }
+
+    /**
+     * Returns the maximum number of certificates of one signer.
+     */
+    public int getMaxCertificates() {
+        return mMaxCertificates;
+    }
+
+    /**
+     * Returns the maximum number of levels of a proof-of-rotation struct.
+     */
+    public int getMaxLineageDepth() {
+        return mMaxLineageDepth;
+    }
+
+    /**
+     * Returns the maximum number of additional attributes of one signer.
+     */
+    public int getMaxAttributes() {
+        return mMaxAttributes;
+    }
+
+    /**
+     * Throws if {@code count}, the number of elements read so far including the next one, is
+     * above {@code max}. {@code what} describes the elements, e.g. "signers in a v2 block". For
+     * verifiers.
+     */
+    public static void check(int count, int max, String what)
+            throws VerificationLimitExceededException {
+        if (count > max) {
+            throw new VerificationLimitExceededException("More than " + max + " " + what);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "VerificationLimits{signingBlockSize=" + mMaxSigningBlockSize
+                + ", signers=" + mMaxSigners + ", signatures=" + mMaxSignatures
+                + ", certificates=" + mMaxCertificates + ", lineageDepth=" + mMaxLineageDepth
+                + ", attributes=" + mMaxAttributes + "}";
+    }
+
+    public static class Builder {
+        private int mMaxSigningBlockSize = 64 * 1024 * 1024;
+        private int mMaxSigners = 10;
+        private int mMaxSignatures = 16;
+        private int mMaxCertificates = 16;
+        private int mMaxLineageDepth = 32;
+        private int mMaxAttributes = 64;
+
+        public Builder setMaxSigningBlockSize(int bytes) {
+            mMaxSigningBlockSize = positive(bytes, "bytes");
+            return this;
+        }
+
+        public Builder setMaxSigners(int count) {
+            mMaxSigners = positive(count, "count");
+            return this;
+        }
+
+        public Builder setMaxSignatures(int count) {
+            mMaxSignatures = positive(count, "count");
+            return this;
+        }
+
+        public Builder setMaxCertificates(int count) {
+            mMaxCertificates = positive(count, "count");
+            return this;
+        }
+
+        public Builder setMaxLineageDepth(int count) {
+            mMaxLineageDepth = positive(count, "count");
+            return this;
+        }
+
+        public Builder setMaxAttributes(int count) {
+            mMaxAttributes = positive(count, "count");
+            return this;
+        }
+
+        public VerificationLimits build() {
+            return new VerificationLimits(this);
+        }
+
+        private static int positive(int value, String name) {
+            if (value < 1) {
+                throw new IllegalArgumentException(name + ": " + value);
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.lenovo.leos.sign;
+
+/**
+ * Receives the duration of each phase of APK verification, to find out where the time of a slow
+ * APK goes.
+ *
+ * <p>Callbacks run on the verifying threads, possibly several at once, and must be fast and not
+ * throw. Only phases that complete are reported.
+ *
+ * <p>The default listener is {@link #NONE}: while it is installed, verifiers do not even read the
+ * clock, and no phase allocates anything for listeners.
+ */
+public abstract class VerificationListener {
+    /**
+     * Listener doing nothing.
+     */
+    public static final VerificationListener NONE = new VerificationListener() {
+    };
+
+    private static volatile VerificationListener sDefault = NONE;
+
+    /**
+     * Phases of verification, in the order they run for one scheme.
+     */
+    public enum Phase {
+        /**
+         * Search for the ZIP End of Central Directory record; bytes are the tail of the file
+         * from the record on.
+         */
+        EOCD_SEARCH,
+        /**
+         * Read of the APK Signing Block; bytes are its size.
+         */
+        SIGNING_BLOCK_READ,
+        /**
+         * Decode of the certificates of one signer; bytes are their encoded size.
+         */
+        CERTIFICATE_DECODE,
+        /**
+         * Verification of one signer's signature over its signed data with its public key;
+         * bytes are the size of the signed data.
+         */
+        SIGNATURE_VERIFY,
+        /**
+         * Verification of a proof-of-rotation struct; bytes are its size.
+         */
+        PROOF_OF_ROTATION,
+        /**
+         * Computation of a chunked content digest; bytes are the size of the contents. Digests
+         * computed in one pass each report the duration of the pass.
+         */
+        CONTENT_DIGEST,
+        /**
+         * Computation of the verity Merkle tree root hash; bytes are the size of the contents.
+         */
+        VERITY_TREE,
+        /**
+         * Whole verification of one APK by {@link ApkVerifier}, spanning the phases above;
+         * reported for the scheme taking precedence, bytes are the size of the file.
+         */
+        VERIFICATION,
+    }
+
+    /**
+     * Returns the listener all verifications report to.
+     */
+    public static VerificationListener getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * Replaces the listener all verifications report to. Phases already started may still be
+     * reported to the previous listener, or not at all.
+     */
+    public static void setDefault(VerificationListener listener) {
+        if (listener == null) {
+            throw new NullPointerException("listener == null");
+        }
+        sDefault = listener;
+    }
+
+    /**
+     * Called when a phase completes.
+     *
+     * @param schemeVersion version of the signature scheme the phase ran for, or 0 if it is
+     *                      shared by all schemes.
+     * @param algorithm     signature algorithm ID for {@link Phase#SIGNATURE_VERIFY}, content
+     *                      digest algorithm ID for {@link Phase#CONTENT_DIGEST} and
+     *                      {@link Phase#VERITY_TREE}, 0 otherwise.
+     * @param nanos         duration of the phase.
+     * @param bytes         bytes read or processed by the phase.
+     */
+    public void onPhase(Phase phase, int schemeVersion, int algorithm, long nanos, long bytes) {
+    }
+
+    /**
+     * Returns the start time of a phase to pass to {@link #phaseEnd}, or 0 if neither a listener
+     * is installed nor a Flight Recorder recording enables phase events. For verifiers.
+     */
+    public static long phaseStart() {
+        if (sDefault == NONE && !VerificationEvents.isPhaseEnabled()) {
+            return 0;
+        }
+        long startNanos = System.nanoTime();
+        VerificationEvents.beginPhase(startNanos);
+        return startNanos;
+    }
+
+    /**
+     * Reports a phase started at {@code startNanos} to the default listener and the Flight
+     * Recorder. For verifiers.
+     */
+    public static void phaseEnd(Phase phase, int schemeVersion, int algorithm, long startNanos,
+                                long bytes) {
+        if (startNanos != 0) {
+            VerificationEvents.endPhase(startNanos, phase, schemeVersion, algorithm, bytes);
+            sDefault.onPhase(phase, schemeVersion, algorithm, System.nanoTime() - startNanos,
+                    bytes);
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package com.lenovo.leos.sign;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Registry of verification metrics, installed as the default {@link VerificationListener}: a
+ * latency histogram and byte total per phase, scheme and algorithm, plus the hit rates of
+ * registered caches.
+ *
+ * <pre>
+ * VerificationMetrics metrics = new VerificationMetrics();
+ * VerificationListener.setDefault(metrics);
+ * metrics.addCache("verification", cache);
+ * ...
+ * String text = metrics.snapshot(true).toString();
+ * </pre>
+ *
+ * <p>Recording locks nothing and allocates only for the first phase of each phase, scheme and
+ * algorithm: histograms are arrays of atomic counters and totals are striped
+ * {@link LongAdder}s. Unknown schemes and algorithms share one series per phase.
+ */
+public class VerificationMetrics extends VerificationListener {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    // Known values; an index past the end stands for any other value.
+    private static final int[] SCHEMES = {0, 1, 2, 3, 31};
+    private static final int[] ALGORITHMS = {0,
+            ApkSigningBlockUtils.CONTENT_DIGEST_CHUNKED_SHA256,
+            ApkSigningBlockUtils.CONTENT_DIGEST_CHUNKED_SHA512,
+            ApkSigningBlockUtils.CONTENT_DIGEST_VERITY_CHUNKED_SHA256,
+            ApkSigningBlockUtils.CONTENT_DIGEST_SHA256,
+            ApkSigningBlockUtils.SIGNATURE_RSA_PSS_WITH_SHA256,
+            ApkSigningBlockUtils.SIGNATURE_RSA_PSS_WITH_SHA512,
+            ApkSigningBlockUtils.SIGNATURE_RSA_PKCS1_V1_5_WITH_SHA256,
+            ApkSigningBlockUtils.SIGNATURE_RSA_PKCS1_V1_5_WITH_SHA512,
+            ApkSigningBlockUtils.SIGNATURE_ECDSA_WITH_SHA256,
+            ApkSigningBlockUtils.SIGNATURE_ECDSA_WITH_SHA512,
+            ApkSigningBlockUtils.SIGNATURE_DSA_WITH_SHA256,
+            ApkSigningBlockUtils.SIGNATURE_VERITY_RSA_PKCS1_V1_5_WITH_SHA256,
+            ApkSigningBlockUtils.SIGNATURE_VERITY_ECDSA_WITH_SHA256,
+            ApkSigningBlockUtils.SIGNATURE_VERITY_DSA_WITH_SHA256};
+    private static final Phase[] PHASES = Phase.values();
+
+    private final AtomicReferenceArray<Series> mSeries = new AtomicReferenceArray<>(
+            PHASES.length * (SCHEMES.length + 1) * (ALGORITHMS.length + 1));
+    // Guarded by itself.
+    private final Map<String, Cache> mCaches = new LinkedHashMap<>();
+
+    @Override
+    public void onPhase(Phase phase, int schemeVersion, int algorithm, long nanos, long bytes) {
+        int schemeIndex = indexOf(SCHEMES, schemeVersion);
+        int algorithmIndex = indexOf(ALGORITHMS, algorithm);
+        int index = (phase.ordinal() * (SCHEMES.length + 1) + schemeIndex)
+                * (ALGORITHMS.length + 1) + algorithmIndex;
+        Series series = mSeries.get(index);
+        if (series == null) {
+            series = new Series(phase,
+                    schemeIndex < SCHEMES.length ? schemeVersion : -1,
+                    algorithmIndex < ALGORITHMS.length ? algorithm : -1);
+            if (!mSeries.compareAndSet(index, null, series)) {
+                series = mSeries.get(index);
+            }
+        }
+        series.latency.record(nanos);
+        series.nanos.add(nanos);
+        series.bytes.add(bytes);
+    }
+
+    /**
+     * Reports the hit rate of {@code cache} under {@code name}. Coalesced lookups count as hits.
+     */
+    public void addCache(String name, VerificationCache cache) {
+        addCache(name, () -> {
+            VerificationCache.CacheStats stats = cache.getStats();
+            return new long[]{stats.hits + stats.coalesced, stats.misses};
+        });
+    }
+
+    /**
+     * Reports the hit rate of {@code cache} under {@code name}.
+     */
+    public void addCache(String name, SharedVerificationCache cache) {
+        addCache(name, () -> {
+            SharedVerificationCache.CacheStats stats = cache.getStats();
+            return new long[]{stats.hits, stats.misses};
+        });
+    }
+
+    private void addCache(String name, Supplier<long[]> hitsAndMisses) {
+        synchronized (mCaches) {
+            mCaches.put(name, new Cache(hitsAndMisses));
+        }
+    }
+
+    /**
+     * Returns the metrics recorded so far, and if {@code reset}, starts recording anew. Phases
+     * reported concurrently are counted in either this snapshot or the next.
+     */
+    public Snapshot snapshot(boolean reset) {
+        List<SeriesSnapshot> series = new ArrayList<>();
+        for (int i = 0; i < mSeries.length(); i++) {
+            Series s = mSeries.get(i);
+            if (s == null) {
+                continue;
+            }
+            LatencyHistogram latency = s.latency.snapshot(reset);
+            if (latency.getCount() == 0) {
+                continue;
+            }
+            series.add(new SeriesSnapshot(s.phase, s.schemeVersion, s.algorithm, latency,
+                    reset ? s.nanos.sumThenReset() : s.nanos.sum(),
+                    reset ? s.bytes.sumThenReset() : s.bytes.sum()));
+        }
+        List<CacheSnapshot> caches = new ArrayList<>();
+        synchronized (mCaches) {
+            for (Map.Entry<String, Cache> entry : mCaches.entrySet()) {
+                Cache cache = entry.getValue();
+                long[] current = cache.hitsAndMisses.get();
+                caches.add(new CacheSnapshot(entry.getKey(), current[0] - cache.hitsBaseline,
+                        current[1] - cache.missesBaseline));
+                if (reset) {
+                    cache.hitsBaseline = current[0];
+                    cache.missesBaseline = current[1];
+                }
+            }
+        }
+        return new Snapshot(series, caches);
+    }
+
+    private static int indexOf(int[] values, int value) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == value) {
+                return i;
+            }
+        }
+        return values.length;
+    }
+
+    private static class Series {
+        final Phase phase;
+        final int schemeVersion;
+        final int algorithm;
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder nanos = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+
+        Series(Phase phase, int schemeVersion, int algorithm) {
+            this.phase = phase;
+            this.schemeVersion = schemeVersion;
+            this.algorithm = algorithm;
+        }
+    }
+
+    private static class Cache {
+        final Supplier<long[]> hitsAndMisses;
+        long hitsBaseline;
+        long missesBaseline;
+
+        Cache(Supplier<long[]> hitsAndMisses) {
+            this.hitsAndMisses = hitsAndMisses;
+        }
+    }
+
+    /**
+     * Metrics of one phase for one scheme and algorithm.
+     */
+    public static class SeriesSnapshot {
+        public final Phase phase;
+        /**
+         * Scheme version, 0 if the phase is shared by all schemes, -1 for other schemes.
+         */
+        public final int schemeVersion;
+        /**
+         * Algorithm ID as passed to {@link VerificationListener#onPhase}, -1 for other
+         * algorithms.
+         */
+        public final int algorithm;
+        public final LatencyHistogram latency;
+        public final long totalNanos;
+        public final long totalBytes;
+
+        public SeriesSnapshot(Phase phase, int schemeVersion, int algorithm,
+                              LatencyHistogram latency, long totalNanos, long totalBytes) {
+            this.phase = phase;
+            this.schemeVersion = schemeVersion;
+            this.algorithm = algorithm;
+            this.latency = latency;
+            this.totalNanos = totalNanos;
+            this.totalBytes = totalBytes;
+        }
+    }
+
+    public static class CacheSnapshot {
+        public final String name;
+        public final long hits;
+        public final long misses;
+
+        public CacheSnapshot(String name, long hits, long misses) {
+            this.name = name;
+            this.hits = hits;
+            this.misses = misses;
+        }
+
+        public double getHitRate() {
+            long lookups = hits + misses;
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        }
+    }
+
+    public static class Snapshot {
+        public final List<SeriesSnapshot> series;
+        public final List<CacheSnapshot> caches;
+
+        public Snapshot(List<SeriesSnapshot> series, List<CacheSnapshot> caches) {
+            this.series = Collections.unmodifiableList(series);
+            this.caches = Collections.unmodifiableList(caches);
+        }
+
+        /**
+         * Writes the metrics in the Prometheus text exposition format, in seconds and bytes.
+         * Labels: {@code phase}, {@code scheme} (0 if shared by all schemes) and
+         * {@code algorithm} (hexadecimal ID, 0x0000 if none) for phases, {@code cache} for caches.
+         */
+        public void writeText(Appendable out) throws IOException {
+            out.append("# TYPE apk_verification_phase_seconds summary\n");
+            for (SeriesSnapshot s : series) {
+                for (double quantile : QUANTILES) {
+                    sample(out, "apk_verification_phase_seconds", s,
+                            ",quantile=\"" + quantile + "\"",
+                            seconds(s.latency.getValueAtPercentile(quantile * 100)));
+                }
+                sample(out, "apk_verification_phase_seconds_sum", s, "", seconds(s.totalNanos));
+                sample(out, "apk_verification_phase_seconds_count", s, "",
+                        Long.toString(s.latency.getCount()));
+            }
+            out.append("# TYPE apk_verification_phase_max_seconds gauge\n");
+            for (SeriesSnapshot s : series) {
+                sample(out, "apk_verification_phase_max_seconds", s, "",
+                        seconds(s.latency.getMax()));
+            }
+            out.append("# TYPE apk_verification_phase_bytes counter\n");
+            for (SeriesSnapshot s : series) {
+                sample(out, "apk_verification_phase_bytes_total", s, "",
+                        Long.toString(s.totalBytes));
+            }
+            if (caches.isEmpty()) {
+                return;
+            }
+            out.append("# TYPE apk_verification_cache_hits counter\n");
+            for (CacheSnapshot c : caches) {
+                cacheSample(out, "apk_verification_cache_hits_total", c, Long.toString(c.hits));
+            }
+            out.append("# TYPE apk_verification_cache_misses counter\n");
+            for (CacheSnapshot c : caches) {
+                cacheSample(out, "apk_verification_cache_misses_total", c,
+                        Long.toString(c.misses));
+            }
+            out.append("# TYPE apk_verification_cache_hit_ratio gauge\n");
+            for (CacheSnapshot c : caches) {
+                cacheSample(out, "apk_verification_cache_hit_ratio", c,
+                        Double.toString(c.getHitRate()));
+            }
+        }
+
+        private static void sample(Appendable out, String name, SeriesSnapshot s,
+                                   String extraLabels, String value) throws IOException {
+            out.append(name)
+                    .append("{phase=\"").append(s.phase.name().toLowerCase(Locale.ROOT))
+                    .append("\",scheme=\"")
+                    .append(s.schemeVersion < 0 ? "other" : Integer.toString(s.schemeVersion))
+                    .append("\",algorithm=\"")
+                    .append(s.algorithm < 0 ? "other" : String.format("%#06x", s.algorithm))
+                    .append('"').append(extraLabels).append("} ").append(value).append('\n');
+        }
+
+        private static void cacheSample(Appendable out, String name, CacheSnapshot c,
+                                        String value) throws IOException {
+            out.append(name).append("{cache=\"")
+                    .append(c.name.replace("\\", "\\\\").replace("\"", "\\\""))
+                    .append("\"} ").append(value).append('\n');
+        }
+
+        private static String seconds(long nanos) {
+            return Double.toString(nanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder();
+            try {
+                writeText(text);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return text.toString();
+        }
+    }
+}
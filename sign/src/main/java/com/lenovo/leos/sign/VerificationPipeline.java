@@ -0,0 +1,603 @@
+package com.lenovo.leos.sign;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Verifies a stream of APKs with I/O and CPU work split into two stages, each with its own
+ * threads, so that slow disks do not idle the cores and fast disks do not flood memory.
+ *
+ * <p>The I/O stage opens files, reads the ZIP End of Central Directory and the APK Signing Block
+ * ({@link ApkSigningBlockUtils#findApkSigningBlock(RandomAccessFile)}) and reads content chunks.
+ * The CPU stage verifies the signers of the scheme taking precedence, through the registered
+ * {@link SchemeHandler}s, and digests content chunks. The stages hand work over through a bounded
+ * queue: when the CPU stage falls behind, I/O threads block until it catches up. In the other
+ * direction, the CPU stage only hands a file back once, to read its contents, so the two stages
+ * can never wait on each other. At most {@link Builder#setMaxFilesInFlight} files are between
+ * {@link #submit} and completion; {@code submit} blocks beyond that.
+ *
+ * <p>Memory used for content is bounded by one chunk of 1 MiB per I/O thread, per CPU thread and
+ * per slot of the queue between the stages. Chunks and APK Signing Blocks are also reserved from
+ * the default {@link MemoryBudget}.
+ *
+ * <p>The pipeline verifies up to {@link VerificationLevel#CONTENT}; {@link VerificationLevel#VERITY}
+ * is treated as {@code CONTENT}. APKs with no APK Signing Block are verified by JAR signing within
+ * the CPU stage, which then also does the reads. So are APKs whose only signed digest is a verity
+ * root hash: the Merkle tree is not split into chunks.
+ */
+public class VerificationPipeline implements Closeable {
+    private final VerificationLevel mLevel;
+    private final VerificationLevel mSignatureLevel;
+    private final ApkVerifier mSignatureVerifier;
+    private final ApkVerifier mJarVerifier;
+    private final int mIoThreadCount;
+    private final int mCpuThreadCount;
+    private final int mMaxFilesInFlight;
+
+    // Files to open go last, files whose contents are to be read go first, so that files already
+    // in flight complete before new ones start.
+    private final BlockingDeque<Job> mIoQueue = new LinkedBlockingDeque<>();
+    private final BlockingQueue<CpuTask> mCpuQueue;
+    private final Semaphore mFilesInFlight;
+    private final List<Thread> mThreads = new ArrayList<>();
+    private final AtomicBoolean mClosed = new AtomicBoolean();
+
+    private final long mStartNanos = System.nanoTime();
+    private final LongAdder mIoBusyNanos = new LongAdder();
+    private final LongAdder mCpuBusyNanos = new LongAdder();
+    private final LongAdder mCompletedFiles = new LongAdder();
+    private final LongAdder mFailedFiles = new LongAdder();
+    private final LongAdder mBytesRead = new LongAdder();
+
+    private VerificationPipeline(Builder builder) {
+        mLevel = builder.mLevel.includes(VerificationLevel.CONTENT)
+                ? VerificationLevel.CONTENT : builder.mLevel;
+        mSignatureLevel = mLevel.includes(VerificationLevel.SIGNATURES)
+                ? VerificationLevel.SIGNATURES : VerificationLevel.PROBE;
+        mSignatureVerifier = new ApkVerifier.Builder()
+                .setSchemeRegistry(builder.mRegistry)
+                .setVerificationLevel(mSignatureLevel)
+                .build();
+        mJarVerifier = new ApkVerifier.Builder()
+                .setSchemeRegistry(builder.mRegistry)
+                .setVerificationLevel(mLevel)
+                .build();
+        mIoThreadCount = builder.mIoThreadCount;
+        mCpuThreadCount = builder.mCpuThreadCount;
+        mMaxFilesInFlight = builder.mMaxFilesInFlight;
+        mCpuQueue = new ArrayBlockingQueue<>(builder.mQueueCapacity);
+        mFilesInFlight = new Semaphore(mMaxFilesInFlight);
+
+        for (int i = 0; i < mIoThreadCount; i++) {
+            startThread("VerificationPipeline-io-" + i, this::runIoWorker);
+        }
+        for (int i = 0; i < mCpuThreadCount; i++) {
+            startThread("VerificationPipeline-cpu-" + i, this::runCpuWorker);
+        }
+    }
+
+    private void startThread(String name, Runnable worker) {
+        Thread thread = new Thread(worker, name);
+        thread.setDaemon(true);
+        mThreads.add(thread);
+        thread.start();
+    }
+
+    /**
+     * Queues the provided APK for verification. Blocks while the maximum number of files is in
+     * flight. Canceling the returned future stops the verification at the next chunk.
+     *
+     * @return completes with the result or with the exception the verification failed with.
+     * @throws InterruptedIOException if interrupted while waiting for a file to complete.
+     * @throws IllegalStateException  if the pipeline is closed.
+     */
+    public CompletableFuture<ApkVerificationResult> submit(String apkFile)
+            throws InterruptedIOException {
+        return submit(apkFile, new CancellationSignal());
+    }
+
+    /**
+     * Same as above, but the verification also stops, failing the future with
+     * {@link java.util.concurrent.CancellationException}, once {@code signal} is canceled or its
+     * deadline passes, including while the file waits between the stages. Canceling the future
+     * cancels {@code signal}.
+     */
+    public CompletableFuture<ApkVerificationResult> submit(String apkFile,
+                                                           CancellationSignal signal)
+            throws InterruptedIOException {
+        if (mClosed.get()) {
+            throw new IllegalStateException("Pipeline closed");
+        }
+        try {
+            mFilesInFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to submit " + apkFile);
+        }
+        Job job = new Job(apkFile, signal);
+        job.future.whenComplete((result, e) -> {
+            if (job.future.isCancelled()) {
+                job.signal.cancel();
+                // Releases the file and its slot; the future is already complete.
+                job.fail(e);
+            }
+        });
+        mIoQueue.addLast(job);
+        return job.future;
+    }
+
+    /**
+     * Returns the current queue depths and the utilization of each stage since the pipeline was
+     * created.
+     */
+    public PipelineStats getStats() {
+        long elapsedNanos = Math.max(1, System.nanoTime() - mStartNanos);
+        return new PipelineStats(
+                mIoQueue.size(),
+                mCpuQueue.size(),
+                mCpuQueue.size() + mCpuQueue.remainingCapacity(),
+                mMaxFilesInFlight - mFilesInFlight.availablePermits(),
+                mCompletedFiles.sum(),
+                mFailedFiles.sum(),
+                mBytesRead.sum(),
+                (double) mIoBusyNanos.sum() / (elapsedNanos * mIoThreadCount),
+                (double) mCpuBusyNanos.sum() / (elapsedNanos * mCpuThreadCount));
+    }
+
+    /**
+     * Waits for all submitted files to complete and stops the worker threads.
+     */
+    @Override
+    public void close() throws InterruptedIOException {
+        if (!mClosed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            mFilesInFlight.acquire(mMaxFilesInFlight);
+            mFilesInFlight.release(mMaxFilesInFlight);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing pipeline");
+        } finally {
+            // Workers are idle unless interrupted early: nothing shares their file channels.
+            for (Thread thread : mThreads) {
+                thread.interrupt();
+            }
+        }
+        try {
+            for (Thread thread : mThreads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing pipeline");
+        }
+        // Chunks left behind by failed files.
+        CpuTask task;
+        while ((task = mCpuQueue.poll()) != null) {
+            if (task.reservation != null) {
+                task.reservation.close();
+            }
+        }
+    }
+
+    private void runIoWorker() {
+        try {
+            while (true) {
+                Job job = mIoQueue.takeFirst();
+                long start = System.nanoTime();
+                try {
+                    if (job.digestJob == null) {
+                        open(job);
+                    } else {
+                        readContents(job);
+                    }
+                } catch (InterruptedException e) {
+                    job.fail(e);
+                    throw e;
+                } catch (Throwable e) {
+                    job.fail(e);
+                } finally {
+                    mIoBusyNanos.add(System.nanoTime() - start);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Closed.
+        }
+    }
+
+    private void open(Job job) throws IOException, InterruptedException {
+        job.signal.throwIfCanceled();
+        if (!job.setApk(new RandomAccessFile(job.apkFile, "r"))) {
+            return;
+        }
+        try {
+            job.setSigningBlock(ApkSigningBlockUtils.findApkSigningBlock(job.apk));
+        } catch (SignatureNotFoundException e) {
+            // Not an error: the APK may still be JAR signed.
+        }
+        mCpuQueue.put(new CpuTask(job, -1, null, null));
+    }
+
+    private void readContents(Job job) throws IOException, InterruptedException {
+        ChunkedDigestJob digestJob = job.digestJob;
+        for (int i = 0; i < digestJob.getChunkCount(); i++) {
+            if (job.future.isDone()) {
+                // Failed or canceled: skip the remaining chunks.
+                return;
+            }
+            job.signal.throwIfCanceled();
+            MemoryBudget.Reservation reservation =
+                    MemoryBudget.reserveDefault(digestJob.getBufferSize());
+            try {
+                ByteBuffer chunk = ByteBuffer.allocate(digestJob.getBufferSize());
+                digestJob.readChunk(i, chunk);
+                mBytesRead.add(chunk.remaining());
+                mCpuQueue.put(new CpuTask(job, i, chunk, reservation));
+            } catch (IOException | InterruptedException | RuntimeException e) {
+                reservation.close();
+                throw e;
+            }
+        }
+    }
+
+    private void runCpuWorker() {
+        // Digesters of this thread, by content digest algorithm.
+        Map<Integer, MessageDigest> digests = new HashMap<>();
+        byte[] chunkContentPrefix = new byte[5];
+        try {
+            while (true) {
+                CpuTask task = mCpuQueue.take();
+                long start = System.nanoTime();
+                try {
+                    if (task.chunkIndex < 0) {
+                        verifySignatures(task.job);
+                    } else if (!task.job.future.isDone()) {
+                        digestChunk(task, digests, chunkContentPrefix);
+                    }
+                } catch (Throwable e) {
+                    task.job.fail(e);
+                } finally {
+                    if (task.reservation != null) {
+                        task.reservation.close();
+                    }
+                    mCpuBusyNanos.add(System.nanoTime() - start);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Closed.
+        }
+    }
+
+    private void verifySignatures(Job job) throws Exception {
+        job.signal.throwIfCanceled();
+        if (job.signingBlock == null) {
+            job.complete(verifyWith(mJarVerifier, job));
+            return;
+        }
+        ApkVerificationResult result = verifyWith(mSignatureVerifier, job);
+        if (!mLevel.includes(VerificationLevel.CONTENT)) {
+            job.complete(result);
+            return;
+        }
+        ApkVerificationResult.VerifiedScheme scheme = result.getEffectiveScheme();
+        if (scheme.schemeVersion == ApkVerificationResult.SCHEME_V1) {
+            // JAR signing takes precedence: its content digests are not chunked.
+            job.complete(verifyWith(mJarVerifier, job));
+            return;
+        }
+
+        List<Integer> algorithms = new ArrayList<>();
+        for (int digestAlgorithm : scheme.contentDigests.keySet()) {
+            if (digestAlgorithm != ApkSigningBlockUtils.CONTENT_DIGEST_VERITY_CHUNKED_SHA256) {
+                algorithms.add(digestAlgorithm);
+            }
+        }
+        if (algorithms.isEmpty()) {
+            // Only a verity digest: verified in this stage, like JAR signing.
+            job.complete(verifyWith(mJarVerifier, job));
+            return;
+        }
+        job.digestAlgorithms = new int[algorithms.size()];
+        for (int i = 0; i < job.digestAlgorithms.length; i++) {
+            job.digestAlgorithms[i] = algorithms.get(i);
+        }
+        ApkSigningBlock block = job.signingBlock;
+        job.signatureInfo = new SignatureInfo(null, block.apkSigningBlockOffset,
+                block.centralDirOffset, block.eocdOffset, block.eocd);
+        job.result = result;
+        job.digestJob = new ChunkedDigestJob(job.digestAlgorithms,
+                ApkSigningBlockUtils.getSignedContents(job.apk, job.signatureInfo),
+                ApkSigningBlockUtils.CHUNK_SIZE_BYTES, job.signal);
+        job.remainingChunks.set(job.digestJob.getChunkCount());
+        mIoQueue.addFirst(job);
+    }
+
+    private ApkVerificationResult verifyWith(ApkVerifier verifier, Job job)
+            throws SignatureNotFoundException, IOException {
+        VerificationContext context = new VerificationContext(job.apkFile, job.apk,
+                job.signingBlock, verifier == mJarVerifier ? mLevel : mSignatureLevel,
+                null, 1, job.signal);
+        return verifier.verify(context);
+    }
+
+    private void digestChunk(CpuTask task, Map<Integer, MessageDigest> digests,
+                             byte[] chunkContentPrefix) throws IOException, DigestException {
+        Job job = task.job;
+        job.signal.throwIfCanceled();
+        MessageDigest[] mds = new MessageDigest[job.digestAlgorithms.length];
+        for (int i = 0; i < mds.length; i++) {
+            mds[i] = digests.computeIfAbsent(job.digestAlgorithms[i],
+                    ChunkedDigestJob::newMessageDigest);
+        }
+        job.digestJob.digestChunk(task.chunkIndex, task.chunk, mds, chunkContentPrefix);
+        job.signal.addBytesDigested(task.chunk.limit());
+        task.reservation.close();
+        if (job.remainingChunks.decrementAndGet() != 0) {
+            return;
+        }
+
+        Map<Integer, byte[]> actualDigests = ApkSigningBlockUtils.finishContentDigests(
+                job.digestAlgorithms, job.digestJob.getDigestsOfChunks());
+        ApkVerificationResult.VerifiedScheme scheme = job.result.getEffectiveScheme();
+        ApkSigningBlockUtils.verifyIntegrity(scheme.contentDigests, job.apk, job.signatureInfo,
+                actualDigests);
+
+        List<ApkVerificationResult.VerifiedScheme> schemes = new ArrayList<>(job.result.schemes);
+        schemes.set(0, new ApkVerificationResult.VerifiedScheme(scheme.schemeVersion,
+                scheme.certs, scheme.por, scheme.verityRootHash, scheme.contentDigests,
+                VerificationLevel.CONTENT));
+        job.complete(new ApkVerificationResult(schemes, job.result.sourceStamp,
+                job.result.sourceStampError));
+    }
+
+    /**
+     * State of one file moving through the pipeline.
+     */
+    private class Job {
+        final String apkFile;
+        final CompletableFuture<ApkVerificationResult> future = new CompletableFuture<>();
+        final CancellationSignal signal;
+        final AtomicInteger remainingChunks = new AtomicInteger();
+        private final AtomicBoolean mDone = new AtomicBoolean();
+
+        // Written by one stage before the job is handed to the next one.
+        RandomAccessFile apk;
+        ApkSigningBlock signingBlock;
+        ApkVerificationResult result;
+        SignatureInfo signatureInfo;
+        int[] digestAlgorithms;
+        ChunkedDigestJob digestJob;
+
+        Job(String apkFile, CancellationSignal signal) {
+            this.apkFile = apkFile;
+            this.signal = signal;
+        }
+
+        void complete(ApkVerificationResult result) {
+            if (finish(mCompletedFiles)) {
+                future.complete(result);
+            }
+        }
+
+        void fail(Throwable e) {
+            if (finish(mFailedFiles)) {
+                future.completeExceptionally(e);
+            }
+        }
+
+        /**
+         * Sets the open file, or closes it and returns {@code false} if the job is already
+         * finished, e.g. canceled.
+         */
+        synchronized boolean setApk(RandomAccessFile apk) {
+            if (mDone.get()) {
+                closeQuietly(apk);
+                return false;
+            }
+            this.apk = apk;
+            return true;
+        }
+
+        /**
+         * Sets the APK Signing Block, or releases it if the job is already finished.
+         */
+        synchronized void setSigningBlock(ApkSigningBlock signingBlock) {
+            if (mDone.get()) {
+                signingBlock.close();
+                return;
+            }
+            this.signingBlock = signingBlock;
+        }
+
+        private synchronized boolean finish(LongAdder counter) {
+            if (!mDone.compareAndSet(false, true)) {
+                return false;
+            }
+            counter.increment();
+            if (apk != null) {
+                closeQuietly(apk);
+            }
+            if (signingBlock != null) {
+                signingBlock.close();
+            }
+            mFilesInFlight.release();
+            return true;
+        }
+
+        private void closeQuietly(RandomAccessFile apk) {
+            try {
+                apk.close();
+            } catch (IOException e) {
+                // Ignored: the file was only read.
+            }
+        }
+    }
+
+    /**
+     * Verification of the signers of a file, or digest of one content chunk.
+     */
+    private static class CpuTask {
+        final Job job;
+        // -1 to verify signers.
+        final int chunkIndex;
+        final ByteBuffer chunk;
+        // Memory budget of the chunk, released once digested.
+        final MemoryBudget.Reservation reservation;
+
+        CpuTask(Job job, int chunkIndex, ByteBuffer chunk, MemoryBudget.Reservation reservation) {
+            this.job = job;
+            this.chunkIndex = chunkIndex;
+            this.chunk = chunk;
+            this.reservation = reservation;
+        }
+    }
+
+    /**
+     * Point-in-time view of a pipeline.
+     */
+    public static class PipelineStats {
+        // Files waiting to be opened or to have their contents read.
+        public final int ioQueueDepth;
+        // Signer verifications and chunks waiting for a CPU thread.
+        public final int cpuQueueDepth;
+        public final int cpuQueueCapacity;
+        public final int filesInFlight;
+        public final long completedFiles;
+        public final long failedFiles;
+        // Content bytes read by the I/O stage.
+        public final long bytesRead;
+        // Fraction of time the threads of each stage were busy, between 0 and 1.
+        public final double ioUtilization;
+        public final double cpuUtilization;
+
+        public PipelineStats(int ioQueueDepth, int cpuQueueDepth, int cpuQueueCapacity,
+                             int filesInFlight, long completedFiles, long failedFiles,
+                             long bytesRead, double ioUtilization, double cpuUtilization) {
+            this.ioQueueDepth = ioQueueDepth;
+            this.cpuQueueDepth = cpuQueueDepth;
+            this.cpuQueueCapacity = cpuQueueCapacity;
+            this.filesInFlight = filesInFlight;
+            this.completedFiles = completedFiles;
+            this.failedFiles = failedFiles;
+            this.bytesRead = bytesRead;
+            this.ioUtilization = ioUtilization;
+            this.cpuUtilization = cpuUtilization;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("io queue %d, cpu queue %d/%d, in flight %d, completed %d,"
+                            + " failed %d, read %d bytes, io %.0f%%, cpu %.0f%%",
+                    ioQueueDepth, cpuQueueDepth, cpuQueueCapacity, filesInFlight,
+                    completedFiles, failedFiles, bytesRead, ioUtilization * 100,
+                    cpuUtilization * 100);
+        }
+    }
+
+    /**
+     * Builder of {@link VerificationPipeline} instances.
+     */
+    public static class Builder {
+        private SchemeRegistry mRegistry = SchemeRegistry.createDefault();
+        private VerificationLevel mLevel = VerificationLevel.CONTENT;
+        private int mIoThreadCount = 2;
+        private int mCpuThreadCount = Runtime.getRuntime().availableProcessors();
+        private int mQueueCapacity = 2 * Runtime.getRuntime().availableProcessors();
+        private int mMaxFilesInFlight = 4 * Runtime.getRuntime().availableProcessors();
+
+        /**
+         * Sets the registry of scheme handlers to consult. Defaults to
+         * {@link SchemeRegistry#createDefault()}.
+         */
+        public Builder setSchemeRegistry(SchemeRegistry registry) {
+            if (registry == null) {
+                throw new NullPointerException("registry == null");
+            }
+            mRegistry = registry;
+            return this;
+        }
+
+        /**
+         * Sets how far each file is verified. Defaults to {@link VerificationLevel#CONTENT},
+         * which is also the highest level supported.
+         */
+        public Builder setVerificationLevel(VerificationLevel level) {
+            if (level == null) {
+                throw new NullPointerException("level == null");
+            }
+            mLevel = level;
+            return this;
+        }
+
+        /**
+         * Sets the number of threads of the I/O stage. Defaults to 2.
+         */
+        public Builder setIoThreadCount(int ioThreadCount) {
+            if (ioThreadCount < 1) {
+                throw new IllegalArgumentException("ioThreadCount: " + ioThreadCount);
+            }
+            mIoThreadCount = ioThreadCount;
+            return this;
+        }
+
+        /**
+         * Sets the number of threads of the CPU stage. Defaults to the number of available
+         * processors.
+         */
+        public Builder setCpuThreadCount(int cpuThreadCount) {
+            if (cpuThreadCount < 1) {
+                throw new IllegalArgumentException("cpuThreadCount: " + cpuThreadCount);
+            }
+            mCpuThreadCount = cpuThreadCount;
+            return this;
+        }
+
+        /**
+         * Sets the capacity of the queue between the I/O and the CPU stage, in tasks. Each task
+         * may hold a content chunk of 1 MiB. Defaults to twice the number of available
+         * processors.
+         */
+        public Builder setQueueCapacity(int queueCapacity) {
+            if (queueCapacity < 1) {
+                throw new IllegalArgumentException("queueCapacity: " + queueCapacity);
+            }
+            mQueueCapacity = queueCapacity;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of files between submission and completion. Defaults to four
+         * times the number of available processors.
+         */
+        public Builder setMaxFilesInFlight(int maxFilesInFlight) {
+            if (maxFilesInFlight < 1) {
+                throw new IllegalArgumentException("maxFilesInFlight: " + maxFilesInFlight);
+            }
+            mMaxFilesInFlight = maxFilesInFlight;
+            return this;
+        }
+
+        public VerificationPipeline build() {
+            return new VerificationPipeline(this);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.lenovo.leos.sign;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes the root hash of the fs-verity compatible Merkle tree of APK contents, as signed by
+ * {@link ApkSigningBlockUtils#CONTENT_DIGEST_VERITY_CHUNKED_SHA256}.
+ *
+ * <p>The data is split into 4 KiB pages, the last one padded with zeros. Each page is digested
+ * with SHA-256 over an 8-byte zero salt followed by the page. The concatenated digests, padded to
+ * a page boundary, form the next level, until a level fits in a single page. The root hash is the
+ * digest of that page.
+ *
+ * <p>The tree is reserved from the default {@link MemoryBudget} while it is built.
+ */
+class VerityTreeBuilder {
+    private static final int CHUNK_SIZE_BYTES = 4096;
+    private static final int DIGEST_SIZE_BYTES = 32;
+    private static final int READ_SIZE_BYTES = 1024 * 1024;
+    private static final byte[] SALT = new byte[8];
+
+    private VerityTreeBuilder() {
+    }
+
+    /**
+     * Returns the root hash of the Merkle tree of the concatenation of {@code contents}.
+     *
+     * @param signal checked between reads, or {@code null}.
+     */
+    static byte[] generateRootHash(DataSource[] contents, CancellationSignal signal)
+            throws IOException, DigestException {
+        MessageDigest md = newMessageDigest();
+        long dataSize = 0;
+        for (DataSource input : contents) {
+            dataSize += input.size();
+        }
+        long leafCount = divideRoundup(dataSize, CHUNK_SIZE_BYTES);
+        if (leafCount * DIGEST_SIZE_BYTES > Integer.MAX_VALUE - CHUNK_SIZE_BYTES) {
+            throw new DigestException("Too much data for verity tree: " + dataSize);
+        }
+
+        if (signal != null) {
+            signal.addTotalBytes(dataSize);
+        }
+        int bufferSize = (int) Math.min(READ_SIZE_BYTES,
+                Math.max(1, leafCount) * CHUNK_SIZE_BYTES);
+        MemoryBudget.Reservation reservation =
+                MemoryBudget.reserveDefault(getTreeSize(leafCount) + bufferSize);
+        try {
+            return generateRootHash(contents, signal, md, leafCount, bufferSize);
+        } finally {
+            reservation.close();
+        }
+    }
+
+    /**
+     * Returns an upper bound of the bytes held at once while building the tree: each level and
+     * its page-aligned copy for the level above.
+     */
+    private static long getTreeSize(long leafCount) {
+        long size = 0;
+        long levelSize = leafCount * DIGEST_SIZE_BYTES;
+        while (true) {
+            long paddedSize = Math.max(CHUNK_SIZE_BYTES,
+                    divideRoundup(levelSize, CHUNK_SIZE_BYTES) * CHUNK_SIZE_BYTES);
+            size += levelSize + paddedSize;
+            if (levelSize <= CHUNK_SIZE_BYTES) {
+                return size;
+            }
+            levelSize = divideRoundup(levelSize, CHUNK_SIZE_BYTES) * DIGEST_SIZE_BYTES;
+        }
+    }
+
+    private static byte[] generateRootHash(DataSource[] contents, CancellationSignal signal,
+                                           MessageDigest md, long leafCount, int bufferSize)
+            throws IOException, DigestException {
+        // Leaf level: digests of the data pages.
+        byte[] level = new byte[(int) (leafCount * DIGEST_SIZE_BYTES)];
+        int levelSize = 0;
+        ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+        for (DataSource input : contents) {
+            long offset = 0;
+            long remaining = input.size();
+            while (remaining > 0) {
+                if (signal != null) {
+                    signal.throwIfCanceled();
+                }
+                // Top up the buffer; a page may span two sources.
+                int size = (int) Math.min(remaining, buffer.remaining());
+                input.copyTo(offset, size, buffer);
+                offset += size;
+                remaining -= size;
+                if (signal != null) {
+                    signal.addBytesDigested(size);
+                }
+                if (!buffer.hasRemaining()) {
+                    buffer.flip();
+                    levelSize = digestPages(md, buffer, level, levelSize);
+                    buffer.clear();
+                }
+            }
+        }
+        if (buffer.position() > 0) {
+            // Pad the last incomplete page with zeros.
+            int padding = (CHUNK_SIZE_BYTES - buffer.position() % CHUNK_SIZE_BYTES)
+                    % CHUNK_SIZE_BYTES;
+            buffer.put(new byte[padding]);
+            buffer.flip();
+            levelSize = digestPages(md, buffer, level, levelSize);
+        }
+
+        // Upper levels, until a level fits in a single page.
+        while (levelSize > CHUNK_SIZE_BYTES) {
+            ByteBuffer input = ByteBuffer.wrap(padToPage(level, levelSize));
+            byte[] upper = new byte[(int) (divideRoundup(levelSize, CHUNK_SIZE_BYTES)
+                    * DIGEST_SIZE_BYTES)];
+            levelSize = digestPages(md, input, upper, 0);
+            level = upper;
+        }
+
+        md.update(SALT);
+        md.update(padToPage(level, levelSize), 0, CHUNK_SIZE_BYTES);
+        return md.digest();
+    }
+
+    /**
+     * Digests every whole page of {@code pages} into {@code output} starting at
+     * {@code outputOffset} and returns the new end offset of the output.
+     */
+    private static int digestPages(MessageDigest md, ByteBuffer pages, byte[] output,
+                                   int outputOffset) throws DigestException {
+        while (pages.remaining() >= CHUNK_SIZE_BYTES) {
+            ByteBuffer page = pages.slice();
+            page.limit(CHUNK_SIZE_BYTES);
+            md.update(SALT);
+            md.update(page);
+            pages.position(pages.position() + CHUNK_SIZE_BYTES);
+            outputOffset += md.digest(output, outputOffset, DIGEST_SIZE_BYTES);
+        }
+        return outputOffset;
+    }
+
+    private static byte[] padToPage(byte[] data, int size) {
+        byte[] padded = new byte[(int) Math.max(CHUNK_SIZE_BYTES,
+                divideRoundup(size, CHUNK_SIZE_BYTES) * CHUNK_SIZE_BYTES)];
+        System.arraycopy(data, 0, padded, 0, size);
+        return padded;
+    }
+
+    private static long divideRoundup(long dividend, long divisor) {
+        return (dividend + divisor - 1) / divisor;
+    }
+
+    private static MessageDigest newMessageDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 digest not supported", e);
+        }
+    }
+}
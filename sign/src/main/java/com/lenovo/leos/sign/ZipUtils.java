@@ -96,21 +96,28 @@ abstract class ZipUtils {
         // Lower maxCommentSize if the file is too small.
         maxCommentSize = (int) Math.min(maxCommentSize, fileSize - ZIP_EOCD_REC_MIN_SIZE);
 
-        ByteBuffer buf = ByteBuffer.allocate(ZIP_EOCD_REC_MIN_SIZE + maxCommentSize);
-        buf.order(ByteOrder.LITTLE_ENDIAN);
-        long bufOffsetInFile = fileSize - buf.capacity();
-        zip.seek(bufOffsetInFile);
-        zip.readFully(buf.array(), buf.arrayOffset(), buf.capacity());
-        int eocdOffsetInBuf = findZipEndOfCentralDirectoryRecord(buf);
-        if (eocdOffsetInBuf == -1) {
-            // No EoCD record found in the buffer
-            return null;
+        // The search window is only accounted while it is read and searched.
+        MemoryBudget.Reservation reservation =
+                MemoryBudget.reserveDefault(ZIP_EOCD_REC_MIN_SIZE + maxCommentSize);
+        try {
+            ByteBuffer buf = ByteBuffer.allocate(ZIP_EOCD_REC_MIN_SIZE + maxCommentSize);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            long bufOffsetInFile = fileSize - buf.capacity();
+            zip.seek(bufOffsetInFile);
+            zip.readFully(buf.array(), buf.arrayOffset(), buf.capacity());
+            int eocdOffsetInBuf = findZipEndOfCentralDirectoryRecord(buf);
+            if (eocdOffsetInBuf == -1) {
+                // No EoCD record found in the buffer
+                return null;
+            }
+            // EoCD found
+            buf.position(eocdOffsetInBuf);
+            ByteBuffer eocd = buf.slice();
+            eocd.order(ByteOrder.LITTLE_ENDIAN);
+            return Pair.create(eocd, bufOffsetInFile + eocdOffsetInBuf);
+        } finally {
+            reservation.close();
         }
-        // EoCD found
-        buf.position(eocdOffsetInBuf);
-        ByteBuffer eocd = buf.slice();
-        eocd.order(ByteOrder.LITTLE_ENDIAN);
-        return Pair.create(eocd, bufOffsetInFile + eocdOffsetInBuf);
     }
 
     /**
@@ -0,0 +1,309 @@
+package com.lenovo.leos.sign.stamp;
+
+import static com.lenovo.leos.sign.ApkSigningBlockUtils.compareSignatureAlgorithm;
+import static com.lenovo.leos.sign.ApkSigningBlockUtils.getLengthPrefixedSlice;
+import static com.lenovo.leos.sign.ApkSigningBlockUtils.getSignatureAlgorithmContentDigestAlgorithm;
+import static com.lenovo.leos.sign.ApkSigningBlockUtils.getSignatureAlgorithmJcaSignatureAlgorithm;
+import static com.lenovo.leos.sign.ApkSigningBlockUtils.isSupportedSignatureAlgorithm;
+import static com.lenovo.leos.sign.ApkSigningBlockUtils.readLengthPrefixedByteArray;
+
+import com.lenovo.leos.sign.ApkSigningBlock;
+import com.lenovo.leos.sign.ApkVerificationResult;
+import com.lenovo.leos.sign.MD5Util;
+import com.lenovo.leos.sign.Pair;
+import com.lenovo.leos.sign.SignatureNotFoundException;
+import com.lenovo.leos.sign.VerbatimX509Certificate;
+import com.lenovo.leos.sign.VerificationLimits;
+import com.lenovo.leos.sign.v2.ApkSignatureSchemeV2Verifier;
+import com.lenovo.leos.sign.v3.ApkSignatureSchemeV3Verifier;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Source stamp (v2) verifier.
+ *
+ * <p>A source stamp signs the content digests of every signature scheme of the APK with the key of
+ * the distribution channel. Verification only needs the APK Signing Block: digests are taken from
+ * the signed data of the already verified v2/v3 signers, so the APK contents are not hashed again.
+ */
+public class SourceStampVerifier {
+    public static final int SOURCE_STAMP_BLOCK_ID = 0x6dff800d;
+
+    /**
+     * Returns {@code true} if the provided APK Signing Block contains a source stamp.
+     *
+     * <p><b>NOTE: This method does not verify the stamp.</b>
+     */
+    public static boolean hasSourceStamp(ApkSigningBlock signingBlock) {
+        return signingBlock != null && signingBlock.contains(SOURCE_STAMP_BLOCK_ID);
+    }
+
+    /**
+     * Verifies the source stamp of an APK against the schemes verified by {@link
+     * com.lenovo.leos.sign.ApkVerifier}. The stamp must carry a valid signature for each of them.
+     *
+     * @throws SignatureNotFoundException if the APK has no source stamp.
+     * @throws SecurityException          if the source stamp does not verify.
+     * @throws IOException                if the source stamp block is malformed.
+     */
+    public static VerifiedSourceStamp verify(ApkSigningBlock signingBlock,
+                                             ApkVerificationResult result)
+            throws SignatureNotFoundException, SecurityException, IOException {
+        Map<Integer, Map<Integer, byte[]>> signatureSchemeDigests = new HashMap<>();
+        for (ApkVerificationResult.VerifiedScheme scheme : result.schemes) {
+            switch (scheme.schemeVersion) {
+                case ApkVerificationResult.SCHEME_V31:
+                    signatureSchemeDigests.put(scheme.schemeVersion, getSignedContentDigests(
+                            signingBlock, ApkSignatureSchemeV3Verifier.APK_SIGNATURE_SCHEME_V31_BLOCK_ID));
+                    break;
+                case ApkVerificationResult.SCHEME_V3:
+                    signatureSchemeDigests.put(scheme.schemeVersion, getSignedContentDigests(
+                            signingBlock, ApkSignatureSchemeV3Verifier.APK_SIGNATURE_SCHEME_V3_BLOCK_ID));
+                    break;
+                case ApkVerificationResult.SCHEME_V2:
+                    signatureSchemeDigests.put(scheme.schemeVersion, getSignedContentDigests(
+                            signingBlock, ApkSignatureSchemeV2Verifier.APK_SIGNATURE_SCHEME_V2_BLOCK_ID));
+                    break;
+                default:
+                    // JAR signing: the digest of the manifest is the content digest.
+                    signatureSchemeDigests.put(scheme.schemeVersion, scheme.contentDigests);
+                    break;
+            }
+        }
+        return verify(signingBlock, signatureSchemeDigests);
+    }
+
+    /**
+     * Verifies the source stamp of an APK.
+     *
+     * @param signatureSchemeDigests signature scheme version -> (content digest algorithm ->
+     *                               digest) of every scheme the stamp must cover.
+     * @throws SignatureNotFoundException if the APK has no source stamp.
+     * @throws SecurityException          if the source stamp does not verify.
+     * @throws IOException                if the source stamp block is malformed.
+     */
+    public static VerifiedSourceStamp verify(
+            ApkSigningBlock signingBlock,
+            Map<Integer, Map<Integer, byte[]>> signatureSchemeDigests)
+            throws SignatureNotFoundException, SecurityException, IOException {
+        if (signatureSchemeDigests.isEmpty()) {
+            throw new SecurityException("No signature scheme digests to verify source stamp against");
+        }
+        ByteBuffer stampBlock = signingBlock.getValue(SOURCE_STAMP_BLOCK_ID);
+        if (stampBlock == null) {
+            throw new SignatureNotFoundException("No source stamp in APK Signing Block");
+        }
+        CertificateFactory certFactory;
+        try {
+            certFactory = CertificateFactory.getInstance("X.509");
+        } catch (CertificateException e) {
+            throw new RuntimeException("Failed to obtain X.509 CertificateFactory", e);
+        }
+
+        // FORMAT:
+        // * length-prefixed bytes: signer
+        //   * length-prefixed bytes: X.509 certificate (ASN.1 DER encoded)
+        //   * length-prefixed sequence of length-prefixed signed signature scheme digests:
+        //     * uint32: signature scheme version
+        //     * length-prefixed sequence of length-prefixed signatures over the scheme digests
+        //   * (optional) length-prefixed bytes: encoded stamp attributes
+        //   * (optional) length-prefixed sequence of length-prefixed signatures over the attributes
+        try {
+            ByteBuffer stamp = getLengthPrefixedSlice(stampBlock);
+            byte[] encodedCert = readLengthPrefixedByteArray(stamp);
+            X509Certificate certificate;
+            try {
+                certificate = (X509Certificate)
+                        certFactory.generateCertificate(new ByteArrayInputStream(encodedCert));
+            } catch (CertificateException e) {
+                throw new SecurityException("Failed to decode source stamp certificate", e);
+            }
+            certificate = new VerbatimX509Certificate(certificate, encodedCert);
+
+            ByteBuffer signedSchemes = getLengthPrefixedSlice(stamp);
+            Map<Integer, ByteBuffer> signaturesPerScheme = new HashMap<>();
+            int maxSchemes = VerificationLimits.getDefault().getMaxSignatures();
+            while (signedSchemes.hasRemaining()) {
+                VerificationLimits.check(signaturesPerScheme.size() + 1, maxSchemes,
+                        "signed schemes in a source stamp");
+                ByteBuffer signedScheme = getLengthPrefixedSlice(signedSchemes);
+                int schemeVersion = signedScheme.getInt();
+                signaturesPerScheme.put(schemeVersion, getLengthPrefixedSlice(signedScheme));
+            }
+            for (Map.Entry<Integer, Map<Integer, byte[]>> entry
+                    : signatureSchemeDigests.entrySet()) {
+                ByteBuffer signatures = signaturesPerScheme.get(entry.getKey());
+                if (signatures == null) {
+                    throw new SecurityException("Source stamp has no signature for signature"
+                            + " scheme v" + entry.getKey());
+                }
+                verifySignatures(encodeContentDigests(entry.getValue()), signatures, certificate);
+            }
+
+            if (stamp.hasRemaining()) {
+                ByteBuffer attributes = getLengthPrefixedSlice(stamp);
+                ByteBuffer attributeSignatures = getLengthPrefixedSlice(stamp);
+                byte[] encodedAttributes = new byte[attributes.remaining()];
+                attributes.get(encodedAttributes);
+                verifySignatures(encodedAttributes, attributeSignatures, certificate);
+            }
+
+            return new VerifiedSourceStamp(certificate, sha256(encodedCert));
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Failed to parse source stamp block", e);
+        }
+    }
+
+    /**
+     * Returns content digest algorithm -> digest of all digests signed by the signers of a
+     * signature scheme block. Nothing is verified: the block must have been verified already.
+     */
+    private static Map<Integer, byte[]> getSignedContentDigests(ApkSigningBlock signingBlock,
+                                                                int blockId)
+            throws SignatureNotFoundException, IOException {
+        ByteBuffer schemeBlock = signingBlock.getValue(blockId);
+        if (schemeBlock == null) {
+            throw new SignatureNotFoundException(
+                    "No block with ID " + blockId + " in APK Signing Block.");
+        }
+        Map<Integer, byte[]> digests = new HashMap<>();
+        VerificationLimits limits = VerificationLimits.getDefault();
+        ByteBuffer signers = getLengthPrefixedSlice(schemeBlock);
+        int signerCount = 0;
+        while (signers.hasRemaining()) {
+            VerificationLimits.check(++signerCount, limits.getMaxSigners(),
+                    "signers in a signature scheme block");
+            ByteBuffer signer = getLengthPrefixedSlice(signers);
+            ByteBuffer signedData = getLengthPrefixedSlice(signer);
+            ByteBuffer digestRecords = getLengthPrefixedSlice(signedData);
+            int digestCount = 0;
+            while (digestRecords.hasRemaining()) {
+                VerificationLimits.check(++digestCount, limits.getMaxSignatures(),
+                        "digest records in a signer");
+                ByteBuffer digest = getLengthPrefixedSlice(digestRecords);
+                int sigAlgorithm = digest.getInt();
+                byte[] value = readLengthPrefixedByteArray(digest);
+                if (isSupportedSignatureAlgorithm(sigAlgorithm)) {
+                    digests.put(getSignatureAlgorithmContentDigestAlgorithm(sigAlgorithm), value);
+                }
+            }
+        }
+        return digests;
+    }
+
+    /**
+     * Encodes the digests of one scheme as signed by the stamp: a sequence of length-prefixed
+     * (uint32 digest algorithm, length-prefixed digest) pairs, sorted by algorithm.
+     */
+    private static byte[] encodeContentDigests(Map<Integer, byte[]> digests) {
+        Map<Integer, byte[]> sorted = new TreeMap<>(digests);
+        int size = 0;
+        for (byte[] digest : sorted.values()) {
+            size += 12 + digest.length;
+        }
+        ByteBuffer result = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        for (Map.Entry<Integer, byte[]> entry : sorted.entrySet()) {
+            byte[] digest = entry.getValue();
+            result.putInt(8 + digest.length);
+            result.putInt(entry.getKey());
+            result.putInt(digest.length);
+            result.put(digest);
+        }
+        return result.array();
+    }
+
+    private static void verifySignatures(byte[] data, ByteBuffer signatures,
+                                         X509Certificate certificate)
+            throws SecurityException, IOException {
+        int bestSigAlgorithm = -1;
+        byte[] bestSigAlgorithmSignatureBytes = null;
+        int maxSignatures = VerificationLimits.getDefault().getMaxSignatures();
+        int signatureCount = 0;
+        while (signatures.hasRemaining()) {
+            VerificationLimits.check(++signatureCount, maxSignatures,
+                    "source stamp signature records");
+            ByteBuffer signature = getLengthPrefixedSlice(signatures);
+            int sigAlgorithm = signature.getInt();
+            byte[] sigBytes = readLengthPrefixedByteArray(signature);
+            if (!isSupportedSignatureAlgorithm(sigAlgorithm)) {
+                continue;
+            }
+            if ((bestSigAlgorithm == -1)
+                    || (compareSignatureAlgorithm(sigAlgorithm, bestSigAlgorithm) > 0)) {
+                bestSigAlgorithm = sigAlgorithm;
+                bestSigAlgorithmSignatureBytes = sigBytes;
+            }
+        }
+        if (bestSigAlgorithm == -1) {
+            throw new SecurityException("No supported source stamp signatures found");
+        }
+
+        Pair<String, ? extends AlgorithmParameterSpec> signatureAlgorithmParams =
+                getSignatureAlgorithmJcaSignatureAlgorithm(bestSigAlgorithm);
+        String jcaSignatureAlgorithm = signatureAlgorithmParams.first;
+        boolean sigVerified;
+        try {
+            Signature sig = Signature.getInstance(jcaSignatureAlgorithm);
+            sig.initVerify(certificate.getPublicKey());
+            if (signatureAlgorithmParams.second != null) {
+                sig.setParameter(signatureAlgorithmParams.second);
+            }
+            sig.update(data);
+            sigVerified = sig.verify(bestSigAlgorithmSignatureBytes);
+        } catch (NoSuchAlgorithmException | InvalidKeyException
+                | InvalidAlgorithmParameterException | SignatureException e) {
+            throw new SecurityException(
+                    "Failed to verify " + jcaSignatureAlgorithm + " source stamp signature", e);
+        }
+        if (!sigVerified) {
+            throw new SecurityException(
+                    jcaSignatureAlgorithm + " source stamp signature did not verify");
+        }
+    }
+
+    private static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 digest not supported", e);
+        }
+    }
+
+    /**
+     * Verified source stamp.
+     */
+    public static class VerifiedSourceStamp {
+        public final X509Certificate certificate;
+        // SHA-256 digest of the encoded stamp certificate.
+        public final byte[] certificateDigest;
+
+        public VerifiedSourceStamp(X509Certificate certificate, byte[] certificateDigest) {
+            this.certificate = certificate;
+            this.certificateDigest = certificateDigest;
+        }
+
+        /**
+         * Returns the SHA-256 fingerprint of the stamp certificate as upper-case hex.
+         */
+        public String getCertificateFingerprint() {
+            return MD5Util.toHexString(certificateDigest);
+        }
+    }
+}
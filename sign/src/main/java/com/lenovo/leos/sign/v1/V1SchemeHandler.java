@@ -0,0 +1,138 @@
+package com.lenovo.leos.sign.v1;
+
+import com.lenovo.leos.sign.ApkSigningBlockUtils;
+import com.lenovo.leos.sign.ApkVerificationResult;
+import com.lenovo.leos.sign.SchemeHandler;
+import com.lenovo.leos.sign.SignatureNotFoundException;
+import com.lenovo.leos.sign.VerificationContext;
+import com.lenovo.leos.sign.VerificationLevel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.CodeSigner;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.ZipException;
+
+/**
+ * {@link SchemeHandler} for JAR signing, backed by the JDK's {@link JarFile} verification. Every
+ * entry outside of {@code META-INF/} must be signed by the same set of signers. Below
+ * {@link VerificationLevel#CONTENT}, only the first entry is read, which verifies the signature
+ * files and the manifest but not the digests of the other entries.
+ */
+public class V1SchemeHandler implements SchemeHandler {
+
+    @Override
+    public int getSchemeVersion() {
+        return ApkVerificationResult.SCHEME_V1;
+    }
+
+    @Override
+    public boolean isPresent(VerificationContext context) throws IOException {
+        try (JarFile jar = new JarFile(context.apkFile, false)) {
+            Enumeration<JarEntry> entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                String name = entries.nextElement().getName().toUpperCase(Locale.US);
+                if (name.startsWith("META-INF/") && name.endsWith(".SF")) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (ZipException e) {
+            // Not a ZIP file, so not JAR signed either.
+            return false;
+        }
+    }
+
+    @Override
+    public ApkVerificationResult.VerifiedScheme verify(VerificationContext context)
+            throws SignatureNotFoundException, SecurityException, IOException {
+        Set<CodeSigner> signers = null;
+        byte[] manifestDigest;
+        byte[] buffer = new byte[8192];
+        try (JarFile jar = new JarFile(context.apkFile, true)) {
+            manifestDigest = digestManifest(jar, buffer);
+            Enumeration<JarEntry> entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                context.getCancellationSignal().throwIfCanceled();
+                JarEntry entry = entries.nextElement();
+                if (entry.isDirectory() || entry.getName().startsWith("META-INF/")) {
+                    continue;
+                }
+                // Entries are verified while being read; a digest mismatch throws
+                // SecurityException.
+                try (InputStream in = jar.getInputStream(entry)) {
+                    while (in.read(buffer) != -1) {
+                        // Consume the entry.
+                    }
+                }
+                CodeSigner[] entrySigners = entry.getCodeSigners();
+                if (entrySigners == null || entrySigners.length == 0) {
+                    throw new SecurityException("No JAR signature covers entry " + entry.getName());
+                }
+                Set<CodeSigner> entrySignerSet = new HashSet<>(Arrays.asList(entrySigners));
+                if (signers == null) {
+                    signers = entrySignerSet;
+                } else if (!signers.equals(entrySignerSet)) {
+                    throw new SecurityException(
+                            "Entry " + entry.getName() + " is signed by a different set of signers");
+                }
+                if (!context.level.includes(VerificationLevel.CONTENT)) {
+                    // Reading one entry verified the signature files and the manifest.
+                    break;
+                }
+            }
+        }
+        if (signers == null) {
+            throw new SignatureNotFoundException("No JAR signed entries");
+        }
+
+        X509Certificate[][] certs = new X509Certificate[signers.size()][];
+        int signerIndex = 0;
+        for (CodeSigner signer : signers) {
+            List<? extends Certificate> chain = signer.getSignerCertPath().getCertificates();
+            certs[signerIndex++] = chain.toArray(new X509Certificate[chain.size()]);
+        }
+        // The digest of the manifest stands for the content digest of JAR signing, e.g. for
+        // source stamps.
+        Map<Integer, byte[]> contentDigests = new HashMap<>();
+        contentDigests.put(ApkSigningBlockUtils.CONTENT_DIGEST_SHA256, manifestDigest);
+        VerificationLevel level = context.level.includes(VerificationLevel.CONTENT)
+                ? VerificationLevel.CONTENT : VerificationLevel.SIGNATURES;
+        return new ApkVerificationResult.VerifiedScheme(getSchemeVersion(), certs, null, null,
+                contentDigests, level);
+    }
+
+    private static byte[] digestManifest(JarFile jar, byte[] buffer)
+            throws SignatureNotFoundException, IOException {
+        JarEntry manifest = jar.getJarEntry(JarFile.MANIFEST_NAME);
+        if (manifest == null) {
+            throw new SignatureNotFoundException("No " + JarFile.MANIFEST_NAME);
+        }
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 digest not supported", e);
+        }
+        try (InputStream in = jar.getInputStream(manifest)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                md.update(buffer, 0, read);
+            }
+        }
+        return md.digest();
+    }
+}
@@ -10,11 +10,17 @@ import static com.lenovo.leos.sign.ApkSigningBlockUtils.getSignatureAlgorithmJca
 import static com.lenovo.leos.sign.ApkSigningBlockUtils.isSupportedSignatureAlgorithm;
 import static com.lenovo.leos.sign.ApkSigningBlockUtils.readLengthPrefixedByteArray;
 
+import com.lenovo.leos.sign.ApkSigningBlock;
 import com.lenovo.leos.sign.ApkSigningBlockUtils;
+import com.lenovo.leos.sign.CancellationSignal;
 import com.lenovo.leos.sign.Pair;
 import com.lenovo.leos.sign.SignatureInfo;
 import com.lenovo.leos.sign.SignatureNotFoundException;
 import com.lenovo.leos.sign.VerbatimX509Certificate;
+import com.lenovo.leos.sign.VerificationLevel;
+import com.lenovo.leos.sign.VerificationLimitExceededException;
+import com.lenovo.leos.sign.VerificationLimits;
+import com.lenovo.leos.sign.VerificationListener;
 import com.lenovo.leos.sign.v3.ApkSignatureSchemeV3Verifier;
 
 import java.io.ByteArrayInputStream;
@@ -50,18 +56,23 @@ import java.util.Map;
  */
 public class ApkSignatureSchemeV2Verifier {
     public static final int SF_ATTRIBUTE_ANDROID_APK_SIGNED_ID = 2;
-    private static final int APK_SIGNATURE_SCHEME_V2_BLOCK_ID = 0x7109871a;
+    public static final int APK_SIGNATURE_SCHEME_V2_BLOCK_ID = 0x7109871a;
     private static final int STRIPPING_PROTECTION_ATTR_ID = 0xbeeff00d;
 
     public static boolean hasSignature(String apkFile) throws IOException {
         try (RandomAccessFile apk = new RandomAccessFile(apkFile, "r")) {
-            findSignature(apk);
+            findSignature(apk).close();
             return true;
         } catch (SignatureNotFoundException e) {
             return false;
         }
     }
 
+    /**
+     * Returns the APK Signature Scheme v2 block contained in the provided APK file and the
+     * additional information relevant for verifying the block against the file. Close it to
+     * release the memory reserved for the APK Signing Block.
+     */
     public static SignatureInfo findSignature(RandomAccessFile apk)
             throws IOException, SignatureNotFoundException {
         return ApkSigningBlockUtils.findSignature(apk, APK_SIGNATURE_SCHEME_V2_BLOCK_ID);
@@ -77,45 +88,62 @@ public class ApkSignatureSchemeV2Verifier {
      */
     public static X509Certificate[][] verify(String apkFile)
             throws SignatureNotFoundException, SecurityException, IOException {
-        VerifiedSigner vSigner = verify(apkFile, true);
+        VerifiedSigner vSigner = verify(apkFile, VerificationLevel.CONTENT);
         return vSigner.certs;
     }
 
     /**
      * Same as above returns the full signer object, containing additional info e.g. digest.
+     *
+     * @deprecated use {@link #verify(String, VerificationLevel)}.
      */
+    @Deprecated
     public static VerifiedSigner verify(String apkFile, boolean verifyIntegrity)
             throws SignatureNotFoundException, SecurityException, IOException {
-        try (RandomAccessFile apk = new RandomAccessFile(apkFile, "r")) {
-            return verify(apk, verifyIntegrity);
-        }
+        return verify(apkFile,
+                verifyIntegrity ? VerificationLevel.CONTENT : VerificationLevel.SIGNATURES);
     }
 
     /**
-     * Verifies APK Signature Scheme v2 signatures of the provided APK and returns the certificates
-     * associated with each signer.
+     * Verifies APK Signature Scheme v2 signatures of the provided APK up to the provided level and
+     * returns the full signer object, containing additional info e.g. digest.
      *
+     * @param level {@link VerificationLevel#SIGNATURES} or above; use {@link #hasSignature} to
+     *              probe for a signature.
      * @throws SignatureNotFoundException if the APK is not signed using APK Signature Scheme v2.
      * @throws SecurityException          if an APK Signature Scheme v2 signature of this APK does not verify.
      * @throws IOException                if an I/O error occurs while reading the APK file.
      */
-    private static VerifiedSigner verify(RandomAccessFile apk, boolean verifyIntegrity)
+    public static VerifiedSigner verify(String apkFile, VerificationLevel level)
             throws SignatureNotFoundException, SecurityException, IOException {
-        SignatureInfo signatureInfo = findSignature(apk);
-        return verify(apk, signatureInfo, verifyIntegrity);
+        if (!level.includes(VerificationLevel.SIGNATURES)) {
+            throw new IllegalArgumentException("Unsupported verification level: " + level);
+        }
+        try (RandomAccessFile apk = new RandomAccessFile(apkFile, "r");
+             ApkSigningBlock signingBlock = ApkSigningBlockUtils.findApkSigningBlock(apk)) {
+            SignatureInfo signatureInfo =
+                    signingBlock.findSignature(APK_SIGNATURE_SCHEME_V2_BLOCK_ID);
+            return verify(apk, signatureInfo, level, false, null);
+        }
     }
 
     /**
      * Verifies the contents of the provided APK file against the provided APK Signature Scheme v2
      * Block.
      *
-     * @param signatureInfo APK Signature Scheme v2 Block and information relevant for verifying it
-     *                      against the APK file.
+     * @param signatureInfo   APK Signature Scheme v2 Block and information relevant for verifying it
+     *                        against the APK file.
+     * @param level           how far to verify; {@link VerificationLevel#SIGNATURES} or above.
+     * @param v3SchemeVerified whether an APK Signature Scheme v3 signature of the APK has already
+     *                        verified, in which case the v2 stripping protection is satisfied.
+     * @param signal          checked between signers and chunks, or {@code null}.
      */
-    private static VerifiedSigner verify(
+    static VerifiedSigner verify(
             RandomAccessFile apk,
             SignatureInfo signatureInfo,
-            boolean doVerifyIntegrity) throws SecurityException, IOException {
+            VerificationLevel level,
+            boolean v3SchemeVerified,
+            CancellationSignal signal) throws SecurityException, IOException {
 
         int signerCount = 0;
         Map<Integer, byte[]> contentDigests = new HashMap<>();
@@ -132,12 +160,21 @@ public class ApkSignatureSchemeV2Verifier {
         } catch (IOException e) {
             throw new SecurityException("Failed to read list of signers", e);
         }
+        int maxSigners = VerificationLimits.getDefault().getMaxSigners();
         while (signers.hasRemaining()) {
+            if (signal != null) {
+                signal.throwIfCanceled();
+            }
             signerCount++;
+            VerificationLimits.check(signerCount, maxSigners,
+                    "signers in an APK Signature Scheme v2 block");
             try {
                 ByteBuffer signer = getLengthPrefixedSlice(signers);
-                X509Certificate[] certs = verifySigner(signer, contentDigests, certFactory);
+                X509Certificate[] certs =
+                        verifySigner(signer, contentDigests, certFactory, v3SchemeVerified);
                 signerCerts.add(certs);
+            } catch (VerificationLimitExceededException e) {
+                throw e;
             } catch (IOException | BufferUnderflowException | SecurityException e) {
                 throw new SecurityException(
                         "Failed to parse/verify signer #" + signerCount + " block",
@@ -153,29 +190,47 @@ public class ApkSignatureSchemeV2Verifier {
             throw new SecurityException("No content digests found");
         }
 
-        /*if (doVerifyIntegrity) {
-             ApkSigningBlockUtils.verifyIntegrity(contentDigests, apk, signatureInfo);
-        }*/
+        VerificationLevel verifiedLevel = VerificationLevel.SIGNATURES;
+        // Holds the verity root hash if verifyIntegrity had to build the tree.
+        Map<Integer, byte[]> computedDigests = new HashMap<>();
+        if (level.includes(VerificationLevel.CONTENT)) {
+            ApkSigningBlockUtils.verifyIntegrity(contentDigests, apk, signatureInfo,
+                    computedDigests, signal);
+            verifiedLevel = VerificationLevel.CONTENT;
+        }
 
         byte[] verityRootHash = null;
         if (contentDigests.containsKey(CONTENT_DIGEST_VERITY_CHUNKED_SHA256)) {
             byte[] verityDigest = contentDigests.get(CONTENT_DIGEST_VERITY_CHUNKED_SHA256);
             verityRootHash = ApkSigningBlockUtils.parseVerityDigestAndVerifySourceLength(
                     verityDigest, apk.length(), signatureInfo);
+            if (level.includes(VerificationLevel.VERITY)) {
+                if (!computedDigests.containsKey(CONTENT_DIGEST_VERITY_CHUNKED_SHA256)) {
+                    ApkSigningBlockUtils.verifyVerityRootHash(
+                            verityRootHash, apk, signatureInfo, signal);
+                }
+                verifiedLevel = VerificationLevel.VERITY;
+            }
         }
 
         return new VerifiedSigner(
                 signerCerts.toArray(new X509Certificate[signerCerts.size()][]),
-                verityRootHash, contentDigests);
+                verityRootHash, contentDigests, verifiedLevel);
     }
 
-    private static X509Certificate[] verifySigner(
+    /**
+     * Verifies one signer block and adds its signed content digest to {@code contentDigests}.
+     * Package-private for benchmarks.
+     */
+    static X509Certificate[] verifySigner(
             ByteBuffer signerBlock,
             Map<Integer, byte[]> contentDigests,
-            CertificateFactory certFactory) throws SecurityException, IOException {
+            CertificateFactory certFactory,
+            boolean v3SchemeVerified) throws SecurityException, IOException {
         ByteBuffer signedData = getLengthPrefixedSlice(signerBlock);
         ByteBuffer signatures = getLengthPrefixedSlice(signerBlock);
         byte[] publicKeyBytes = readLengthPrefixedByteArray(signerBlock);
+        VerificationLimits limits = VerificationLimits.getDefault();
 
         int signatureCount = 0;
         int bestSigAlgorithm = -1;
@@ -183,6 +238,8 @@ public class ApkSignatureSchemeV2Verifier {
         List<Integer> signaturesSigAlgorithms = new ArrayList<>();
         while (signatures.hasRemaining()) {
             signatureCount++;
+            VerificationLimits.check(signatureCount, limits.getMaxSignatures(),
+                    "signature records in a signer");
             try {
                 ByteBuffer signature = getLengthPrefixedSlice(signatures);
                 if (signature.remaining() < 8) {
@@ -217,6 +274,8 @@ public class ApkSignatureSchemeV2Verifier {
         String jcaSignatureAlgorithm = signatureAlgorithmParams.first;
         AlgorithmParameterSpec jcaSignatureAlgorithmParams = signatureAlgorithmParams.second;
         boolean sigVerified;
+        long signedDataSize = signedData.remaining();
+        long startNanos = VerificationListener.phaseStart();
         try {
             PublicKey publicKey =
                     KeyFactory.getInstance(keyAlgorithm)
@@ -236,6 +295,10 @@ public class ApkSignatureSchemeV2Verifier {
         if (!sigVerified) {
             throw new SecurityException(jcaSignatureAlgorithm + " signature did not verify");
         }
+        if (startNanos != 0) {
+            VerificationListener.phaseEnd(VerificationListener.Phase.SIGNATURE_VERIFY, 2,
+                    bestSigAlgorithm, startNanos, signedDataSize);
+        }
 
         // Signature over signedData has verified.
 
@@ -246,6 +309,8 @@ public class ApkSignatureSchemeV2Verifier {
         int digestCount = 0;
         while (digests.hasRemaining()) {
             digestCount++;
+            VerificationLimits.check(digestCount, limits.getMaxSignatures(),
+                    "digest records in a signer");
             try {
                 ByteBuffer digest = getLengthPrefixedSlice(digests);
                 if (digest.remaining() < 8) {
@@ -275,10 +340,14 @@ public class ApkSignatureSchemeV2Verifier {
         }
 
         ByteBuffer certificates = getLengthPrefixedSlice(signedData);
+        long certificatesSize = certificates.remaining();
+        startNanos = VerificationListener.phaseStart();
         List<X509Certificate> certs = new ArrayList<>();
         int certificateCount = 0;
         while (certificates.hasRemaining()) {
             certificateCount++;
+            VerificationLimits.check(certificateCount, limits.getMaxCertificates(),
+                    "certificates in a signer");
             byte[] encodedCert = readLengthPrefixedByteArray(certificates);
             X509Certificate certificate;
             try {
@@ -290,6 +359,10 @@ public class ApkSignatureSchemeV2Verifier {
             certificate = new VerbatimX509Certificate(certificate, encodedCert);
             certs.add(certificate);
         }
+        if (startNanos != 0) {
+            VerificationListener.phaseEnd(VerificationListener.Phase.CERTIFICATE_DECODE, 2, 0,
+                    startNanos, certificatesSize);
+        }
 
         if (certs.isEmpty()) {
             throw new SecurityException("No certificates listed");
@@ -302,14 +375,19 @@ public class ApkSignatureSchemeV2Verifier {
         }
 
         ByteBuffer additionalAttrs = getLengthPrefixedSlice(signedData);
-        verifyAdditionalAttributes(additionalAttrs);
+        verifyAdditionalAttributes(additionalAttrs, v3SchemeVerified, limits.getMaxAttributes());
 
         return certs.toArray(new X509Certificate[certs.size()]);
     }
 
-    private static void verifyAdditionalAttributes(ByteBuffer attrs)
+    private static void verifyAdditionalAttributes(ByteBuffer attrs, boolean v3SchemeVerified,
+                                                   int maxAttributes)
             throws SecurityException, IOException {
+        int attributeCount = 0;
         while (attrs.hasRemaining()) {
+            attributeCount++;
+            VerificationLimits.check(attributeCount, maxAttributes,
+                    "additional attributes in a signer");
             ByteBuffer attr = getLengthPrefixedSlice(attrs);
             if (attr.remaining() < 4) {
                 throw new IOException("Remaining buffer too short to contain additional attribute "
@@ -324,7 +402,8 @@ public class ApkSignatureSchemeV2Verifier {
                                 + attr.remaining());
                     }
                     int vers = attr.getInt();
-                    if (vers == ApkSignatureSchemeV3Verifier.SF_ATTRIBUTE_ANDROID_APK_SIGNED_ID) {
+                    if (vers == ApkSignatureSchemeV3Verifier.SF_ATTRIBUTE_ANDROID_APK_SIGNED_ID
+                            && !v3SchemeVerified) {
                         throw new SecurityException("V2 signature indicates APK is signed using APK"
                                 + " Signature Scheme v3, but none was found. Signature stripped?");
                     }
@@ -345,11 +424,21 @@ public class ApkSignatureSchemeV2Verifier {
         // All these are verified if requested.
         public final Map<Integer, byte[]> contentDigests;
 
+        // Level the signer was verified to. VERITY only if a verity digest was present.
+        public final VerificationLevel verificationLevel;
+
         public VerifiedSigner(X509Certificate[][] certs, byte[] verityRootHash,
                               Map<Integer, byte[]> contentDigests) {
+            this(certs, verityRootHash, contentDigests, VerificationLevel.SIGNATURES);
+        }
+
+        public VerifiedSigner(X509Certificate[][] certs, byte[] verityRootHash,
+                              Map<Integer, byte[]> contentDigests,
+                              VerificationLevel verificationLevel) {
             this.certs = certs;
             this.verityRootHash = verityRootHash;
             this.contentDigests = contentDigests;
+            this.verificationLevel = verificationLevel;
         }
     }
 }
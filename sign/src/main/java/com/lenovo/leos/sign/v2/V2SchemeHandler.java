@@ -0,0 +1,43 @@
+package com.lenovo.leos.sign.v2;
+
+import com.lenovo.leos.sign.ApkSigningBlock;
+import com.lenovo.leos.sign.ApkVerificationResult;
+import com.lenovo.leos.sign.SchemeHandler;
+import com.lenovo.leos.sign.SignatureInfo;
+import com.lenovo.leos.sign.SignatureNotFoundException;
+import com.lenovo.leos.sign.VerificationContext;
+import com.lenovo.leos.sign.VerificationLevel;
+
+import java.io.IOException;
+
+/**
+ * {@link SchemeHandler} for APK Signature Scheme v2.
+ */
+public class V2SchemeHandler implements SchemeHandler {
+
+    @Override
+    public int getSchemeVersion() {
+        return ApkVerificationResult.SCHEME_V2;
+    }
+
+    @Override
+    public boolean isPresent(VerificationContext context) {
+        ApkSigningBlock signingBlock = context.getSigningBlock();
+        return signingBlock != null
+                && signingBlock.contains(ApkSignatureSchemeV2Verifier.APK_SIGNATURE_SCHEME_V2_BLOCK_ID);
+    }
+
+    @Override
+    public ApkVerificationResult.VerifiedScheme verify(VerificationContext context)
+            throws SignatureNotFoundException, SecurityException, IOException {
+        SignatureInfo signatureInfo =
+                context.findSignature(ApkSignatureSchemeV2Verifier.APK_SIGNATURE_SCHEME_V2_BLOCK_ID);
+        ApkSignatureSchemeV2Verifier.VerifiedSigner signer = ApkSignatureSchemeV2Verifier.verify(
+                context.apk, signatureInfo, VerificationLevel.SIGNATURES,
+                context.isSchemeVerified(ApkVerificationResult.SCHEME_V3),
+                context.getCancellationSignal());
+        VerificationLevel level = context.verifyIntegrity(signer.contentDigests, signatureInfo);
+        return new ApkVerificationResult.VerifiedScheme(getSchemeVersion(), signer.certs, null,
+                signer.verityRootHash, signer.contentDigests, level);
+    }
+}
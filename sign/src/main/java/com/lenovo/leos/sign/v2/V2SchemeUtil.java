@@ -4,6 +4,7 @@ import com.lenovo.leos.sign.Base64;
 import com.lenovo.leos.sign.MD5Util;
 import com.lenovo.leos.sign.SignatureInfo;
 import com.lenovo.leos.sign.SignatureNotFoundException;
+import com.lenovo.leos.sign.VerificationLevel;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
@@ -32,7 +33,7 @@ public class V2SchemeUtil {
      * 获取签名block content信息
      *
      * @param apkFile apk文件路径
-     * @return 签名信息
+     * @return 签名信息，用完后 close 以释放占用的内存预算
      * @throws IOException                IO异常
      * @throws SignatureNotFoundException 签名不存在异常
      */
@@ -54,6 +55,20 @@ public class V2SchemeUtil {
         return ApkSignatureSchemeV2Verifier.verify(apkFile);
     }
 
+    /**
+     * 按指定级别校验签名，返回签名者信息及实际达到的校验级别
+     *
+     * @param apkFile apk文件路径
+     * @param level   校验级别，不低于 {@link VerificationLevel#SIGNATURES}
+     * @return 签名者信息
+     * @throws IOException                IO异常
+     * @throws SignatureNotFoundException 签名不存在异常
+     */
+    public static ApkSignatureSchemeV2Verifier.VerifiedSigner verify(String apkFile, VerificationLevel level)
+            throws IOException, SignatureNotFoundException {
+        return ApkSignatureSchemeV2Verifier.verify(apkFile, level);
+    }
+
     /**
      * 获取第一个签名证书公钥的 MD5 值
      *
@@ -64,7 +79,9 @@ public class V2SchemeUtil {
         String keyString = "";
 
         try {
-            X509Certificate[][] signs = ApkSignatureSchemeV2Verifier.verify(apkFile);
+            // 只需要证书，无需校验文件内容
+            X509Certificate[][] signs =
+                    ApkSignatureSchemeV2Verifier.verify(apkFile, VerificationLevel.SIGNATURES).certs;
             if (signs != null && signs.length > 0) {
                 String baseStr = Base64.encodeToString(signs[0][0].getPublicKey().getEncoded(), Base64.DEFAULT);
                 keyString = MD5Util.encoding(baseStr);
@@ -11,12 +11,19 @@ import static com.lenovo.leos.sign.ApkSigningBlockUtils.isSupportedSignatureAlgo
 import static com.lenovo.leos.sign.ApkSigningBlockUtils.readLengthPrefixedByteArray;
 import static com.lenovo.leos.sign.ApkSigningBlockUtils.verifyProofOfRotationStruct;
 
+import com.lenovo.leos.sign.ApkSigningBlock;
 import com.lenovo.leos.sign.ApkSigningBlockUtils;
+import com.lenovo.leos.sign.ApkVerificationResult;
+import com.lenovo.leos.sign.CancellationSignal;
 import com.lenovo.leos.sign.Pair;
 import com.lenovo.leos.sign.PlatformNotSupportedException;
 import com.lenovo.leos.sign.SignatureInfo;
 import com.lenovo.leos.sign.SignatureNotFoundException;
 import com.lenovo.leos.sign.VerbatimX509Certificate;
+import com.lenovo.leos.sign.VerificationLevel;
+import com.lenovo.leos.sign.VerificationLimitExceededException;
+import com.lenovo.leos.sign.VerificationLimits;
+import com.lenovo.leos.sign.VerificationListener;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
@@ -55,9 +62,17 @@ public class ApkSignatureSchemeV3Verifier {
      * ID of this signature scheme as used in X-Android-APK-Signed header used in JAR signing.
      */
     public static final int SF_ATTRIBUTE_ANDROID_APK_SIGNED_ID = 3;
-    private static final int APK_SIGNATURE_SCHEME_V3_BLOCK_ID = 0xf05368c0;
+    public static final int APK_SIGNATURE_SCHEME_V3_BLOCK_ID = 0xf05368c0;
+    /**
+     * APK Signature Scheme v3.1 block. Same format as v3, read in preference to v3 by platforms
+     * supporting it.
+     */
+    public static final int APK_SIGNATURE_SCHEME_V31_BLOCK_ID = 0x1b93ad61;
     private static final int PROOF_OF_ROTATION_ATTR_ID = 0x3ba06f8c;
-
+    /**
+     * Value of {@code sdkVersion} that accepts every signer regardless of its SDK range.
+     */
+    public static final int SDK_VERSION_ANY = -1;
 
     /**
      * Returns {@code true} if the provided APK contains an APK Signature Scheme V3 signature.
@@ -66,7 +81,7 @@ public class ApkSignatureSchemeV3Verifier {
      */
     public static boolean hasSignature(String apkFile) throws IOException {
         try (RandomAccessFile apk = new RandomAccessFile(apkFile, "r")) {
-            findSignature(apk);
+            findSignature(apk).close();
             return true;
         } catch (SignatureNotFoundException e) {
             return false;
@@ -75,7 +90,8 @@ public class ApkSignatureSchemeV3Verifier {
 
     /**
      * Returns the APK Signature Scheme v3 block contained in the provided APK file and the
-     * additional information relevant for verifying the block against the file.
+     * additional information relevant for verifying the block against the file. Close it to
+     * release the memory reserved for the APK Signing Block.
      *
      * @throws SignatureNotFoundException if the APK is not signed using APK Signature Scheme v3.
      * @throws IOException                if an I/O error occurs while reading the APK file.
@@ -97,13 +113,66 @@ public class ApkSignatureSchemeV3Verifier {
      */
     public static VerifiedSigner verify(String apkFile)
             throws SignatureNotFoundException, SecurityException, IOException {
-        return verify(apkFile, true);
+        return verify(apkFile, SDK_VERSION_ANY);
+    }
+
+    /**
+     * Same as above, but only considers the signer whose [minSdkVersion, maxSdkVersion] range
+     * contains {@code sdkVersion}. Signers targeting other platforms are skipped, as the platform
+     * package manager does.
+     *
+     * @param sdkVersion platform API level to verify for, or {@link #SDK_VERSION_ANY}.
+     */
+    public static VerifiedSigner verify(String apkFile, int sdkVersion)
+            throws SignatureNotFoundException, SecurityException, IOException {
+        return verify(apkFile, sdkVersion, VerificationLevel.CONTENT);
+    }
+
+    /**
+     * Same as {@link #verify(String)}, but only verifies up to the provided level.
+     *
+     * @param level {@link VerificationLevel#SIGNATURES} or above; use {@link #hasSignature} to
+     *              probe for a signature.
+     */
+    public static VerifiedSigner verify(String apkFile, VerificationLevel level)
+            throws SignatureNotFoundException, SecurityException, IOException {
+        return verify(apkFile, SDK_VERSION_ANY, level);
     }
 
-    private static VerifiedSigner verify(String apkFile, boolean verifyIntegrity)
+    /**
+     * Same as {@link #verify(String, int)}, but only verifies up to the provided level.
+     *
+     * @param sdkVersion platform API level to verify for, or {@link #SDK_VERSION_ANY}.
+     * @param level      {@link VerificationLevel#SIGNATURES} or above.
+     */
+    public static VerifiedSigner verify(String apkFile, int sdkVersion, VerificationLevel level)
             throws SignatureNotFoundException, SecurityException, IOException {
+        if (!level.includes(VerificationLevel.SIGNATURES)) {
+            throw new IllegalArgumentException("Unsupported verification level: " + level);
+        }
         try (RandomAccessFile apk = new RandomAccessFile(apkFile, "r")) {
-            return verify(apk, verifyIntegrity);
+            return verify(apk, level, sdkVersion);
+        }
+    }
+
+    /**
+     * Parses the APK Signature Scheme v3 block once and verifies every signer in it, regardless
+     * of the platform it targets. The returned object tells which signer is effective for any
+     * platform API level, so callers reasoning about several device classes do not need to
+     * re-verify the APK per SDK level.
+     *
+     * @throws SignatureNotFoundException if the APK is not signed using APK Signature Scheme v3.
+     * @throws SecurityException          if a signer does not verify or if the SDK ranges of two
+     *                                    signers overlap.
+     * @throws IOException                if an I/O error occurs while reading the APK file.
+     */
+    public static SdkRangeSigners verifySdkRanges(String apkFile)
+            throws SignatureNotFoundException, SecurityException, IOException {
+        try (RandomAccessFile apk = new RandomAccessFile(apkFile, "r");
+             ApkSigningBlock signingBlock = ApkSigningBlockUtils.findApkSigningBlock(apk)) {
+            SignatureInfo signatureInfo =
+                    signingBlock.findSignature(APK_SIGNATURE_SCHEME_V3_BLOCK_ID);
+            return verifySdkRanges(apk, signatureInfo, ApkVerificationResult.SCHEME_V3, null);
         }
     }
 
@@ -117,10 +186,15 @@ public class ApkSignatureSchemeV3Verifier {
      *                                    verify.
      * @throws IOException                if an I/O error occurs while reading the APK file.
      */
-    private static VerifiedSigner verify(RandomAccessFile apk, boolean verifyIntegrity)
+    private static VerifiedSigner verify(RandomAccessFile apk, VerificationLevel level,
+                                         int sdkVersion)
             throws SignatureNotFoundException, SecurityException, IOException {
-        SignatureInfo signatureInfo = findSignature(apk);
-        return verify(apk, signatureInfo, verifyIntegrity);
+        try (ApkSigningBlock signingBlock = ApkSigningBlockUtils.findApkSigningBlock(apk)) {
+            SignatureInfo signatureInfo =
+                    signingBlock.findSignature(APK_SIGNATURE_SCHEME_V3_BLOCK_ID);
+            return verify(apk, signatureInfo, level, sdkVersion,
+                    ApkVerificationResult.SCHEME_V3, null);
+        }
     }
 
     /**
@@ -129,34 +203,48 @@ public class ApkSignatureSchemeV3Verifier {
      *
      * @param signatureInfo APK Signature Scheme v3 Block and information relevant for verifying it
      *                      against the APK file.
+     * @param level         how far to verify; {@link VerificationLevel#SIGNATURES} or above.
+     * @param schemeVersion scheme of the block, {@link ApkVerificationResult#SCHEME_V3} or
+     *                      {@link ApkVerificationResult#SCHEME_V31}, as reported to listeners.
+     * @param signal        checked between signers, proof-of-rotation levels and chunks, or
+     *                      {@code null}.
      */
-    private static VerifiedSigner verify(
+    static VerifiedSigner verify(
             RandomAccessFile apk,
             SignatureInfo signatureInfo,
-            boolean doVerifyIntegrity) throws SecurityException, IOException {
+            VerificationLevel level,
+            int sdkVersion,
+            int schemeVersion,
+            CancellationSignal signal) throws SecurityException, IOException {
         int signerCount = 0;
         Map<Integer, byte[]> contentDigests = new HashMap<>();
-        Pair<X509Certificate[], ApkSigningBlockUtils.VerifiedProofOfRotation> result = null;
-        CertificateFactory certFactory;
-        try {
-            certFactory = CertificateFactory.getInstance("X.509");
-        } catch (CertificateException e) {
-            throw new RuntimeException("Failed to obtain X.509 CertificateFactory", e);
-        }
+        SignerBlock result = null;
+        CertificateFactory certFactory = getCertificateFactory();
         ByteBuffer signers;
         try {
             signers = getLengthPrefixedSlice(signatureInfo.signatureBlock);
         } catch (IOException e) {
             throw new SecurityException("Failed to read list of signers", e);
         }
+        int maxSigners = VerificationLimits.getDefault().getMaxSigners();
+        int signerBlockCount = 0;
         while (signers.hasRemaining()) {
+            if (signal != null) {
+                signal.throwIfCanceled();
+            }
+            signerBlockCount++;
+            VerificationLimits.check(signerBlockCount, maxSigners,
+                    "signers in an APK Signature Scheme v3 block");
             try {
                 ByteBuffer signer = getLengthPrefixedSlice(signers);
-                result = verifySigner(signer, contentDigests, certFactory);
+                result = verifySigner(signer, contentDigests, certFactory, sdkVersion,
+                        schemeVersion, signal);
                 signerCount++;
             } catch (PlatformNotSupportedException e) {
                 // this signer is for a different platform, ignore it.
                 continue;
+            } catch (VerificationLimitExceededException e) {
+                throw e;
             } catch (IOException | BufferUnderflowException | SecurityException e) {
                 throw new SecurityException(
                         "Failed to parse/verify signer #" + signerCount + " block",
@@ -177,39 +265,148 @@ public class ApkSignatureSchemeV3Verifier {
             throw new SecurityException("No content digests found");
         }
 
-        /*if (doVerifyIntegrity) {
-            ApkSigningBlockUtils.verifyIntegrity(contentDigests, apk, signatureInfo);
-        }*/
+        VerificationLevel verifiedLevel = VerificationLevel.SIGNATURES;
+        // Holds the verity root hash if verifyIntegrity had to build the tree.
+        Map<Integer, byte[]> computedDigests = new HashMap<>();
+        if (level.includes(VerificationLevel.CONTENT)) {
+            ApkSigningBlockUtils.verifyIntegrity(contentDigests, apk, signatureInfo,
+                    computedDigests, signal);
+            verifiedLevel = VerificationLevel.CONTENT;
+        }
 
-        byte[] verityRootHash = null;
-        if (contentDigests.containsKey(CONTENT_DIGEST_VERITY_CHUNKED_SHA256)) {
-            byte[] verityDigest = contentDigests.get(CONTENT_DIGEST_VERITY_CHUNKED_SHA256);
-            verityRootHash = ApkSigningBlockUtils.parseVerityDigestAndVerifySourceLength(
-                    verityDigest, apk.length(), signatureInfo);
+        byte[] verityRootHash = getVerityRootHash(contentDigests, apk, signatureInfo);
+        if (verityRootHash != null && level.includes(VerificationLevel.VERITY)) {
+            if (!computedDigests.containsKey(CONTENT_DIGEST_VERITY_CHUNKED_SHA256)) {
+                ApkSigningBlockUtils.verifyVerityRootHash(verityRootHash, apk, signatureInfo,
+                        signal);
+            }
+            verifiedLevel = VerificationLevel.VERITY;
         }
 
-        return new VerifiedSigner(result.first, result.second, verityRootHash, contentDigests);
+        return new VerifiedSigner(result.certs, result.por, verityRootHash, contentDigests,
+                verifiedLevel);
     }
 
-    private static Pair<X509Certificate[], ApkSigningBlockUtils.VerifiedProofOfRotation> verifySigner(
+    /**
+     * Verifies every signer of the provided APK Signature Scheme v3 Block and records the SDK
+     * range each of them targets. Content is not verified.
+     *
+     * @param schemeVersion scheme of the block, {@link ApkVerificationResult#SCHEME_V3} or
+     *                      {@link ApkVerificationResult#SCHEME_V31}, as reported to listeners.
+     * @param signal        checked between signers and proof-of-rotation levels, or
+     *                      {@code null}.
+     */
+    static SdkRangeSigners verifySdkRanges(
+            RandomAccessFile apk,
+            SignatureInfo signatureInfo,
+            int schemeVersion,
+            CancellationSignal signal) throws SecurityException, IOException {
+        int signerCount = 0;
+        List<SdkRangeSigner> rangeSigners = new ArrayList<>();
+        CertificateFactory certFactory = getCertificateFactory();
+        ByteBuffer signers;
+        try {
+            signers = getLengthPrefixedSlice(signatureInfo.signatureBlock);
+        } catch (IOException e) {
+            throw new SecurityException("Failed to read list of signers", e);
+        }
+        int maxSigners = VerificationLimits.getDefault().getMaxSigners();
+        while (signers.hasRemaining()) {
+            if (signal != null) {
+                signal.throwIfCanceled();
+            }
+            signerCount++;
+            VerificationLimits.check(signerCount, maxSigners,
+                    "signers in an APK Signature Scheme v3 block");
+            try {
+                ByteBuffer signer = getLengthPrefixedSlice(signers);
+                // Signers for different platforms are independent of each other, so each one
+                // gets its own digest map.
+                Map<Integer, byte[]> contentDigests = new HashMap<>();
+                SignerBlock result =
+                        verifySigner(signer, contentDigests, certFactory, SDK_VERSION_ANY,
+                                schemeVersion, signal);
+                if (contentDigests.isEmpty()) {
+                    throw new SecurityException("No content digests found");
+                }
+                byte[] verityRootHash = getVerityRootHash(contentDigests, apk, signatureInfo);
+                rangeSigners.add(new SdkRangeSigner(result.minSdkVersion, result.maxSdkVersion,
+                        new VerifiedSigner(result.certs, result.por, verityRootHash,
+                                contentDigests)));
+            } catch (PlatformNotSupportedException e) {
+                // Not thrown for SDK_VERSION_ANY.
+                throw new IllegalStateException(e);
+            } catch (VerificationLimitExceededException e) {
+                throw e;
+            } catch (IOException | BufferUnderflowException | SecurityException e) {
+                throw new SecurityException(
+                        "Failed to parse/verify signer #" + signerCount + " block",
+                        e);
+            }
+        }
+
+        if (rangeSigners.isEmpty()) {
+            throw new SecurityException("No signers found");
+        }
+
+        rangeSigners.sort((a, b) -> Integer.compare(a.minSdkVersion, b.minSdkVersion));
+        for (int i = 1; i < rangeSigners.size(); i++) {
+            SdkRangeSigner previous = rangeSigners.get(i - 1);
+            SdkRangeSigner current = rangeSigners.get(i);
+            if (current.minSdkVersion <= previous.maxSdkVersion) {
+                throw new SecurityException("APK Signature Scheme V3 only supports one signer per"
+                        + " platform: SDK ranges [" + previous.minSdkVersion + ", "
+                        + previous.maxSdkVersion + "] and [" + current.minSdkVersion + ", "
+                        + current.maxSdkVersion + "] overlap.");
+            }
+        }
+        return new SdkRangeSigners(rangeSigners);
+    }
+
+    private static CertificateFactory getCertificateFactory() {
+        try {
+            return CertificateFactory.getInstance("X.509");
+        } catch (CertificateException e) {
+            throw new RuntimeException("Failed to obtain X.509 CertificateFactory", e);
+        }
+    }
+
+    private static byte[] getVerityRootHash(Map<Integer, byte[]> contentDigests,
+                                            RandomAccessFile apk, SignatureInfo signatureInfo)
+            throws IOException {
+        if (!contentDigests.containsKey(CONTENT_DIGEST_VERITY_CHUNKED_SHA256)) {
+            return null;
+        }
+        byte[] verityDigest = contentDigests.get(CONTENT_DIGEST_VERITY_CHUNKED_SHA256);
+        return ApkSigningBlockUtils.parseVerityDigestAndVerifySourceLength(
+                verityDigest, apk.length(), signatureInfo);
+    }
+
+    private static SignerBlock verifySigner(
             ByteBuffer signerBlock,
             Map<Integer, byte[]> contentDigests,
-            CertificateFactory certFactory) throws SecurityException, IOException, PlatformNotSupportedException {
+            CertificateFactory certFactory,
+            int sdkVersion,
+            int schemeVersion,
+            CancellationSignal signal)
+            throws SecurityException, IOException, PlatformNotSupportedException {
         ByteBuffer signedData = getLengthPrefixedSlice(signerBlock);
         int minSdkVersion = signerBlock.getInt();
         int maxSdkVersion = signerBlock.getInt();
 
-       /* if (Build.VERSION.SDK_INT < minSdkVersion || Build.VERSION.SDK_INT > maxSdkVersion) {
+        if (sdkVersion != SDK_VERSION_ANY
+                && (sdkVersion < minSdkVersion || sdkVersion > maxSdkVersion)) {
             // this signature isn't meant to be used with this platform, skip it.
             throw new PlatformNotSupportedException(
                     "Signer not supported by this platform "
-                            + "version. This platform: " + Build.VERSION.SDK_INT
+                            + "version. This platform: " + sdkVersion
                             + ", signer minSdkVersion: " + minSdkVersion
                             + ", maxSdkVersion: " + maxSdkVersion);
-        }*/
+        }
 
         ByteBuffer signatures = getLengthPrefixedSlice(signerBlock);
         byte[] publicKeyBytes = readLengthPrefixedByteArray(signerBlock);
+        VerificationLimits limits = VerificationLimits.getDefault();
 
         int signatureCount = 0;
         int bestSigAlgorithm = -1;
@@ -217,6 +414,8 @@ public class ApkSignatureSchemeV3Verifier {
         List<Integer> signaturesSigAlgorithms = new ArrayList<>();
         while (signatures.hasRemaining()) {
             signatureCount++;
+            VerificationLimits.check(signatureCount, limits.getMaxSignatures(),
+                    "signature records in a signer");
             try {
                 ByteBuffer signature = getLengthPrefixedSlice(signatures);
                 if (signature.remaining() < 8) {
@@ -252,6 +451,8 @@ public class ApkSignatureSchemeV3Verifier {
         String jcaSignatureAlgorithm = signatureAlgorithmParams.first;
         AlgorithmParameterSpec jcaSignatureAlgorithmParams = signatureAlgorithmParams.second;
         boolean sigVerified;
+        long signedDataSize = signedData.remaining();
+        long startNanos = VerificationListener.phaseStart();
         try {
             PublicKey publicKey =
                     KeyFactory.getInstance(keyAlgorithm)
@@ -271,6 +472,10 @@ public class ApkSignatureSchemeV3Verifier {
         if (!sigVerified) {
             throw new SecurityException(jcaSignatureAlgorithm + " signature did not verify");
         }
+        if (startNanos != 0) {
+            VerificationListener.phaseEnd(VerificationListener.Phase.SIGNATURE_VERIFY,
+                    schemeVersion, bestSigAlgorithm, startNanos, signedDataSize);
+        }
 
         // Signature over signedData has verified.
 
@@ -281,6 +486,8 @@ public class ApkSignatureSchemeV3Verifier {
         int digestCount = 0;
         while (digests.hasRemaining()) {
             digestCount++;
+            VerificationLimits.check(digestCount, limits.getMaxSignatures(),
+                    "digest records in a signer");
             try {
                 ByteBuffer digest = getLengthPrefixedSlice(digests);
                 if (digest.remaining() < 8) {
@@ -311,10 +518,14 @@ public class ApkSignatureSchemeV3Verifier {
         }
 
         ByteBuffer certificates = getLengthPrefixedSlice(signedData);
+        long certificatesSize = certificates.remaining();
+        startNanos = VerificationListener.phaseStart();
         List<X509Certificate> certs = new ArrayList<>();
         int certificateCount = 0;
         while (certificates.hasRemaining()) {
             certificateCount++;
+            VerificationLimits.check(certificateCount, limits.getMaxCertificates(),
+                    "certificates in a signer");
             byte[] encodedCert = readLengthPrefixedByteArray(certificates);
             X509Certificate certificate;
             try {
@@ -326,6 +537,10 @@ public class ApkSignatureSchemeV3Verifier {
             certificate = new VerbatimX509Certificate(certificate, encodedCert);
             certs.add(certificate);
         }
+        if (startNanos != 0) {
+            VerificationListener.phaseEnd(VerificationListener.Phase.CERTIFICATE_DECODE,
+                    schemeVersion, 0, startNanos, certificatesSize);
+        }
 
         if (certs.isEmpty()) {
             throw new SecurityException("No certificates listed");
@@ -350,16 +565,25 @@ public class ApkSignatureSchemeV3Verifier {
         }
 
         ByteBuffer additionalAttrs = getLengthPrefixedSlice(signedData);
-        return verifyAdditionalAttributes(additionalAttrs, certs, certFactory);
+        Pair<X509Certificate[], ApkSigningBlockUtils.VerifiedProofOfRotation> result =
+                verifyAdditionalAttributes(additionalAttrs, certs, certFactory,
+                        limits.getMaxAttributes(), schemeVersion, signal);
+        return new SignerBlock(result.first, result.second, minSdkVersion, maxSdkVersion);
     }
 
     private static Pair<X509Certificate[], ApkSigningBlockUtils.VerifiedProofOfRotation>
     verifyAdditionalAttributes(ByteBuffer attrs, List<X509Certificate> certs,
-                               CertificateFactory certFactory) throws IOException {
+                               CertificateFactory certFactory, int maxAttributes,
+                               int schemeVersion, CancellationSignal signal)
+            throws IOException {
         X509Certificate[] certChain = certs.toArray(new X509Certificate[certs.size()]);
         ApkSigningBlockUtils.VerifiedProofOfRotation por = null;
 
+        int attributeCount = 0;
         while (attrs.hasRemaining()) {
+            attributeCount++;
+            VerificationLimits.check(attributeCount, maxAttributes,
+                    "additional attributes in a signer");
             ByteBuffer attr = getLengthPrefixedSlice(attrs);
             if (attr.remaining() < 4) {
                 throw new IOException("Remaining buffer too short to contain additional attribute "
@@ -372,7 +596,7 @@ public class ApkSignatureSchemeV3Verifier {
                         throw new SecurityException("Encountered multiple Proof-of-rotation records"
                                 + " when verifying APK Signature Scheme v3 signature");
                     }
-                    por = verifyProofOfRotationStruct(attr, certFactory);
+                    por = verifyProofOfRotationStruct(attr, certFactory, schemeVersion, signal);
                     // make sure that the last certificate in the Proof-of-rotation record matches
                     // the one used to sign this APK.
                     try {
@@ -404,16 +628,87 @@ public class ApkSignatureSchemeV3Verifier {
         // Algorithm -> digest map of signed digests in the signature.
         // All these are verified if requested.
         public final Map<Integer, byte[]> contentDigests;
+        // Level the signer was verified to. VERITY only if a verity digest was present.
+        public final VerificationLevel verificationLevel;
 
         public VerifiedSigner(X509Certificate[] certs,
                               ApkSigningBlockUtils.VerifiedProofOfRotation por,
                               byte[] verityRootHash, Map<Integer, byte[]> contentDigests) {
+            this(certs, por, verityRootHash, contentDigests, VerificationLevel.SIGNATURES);
+        }
+
+        public VerifiedSigner(X509Certificate[] certs,
+                              ApkSigningBlockUtils.VerifiedProofOfRotation por,
+                              byte[] verityRootHash, Map<Integer, byte[]> contentDigests,
+                              VerificationLevel verificationLevel) {
             this.certs = certs;
             this.por = por;
             this.verityRootHash = verityRootHash;
             this.contentDigests = contentDigests;
+            this.verificationLevel = verificationLevel;
+        }
+
+    }
+
+    /**
+     * A verified signer together with the platform API levels it targets.
+     */
+    public static class SdkRangeSigner {
+        public final int minSdkVersion;
+        public final int maxSdkVersion;
+        public final VerifiedSigner signer;
+
+        public SdkRangeSigner(int minSdkVersion, int maxSdkVersion, VerifiedSigner signer) {
+            this.minSdkVersion = minSdkVersion;
+            this.maxSdkVersion = maxSdkVersion;
+            this.signer = signer;
         }
 
+        public boolean supports(int sdkVersion) {
+            return sdkVersion >= minSdkVersion && sdkVersion <= maxSdkVersion;
+        }
     }
 
+    /**
+     * All verified signers of a v3 block, sorted by {@code minSdkVersion}. SDK ranges of the
+     * signers never overlap.
+     */
+    public static class SdkRangeSigners {
+        public final List<SdkRangeSigner> signers;
+
+        public SdkRangeSigners(List<SdkRangeSigner> signers) {
+            this.signers = signers;
+        }
+
+        /**
+         * Returns the signer effective on the provided platform API level or {@code null} if no
+         * signer targets it.
+         */
+        public VerifiedSigner getSigner(int sdkVersion) {
+            for (SdkRangeSigner rangeSigner : signers) {
+                if (rangeSigner.supports(sdkVersion)) {
+                    return rangeSigner.signer;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Output of a single signer block: its certificate chain, proof-of-rotation and SDK range.
+     */
+    private static class SignerBlock {
+        final X509Certificate[] certs;
+        final ApkSigningBlockUtils.VerifiedProofOfRotation por;
+        final int minSdkVersion;
+        final int maxSdkVersion;
+
+        SignerBlock(X509Certificate[] certs, ApkSigningBlockUtils.VerifiedProofOfRotation por,
+                    int minSdkVersion, int maxSdkVersion) {
+            this.certs = certs;
+            this.por = por;
+            this.minSdkVersion = minSdkVersion;
+            this.maxSdkVersion = maxSdkVersion;
+        }
+    }
 }
@@ -0,0 +1,87 @@
+package com.lenovo.leos.sign.v3;
+
+import com.lenovo.leos.sign.ApkSigningBlock;
+import com.lenovo.leos.sign.ApkVerificationResult;
+import com.lenovo.leos.sign.SchemeHandler;
+import com.lenovo.leos.sign.SignatureInfo;
+import com.lenovo.leos.sign.SignatureNotFoundException;
+import com.lenovo.leos.sign.VerificationContext;
+import com.lenovo.leos.sign.VerificationLevel;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link SchemeHandler} for APK Signature Scheme v3 and v3.1, which share the same block format
+ * and only differ by block ID.
+ *
+ * <p>Verification does not target a platform: every signer is verified, whatever SDK range it
+ * targets, and reported as one certificate chain, in order of {@code minSdkVersion}. The
+ * proof-of-rotation is the one of the signer targeting the newest platforms.
+ */
+public class V3SchemeHandler implements SchemeHandler {
+    private final int mSchemeVersion;
+    private final int mBlockId;
+
+    private V3SchemeHandler(int schemeVersion, int blockId) {
+        this.mSchemeVersion = schemeVersion;
+        this.mBlockId = blockId;
+    }
+
+    public static V3SchemeHandler createV3() {
+        return new V3SchemeHandler(ApkVerificationResult.SCHEME_V3,
+                ApkSignatureSchemeV3Verifier.APK_SIGNATURE_SCHEME_V3_BLOCK_ID);
+    }
+
+    public static V3SchemeHandler createV31() {
+        return new V3SchemeHandler(ApkVerificationResult.SCHEME_V31,
+                ApkSignatureSchemeV3Verifier.APK_SIGNATURE_SCHEME_V31_BLOCK_ID);
+    }
+
+    @Override
+    public int getSchemeVersion() {
+        return mSchemeVersion;
+    }
+
+    @Override
+    public boolean isPresent(VerificationContext context) {
+        ApkSigningBlock signingBlock = context.getSigningBlock();
+        return signingBlock != null && signingBlock.contains(mBlockId);
+    }
+
+    @Override
+    public ApkVerificationResult.VerifiedScheme verify(VerificationContext context)
+            throws SignatureNotFoundException, SecurityException, IOException {
+        SignatureInfo signatureInfo = context.findSignature(mBlockId);
+        List<ApkSignatureSchemeV3Verifier.SdkRangeSigner> signers =
+                ApkSignatureSchemeV3Verifier.verifySdkRanges(context.apk, signatureInfo,
+                        mSchemeVersion, context.getCancellationSignal()).signers;
+        X509Certificate[][] certs = new X509Certificate[signers.size()][];
+        // All signers sign the same contents, so their digests are verified together.
+        Map<Integer, byte[]> contentDigests = new HashMap<>();
+        byte[] verityRootHash = null;
+        for (int i = 0; i < certs.length; i++) {
+            ApkSignatureSchemeV3Verifier.VerifiedSigner signer = signers.get(i).signer;
+            certs[i] = signer.certs;
+            for (Map.Entry<Integer, byte[]> digest : signer.contentDigests.entrySet()) {
+                byte[] other = contentDigests.putIfAbsent(digest.getKey(), digest.getValue());
+                if (other != null && !MessageDigest.isEqual(other, digest.getValue())) {
+                    throw new SecurityException("Signers disagree on the content digest with"
+                            + " algorithm " + digest.getKey());
+                }
+            }
+            if (signer.verityRootHash != null) {
+                verityRootHash = signer.verityRootHash;
+            }
+        }
+        ApkSignatureSchemeV3Verifier.VerifiedSigner newest =
+                signers.get(signers.size() - 1).signer;
+        VerificationLevel level = context.verifyIntegrity(contentDigests, signatureInfo);
+        return new ApkVerificationResult.VerifiedScheme(mSchemeVersion, certs, newest.por,
+                verityRootHash, contentDigests, level);
+    }
+}
@@ -4,6 +4,7 @@ import com.lenovo.leos.sign.Base64;
 import com.lenovo.leos.sign.MD5Util;
 import com.lenovo.leos.sign.SignatureInfo;
 import com.lenovo.leos.sign.SignatureNotFoundException;
+import com.lenovo.leos.sign.VerificationLevel;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
@@ -33,7 +34,7 @@ public class V3SchemeUtil {
      * 获取签名block content信息
      *
      * @param apkFile apk文件路径
-     * @return 签名信息
+     * @return 签名信息，用完后 close 以释放占用的内存预算
      * @throws IOException                IO异常
      * @throws SignatureNotFoundException 签名不存在异常
      */
@@ -55,6 +56,33 @@ public class V3SchemeUtil {
         return ApkSignatureSchemeV3Verifier.verify(apkFile);
     }
 
+    /**
+     * 按指定级别校验签名，返回签名者信息及实际达到的校验级别
+     *
+     * @param apkFile apk文件路径
+     * @param level   校验级别，不低于 {@link VerificationLevel#SIGNATURES}
+     * @return 签名者信息
+     * @throws IOException                IO异常
+     * @throws SignatureNotFoundException 签名不存在异常
+     */
+    public static ApkSignatureSchemeV3Verifier.VerifiedSigner verify(String apkFile, VerificationLevel level)
+            throws IOException, SignatureNotFoundException {
+        return ApkSignatureSchemeV3Verifier.verify(apkFile, level);
+    }
+
+    /**
+     * 一次解析 v3 签名块，校验所有 signer，并给出每个 SDK 区间生效的 signer
+     *
+     * @param apkFile apk文件路径
+     * @return SDK 区间与 signer 的对应关系
+     * @throws IOException                IO异常
+     * @throws SignatureNotFoundException 签名不存在异常
+     */
+    public static ApkSignatureSchemeV3Verifier.SdkRangeSigners verifySdkRanges(String apkFile)
+            throws IOException, SignatureNotFoundException {
+        return ApkSignatureSchemeV3Verifier.verifySdkRanges(apkFile);
+    }
+
     /**
      * 获取第一个签名证书公钥的 MD5 值
      *
@@ -65,7 +93,9 @@ public class V3SchemeUtil {
         String keyString = "";
 
         try {
-            ApkSignatureSchemeV3Verifier.VerifiedSigner signs = ApkSignatureSchemeV3Verifier.verify(apkFile);
+            // 只需要证书，无需校验文件内容
+            ApkSignatureSchemeV3Verifier.VerifiedSigner signs =
+                    ApkSignatureSchemeV3Verifier.verify(apkFile, VerificationLevel.SIGNATURES);
             if (signs.certs != null && signs.certs.length > 0) {
                 X509Certificate[] certs = signs.certs;
 
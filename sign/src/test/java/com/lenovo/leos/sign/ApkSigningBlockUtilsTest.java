@@ -0,0 +1,57 @@
+package com.lenovo.leos.sign;
+
+import com.lenovo.leos.sign.v2.ApkSignatureSchemeV2Verifier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class ApkSigningBlockUtilsTest {
+    private Path mDirectory;
+    private MemoryBudget mPreviousBudget;
+    private MemoryBudget mBudget;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = Files.createTempDirectory("signing-block-test");
+        mPreviousBudget = MemoryBudget.getDefault();
+        mBudget = new MemoryBudget(Long.MAX_VALUE, 0);
+        MemoryBudget.setDefault(mBudget);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        MemoryBudget.setDefault(mPreviousBudget);
+        TestApks.deleteRecursively(mDirectory);
+    }
+
+    @Test
+    public void findSignatureKeepsBlockReservedUntilClosed() throws Exception {
+        Path file = TestApks.signed(mDirectory.resolve("app.apk"), 1, 0);
+        try (RandomAccessFile apk = new RandomAccessFile(file.toFile(), "r")) {
+            SignatureInfo signatureInfo = ApkSigningBlockUtils.findSignature(apk,
+                    ApkSignatureSchemeV2Verifier.APK_SIGNATURE_SCHEME_V2_BLOCK_ID);
+            long reserved = mBudget.getReservedBytes();
+            assertEquals(signatureInfo.centralDirOffset - signatureInfo.apkSigningBlockOffset,
+                    reserved);
+            signatureInfo.close();
+            assertEquals(0, mBudget.getReservedBytes());
+            // Still readable once released.
+            assertTrue(signatureInfo.signatureBlock.hasRemaining());
+            signatureInfo.close();
+            assertEquals(0, mBudget.getReservedBytes());
+
+            assertThrows(SignatureNotFoundException.class,
+                    () -> ApkSigningBlockUtils.findSignature(apk, 0x12345678));
+            assertEquals(0, mBudget.getReservedBytes());
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.lenovo.leos.sign;
+
+import com.lenovo.leos.sign.apkgen.Lineage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class ApkVerifierTest {
+    private Path mDirectory;
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = Files.createTempDirectory("apk-verifier-test");
+        mExecutor = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mExecutor.shutdownNow();
+        TestApks.deleteRecursively(mDirectory);
+    }
+
+    @Test
+    public void concurrentFailureStopsAndAwaitsOtherSchemes() throws Exception {
+        String apk = TestApks.signed(mDirectory.resolve("app.apk"), 1, 0).toString();
+        AtomicBoolean slowFinished = new AtomicBoolean();
+        SchemeRegistry registry = new SchemeRegistry();
+        registry.register(new FakeHandler(ApkVerificationResult.SCHEME_V3) {
+            @Override
+            public ApkVerificationResult.VerifiedScheme verify(VerificationContext context)
+                    throws SignatureNotFoundException {
+                try {
+                    // Far slower than the test, unless canceled.
+                    for (int i = 0; i < 1000; i++) {
+                        context.getCancellationSignal().throwIfCanceled();
+                        sleep(10);
+                    }
+                    return super.verify(context);
+                } finally {
+                    slowFinished.set(true);
+                }
+            }
+        });
+        registry.register(new FakeHandler(ApkVerificationResult.SCHEME_V2) {
+            @Override
+            public ApkVerificationResult.VerifiedScheme verify(VerificationContext context) {
+                sleep(50);
+                throw new SecurityException("v2 failed");
+            }
+        });
+        ApkVerifier verifier = new ApkVerifier.Builder()
+                .setSchemeRegistry(registry)
+                .setVerifyAllSchemes(true)
+                .setExecutor(mExecutor)
+                .build();
+        CancellationSignal signal = new CancellationSignal();
+
+        long start = System.nanoTime();
+        SecurityException e = assertThrows(SecurityException.class,
+                () -> verifier.verify(apk, signal));
+        assertEquals("v2 failed", e.getMessage());
+        assertTrue("returned before the slow scheme stopped", slowFinished.get());
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertFalse("caller's signal canceled", signal.isCanceled());
+    }
+
+    @Test
+    public void callerSignalStopsConcurrentSchemes() throws Exception {
+        String apk = TestApks.signed(mDirectory.resolve("app.apk"), 1, 0).toString();
+        CancellationSignal signal = new CancellationSignal();
+        signal.cancel();
+        ApkVerifier verifier = new ApkVerifier.Builder()
+                .setVerifyAllSchemes(true)
+                .setExecutor(mExecutor)
+                .build();
+        assertThrows(CancellationException.class,
+                () -> verifier.verify(apk, signal));
+    }
+
+    @Test
+    public void notAnApkIsNotSigned() throws Exception {
+        Path file = mDirectory.resolve("junk.apk");
+        Files.write(file, new byte[4096]);
+        ApkVerifier verifier = new ApkVerifier.Builder().build();
+        assertThrows(SignatureNotFoundException.class,
+                () -> verifier.verify(file.toString()));
+        ApkVerifier all = new ApkVerifier.Builder()
+                .setVerifyAllSchemes(true)
+                .setExecutor(mExecutor)
+                .build();
+        assertThrows(SignatureNotFoundException.class, () -> all.verify(file.toString()));
+        Files.write(file, new byte[0]);
+        assertThrows(SignatureNotFoundException.class,
+                () -> verifier.verify(file.toString()));
+    }
+
+    @Test
+    public void verityOnlyDigestIsVerified() throws Exception {
+        Path file = mDirectory.resolve("verity.apk");
+        TestApks.builder(1).setVerity(true).setV3Signer(TestApks.key(0)).write(file);
+        ApkVerifier verifier = new ApkVerifier.Builder().build();
+        ApkVerificationResult result = verifier.verify(file.toString());
+        // The verifier keeps the verity digest, preferred over chunked SHA-256.
+        assertEquals(
+                Collections.singleton(ApkSigningBlockUtils.CONTENT_DIGEST_VERITY_CHUNKED_SHA256),
+                result.schemes.get(0).contentDigests.keySet());
+
+        try (RandomAccessFile apk = new RandomAccessFile(file.toFile(), "rw")) {
+            // Inside the data of classes.dex.
+            apk.seek(8192);
+            int b = apk.read();
+            apk.seek(8192);
+            apk.write(b ^ 1);
+        }
+        assertThrows(SecurityException.class, () -> verifier.verify(file.toString()));
+    }
+
+    @Test
+    public void v3SignersForSeveralSdkRangesVerify() throws Exception {
+        Path file = mDirectory.resolve("ranges.apk");
+        TestApks.builder(1)
+                .addV3Signer(new Lineage(List.of(TestApks.key(1))), 33, Integer.MAX_VALUE)
+                .addV3Signer(new Lineage(List.of(TestApks.key(0))), 24, 32)
+                .write(file);
+        ApkVerificationResult result = new ApkVerifier.Builder().build().verify(file.toString());
+        ApkVerificationResult.VerifiedScheme scheme = result.schemes.get(0);
+        assertEquals(ApkVerificationResult.SCHEME_V3, scheme.schemeVersion);
+        assertEquals(2, scheme.certs.length);
+        assertEquals(TestApks.key(0).getCertificate(), scheme.certs[0][0]);
+        assertEquals(TestApks.key(1).getCertificate(), scheme.certs[1][0]);
+        assertEquals(VerificationLevel.CONTENT, scheme.verificationLevel);
+
+        TestApks.builder(1)
+                .addV3Signer(new Lineage(List.of(TestApks.key(0))), 24, 33)
+                .addV3Signer(new Lineage(List.of(TestApks.key(1))), 33, Integer.MAX_VALUE)
+                .write(file);
+        assertThrows(SecurityException.class,
+                () -> new ApkVerifier.Builder().build().verify(file.toString()));
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class FakeHandler implements SchemeHandler {
+        private final int mSchemeVersion;
+
+        FakeHandler(int schemeVersion) {
+            mSchemeVersion = schemeVersion;
+        }
+
+        @Override
+        public int getSchemeVersion() {
+            return mSchemeVersion;
+        }
+
+        @Override
+        public boolean isPresent(VerificationContext context) {
+            return true;
+        }
+
+        @Override
+        public ApkVerificationResult.VerifiedScheme verify(VerificationContext context)
+                throws SignatureNotFoundException {
+            return new ApkVerificationResult.VerifiedScheme(mSchemeVersion,
+                    new X509Certificate[0][], null, null, Collections.emptyMap());
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.lenovo.leos.sign;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class ContentDigestIndexTest {
+    private final AtomicInteger mSignatureVerifications = new AtomicInteger();
+    private Path mDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = Files.createTempDirectory("content-digest-index-test");
+        VerificationListener.setDefault(new VerificationListener() {
+            @Override
+            public void onPhase(Phase phase, int schemeVersion, int algorithm, long nanos,
+                                long bytes) {
+                if (phase == Phase.SIGNATURE_VERIFY) {
+                    mSignatureVerifications.incrementAndGet();
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        VerificationListener.setDefault(VerificationListener.NONE);
+        TestApks.deleteRecursively(mDirectory);
+    }
+
+    @Test
+    public void verifiesSignaturesOnceAndRecognizesCopies() throws Exception {
+        Path original = TestApks.signed(mDirectory.resolve("original.apk"), 1, 0);
+        Path copy = Files.copy(original, mDirectory.resolve("copy.apk"));
+        ContentDigestIndex index = new ContentDigestIndex();
+
+        ContentDigestIndex.DedupResult first = index.verify(original.toString());
+        assertFalse(first.isDuplicate());
+        assertEquals(VerificationLevel.CONTENT, first.result.getVerificationLevel());
+        // One signer of the effective scheme, v3.
+        assertEquals(1, mSignatureVerifications.get());
+        assertTrue(index.size() > 0);
+
+        ContentDigestIndex.DedupResult second = index.verify(copy.toString());
+        assertEquals(original.toString(), second.duplicateOf);
+        assertEquals(VerificationLevel.SIGNATURES, second.result.getVerificationLevel());
+        assertEquals(1, index.getDuplicateCount());
+    }
+
+    @Test
+    public void tamperedContentsAreRejected() throws Exception {
+        Path file = TestApks.signed(mDirectory.resolve("app.apk"), 1, 0);
+        try (RandomAccessFile apk = new RandomAccessFile(file.toFile(), "rw")) {
+            apk.seek(8192);
+            int b = apk.read();
+            apk.seek(8192);
+            apk.write(b ^ 1);
+        }
+        ContentDigestIndex index = new ContentDigestIndex();
+        assertThrows(SecurityException.class, () -> index.verify(file.toString()));
+        assertEquals(0, index.size());
+    }
+}
@@ -0,0 +1,55 @@
+package com.lenovo.leos.sign;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void concurrentRecordingKeepsCountAndMax() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int offset = t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 100_000; i++) {
+                    histogram.record(i * 4L + offset);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(400_000, histogram.getCount());
+        assertEquals(399_999, histogram.getMax());
+        long median = histogram.getValueAtPercentile(50);
+        assertTrue("median " + median, median >= 200_000 && median <= 200_000 * 65 / 64);
+    }
+
+    @Test
+    public void snapshotMovesValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1_000);
+        histogram.record(5_000);
+
+        LatencyHistogram copy = histogram.snapshot(true);
+        assertEquals(2, copy.getCount());
+        assertEquals(5_000, copy.getMax());
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getValueAtPercentile(99));
+
+        histogram.record(2_000);
+        assertEquals(2_000, histogram.getMax());
+        assertEquals(2_000, histogram.snapshot(false).getMax());
+        assertEquals(1, histogram.getCount());
+    }
+}
@@ -0,0 +1,45 @@
+package com.lenovo.leos.sign;
+
+import org.junit.Test;
+
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class LineageGraphTest {
+
+    @Test
+    public void mergesRotationsAndRejectsUnknownIds() throws Exception {
+        X509Certificate first = TestApks.key(0).getCertificate();
+        X509Certificate second = TestApks.key(1).getCertificate();
+        X509Certificate unrelated = TestApks.key(2).getCertificate();
+        LineageGraph graph = new LineageGraph();
+        graph.merge(new ApkSigningBlockUtils.VerifiedProofOfRotation(
+                List.of(first, second), List.of(0x17, 0x17)));
+
+        int firstId = graph.getCertId(first);
+        int secondId = graph.getCertId(second);
+        assertEquals(2, graph.size());
+        assertArrayEquals(new int[]{firstId}, graph.getAncestors(secondId));
+        assertTrue(graph.isAncestor(firstId, secondId));
+        assertFalse(graph.isAncestor(secondId, firstId));
+        assertEquals(0x17, graph.getEdgeFlags(firstId, secondId));
+
+        int unknown = graph.getCertId(unrelated);
+        assertEquals(-1, unknown);
+        for (int id : Arrays.asList(unknown, 2, 15, 16)) {
+            assertThrows(IllegalArgumentException.class, () -> graph.getAncestors(id));
+            assertThrows(IllegalArgumentException.class, () -> graph.getDescendants(id));
+            assertThrows(IllegalArgumentException.class, () -> graph.isSameLineage(firstId, id));
+            assertThrows(IllegalArgumentException.class, () -> graph.isAncestor(id, secondId));
+            assertThrows(IllegalArgumentException.class, () -> graph.getEdgeFlags(firstId, id));
+            assertThrows(IllegalArgumentException.class, () -> graph.getFingerprint(id));
+        }
+    }
+}
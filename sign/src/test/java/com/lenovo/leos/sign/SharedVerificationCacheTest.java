@@ -0,0 +1,112 @@
+package com.lenovo.leos.sign;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SharedVerificationCacheTest {
+    private Path mDirectory;
+    private Path mCacheFile;
+    private String mApk;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = Files.createTempDirectory("shared-cache-test");
+        mCacheFile = mDirectory.resolve("cache.bin");
+        mApk = TestApks.signed(mDirectory.resolve("app.apk"), 1, 0).toString();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        TestApks.deleteRecursively(mDirectory);
+    }
+
+    @Test
+    public void publishedResultIsVisibleToAnotherMapping() throws Exception {
+        ApkVerifier verifier = new ApkVerifier.Builder().build();
+        try (SharedVerificationCache writer = SharedVerificationCache.open(mCacheFile, 64);
+             SharedVerificationCache reader = SharedVerificationCache.open(mCacheFile, 64)) {
+            assertNull(reader.lookup(mApk, VerificationLevel.CONTENT));
+            List<VerificationLedger.SchemeEntry> verified = writer.verify(verifier, mApk);
+
+            List<VerificationLedger.SchemeEntry> cached =
+                    reader.lookup(mApk, VerificationLevel.CONTENT);
+            assertNotNull(cached);
+            assertEquals(verified.size(), cached.size());
+            assertArrayEquals(verified.get(0).signerFingerprints,
+                    cached.get(0).signerFingerprints);
+            assertNull("stricter level", reader.lookup(mApk, VerificationLevel.VERITY));
+        }
+    }
+
+    @Test
+    public void changedApkIsAMiss() throws Exception {
+        ApkVerifier verifier = new ApkVerifier.Builder().build();
+        try (SharedVerificationCache cache = SharedVerificationCache.open(mCacheFile, 64)) {
+            cache.verify(verifier, mApk);
+            Path apk = Paths.get(mApk);
+            TestApks.signed(apk, 2, 0);
+            Files.setLastModifiedTime(apk,
+                    FileTime.fromMillis(System.currentTimeMillis() + 60_000));
+            assertNull(cache.lookup(mApk, VerificationLevel.CONTENT));
+        }
+    }
+
+    @Test
+    public void freshClaimIsNotTakenOver() throws Exception {
+        byte[] key = SharedVerificationCache.keyOf(mApk);
+        long now = System.currentTimeMillis();
+        try (SharedVerificationCache first = SharedVerificationCache.open(mCacheFile, 8);
+             SharedVerificationCache second = SharedVerificationCache.open(mCacheFile, 8)) {
+            SharedVerificationCache.Claim claim = first.claim(key, now);
+            assertNotNull(claim);
+            SharedVerificationCache.Claim other = second.claim(key, now);
+            assertTrue(other == null || other.slot != claim.slot);
+        }
+    }
+
+    @Test
+    public void staleClaimIsTakenOverAndItsWriterDoesNotPublish() throws Exception {
+        ApkVerifier verifier = new ApkVerifier.Builder().build();
+        List<VerificationLedger.SchemeEntry> schemes =
+                VerificationLedger.SchemeEntry.of(verifier.verify(mApk));
+        byte[] key = SharedVerificationCache.keyOf(mApk);
+        byte[] record = SharedVerificationCache.encode(key, VerificationLevel.CONTENT, schemes);
+        long now = System.currentTimeMillis();
+        try (SharedVerificationCache stalled = SharedVerificationCache.open(mCacheFile, 8);
+             SharedVerificationCache live = SharedVerificationCache.open(mCacheFile, 8)) {
+            // A writer that claimed a slot, then stalled past the stale claim time.
+            SharedVerificationCache.Claim staleClaim =
+                    stalled.claim(key, now - SharedVerificationCache.STALE_CLAIM_MILLIS - 2_000);
+            assertNotNull(staleClaim);
+
+            SharedVerificationCache.Claim claim = live.claim(key, now);
+            assertNotNull(claim);
+            assertEquals(staleClaim.slot, claim.slot);
+            assertNotEquals(staleClaim.state, claim.state);
+            live.write(claim, record);
+
+            // The stalled writer resumes while the slot is being written: it neither marks the
+            // slot ready nor hides the new writer's release.
+            stalled.write(staleClaim, record);
+            assertFalse(stalled.release(staleClaim));
+            assertNull(live.lookup(mApk, VerificationLevel.CONTENT));
+            assertTrue(live.release(claim));
+            assertNotNull(stalled.lookup(mApk, VerificationLevel.CONTENT));
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.lenovo.leos.sign;
+
+import com.lenovo.leos.sign.v2.ApkSignatureSchemeV2Verifier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SignerIndexTest {
+    private Path mDirectory;
+    private Path mFile;
+    private Path mJournal;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = Files.createTempDirectory("signer-index-test");
+        mFile = mDirectory.resolve("signers.idx");
+        mJournal = mDirectory.resolve("signers.idx.journal");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        TestApks.deleteRecursively(mDirectory);
+    }
+
+    @Test
+    public void removeCheckpointAndReopen() throws Exception {
+        X509Certificate first = TestApks.key(0).getCertificate();
+        X509Certificate second = TestApks.key(1).getCertificate();
+        try (SignerIndex index = SignerIndex.open(mFile)) {
+            index.setCheckpointThresholds(Long.MAX_VALUE, Double.MAX_VALUE);
+            index.add("a.apk", signer(first));
+            index.add("b.apk", signer(second));
+            index.add("c.apk", signer(first));
+            index.remove("a.apk");
+            index.checkpoint();
+            assertEquals(0, Files.size(mJournal));
+            // Journaled after the checkpoint.
+            index.add("d.apk", signer(second));
+            index.remove("b.apk");
+        }
+        try (SignerIndex index = SignerIndex.open(mFile)) {
+            assertEquals(2, index.size());
+            assertEquals(Collections.singletonList("c.apk"), index.findByCertificate(first));
+            assertEquals(Collections.singletonList("d.apk"), index.findByCertificate(second));
+        }
+    }
+
+    @Test
+    public void checkpointsWhenTombstonesOrJournalPassThresholds() throws Exception {
+        X509Certificate cert = TestApks.key(0).getCertificate();
+        try (SignerIndex index = SignerIndex.open(mFile)) {
+            index.setCheckpointThresholds(Long.MAX_VALUE, 0.5);
+            for (int i = 0; i < 4; i++) {
+                index.add(i + ".apk", signer(cert));
+            }
+            index.remove("0.apk");
+            index.remove("1.apk");
+            assertTrue(Files.size(mJournal) > 0);
+            // 3 of 4 ids removed.
+            index.remove("2.apk");
+            assertEquals(0, Files.size(mJournal));
+            assertEquals(Collections.singletonList("3.apk"), index.findByCertificate(cert));
+
+            index.setCheckpointThresholds(0, Double.MAX_VALUE);
+            for (int i = 4; i < 64; i++) {
+                index.add(i + ".apk", signer(cert));
+                assertTrue(Files.size(mJournal) <= Files.size(mFile));
+            }
+        }
+        try (SignerIndex index = SignerIndex.open(mFile)) {
+            assertEquals(61, index.size());
+            assertEquals("3.apk", index.findByCertificate(cert).get(0));
+        }
+    }
+
+    private static ApkSignatureSchemeV2Verifier.VerifiedSigner signer(X509Certificate cert) {
+        return new ApkSignatureSchemeV2Verifier.VerifiedSigner(
+                new X509Certificate[][]{{cert}}, null, Collections.emptyMap());
+    }
+}
@@ -0,0 +1,73 @@
+package com.lenovo.leos.sign;
+
+import com.lenovo.leos.sign.apkgen.ApkBuilder;
+import com.lenovo.leos.sign.apkgen.SigningKey;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * APKs and keys generated for the tests. Keys are derived from fixed seeds and shared by the
+ * tests of a JVM.
+ */
+final class TestApks {
+    private static final Map<Integer, SigningKey> sKeys = new HashMap<>();
+
+    private TestApks() {
+    }
+
+    /**
+     * Returns the EC P-256 key number {@code index}.
+     */
+    static synchronized SigningKey key(int index) throws GeneralSecurityException {
+        SigningKey key = sKeys.get(index);
+        if (key == null) {
+            SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
+            random.setSeed(index);
+            key = SigningKey.generate(SigningKey.ECDSA_WITH_SHA256, "test " + index, random);
+            sKeys.put(index, key);
+        }
+        return key;
+    }
+
+    /**
+     * Returns a builder of an APK with 64 KiB of entry data generated from {@code seed}.
+     */
+    static ApkBuilder builder(long seed) {
+        return new ApkBuilder()
+                .addEntry("AndroidManifest.xml", new byte[1024])
+                .addRandomEntry("classes.dex", 64 * 1024, seed);
+    }
+
+    /**
+     * Writes an APK with entry data generated from {@code seed}, signed with v2 and v3 by the key
+     * number {@code keyIndex}, to {@code apk}.
+     */
+    static Path signed(Path apk, long seed, int keyIndex)
+            throws IOException, GeneralSecurityException {
+        SigningKey key = key(keyIndex);
+        builder(seed).addV2Signer(key).setV3Signer(key).write(apk);
+        return apk;
+    }
+
+    /**
+     * Deletes {@code directory} and everything in it.
+     */
+    static void deleteRecursively(Path directory) throws IOException {
+        if (directory == null || !Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.lenovo.leos.sign;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class VerificationLedgerTest {
+    private Path mDirectory;
+    private Path mLedgerFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = Files.createTempDirectory("ledger-test");
+        mLedgerFile = mDirectory.resolve("ledger.bin");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        TestApks.deleteRecursively(mDirectory);
+    }
+
+    @Test
+    public void outcomesSurviveReopen() throws Exception {
+        String signed = TestApks.signed(mDirectory.resolve("signed.apk"), 1, 0).toString();
+        Path unsigned = mDirectory.resolve("unsigned.apk");
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(unsigned))) {
+            zip.putNextEntry(new ZipEntry("AndroidManifest.xml"));
+            zip.write(new byte[1024]);
+        }
+        ApkVerifier verifier = new ApkVerifier.Builder().build();
+        try (VerificationLedger ledger = VerificationLedger.open(mLedgerFile)) {
+            assertTrue(ledger.verify(verifier, signed).isVerified());
+            assertFalse(ledger.verify(verifier, unsigned.toString()).isVerified());
+        }
+        try (VerificationLedger ledger = VerificationLedger.open(mLedgerFile)) {
+            assertEquals(2, ledger.size());
+            VerificationLedger.Entry entry = ledger.lookup(signed);
+            assertNotNull(entry);
+            assertTrue(entry.isFromLedger());
+            assertTrue(entry.isVerified());
+            assertEquals(VerificationLevel.CONTENT, entry.getVerificationLevel());
+            assertNotNull(ledger.lookup(unsigned.toString()));
+        }
+    }
+
+    @Test
+    public void compactionKeepsLatestRecordsAcrossReopen() throws Exception {
+        String first = TestApks.signed(mDirectory.resolve("first.apk"), 1, 0).toString();
+        String second = TestApks.signed(mDirectory.resolve("second.apk"), 2, 1).toString();
+        String removed = TestApks.signed(mDirectory.resolve("removed.apk"), 3, 0).toString();
+        String later = TestApks.signed(mDirectory.resolve("later.apk"), 4, 1).toString();
+        ApkVerifier signatures = new ApkVerifier.Builder()
+                .setVerificationLevel(VerificationLevel.SIGNATURES)
+                .build();
+        ApkVerifier content = new ApkVerifier.Builder().build();
+        try (VerificationLedger ledger = VerificationLedger.open(mLedgerFile)) {
+            for (String apk : new String[]{first, second, removed}) {
+                ledger.verify(signatures, apk);
+            }
+            // Supersedes the records at the laxer level.
+            ledger.verify(content, first);
+            ledger.verify(content, second);
+            ledger.remove(removed);
+            long before = Files.size(mLedgerFile);
+
+            ledger.compact();
+            assertTrue(Files.size(mLedgerFile) < before);
+            assertEquals(2, ledger.size());
+            assertEquals(VerificationLevel.CONTENT, ledger.lookup(first).getVerificationLevel());
+            assertEquals(VerificationLevel.CONTENT, ledger.lookup(second).getVerificationLevel());
+            assertNull(ledger.lookup(removed));
+            // Appends go to the compacted file.
+            assertTrue(ledger.verify(content, later).isVerified());
+        }
+        try (VerificationLedger ledger = VerificationLedger.open(mLedgerFile)) {
+            assertEquals(3, ledger.size());
+            for (String apk : new String[]{first, second, later}) {
+                VerificationLedger.Entry entry = ledger.lookup(apk);
+                assertNotNull(apk, entry);
+                assertEquals(VerificationLevel.CONTENT, entry.getVerificationLevel());
+            }
+            assertNull(ledger.lookup(removed));
+        }
+    }
+
+    @Test
+    public void changedApkIsAMiss() throws Exception {
+        Path apk = TestApks.signed(mDirectory.resolve("app.apk"), 1, 0);
+        ApkVerifier verifier = new ApkVerifier.Builder().build();
+        try (VerificationLedger ledger = VerificationLedger.open(mLedgerFile)) {
+            ledger.verify(verifier, apk.toString());
+            Files.write(apk, new byte[]{1}, StandardOpenOption.APPEND);
+            assertNull(ledger.lookup(apk.toString()));
+        }
+    }
+}